@@ -0,0 +1,198 @@
+package com.github.hamishmorgan.xomb;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.github.hamishmorgan.xomb.api.DocumentBuilder;
+import com.github.hamishmorgan.xomb.spi.XomBuilderFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Renders a document for each of a sequence of records, in parallel, writing the documents to a sink in the order
+ * of the records.
+ * <p/>
+ * Records are read and rendered on a {@link RenderService} while fewer than the window of documents are
+ * outstanding. Once the window is full, the next record is only read after the oldest document has been written,
+ * so at most a window of records and rendered documents are held in memory at once, however long the sequence. A
+ * window of a few times the number of threads of the executor keeps every thread busy while documents that take
+ * longer to render are awaited.
+ * <p/>
+ * If a record can not be rendered, or a document can not be written, the documents not yet written are abandoned
+ * and the exception is thrown by {@link #render(Iterator, Function, Sink)}.
+ */
+@ThreadSafe
+public final class BatchRenderer {
+
+    /**
+     * Destination of the rendered documents, which is only called by the thread that started the batch.
+     */
+    public interface Sink {
+        /**
+         * @param document buffer holding the serialized document, which is not retained by the renderer
+         * @throws IOException if the document can not be written
+         */
+        void write(@Nonnull ByteBuffer document) throws IOException;
+    }
+
+    @Nonnull
+    private final RenderService service;
+    private final int window;
+    @Nonnull
+    private final Charset encoding;
+    @Nonnull
+    private final SerializationProfile profile;
+
+    /**
+     * @param service  service on which documents are rendered
+     * @param window   maximum number of documents rendering or awaiting writing at once
+     * @param encoding encoding to write
+     * @param profile  serialization options
+     * @throws NullPointerException     if service, encoding or profile is null
+     * @throws IllegalArgumentException if window is not positive
+     */
+    public BatchRenderer(@Nonnull final RenderService service, final int window, @Nonnull final Charset encoding,
+                         @Nonnull final SerializationProfile profile) {
+        checkArgument(window > 0, "argument window is not positive");
+        this.service = checkNotNull(service, "service");
+        this.window = window;
+        this.encoding = checkNotNull(encoding, "encoding");
+        this.profile = checkNotNull(profile, "profile");
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Render a document for each record, writing each document to the sink in the order of the records.
+     *
+     * @param records  records to render, which are read by the calling thread
+     * @param function creates a document builder for a record; it is called concurrently on the threads of the
+     *                 service
+     * @param sink     destination of the documents
+     * @param <R>      type of the records
+     * @return number of documents written
+     * @throws IOException if a document can not be written
+     */
+    public <R> long render(@Nonnull final Iterator<? extends R> records,
+                           @Nonnull final Function<? super R, ? extends DocumentBuilder> function,
+                           @Nonnull final Sink sink) throws IOException {
+        checkNotNull(records, "records");
+        checkNotNull(function, "function");
+        checkNotNull(sink, "sink");
+        final ArrayDeque<CompletableFuture<ByteBuffer>> pending = new ArrayDeque<CompletableFuture<ByteBuffer>>();
+        long count = 0;
+        boolean complete = false;
+        try {
+            while (records.hasNext()) {
+                if (pending.size() == window) {
+                    sink.write(_await(pending.removeFirst()));
+                    count++;
+                }
+                pending.addLast(service.render(_apply(function, records.next()), encoding, profile));
+            }
+            while (!pending.isEmpty()) {
+                sink.write(_await(pending.removeFirst()));
+                count++;
+            }
+            complete = true;
+        } finally {
+            if (!complete) {
+                for (final CompletableFuture<ByteBuffer> future : pending) {
+                    future.cancel(false);
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Render a document for each record, writing the documents to the stream one after another.
+     *
+     * @param out stream to write to; flushed once all of the documents have been written, but not closed
+     * @return number of documents written
+     * @throws IOException if the stream can not be written to
+     * @see #render(Iterator, Function, Sink)
+     */
+    public <R> long render(@Nonnull final Iterator<? extends R> records,
+                           @Nonnull final Function<? super R, ? extends DocumentBuilder> function,
+                           @Nonnull final OutputStream out) throws IOException {
+        checkNotNull(out, "out");
+        final long count = render(records, function, new Sink() {
+            @Override
+            public void write(@Nonnull final ByteBuffer document) throws IOException {
+                out.write(document.array(), document.arrayOffset() + document.position(), document.remaining());
+            }
+        });
+        out.flush();
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchRenderer{service=" + service + ", window=" + window + ", encoding=" + encoding
+                + ", profile=" + profile + '}';
+    }
+
+    @Nonnull
+    private static <R> Function<XomBuilderFactory, DocumentBuilder> _apply(
+            @Nonnull final Function<? super R, ? extends DocumentBuilder> function, final R record) {
+        return new Function<XomBuilderFactory, DocumentBuilder>() {
+            @Override
+            public DocumentBuilder apply(final XomBuilderFactory factory) {
+                return function.apply(record);
+            }
+        };
+    }
+
+    /**
+     * Wait for the document to be rendered, throwing the exception that caused it to fail, if any.
+     */
+    @Nonnull
+    private static ByteBuffer _await(@Nonnull final CompletableFuture<ByteBuffer> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw ex;
+        }
+    }
+}
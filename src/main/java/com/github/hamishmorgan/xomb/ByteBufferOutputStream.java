@@ -0,0 +1,54 @@
+package com.github.hamishmorgan.xomb;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import javax.annotation.Nonnull;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Output stream that puts bytes directly into a buffer, advancing its position.
+ * <p/>
+ * The buffer may be direct or memory-mapped, in which case the bytes are written straight to native memory, or to
+ * the mapped file. Writing more bytes than the buffer has remaining throws
+ * {@link java.nio.BufferOverflowException}.
+ */
+final class ByteBufferOutputStream extends OutputStream {
+
+    @Nonnull
+    private final ByteBuffer buffer;
+
+    ByteBufferOutputStream(@Nonnull final ByteBuffer buffer) {
+        this.buffer = checkNotNull(buffer, "buffer");
+    }
+
+    @Override
+    public void write(final int b) {
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(@Nonnull final byte[] bytes, final int offset, final int length) {
+        buffer.put(bytes, offset, length);
+    }
+}
@@ -0,0 +1,110 @@
+package com.github.hamishmorgan.xomb;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Output stream that stages bytes in a pooled direct buffer, and writes them to a channel whenever the buffer
+ * fills, is flushed, or the stream is closed.
+ * <p/>
+ * Since the buffer is direct, the channel can transfer its content without the temporary copy made when writing a
+ * heap buffer. The channel must be in blocking mode. Closing the stream returns the buffer to the pool but does not
+ * close the channel.
+ */
+final class ChannelOutputStream extends OutputStream {
+
+    @Nonnull
+    private final WritableByteChannel channel;
+    /**
+     * Staging buffer, in write mode; null once the stream is closed.
+     */
+    @Nullable
+    private ByteBuffer buffer;
+
+    ChannelOutputStream(@Nonnull final WritableByteChannel channel) {
+        this.channel = checkNotNull(channel, "channel");
+        this.buffer = DirectBuffers.take();
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        final ByteBuffer buffer = _buffer();
+        if (!buffer.hasRemaining()) {
+            _drain(buffer);
+        }
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(@Nonnull final byte[] bytes, int offset, int length) throws IOException {
+        checkNotNull(bytes, "bytes");
+        final ByteBuffer buffer = _buffer();
+        while (length > 0) {
+            if (!buffer.hasRemaining()) {
+                _drain(buffer);
+            }
+            final int count = Math.min(length, buffer.remaining());
+            buffer.put(bytes, offset, count);
+            offset += count;
+            length -= count;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        _drain(_buffer());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (buffer != null) {
+            try {
+                _drain(buffer);
+            } finally {
+                DirectBuffers.give(buffer);
+                buffer = null;
+            }
+        }
+    }
+
+    @Nonnull
+    private ByteBuffer _buffer() {
+        checkState(buffer != null, "Stream is closed.");
+        return buffer;
+    }
+
+    private void _drain(@Nonnull final ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
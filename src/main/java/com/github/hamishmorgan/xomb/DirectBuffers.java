@@ -0,0 +1,75 @@
+package com.github.hamishmorgan.xomb;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.nio.ByteBuffer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Pool of direct buffers used to stage output for channels, holding at most one idle buffer per thread.
+ * <p/>
+ * Direct buffers are expensive to allocate and are only released when collected, so they are retained between
+ * writes rather than allocated for each one. A thread that takes a second buffer before returning the first is
+ * given a new buffer, which is discarded when returned if the thread's slot is already occupied.
+ */
+@ThreadSafe
+final class DirectBuffers {
+
+    /**
+     * Capacity in bytes of each pooled buffer.
+     */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> IDLE = new ThreadLocal<ByteBuffer>();
+
+    private DirectBuffers() {
+    }
+
+    /**
+     * @return a cleared direct buffer of {@link #BUFFER_SIZE} bytes, for the exclusive use of the caller until it is
+     * returned with {@link #give(ByteBuffer)}
+     */
+    @Nonnull
+    static ByteBuffer take() {
+        final ByteBuffer buffer = IDLE.get();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        IDLE.remove();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer obtained from {@link #take()}. The buffer must not be used again by the caller.
+     */
+    static void give(@Nonnull final ByteBuffer buffer) {
+        checkNotNull(buffer, "buffer");
+        checkArgument(buffer.isDirect() && buffer.capacity() == BUFFER_SIZE, "argument buffer was not pooled");
+        if (IDLE.get() == null) {
+            IDLE.set(buffer);
+        }
+    }
+}
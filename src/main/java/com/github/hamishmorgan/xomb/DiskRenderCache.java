@@ -0,0 +1,561 @@
+package com.github.hamishmorgan.xomb;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.github.hamishmorgan.xomb.api.DocumentBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.base.Throwables.propagate;
+import static com.google.common.base.Throwables.propagateIfPossible;
+
+/**
+ * Cache of serialized documents on the local disk, which survives restarts of the process.
+ * <p/>
+ * Documents are keyed on the fingerprint of the builder (see {@link XomUtil#fingerprint(DocumentBuilder)}), the
+ * encoding and the serialization options, so a document is only built and serialized when a builder with
+ * different content is rendered. Fingerprints of unchanged nested builders are retained, so computing the key is
+ * much cheaper than building the document. The node factory of the builder is assumed not to change the content.
+ * Documents with deferred content (see {@link XomUtil#isDeferred(DocumentBuilder)}) are not cached, since that
+ * content is read again when the document is built and may no longer match the key.
+ * <p/>
+ * Serialized documents are appended to segment files of a fixed size, which are memory mapped, and documents found
+ * in the cache are returned as views of the mapped files without being copied. When the total size of the
+ * segments would exceed the maximum, the oldest segment is evicted along with every document in it. The file of an
+ * evicted segment that documents have been returned from is only deleted once none of the returned buffers are
+ * reachable, so until then the files may exceed the maximum size. When a cache is opened on a directory that
+ * already holds segments, the documents in them are available immediately; a document that was only partially
+ * written when the process stopped is discarded.
+ * <p/>
+ * When several threads render the same document at once, it is built and serialized by one of them, and the
+ * others wait for the result.
+ * <p/>
+ * A directory must not be used by more than one cache at a time.
+ */
+@ThreadSafe
+public final class DiskRenderCache implements Closeable {
+
+    /**
+     * Default size in bytes of each segment file.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Version of the key derivation and serialized form; segments written by other versions are never matched.
+     */
+    private static final int FORMAT_VERSION = 1;
+    private static final int MAGIC = 0x584F4D42;
+    private static final int KEY_SIZE = 32;
+    /**
+     * Each record is the magic number, which is written last, the key, the length of the document and its checksum,
+     * followed by the document itself.
+     */
+    private static final int HEADER_SIZE = 4 + KEY_SIZE + 4 + 4;
+    private static final String SEGMENT_SUFFIX = ".segment";
+
+    private static final HashFunction KEY_FUNCTION = Hashing.sha256();
+    private static final HashFunction CHECKSUM_FUNCTION = Hashing.crc32c();
+
+    @Nonnull
+    private final File directory;
+    private final int segmentSize;
+    private final int maximumSegments;
+
+    /*
+     * The following are guarded by this.
+     */
+
+    /**
+     * Segments, oldest first; documents are appended to the last.
+     */
+    @Nonnull
+    private final ArrayDeque<Segment> segments;
+    @Nonnull
+    private final Map<HashCode, Entry> index;
+    /**
+     * Documents being rendered, to which threads that miss on the same key wait for the result.
+     */
+    @Nonnull
+    private final Map<HashCode, SettableFuture<byte[]>> pending;
+    /**
+     * Evicted segments whose files have not been deleted, since buffers returned from them may still be read.
+     */
+    @Nonnull
+    private final Set<Retired> retired;
+    @Nonnull
+    private final ReferenceQueue<MappedByteBuffer> released;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+    private boolean closed;
+
+    /**
+     * @param directory    directory holding the segment files, which is created if necessary
+     * @param maximumBytes maximum total size of the segment files
+     * @throws IOException              if the directory or existing segments can not be read
+     * @throws IllegalArgumentException if maximumBytes is less than {@link #DEFAULT_SEGMENT_SIZE}
+     */
+    public DiskRenderCache(@Nonnull final File directory, final long maximumBytes) throws IOException {
+        this(directory, maximumBytes, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param directory    directory holding the segment files, which is created if necessary
+     * @param maximumBytes maximum total size of the segment files
+     * @param segmentSize  size in bytes of each segment file, which bounds the size of the documents cached
+     * @throws IOException              if the directory or existing segments can not be read
+     * @throws IllegalArgumentException if segmentSize is too small to hold a document, or maximumBytes is less
+     *                                  than segmentSize
+     */
+    public DiskRenderCache(@Nonnull final File directory, final long maximumBytes, final int segmentSize)
+            throws IOException {
+        this.directory = checkNotNull(directory, "directory");
+        checkArgument(segmentSize > HEADER_SIZE, "argument segmentSize is too small");
+        checkArgument(maximumBytes >= segmentSize, "argument maximumBytes is less than segmentSize");
+        this.segmentSize = segmentSize;
+        this.maximumSegments = (int) Math.min(Integer.MAX_VALUE, maximumBytes / segmentSize);
+        this.segments = new ArrayDeque<Segment>();
+        this.index = new HashMap<HashCode, Entry>();
+        this.pending = new HashMap<HashCode, SettableFuture<byte[]>>();
+        this.retired = new HashSet<Retired>();
+        this.released = new ReferenceQueue<MappedByteBuffer>();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can not create directory: " + directory);
+        }
+        synchronized (this) {
+            _recover();
+        }
+    }
+
+    /**
+     * Render the document that a builder would currently build, from the cache if possible. Otherwise the document
+     * is built, serialized and added to the cache, unless it has deferred content.
+     *
+     * @param builder  builder of the document
+     * @param encoding encoding to write
+     * @param profile  serialization options
+     * @return read-only buffer holding the serialized document, which remains readable after the document is evicted
+     * @throws IOException           if the document can not be added to the cache
+     * @throws IllegalStateException if the cache has been closed
+     */
+    @Nonnull
+    @CheckReturnValue
+    public ByteBuffer render(@Nonnull final DocumentBuilder builder, @Nonnull final Charset encoding,
+                             @Nonnull final SerializationProfile profile) throws IOException {
+        checkNotNull(builder, "builder");
+        checkNotNull(encoding, "encoding");
+        checkNotNull(profile, "profile");
+        if (XomUtil.isDeferred(builder)) {
+            // Keying the document would read the deferred content once, and building it would read it again
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            profile._write(builder.build(), out, encoding);
+            return ByteBuffer.wrap(out.toByteArray()).asReadOnlyBuffer();
+        }
+        final HashCode key = _key(builder, encoding, profile);
+        SettableFuture<byte[]> future;
+        final boolean owner;
+        synchronized (this) {
+            final ByteBuffer cached = _lookup(key);
+            if (cached != null) {
+                return cached;
+            }
+            future = pending.get(key);
+            owner = future == null;
+            if (owner) {
+                future = SettableFuture.create();
+                pending.put(key, future);
+            }
+        }
+        if (!owner) {
+            return ByteBuffer.wrap(_await(future)).asReadOnlyBuffer();
+        }
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            profile._write(builder.build(), out, encoding);
+            final byte[] rendered = out.toByteArray();
+            synchronized (this) {
+                checkState(!closed, "cache is closed");
+                _append(key, rendered);
+                pending.remove(key);
+            }
+            future.set(rendered);
+            return ByteBuffer.wrap(rendered).asReadOnlyBuffer();
+        } catch (final Throwable t) {
+            synchronized (this) {
+                pending.remove(key);
+            }
+            future.setException(t);
+            throw t;
+        }
+    }
+
+    /**
+     * Write the document that a builder would currently build, from the cache if possible.
+     *
+     * @param out stream to write to; flushed but not closed
+     * @throws IOException if the stream can not be written to, or the document can not be added to the cache
+     * @see #render(DocumentBuilder, Charset, SerializationProfile)
+     */
+    public void writeDocument(@Nonnull final DocumentBuilder builder, @Nonnull final OutputStream out,
+                              @Nonnull final Charset encoding, @Nonnull final SerializationProfile profile)
+            throws IOException {
+        checkNotNull(out, "out");
+        final ByteBuffer rendered = render(builder, encoding, profile);
+        if (rendered.hasArray()) {
+            out.write(rendered.array(), rendered.arrayOffset() + rendered.position(), rendered.remaining());
+        } else {
+            _writeFully(rendered, Channels.newChannel(out));
+        }
+        out.flush();
+    }
+
+    /**
+     * Write the document that a builder would currently build to a channel, from the cache if possible. Documents
+     * found in the cache are written straight from the mapped segment.
+     *
+     * @param channel channel to write to
+     * @throws IOException if the channel can not be written to, or the document can not be added to the cache
+     * @see #render(DocumentBuilder, Charset, SerializationProfile)
+     */
+    public void writeDocument(@Nonnull final DocumentBuilder builder, @Nonnull final WritableByteChannel channel,
+                              @Nonnull final Charset encoding, @Nonnull final SerializationProfile profile)
+            throws IOException {
+        checkNotNull(channel, "channel");
+        _writeFully(render(builder, encoding, profile), channel);
+    }
+
+    /**
+     * @return number of documents in the cache
+     */
+    @CheckReturnValue
+    public synchronized long size() {
+        return index.size();
+    }
+
+    /**
+     * @return hit and miss counts since the cache was opened, and the number of documents evicted
+     */
+    @Nonnull
+    @CheckReturnValue
+    public synchronized CacheStats stats() {
+        return new CacheStats(hitCount, missCount, 0, 0, 0, evictionCount);
+    }
+
+    /**
+     * Write any modified segments to the disk, and close the cache. Buffers returned by
+     * {@link #render(DocumentBuilder, Charset, SerializationProfile)} remain readable.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (final Segment segment : segments) {
+            segment.buffer.force();
+        }
+        _deleteReleased();
+        segments.clear();
+        index.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "DiskRenderCache{directory=" + directory + ", segmentSize=" + segmentSize
+                + ", maximumSegments=" + maximumSegments + '}';
+    }
+
+    @Nonnull
+    private static HashCode _key(@Nonnull final DocumentBuilder builder, @Nonnull final Charset encoding,
+                                 @Nonnull final SerializationProfile profile) {
+        final Hasher hasher = KEY_FUNCTION.newHasher()
+                .putInt(FORMAT_VERSION)
+                .putBytes(XomUtil.fingerprint(builder).asBytes())
+                .putUnencodedChars(encoding.name()).putChar('\uFFFF')
+                .putInt(profile.getIndent())
+                .putBoolean(profile.getLineSeparator() != null);
+        if (profile.getLineSeparator() != null) {
+            hasher.putUnencodedChars(profile.getLineSeparator());
+        }
+        return hasher.putChar('\uFFFF')
+                .putBoolean(profile.isDeclaration())
+                .putBoolean(profile.isPreserveBaseURI())
+                .hash();
+    }
+
+    /**
+     * Wait for a document being rendered by another thread, and fail as it did if it fails.
+     */
+    @Nonnull
+    private static byte[] _await(@Nonnull final SettableFuture<byte[]> rendering) throws IOException {
+        try {
+            return Uninterruptibles.getUninterruptibly(rendering);
+        } catch (ExecutionException ex) {
+            propagateIfPossible(ex.getCause(), IOException.class);
+            throw propagate(ex.getCause());
+        }
+    }
+
+    @Nullable
+    private ByteBuffer _lookup(@Nonnull final HashCode key) {
+        checkState(!closed, "cache is closed");
+        final Entry entry = index.get(key);
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        entry.segment.shared = true;
+        final ByteBuffer view = entry.segment.buffer.duplicate();
+        view.limit(entry.offset + entry.length).position(entry.offset);
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    private void _append(@Nonnull final HashCode key, @Nonnull final byte[] document) throws IOException {
+        _deleteReleased();
+        if (HEADER_SIZE + document.length > segmentSize) {
+            return;
+        }
+        Segment segment = segments.peekLast();
+        if (segment == null || segment.position + HEADER_SIZE + document.length > segment.buffer.capacity()) {
+            segment = _newSegment();
+        }
+        final int position = segment.position;
+        final ByteBuffer record = segment.buffer.duplicate();
+        record.position(position + 4);
+        record.put(key.asBytes())
+                .putInt(document.length)
+                .putInt(CHECKSUM_FUNCTION.hashBytes(document).asInt())
+                .put(document);
+        segment.buffer.putInt(position, MAGIC);
+        segment.position = position + HEADER_SIZE + document.length;
+        index.put(key, new Entry(segment, position + HEADER_SIZE, document.length));
+    }
+
+    @Nonnull
+    private Segment _newSegment() throws IOException {
+        while (segments.size() >= maximumSegments) {
+            _evictOldest();
+        }
+        final long id = segments.isEmpty() ? 0 : segments.peekLast().id + 1;
+        final Segment segment = new Segment(id, _map(new File(directory, id + SEGMENT_SUFFIX), segmentSize));
+        segments.addLast(segment);
+        return segment;
+    }
+
+    private void _evictOldest() throws IOException {
+        final Segment oldest = segments.removeFirst();
+        final Iterator<Entry> entries = index.values().iterator();
+        while (entries.hasNext()) {
+            if (entries.next().segment == oldest) {
+                entries.remove();
+                evictionCount++;
+            }
+        }
+        final File file = new File(directory, oldest.id + SEGMENT_SUFFIX);
+        if (oldest.shared) {
+            // The file may not be deletable while it is mapped, and is deleted once the mapping is unreachable
+            retired.add(new Retired(oldest.buffer, released, file));
+        } else {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    /**
+     * Delete the files of evicted segments that are no longer mapped by any buffer returned from the cache. A file
+     * that still can not be deleted is evicted again when the cache is next opened.
+     */
+    private void _deleteReleased() {
+        Reference<? extends MappedByteBuffer> reference;
+        while ((reference = released.poll()) != null) {
+            retired.remove(reference);
+            ((Retired) reference).file.delete();
+        }
+    }
+
+    /**
+     * Map the existing segments, oldest first, and index the complete records in each.
+     */
+    private void _recover() throws IOException {
+        final File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return name.endsWith(SEGMENT_SUFFIX) && _parseId(name) >= 0;
+            }
+        });
+        if (files == null) {
+            throw new IOException("Can not list directory: " + directory);
+        }
+        final long[] ids = new long[files.length];
+        for (int i = 0; i < files.length; i++) {
+            ids[i] = _parseId(files[i].getName());
+        }
+        Arrays.sort(ids);
+        for (final long id : ids) {
+            final File file = new File(directory, id + SEGMENT_SUFFIX);
+            final Segment segment = new Segment(id, _map(file, Math.max(HEADER_SIZE, file.length())));
+            segments.addLast(segment);
+            _scan(segment);
+        }
+        while (segments.size() > maximumSegments) {
+            _evictOldest();
+        }
+    }
+
+    private void _scan(@Nonnull final Segment segment) {
+        final MappedByteBuffer buffer = segment.buffer;
+        final byte[] key = new byte[KEY_SIZE];
+        int position = 0;
+        while (position + HEADER_SIZE <= buffer.capacity() && buffer.getInt(position) == MAGIC) {
+            final int length = buffer.getInt(position + 4 + KEY_SIZE);
+            if (length < 0 || length > buffer.capacity() - position - HEADER_SIZE) {
+                break;
+            }
+            final ByteBuffer record = buffer.duplicate();
+            record.position(position + 4);
+            record.get(key);
+            record.position(position + HEADER_SIZE);
+            final byte[] document = new byte[length];
+            record.get(document);
+            if (CHECKSUM_FUNCTION.hashBytes(document).asInt() != buffer.getInt(position + 4 + KEY_SIZE + 4)) {
+                break;
+            }
+            index.put(HashCode.fromBytes(key.clone()), new Entry(segment, position + HEADER_SIZE, length));
+            position += HEADER_SIZE + length;
+        }
+        segment.position = position;
+    }
+
+    /**
+     * @return id of the segment file with the given name, or -1 if it is not a segment file
+     */
+    private static long _parseId(@Nonnull final String name) {
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    @Nonnull
+    private static MappedByteBuffer _map(@Nonnull final File file, final long size) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void _writeFully(@Nonnull final ByteBuffer buffer, @Nonnull final WritableByteChannel channel)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static final class Segment {
+        final long id;
+        @Nonnull
+        final MappedByteBuffer buffer;
+        /**
+         * Offset at which the next record is appended.
+         */
+        int position;
+        /**
+         * Whether views of the buffer have been returned, which may still be read.
+         */
+        boolean shared;
+
+        Segment(final long id, @Nonnull final MappedByteBuffer buffer) {
+            this.id = id;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Evicted segment file, which is enqueued once its buffer, and so every view of it, is unreachable.
+     */
+    private static final class Retired extends PhantomReference<MappedByteBuffer> {
+        @Nonnull
+        final File file;
+
+        Retired(@Nonnull final MappedByteBuffer buffer, @Nonnull final ReferenceQueue<MappedByteBuffer> queue,
+                @Nonnull final File file) {
+            super(buffer, queue);
+            this.file = file;
+        }
+    }
+
+    private static final class Entry {
+        @Nonnull
+        final Segment segment;
+        final int offset;
+        final int length;
+
+        Entry(@Nonnull final Segment segment, final int offset, final int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
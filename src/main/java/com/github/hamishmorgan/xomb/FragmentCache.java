@@ -0,0 +1,139 @@
+package com.github.hamishmorgan.xomb;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.github.hamishmorgan.xomb.spi.MarkupCache;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Bounded cache of the encoded markup of element builders, which is spliced into the output in place of writing
+ * the element again when an unchanged builder is written to a stream.
+ * <p/>
+ * Markup is cached for each nested builder of more than a few nodes that contains no deferred content, keyed on
+ * the identity of the state captured from the builder (which is retained until the builder is next modified), the
+ * charset, and the namespace declarations in scope. The total size of the cached markup is bounded, and the least
+ * recently used entries are evicted to stay within it. Entries hold the captured builder state until they are
+ * evicted.
+ * <p/>
+ * The cache is passed to the builder output methods of {@link XomUtil}, and may be shared between any number of
+ * threads and documents.
+ */
+@ThreadSafe
+public final class FragmentCache implements MarkupCache {
+
+    private final long maximumBytes;
+    private final boolean direct;
+    @Nonnull
+    private final Cache<Object, ByteBuffer> cache;
+
+    /**
+     * @param maximumBytes maximum total size of the cached markup, in bytes
+     * @param direct       whether to hold the markup in direct buffers, outside of the heap, rather than in arrays
+     * @throws IllegalArgumentException if maximumBytes is negative
+     */
+    public FragmentCache(final long maximumBytes, final boolean direct) {
+        checkArgument(maximumBytes >= 0, "argument maximumBytes is negative");
+        this.maximumBytes = maximumBytes;
+        this.direct = direct;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maximumBytes)
+                .weigher(new Weigher<Object, ByteBuffer>() {
+                    @Override
+                    public int weigh(@Nonnull final Object key, @Nonnull final ByteBuffer value) {
+                        return value.capacity();
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
+    public long getMaximumBytes() {
+        return maximumBytes;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * @return number of cached entries
+     */
+    @CheckReturnValue
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * @return hit, miss and eviction counts since the cache was created
+     */
+    @Nonnull
+    @CheckReturnValue
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    /**
+     * Discard all of the cached markup.
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    @Override
+    public String toString() {
+        return "FragmentCache{maximumBytes=" + maximumBytes + ", direct=" + direct + ", size=" + cache.size() + '}';
+    }
+
+    @Override
+    @Nullable
+    @CheckReturnValue
+    public ByteBuffer get(@Nonnull final Object key) {
+        final ByteBuffer markup = cache.getIfPresent(key);
+        return markup == null ? null : markup.duplicate();
+    }
+
+    @Override
+    public void put(@Nonnull final Object key, @Nonnull final byte[] markup, final int offset, final int length) {
+        if (length > maximumBytes) {
+            return;
+        }
+        final ByteBuffer buffer;
+        if (direct) {
+            buffer = ByteBuffer.allocateDirect(length);
+            buffer.put(markup, offset, length).flip();
+        } else {
+            buffer = ByteBuffer.wrap(Arrays.copyOfRange(markup, offset, offset + length));
+        }
+        cache.put(key, buffer);
+    }
+}
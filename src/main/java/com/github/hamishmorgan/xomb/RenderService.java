@@ -0,0 +1,236 @@
+package com.github.hamishmorgan.xomb;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.github.hamishmorgan.xomb.api.DocumentBuilder;
+import com.github.hamishmorgan.xomb.spi.XomBuilderFactory;
+import nu.xom.Document;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Builds and serializes documents asynchronously, so that the calling thread is not occupied by the work.
+ * <p/>
+ * Each render is submitted to the executor of the service as a single task, which builds the document and
+ * serializes it with a {@link SerializationProfile}; the result is delivered through a {@link CompletableFuture}.
+ * A render either takes a document builder that is already populated, or a function that populates one using the
+ * builder factory of the service, in which case the builders are only ever used by the task.
+ * <p/>
+ * Since rendering is CPU bound, the default executor is {@link ForkJoinPool#commonPool()}; any number of renders
+ * can be outstanding at once, and are queued until a thread is available. Renders that write to a stream which
+ * may block should be given an executor with more threads.
+ * <p/>
+ * If a render fails, the future completes exceptionally with the cause of the failure, such as an
+ * {@link IOException} from the stream, or an exception thrown by the builder or function.
+ */
+@ThreadSafe
+public final class RenderService {
+
+    @Nonnull
+    private final XomBuilderFactory factory;
+    @Nonnull
+    private final Executor executor;
+
+    /**
+     * @param factory factory passed to render functions
+     * @throws NullPointerException if factory is null
+     */
+    public RenderService(@Nonnull final XomBuilderFactory factory) {
+        this(factory, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param factory  factory passed to render functions
+     * @param executor executor on which each render is run
+     * @throws NullPointerException if factory or executor is null
+     */
+    public RenderService(@Nonnull final XomBuilderFactory factory, @Nonnull final Executor executor) {
+        this.factory = checkNotNull(factory, "factory");
+        this.executor = checkNotNull(executor, "executor");
+    }
+
+    @Nonnull
+    public XomBuilderFactory getFactory() {
+        return factory;
+    }
+
+    @Nonnull
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Build and serialize a document. The builder must not be modified until the render has completed.
+     *
+     * @param builder  builder of the document
+     * @param encoding encoding to write
+     * @param profile  serialization options
+     * @return future of a buffer holding the serialized document
+     * @throws NullPointerException if any argument is null
+     */
+    @Nonnull
+    @CheckReturnValue
+    public CompletableFuture<ByteBuffer> render(@Nonnull final DocumentBuilder builder,
+                                                @Nonnull final Charset encoding,
+                                                @Nonnull final SerializationProfile profile) {
+        return render(_constant(builder), encoding, profile);
+    }
+
+    /**
+     * Populate a document builder, then build and serialize the document.
+     *
+     * @param function populates a builder using the factory of this service
+     * @param encoding encoding to write
+     * @param profile  serialization options
+     * @return future of a buffer holding the serialized document
+     * @throws NullPointerException if any argument is null
+     */
+    @Nonnull
+    @CheckReturnValue
+    public CompletableFuture<ByteBuffer> render(
+            @Nonnull final Function<? super XomBuilderFactory, ? extends DocumentBuilder> function,
+            @Nonnull final Charset encoding, @Nonnull final SerializationProfile profile) {
+        checkNotNull(function, "function");
+        checkNotNull(encoding, "encoding");
+        checkNotNull(profile, "profile");
+        return _submit(new Task<ByteBuffer>() {
+            @Override
+            public ByteBuffer call() throws IOException {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                profile._write(_build(function), out, encoding);
+                return ByteBuffer.wrap(out.toByteArray());
+            }
+        });
+    }
+
+    /**
+     * Build a document, and serialize it to a stream. The builder must not be modified, and the stream must not be
+     * used, until the render has completed.
+     *
+     * @param builder  builder of the document
+     * @param out      stream to write to; flushed but not closed
+     * @param encoding encoding to write
+     * @param profile  serialization options
+     * @return future that completes once the document has been written
+     * @throws NullPointerException if any argument is null
+     */
+    @Nonnull
+    public CompletableFuture<Void> render(@Nonnull final DocumentBuilder builder, @Nonnull final OutputStream out,
+                                          @Nonnull final Charset encoding,
+                                          @Nonnull final SerializationProfile profile) {
+        return render(_constant(builder), out, encoding, profile);
+    }
+
+    /**
+     * Populate a document builder, then build the document and serialize it to a stream. The stream must not be
+     * used until the render has completed.
+     *
+     * @param function populates a builder using the factory of this service
+     * @param out      stream to write to; flushed but not closed
+     * @param encoding encoding to write
+     * @param profile  serialization options
+     * @return future that completes once the document has been written
+     * @throws NullPointerException if any argument is null
+     */
+    @Nonnull
+    public CompletableFuture<Void> render(
+            @Nonnull final Function<? super XomBuilderFactory, ? extends DocumentBuilder> function,
+            @Nonnull final OutputStream out, @Nonnull final Charset encoding,
+            @Nonnull final SerializationProfile profile) {
+        checkNotNull(function, "function");
+        checkNotNull(out, "out");
+        checkNotNull(encoding, "encoding");
+        checkNotNull(profile, "profile");
+        return _submit(new Task<Void>() {
+            @Override
+            public Void call() throws IOException {
+                profile.write(_build(function), out, encoding);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "RenderService{factory=" + factory + ", executor=" + executor + '}';
+    }
+
+    @Nonnull
+    private Document _build(@Nonnull final Function<? super XomBuilderFactory, ? extends DocumentBuilder> function) {
+        return checkNotNull(function.apply(factory), "function returned null").build();
+    }
+
+    /**
+     * Run the task on the executor, completing the future with its result or the exception it throws. If the
+     * executor rejects the task, the future completes exceptionally straight away.
+     */
+    @Nonnull
+    private <T> CompletableFuture<T> _submit(@Nonnull final Task<T> task) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (future.isDone()) {
+                        return;
+                    }
+                    try {
+                        future.complete(task.call());
+                    } catch (Throwable ex) {
+                        future.completeExceptionally(ex);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+
+    @Nonnull
+    private static Function<XomBuilderFactory, DocumentBuilder> _constant(@Nonnull final DocumentBuilder builder) {
+        checkNotNull(builder, "builder");
+        return new Function<XomBuilderFactory, DocumentBuilder>() {
+            @Override
+            public DocumentBuilder apply(final XomBuilderFactory factory) {
+                return builder;
+            }
+        };
+    }
+
+    private interface Task<T> {
+        T call() throws IOException;
+    }
+}
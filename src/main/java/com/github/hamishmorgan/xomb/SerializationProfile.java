@@ -0,0 +1,256 @@
+package com.github.hamishmorgan.xomb;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import nu.xom.Document;
+import nu.xom.Serializer;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Immutable set of options for serializing documents.
+ * <p/>
+ * A profile can be configured once and shared between threads; each call to
+ * {@link #write(Document, OutputStream, Charset)} uses a fresh {@link Serializer}, since XOM serializers are
+ * neither thread safe nor cheaper to retarget than to construct. Profiles are derived from {@link #PRETTY} or
+ * {@link #COMPACT} using the {@code with} methods, which return a modified copy.
+ */
+@ThreadSafe
+public final class SerializationProfile {
+
+    /**
+     * Indented output, with every line break written as {@code \n}. This is the profile used by
+     * {@link XomUtil#writeDocument(Document, OutputStream, Charset)}.
+     */
+    public static final SerializationProfile PRETTY = new SerializationProfile(2, "\n", true, true, 0);
+
+    /**
+     * Output without any indentation or added line breaks, with line breaks in text left as they are. Much smaller
+     * than {@link #PRETTY} for deeply nested documents, and faster to write.
+     */
+    public static final SerializationProfile COMPACT = new SerializationProfile(0, null, true, true, 0);
+
+    private final int indent;
+    @Nullable
+    private final String lineSeparator;
+    private final boolean declaration;
+    private final boolean preserveBaseURI;
+    private final int bufferSize;
+
+    private SerializationProfile(final int indent, @Nullable final String lineSeparator, final boolean declaration,
+                                 final boolean preserveBaseURI, final int bufferSize) {
+        this.indent = indent;
+        this.lineSeparator = lineSeparator;
+        this.declaration = declaration;
+        this.preserveBaseURI = preserveBaseURI;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @param indent number of spaces to indent each level of nesting by, or zero for no indentation
+     * @return a copy of this profile with the given indentation
+     * @throws IllegalArgumentException if indent is negative
+     */
+    @Nonnull
+    @CheckReturnValue
+    public SerializationProfile withIndent(final int indent) {
+        checkArgument(indent >= 0, "argument indent is negative");
+        return new SerializationProfile(indent, lineSeparator, declaration, preserveBaseURI, bufferSize);
+    }
+
+    /**
+     * @param lineSeparator line separator to write, and to convert line breaks in text to; one of {@code \n},
+     *                      {@code \r} or {@code \r\n}, or null to leave line breaks in text unchanged
+     * @return a copy of this profile with the given line separator
+     * @throws IllegalArgumentException if lineSeparator is not a line separator
+     */
+    @Nonnull
+    @CheckReturnValue
+    public SerializationProfile withLineSeparator(@Nullable final String lineSeparator) {
+        checkArgument(lineSeparator == null || lineSeparator.equals("\n") || lineSeparator.equals("\r")
+                || lineSeparator.equals("\r\n"), "argument lineSeparator is not a line separator");
+        return new SerializationProfile(indent, lineSeparator, declaration, preserveBaseURI, bufferSize);
+    }
+
+    /**
+     * @param declaration whether to write the XML declaration
+     * @return a copy of this profile with or without the XML declaration
+     */
+    @Nonnull
+    @CheckReturnValue
+    public SerializationProfile withDeclaration(final boolean declaration) {
+        return new SerializationProfile(indent, lineSeparator, declaration, preserveBaseURI, bufferSize);
+    }
+
+    /**
+     * @param preserveBaseURI whether to write xml:base attributes wherever the base URI of an element differs from
+     *                        that of its parent
+     * @return a copy of this profile with or without base URIs
+     */
+    @Nonnull
+    @CheckReturnValue
+    public SerializationProfile withPreserveBaseURI(final boolean preserveBaseURI) {
+        return new SerializationProfile(indent, lineSeparator, declaration, preserveBaseURI, bufferSize);
+    }
+
+    /**
+     * @param bufferSize size in bytes of the buffer between the serializer and the stream, so that the stream
+     *                   receives fewer, larger writes; or zero to write to the stream as the serializer's own
+     *                   encoder fills
+     * @return a copy of this profile with the given buffer size
+     * @throws IllegalArgumentException if bufferSize is negative
+     */
+    @Nonnull
+    @CheckReturnValue
+    public SerializationProfile withBufferSize(final int bufferSize) {
+        checkArgument(bufferSize >= 0, "argument bufferSize is negative");
+        return new SerializationProfile(indent, lineSeparator, declaration, preserveBaseURI, bufferSize);
+    }
+
+    @CheckReturnValue
+    public int getIndent() {
+        return indent;
+    }
+
+    @Nullable
+    @CheckReturnValue
+    public String getLineSeparator() {
+        return lineSeparator;
+    }
+
+    @CheckReturnValue
+    public boolean isDeclaration() {
+        return declaration;
+    }
+
+    @CheckReturnValue
+    public boolean isPreserveBaseURI() {
+        return preserveBaseURI;
+    }
+
+    @CheckReturnValue
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Create a serializer configured by this profile. The serializer writes directly to the given stream; unlike
+     * {@link #write(Document, OutputStream, Charset)}, the profile's buffer size is not applied.
+     *
+     * @param out      stream to write to
+     * @param encoding encoding to write
+     * @return new serializer, which must only be used by one thread at a time
+     * @throws NullPointerException if out or encoding is null
+     */
+    @Nonnull
+    @CheckReturnValue
+    public Serializer newSerializer(@Nonnull final OutputStream out, @Nonnull final Charset encoding) {
+        checkNotNull(out, "out");
+        checkNotNull(encoding, "encoding");
+        final Serializer serializer;
+        try {
+            serializer = declaration
+                    ? new Serializer(out, encoding.name())
+                    : new UndeclaredSerializer(out, encoding.name());
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalArgumentException("Encoding not supported by XOM: " + encoding, ex);
+        }
+        serializer.setIndent(indent);
+        serializer.setMaxLength(0);
+        if (lineSeparator != null) {
+            serializer.setLineSeparator(lineSeparator);
+        }
+        // XXX all elements inherit root elements base uri unless explicitly set (even if an
+        // ancestor overrides that base.) Not sure this is correct.
+        serializer.setPreserveBaseURI(preserveBaseURI);
+        return serializer;
+    }
+
+    /**
+     * Serialize the document to the stream, and flush it.
+     * <p/>
+     * Non-indenting profiles writing UTF-8 use an encoder specialized for that case, which writes exactly the same
+     * bytes as a serializer from {@link #newSerializer(OutputStream, Charset)}.
+     *
+     * @param document document to write
+     * @param out      stream to write to
+     * @param encoding encoding to write
+     * @throws NullPointerException     if any argument is null
+     * @throws IllegalArgumentException if the encoding is not supported by XOM
+     * @throws IOException              if the stream can not be written to
+     */
+    public void write(@Nonnull final Document document, @Nonnull final OutputStream out,
+                      @Nonnull final Charset encoding) throws IOException {
+        checkNotNull(out, "out");
+        _write(document, bufferSize > 0 ? new BufferedOutputStream(out, bufferSize) : out, encoding);
+    }
+
+    /**
+     * Serialize the document to the stream, and flush it, without applying the buffer size.
+     */
+    void _write(@Nonnull final Document document, @Nonnull final OutputStream out,
+                @Nonnull final Charset encoding) throws IOException {
+        checkNotNull(document, "document");
+        checkNotNull(encoding, "encoding");
+        if (Utf8Serializer.supports(this, encoding)) {
+            new Utf8Serializer(out, this).write(document);
+        } else {
+            final Serializer serializer = newSerializer(out, encoding);
+            serializer.write(document);
+            serializer.flush();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SerializationProfile{indent=" + indent
+                + ", lineSeparatorLength=" + (lineSeparator == null ? null : lineSeparator.length())
+                + ", declaration=" + declaration
+                + ", preserveBaseURI=" + preserveBaseURI
+                + ", bufferSize=" + bufferSize + "}";
+    }
+
+    /**
+     * Serializer that omits the XML declaration.
+     */
+    private static final class UndeclaredSerializer extends Serializer {
+
+        UndeclaredSerializer(@Nonnull final OutputStream out, @Nonnull final String encoding)
+                throws UnsupportedEncodingException {
+            super(out, encoding);
+        }
+
+        @Override
+        protected void writeXMLDeclaration() {
+        }
+    }
+}
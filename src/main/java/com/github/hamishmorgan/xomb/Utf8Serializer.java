@@ -0,0 +1,604 @@
+package com.github.hamishmorgan.xomb;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.base.Charsets;
+import nu.xom.Attribute;
+import nu.xom.Comment;
+import nu.xom.DocType;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.Node;
+import nu.xom.ParentNode;
+import nu.xom.ProcessingInstruction;
+import nu.xom.Text;
+import nu.xom.XMLException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Serializes documents as UTF-8, producing exactly the bytes that {@link nu.xom.Serializer} writes for the same
+ * non-indenting profile.
+ * <p/>
+ * XOM's serializer passes every character through a generic escaping writer and then a charset encoder. This class
+ * instead scans character data for the few characters that need escaping or line separator handling, and copies
+ * each clean run of ASCII straight into its byte buffer; other characters are encoded to UTF-8 inline.
+ * <p/>
+ * Indenting profiles are not supported, since XOM adjusts white space in character data when indenting; see
+ * {@link #supports(SerializationProfile, Charset)}. Instances are not thread safe, and write a single document.
+ */
+final class Utf8Serializer {
+
+    private static final String XML_NAMESPACE = "http://www.w3.org/XML/1998/namespace";
+    private static final String DEFAULT_LINE_SEPARATOR = "\r\n";
+    private static final int BUFFER_SIZE = 8 * 1024;
+    /**
+     * Class of parsed CDATA sections, which is internal to XOM; or null if it is not present.
+     */
+    @Nullable
+    private static final Class<?> CDATA_SECTION = cdataSectionClass();
+
+    /**
+     * ASCII characters below '@' that end a clean run of character data, attribute values and markup respectively.
+     */
+    private static final boolean[] TEXT_SPECIAL = special('\r', '\n', '&', '<', '>');
+    private static final boolean[] ATTRIBUTE_SPECIAL = special('\t', '\r', '\n', '"', '&', '<', '>');
+    private static final boolean[] MARKUP_SPECIAL = special('\n');
+
+    @Nonnull
+    private final OutputStream out;
+    @Nonnull
+    private final byte[] buffer;
+    private int position;
+
+    /**
+     * Whether a line separator was configured, in which case line breaks are converted to it.
+     */
+    private final boolean lineSeparatorSet;
+    @Nonnull
+    private final String lineSeparator;
+    private final boolean declaration;
+    private final boolean preserveBaseURI;
+
+    /**
+     * Whether a line feed that immediately follows is part of a carriage return already written as a line break.
+     */
+    private boolean skipFollowingLinefeed;
+    /**
+     * Whether the current element is within the scope of {@code xml:space="preserve"}.
+     */
+    private boolean preserveSpace;
+    /**
+     * Namespace bindings in scope, outermost first.
+     */
+    @Nonnull
+    private String[] prefixes;
+    @Nonnull
+    private String[] uris;
+    private int bindings;
+
+    Utf8Serializer(@Nonnull final OutputStream out, @Nonnull final SerializationProfile profile) {
+        checkNotNull(profile, "profile");
+        this.out = checkNotNull(out, "out");
+        this.buffer = new byte[BUFFER_SIZE];
+        this.lineSeparatorSet = profile.getLineSeparator() != null;
+        this.lineSeparator = lineSeparatorSet ? profile.getLineSeparator() : DEFAULT_LINE_SEPARATOR;
+        this.declaration = profile.isDeclaration();
+        this.preserveBaseURI = profile.isPreserveBaseURI();
+        this.prefixes = new String[8];
+        this.uris = new String[8];
+    }
+
+    /**
+     * @return whether documents written with the given profile and encoding can be serialized by this class
+     */
+    static boolean supports(@Nonnull final SerializationProfile profile, @Nonnull final Charset encoding) {
+        return profile.getIndent() == 0 && encoding.equals(Charsets.UTF_8);
+    }
+
+    /**
+     * Serialize the document, and flush the stream.
+     */
+    void write(@Nonnull final Document document) throws IOException {
+        checkNotNull(document, "document");
+        bindings = 0;
+        _declare("xml", XML_NAMESPACE);
+        _declare("", "");
+        if (declaration) {
+            _writeRaw("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+            _breakLine();
+        }
+        for (int i = 0; i < document.getChildCount(); i++) {
+            _writeChild(document.getChild(i), null);
+            _breakLine();
+        }
+        _flushBuffer();
+        out.flush();
+    }
+
+    /**
+     * @param parentBase base URI of the parent element, or null if the parent is not an element or base URIs are
+     *                   not preserved
+     */
+    private void _writeChild(@Nonnull final Node node, @Nullable final String parentBase) throws IOException {
+        if (node instanceof Element) {
+            _writeElement((Element) node, parentBase);
+        } else if (node instanceof Text) {
+            _writeText((Text) node);
+        } else if (node instanceof Comment) {
+            _writeRaw("<!--");
+            _writeMarkup(node.getValue());
+            _writeRaw("-->");
+        } else if (node instanceof ProcessingInstruction) {
+            final ProcessingInstruction pi = (ProcessingInstruction) node;
+            _writeRaw("<?");
+            _writeRaw(pi.getTarget());
+            if (!pi.getValue().isEmpty()) {
+                _writeRaw(" ");
+                _writeMarkup(pi.getValue());
+            }
+            _writeRaw("?>");
+        } else if (node instanceof DocType) {
+            _writeDocType((DocType) node);
+        } else {
+            throw new XMLException("Cannot write a " + node.getClass().getName() + " from the writeChild() method");
+        }
+    }
+
+    private void _writeElement(@Nonnull final Element element, @Nullable final String parentBase)
+            throws IOException {
+        final int childCount = element.getChildCount();
+        boolean empty = true;
+        for (int i = 0; i < childCount && empty; i++) {
+            final Node child = element.getChild(i);
+            empty = child instanceof Text && child.getValue().isEmpty();
+        }
+
+        final int firstBinding = bindings;
+        final String base = preserveBaseURI ? element.getBaseURI() : null;
+        _writeStartTagBeginning(element, base, parentBase);
+        if (empty) {
+            _writeRaw("/>");
+        } else {
+            final boolean outerPreserveSpace = preserveSpace;
+            _writeRaw(">");
+            final String space = element.getAttributeValue("space", XML_NAMESPACE);
+            if ("preserve".equals(space)) {
+                preserveSpace = true;
+            } else if ("default".equals(space)) {
+                preserveSpace = false;
+            }
+            for (int i = 0; i < childCount; i++) {
+                _writeChild(element.getChild(i), base);
+            }
+            _writeRaw("</");
+            _writeRaw(element.getQualifiedName());
+            _writeRaw(">");
+            preserveSpace = outerPreserveSpace;
+        }
+        _endScope(firstBinding);
+    }
+
+    private void _writeStartTagBeginning(@Nonnull final Element element, @Nullable final String base,
+                                         @Nullable final String parentBase) throws IOException {
+        _writeRaw("<");
+        _writeRaw(element.getQualifiedName());
+
+        if (base != null && element.getAttribute("base", XML_NAMESPACE) == null) {
+            final ParentNode parent = element.getParent();
+            if (parent == null || parent instanceof Document || !base.equals(parentBase)) {
+                _writeAttribute(new Attribute("xml:base", XML_NAMESPACE, base));
+            }
+        }
+        final int attributeCount = element.getAttributeCount();
+        for (int i = 0; i < attributeCount; i++) {
+            _writeAttribute(element.getAttribute(i));
+        }
+
+        final String prefix = element.getNamespacePrefix();
+        if (!"xml".equals(prefix)) {
+            _declareIfNecessary(prefix, element.getNamespaceURI());
+        }
+        for (int i = 0; i < attributeCount; i++) {
+            final Attribute attribute = element.getAttribute(i);
+            final String attributePrefix = attribute.getNamespacePrefix();
+            if (!attributePrefix.isEmpty() && !"xml".equals(attributePrefix)) {
+                _declareIfNecessary(attributePrefix, attribute.getNamespaceURI());
+            }
+        }
+        // XOM reports the element's own prefix, then any additional declarations, then attribute prefixes. Unless
+        // more than the element's own prefix is reported, there are no additional declarations; otherwise those
+        // prefixes already bound by the declarations above are skipped.
+        final int declarationCount = element.getNamespaceDeclarationCount();
+        if (declarationCount > ("xml".equals(prefix) ? 0 : 1)) {
+            for (int i = 0; i < declarationCount; i++) {
+                final String additionalPrefix = element.getNamespacePrefix(i);
+                _declareIfNecessary(additionalPrefix, element.getNamespaceURI(additionalPrefix));
+            }
+        }
+    }
+
+    private void _writeAttribute(@Nonnull final Attribute attribute) throws IOException {
+        _writeRaw(" ");
+        _writeRaw(attribute.getQualifiedName());
+        _writeRaw("=\"");
+        _writeAttributeValue(attribute.getValue());
+        _writeRaw("\"");
+    }
+
+    private void _writeText(@Nonnull final Text text) throws IOException {
+        final String value = text.getValue();
+        if (CDATA_SECTION != null && text.getClass() == CDATA_SECTION && !value.contains("]]>")) {
+            _writeRaw("<![CDATA[");
+            _writeMarkup(value);
+            _writeRaw("]]>");
+        } else {
+            _writeCharacterData(value);
+        }
+    }
+
+    private void _writeDocType(@Nonnull final DocType docType) throws IOException {
+        _writeRaw("<!DOCTYPE ");
+        _writeRaw(docType.getRootElementName());
+        if (docType.getPublicID() != null) {
+            _writeMarkup(" PUBLIC \"" + docType.getPublicID() + "\" \"" + docType.getSystemID() + "\"");
+        } else if (docType.getSystemID() != null) {
+            _writeMarkup(" SYSTEM \"" + docType.getSystemID() + "\"");
+        }
+        final String subset = docType.getInternalDTDSubset();
+        if (!subset.isEmpty()) {
+            _writeRaw(" [");
+            _breakLine();
+            _writeMarkup(subset, true);
+            _writeRaw("]");
+        }
+        _writeRaw(">");
+    }
+
+    /*
+     * Namespaces
+     */
+
+    private void _declareIfNecessary(@Nonnull final String prefix, @Nonnull final String uri) throws IOException {
+        final String bound = _lookup(prefix);
+        if (bound == null ? uri.isEmpty() : bound.equals(uri)) {
+            return;
+        }
+        _declare(prefix, uri);
+        _writeRaw(prefix.isEmpty() ? " xmlns" : " xmlns:");
+        _writeRaw(prefix);
+        _writeRaw("=\"");
+        _writeCharacterData(uri);
+        _writeRaw("\"");
+    }
+
+    private void _declare(@Nonnull final String prefix, @Nonnull final String uri) {
+        if (bindings == prefixes.length) {
+            prefixes = Arrays.copyOf(prefixes, bindings * 2);
+            uris = Arrays.copyOf(uris, bindings * 2);
+        }
+        prefixes[bindings] = prefix;
+        uris[bindings] = uri;
+        bindings++;
+    }
+
+    @Nullable
+    private String _lookup(@Nonnull final String prefix) {
+        for (int i = bindings - 1; i >= 0; i--) {
+            if (prefixes[i].equals(prefix)) {
+                return uris[i];
+            }
+        }
+        return null;
+    }
+
+    private void _endScope(final int firstBinding) {
+        Arrays.fill(prefixes, firstBinding, bindings, null);
+        Arrays.fill(uris, firstBinding, bindings, null);
+        bindings = firstBinding;
+    }
+
+    /*
+     * Character data
+     */
+
+    /**
+     * Write element content or a namespace URI, escaping markup characters and carriage returns.
+     */
+    private void _writeCharacterData(@Nonnull final String data) throws IOException {
+        final int length = data.length();
+        int i = 0;
+        while (i < length) {
+            i = _writeRun(data, i, TEXT_SPECIAL);
+            if (i == length) {
+                break;
+            }
+            final char c = data.charAt(i++);
+            switch (c) {
+                case '\r':
+                    if (lineSeparatorSet) {
+                        _breakLine();
+                    } else {
+                        _writeAscii("&#x0D;");
+                    }
+                    skipFollowingLinefeed = true;
+                    break;
+                case '\n':
+                    _writeLinefeed();
+                    break;
+                case '&':
+                    _writeRaw("&amp;");
+                    break;
+                case '<':
+                    _writeRaw("&lt;");
+                    break;
+                case '>':
+                    _writeRaw("&gt;");
+                    break;
+                default:
+                    i = _writeEncoded(data, i - 1);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Write a quoted attribute value, escaping white space other than spaces so that it is not normalized.
+     */
+    private void _writeAttributeValue(@Nonnull final String data) throws IOException {
+        final int length = data.length();
+        int i = 0;
+        while (i < length) {
+            i = _writeRun(data, i, ATTRIBUTE_SPECIAL);
+            if (i == length) {
+                break;
+            }
+            final char c = data.charAt(i++);
+            switch (c) {
+                case '\t':
+                    _writeRaw("&#x09;");
+                    break;
+                case '\n':
+                    if (skipFollowingLinefeed) {
+                        skipFollowingLinefeed = false;
+                    } else if (lineSeparatorSet) {
+                        _writeEscapedLineSeparator();
+                    } else {
+                        _writeAscii("&#x0A;");
+                    }
+                    break;
+                case '\r':
+                    if (lineSeparatorSet) {
+                        _writeEscapedLineSeparator();
+                        skipFollowingLinefeed = true;
+                    } else {
+                        _writeAscii("&#x0D;");
+                    }
+                    break;
+                case '"':
+                    _writeRaw("&quot;");
+                    break;
+                case '&':
+                    _writeRaw("&amp;");
+                    break;
+                case '<':
+                    _writeRaw("&lt;");
+                    break;
+                case '>':
+                    _writeRaw("&gt;");
+                    break;
+                default:
+                    i = _writeEncoded(data, i - 1);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Write the content of a comment, processing instruction or document type declaration, which is not escaped.
+     */
+    private void _writeMarkup(@Nonnull final String data) throws IOException {
+        _writeMarkup(data, false);
+    }
+
+    private void _writeMarkup(@Nonnull final String data, final boolean inDocType) throws IOException {
+        final int length = data.length();
+        int i = 0;
+        while (i < length) {
+            i = _writeRun(data, i, MARKUP_SPECIAL);
+            if (i == length) {
+                break;
+            }
+            if (data.charAt(i) == '\n') {
+                if (inDocType) {
+                    _writeAscii(lineSeparator);
+                } else {
+                    _writeLinefeed();
+                }
+                skipFollowingLinefeed = false;
+                i++;
+            } else {
+                i = _writeEncoded(data, i);
+            }
+        }
+    }
+
+    /**
+     * Write a line feed from character data, which is converted to the line separator if one was set.
+     */
+    private void _writeLinefeed() throws IOException {
+        if (!(lineSeparatorSet && skipFollowingLinefeed)) {
+            _writeAscii(lineSeparatorSet && !preserveSpace ? lineSeparator : "\n");
+        }
+        skipFollowingLinefeed = false;
+    }
+
+    private void _writeEscapedLineSeparator() throws IOException {
+        if (lineSeparator.equals("\n")) {
+            _writeAscii("&#x0A;");
+        } else if (lineSeparator.equals("\r\n")) {
+            _writeAscii("&#x0D;&#x0A;");
+        } else {
+            _writeAscii("&#x0D;");
+        }
+    }
+
+    private void _breakLine() throws IOException {
+        _writeAscii(lineSeparator);
+    }
+
+    /*
+     * Encoding
+     */
+
+    /**
+     * Write markup or a name, which is not escaped.
+     */
+    private void _writeRaw(@Nonnull final String data) throws IOException {
+        final int length = data.length();
+        int i = 0;
+        while (i < length) {
+            i = _writeRun(data, i, null);
+            if (i < length) {
+                i = _writeEncoded(data, i);
+            }
+        }
+        skipFollowingLinefeed = false;
+    }
+
+    /**
+     * Write ASCII text without affecting the line feed state.
+     */
+    private void _writeAscii(@Nonnull final String data) throws IOException {
+        _writeBytes(data, 0, data.length());
+    }
+
+    /**
+     * Copy the run of ASCII characters starting at the given index, up to the first character that is not ASCII
+     * or is special.
+     *
+     * @param special characters below '@' that end the run, or null if only non-ASCII characters end it
+     * @return index of the first character not written
+     */
+    private int _writeRun(@Nonnull final String data, final int start, @Nullable final boolean[] special)
+            throws IOException {
+        final int length = data.length();
+        int end = start;
+        if (special == null) {
+            while (end < length && data.charAt(end) < 0x80) {
+                end++;
+            }
+        } else {
+            while (end < length) {
+                final char c = data.charAt(end);
+                if (c >= 0x80 || c < 0x40 && special[c]) {
+                    break;
+                }
+                end++;
+            }
+        }
+        if (end > start) {
+            _writeBytes(data, start, end);
+            skipFollowingLinefeed = false;
+        }
+        return end;
+    }
+
+    /**
+     * Encode the character, or surrogate pair, at the given index as UTF-8.
+     *
+     * @return index of the next character
+     */
+    private int _writeEncoded(@Nonnull final String data, final int index) throws IOException {
+        if (position + 4 > buffer.length) {
+            _flushBuffer();
+        }
+        skipFollowingLinefeed = false;
+        final char c = data.charAt(index);
+        if (c < 0x80) {
+            buffer[position++] = (byte) c;
+        } else if (c < 0x800) {
+            buffer[position++] = (byte) (0xC0 | c >> 6);
+            buffer[position++] = (byte) (0x80 | c & 0x3F);
+        } else if (Character.isHighSurrogate(c) && index + 1 < data.length()
+                && Character.isLowSurrogate(data.charAt(index + 1))) {
+            final int codePoint = Character.toCodePoint(c, data.charAt(index + 1));
+            buffer[position++] = (byte) (0xF0 | codePoint >> 18);
+            buffer[position++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+            buffer[position++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+            buffer[position++] = (byte) (0x80 | codePoint & 0x3F);
+            return index + 2;
+        } else if (Character.isSurrogate(c)) {
+            // Unpaired surrogates are replaced, as by the standard encoder
+            buffer[position++] = '?';
+        } else {
+            buffer[position++] = (byte) (0xE0 | c >> 12);
+            buffer[position++] = (byte) (0x80 | c >> 6 & 0x3F);
+            buffer[position++] = (byte) (0x80 | c & 0x3F);
+        }
+        return index + 1;
+    }
+
+    /**
+     * Copy ASCII characters into the buffer.
+     */
+    private void _writeBytes(@Nonnull final String data, int start, final int end) throws IOException {
+        while (start < end) {
+            if (position == buffer.length) {
+                _flushBuffer();
+            }
+            final int stop = Math.min(end, start + buffer.length - position);
+            for (; start < stop; start++) {
+                buffer[position++] = (byte) data.charAt(start);
+            }
+        }
+    }
+
+    private void _flushBuffer() throws IOException {
+        out.write(buffer, 0, position);
+        position = 0;
+    }
+
+    @Nonnull
+    private static boolean[] special(@Nonnull final char... characters) {
+        final boolean[] special = new boolean[0x40];
+        for (final char c : characters) {
+            special[c] = true;
+        }
+        return special;
+    }
+
+    @Nullable
+    private static Class<?> cdataSectionClass() {
+        try {
+            return Class.forName("nu.xom.CDATASection");
+        } catch (ClassNotFoundException ex) {
+            return null;
+        }
+    }
+}
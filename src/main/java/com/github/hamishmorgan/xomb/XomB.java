@@ -20,16 +20,29 @@ package com.github.hamishmorgan.xomb;
  * #L%
  */
 
+import com.github.hamishmorgan.xomb.api.ConcurrentElementBuilder;
 import com.github.hamishmorgan.xomb.api.DocTypeBuilder;
 import com.github.hamishmorgan.xomb.api.DocumentBuilder;
 import com.github.hamishmorgan.xomb.api.ElementBuilder;
+import com.github.hamishmorgan.xomb.api.StreamingDocumentBuilder;
+import com.github.hamishmorgan.xomb.api.Template;
 import com.github.hamishmorgan.xomb.impl.XomBuilderFactoryImpl;
 import com.github.hamishmorgan.xomb.spi.XomBuilderFactory;
+import com.github.hamishmorgan.xomb.spi.XomBuilderFeature;
+import nu.xom.Document;
 import nu.xom.NodeFactory;
+import nu.xom.Nodes;
 
 import javax.annotation.CheckReturnValue;
 import javax.annotation.Nonnull;
+import java.io.OutputStream;
+import java.io.Writer;
 import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import static com.google.common.base.Preconditions.checkNotNull;
 
 @Nonnull
 public class XomB implements XomBuilderFactory {
@@ -49,6 +62,31 @@ public class XomB implements XomBuilderFactory {
         xomBuilderFactory = new XomBuilderFactoryImpl(factory);
     }
 
+    /**
+     * Construct a new com.github.hamishmorgan.xomb.XomB instance that will use the given NodeFactory
+     * instance to create all XOM nodes, with the given optional features enabled.
+     *
+     * @param factory  used to create nodes
+     * @param features optional behaviours to enable for all builders
+     * @throws NullPointerException if nodeFactory or features is null
+     */
+    public XomB(final NodeFactory factory, final XomBuilderFeature... features) {
+        final EnumSet<XomBuilderFeature> featureSet = EnumSet.noneOf(XomBuilderFeature.class);
+        featureSet.addAll(Arrays.asList(features));
+        xomBuilderFactory = new XomBuilderFactoryImpl(factory, featureSet);
+    }
+
+    /**
+     * Construct a new com.github.hamishmorgan.xomb.XomB instance that will use the given builder factory to
+     * create all builders.
+     *
+     * @param factory used to create builders
+     * @throws NullPointerException if factory is null
+     */
+    public XomB(final XomBuilderFactory factory) {
+        xomBuilderFactory = checkNotNull(factory, "factory");
+    }
+
     /**
      * Construct a new com.github.hamishmorgan.xomb.XomB instance that will use the default NodeFactory.
      */
@@ -76,6 +114,12 @@ public class XomB implements XomBuilderFactory {
         return xomBuilderFactory.getNodeFactory();
     }
 
+    @Override
+    @CheckReturnValue
+    public boolean isEnabled(@Nonnull XomBuilderFeature feature) {
+        return xomBuilderFactory.isEnabled(feature);
+    }
+
     @Override
     @Nonnull
     @CheckReturnValue
@@ -103,4 +147,46 @@ public class XomB implements XomBuilderFactory {
     public ElementBuilder createElement(@Nonnull String name) {
         return xomBuilderFactory.createElement(name);
     }
+
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    public ElementBuilder createElement(@Nonnull String name, int expectedChildren, int expectedAttributes) {
+        return xomBuilderFactory.createElement(name, expectedChildren, expectedAttributes);
+    }
+
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    public ConcurrentElementBuilder createConcurrentElement(@Nonnull String name) {
+        return xomBuilderFactory.createConcurrentElement(name);
+    }
+
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    public Template<Nodes> createTemplate(@Nonnull ElementBuilder elementBuilder) {
+        return xomBuilderFactory.createTemplate(elementBuilder);
+    }
+
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    public Template<Document> createTemplate(@Nonnull DocumentBuilder documentBuilder) {
+        return xomBuilderFactory.createTemplate(documentBuilder);
+    }
+
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    public StreamingDocumentBuilder createStreamingDocument(@Nonnull Writer writer) {
+        return xomBuilderFactory.createStreamingDocument(writer);
+    }
+
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    public StreamingDocumentBuilder createStreamingDocument(@Nonnull OutputStream out, @Nonnull Charset charset) {
+        return xomBuilderFactory.createStreamingDocument(out, charset);
+    }
 }
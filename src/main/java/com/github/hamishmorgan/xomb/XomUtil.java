@@ -20,26 +20,37 @@ package com.github.hamishmorgan.xomb;
  * #L%
  */
 
+import com.github.hamishmorgan.xomb.api.DocumentBuilder;
+import com.github.hamishmorgan.xomb.api.ElementBuilder;
+import com.github.hamishmorgan.xomb.impl.XomBuilderFactoryImpl;
 import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import com.google.common.io.CharStreams;
 import nu.xom.Attribute;
-import nu.xom.Comment;
-import nu.xom.DocType;
 import nu.xom.Document;
 import nu.xom.Element;
-import nu.xom.Namespace;
 import nu.xom.Node;
 import nu.xom.Nodes;
 import nu.xom.ParentNode;
-import nu.xom.ProcessingInstruction;
-import nu.xom.Serializer;
 import nu.xom.Text;
+import nu.xom.canonical.Canonicalizer;
 
 import javax.annotation.CheckReturnValue;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 @Nonnull
 public class XomUtil {
@@ -76,24 +87,326 @@ public class XomUtil {
         }
     }
 
+    @Nonnull
+    @CheckReturnValue
+    public static String toString(
+            @Nonnull Document document, @Nonnull Charset charset, @Nonnull SerializationProfile profile) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writeDocument(document, out, charset, profile);
+            return out.toString(charset.name());
+        } catch (IOException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
     public static void writeDocument(
             @Nonnull Document document, @Nonnull OutputStream outputStream, @Nonnull Charset encoding)
             throws IOException {
+        writeDocument(document, outputStream, encoding, SerializationProfile.PRETTY);
+    }
+
+    public static void writeDocument(
+            @Nonnull Document document, @Nonnull OutputStream outputStream, @Nonnull Charset encoding,
+            @Nonnull SerializationProfile profile)
+            throws IOException {
 
         Preconditions.checkNotNull(document, "xmlDoc");
         Preconditions.checkNotNull(outputStream, "outputStream");
         Preconditions.checkNotNull(encoding, "encoding");
+        Preconditions.checkNotNull(profile, "profile");
+
+        profile.write(document, outputStream, encoding);
+    }
+
+    /**
+     * Serialize the document into a buffer, starting at its position. The encoded bytes are put directly into the
+     * buffer, so a direct or {@link java.nio.MappedByteBuffer} receives them without any intermediate heap array
+     * holding the whole document.
+     * <p/>
+     * The profile's buffer size is not applied, since the destination is already a buffer.
+     *
+     * @param document document to write
+     * @param buffer   buffer to write to; its position is advanced past the document
+     * @param encoding encoding to write
+     * @param profile  serialization options
+     * @throws java.nio.BufferOverflowException if the document does not fit in the remaining space; bytes already
+     *                                          written are left in the buffer
+     * @throws java.nio.ReadOnlyBufferException if the buffer is read-only
+     */
+    public static void writeDocument(
+            @Nonnull Document document, @Nonnull ByteBuffer buffer, @Nonnull Charset encoding,
+            @Nonnull SerializationProfile profile) {
+
+        Preconditions.checkNotNull(document, "xmlDoc");
+        Preconditions.checkNotNull(buffer, "buffer");
+        Preconditions.checkNotNull(profile, "profile");
+
+        try {
+            profile._write(document, new ByteBufferOutputStream(buffer), encoding);
+        } catch (IOException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    /**
+     * Serialize the document to a channel, such as a {@link java.nio.channels.FileChannel}. The encoded bytes are
+     * staged in a pooled direct buffer, and the channel written whenever it fills, so no heap copy of the whole
+     * document is made.
+     * <p/>
+     * The profile's buffer size is not applied; the pooled buffer is used instead.
+     *
+     * @param document document to write
+     * @param channel  channel to write to, in blocking mode; it is not closed
+     * @param encoding encoding to write
+     * @param profile  serialization options
+     * @throws IOException if the channel can not be written to
+     */
+    public static void writeDocument(
+            @Nonnull Document document, @Nonnull WritableByteChannel channel, @Nonnull Charset encoding,
+            @Nonnull SerializationProfile profile)
+            throws IOException {
+
+        Preconditions.checkNotNull(document, "xmlDoc");
+        Preconditions.checkNotNull(channel, "channel");
+        Preconditions.checkNotNull(profile, "profile");
+
+        // A failure to drain the buffer on closing is suppressed by any failure to write the document
+        try (final ChannelOutputStream out = new ChannelOutputStream(channel)) {
+            profile._write(document, out, encoding);
+        }
+    }
 
-        Serializer ser = new Serializer(outputStream, encoding.name());
-        ser.setIndent(2);
-        ser.setMaxLength(0);
-        ser.setLineSeparator("\n");
+    /**
+     * Write the document that a builder would currently build, without building it. The output is the same as
+     * writing the built document with {@link SerializationProfile#COMPACT}{@code .withPreserveBaseURI(false)}.
+     * <p/>
+     * Given a cache, the markup of each sizeable nested builder is cached as it is written, and when the same
+     * builder is written again without having been modified, in this or any other document, the cached bytes are
+     * copied to the stream rather than writing the element again. Static parts of a page, such as headers and
+     * footers, can therefore be held in builders that are added to each page and written once.
+     *
+     * @param builder  builder created by the default implementation
+     * @param out      stream to write to; flushed but not closed
+     * @param encoding encoding to write
+     * @param cache    cache of the markup of nested builders, or null to write every element
+     * @throws IOException              if the stream can not be written to
+     * @throws IllegalArgumentException if the builder is of another implementation
+     */
+    public static void writeDocument(
+            @Nonnull DocumentBuilder builder, @Nonnull OutputStream out, @Nonnull Charset encoding,
+            @Nullable FragmentCache cache) throws IOException {
+        Preconditions.checkNotNull(out, "out");
+        XomBuilderFactoryImpl.writeDocument(builder, out, encoding, cache);
+    }
+
+    /**
+     * Write the element that a builder would currently build as a markup fragment, without building it.
+     *
+     * @param builder  builder created by the default implementation
+     * @param out      stream to write to; flushed but not closed
+     * @param encoding encoding to write
+     * @param cache    cache of the markup of the builder and nested builders, or null to write every element
+     * @throws IOException              if the stream can not be written to
+     * @throws IllegalArgumentException if the builder is of another implementation
+     * @see #writeDocument(DocumentBuilder, OutputStream, Charset, FragmentCache)
+     */
+    public static void writeFragment(
+            @Nonnull ElementBuilder builder, @Nonnull OutputStream out, @Nonnull Charset encoding,
+            @Nullable FragmentCache cache) throws IOException {
+        Preconditions.checkNotNull(out, "out");
+        XomBuilderFactoryImpl.writeFragment(builder, out, encoding, cache);
+    }
+
+    /**
+     * Serialize a node as a markup fragment. The node is not detached from its parent, and no document is created;
+     * see {@link #writeFragment(Node, Appendable)}.
+     *
+     * @param node node to serialize
+     * @return markup of the node
+     */
+    @Nonnull
+    @CheckReturnValue
+    public static String toFragmentString(@Nonnull Node node) {
+        final StringBuilder builder = new StringBuilder();
+        try {
+            writeFragment(node, builder);
+        } catch (IOException ex) {
+            throw new AssertionError(ex);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Write a node as a markup fragment, directly from the node tree.
+     * <p/>
+     * The node is not detached from its parent, and need not belong to a document. The markup is that which
+     * {@link SerializationProfile#COMPACT} would write for the node as a document, without the XML declaration or
+     * base URIs; namespaces in scope from the ancestors of the node are declared on the node itself.
+     *
+     * @param node node to write
+     * @param out  destination; flushed if it is {@link java.io.Flushable}
+     * @throws IOException if the destination can not be written to
+     */
+    public static void writeFragment(@Nonnull Node node, @Nonnull Appendable out) throws IOException {
+        XomBuilderFactoryImpl.writeFragment(node, asWriter(out), null);
+    }
 
-        // XXX all elements inherit root elements base uri unless explicitly set (even if an
-        // ancestor overrides that base.) Not sure this is correct.
-        ser.setPreserveBaseURI(true);
-        ser.write(document);
-        ser.flush();
+    /**
+     * Write each of the nodes as a markup fragment, one after another.
+     *
+     * @see #writeFragment(Node, Appendable)
+     */
+    public static void writeFragment(@Nonnull Nodes nodes, @Nonnull Appendable out) throws IOException {
+        XomBuilderFactoryImpl.writeFragment(nodes, asWriter(out), null);
+    }
+
+    /**
+     * Write a node as a markup fragment, encoded in the given charset. Characters that the charset can not encode
+     * are written as character references.
+     *
+     * @param node     node to write
+     * @param out      stream to write to; flushed but not closed
+     * @param encoding encoding to write
+     * @throws IOException if the stream can not be written to
+     * @see #writeFragment(Node, Appendable)
+     */
+    public static void writeFragment(@Nonnull Node node, @Nonnull OutputStream out, @Nonnull Charset encoding)
+            throws IOException {
+        Preconditions.checkNotNull(out, "out");
+        Preconditions.checkNotNull(encoding, "encoding");
+        XomBuilderFactoryImpl.writeFragment(node, new OutputStreamWriter(out, encoding), encoding);
+    }
+
+    /**
+     * Write a node as a markup fragment into a buffer, starting at its position. The encoded bytes are put directly
+     * into the buffer, so a direct or {@link java.nio.MappedByteBuffer} receives them without any intermediate heap
+     * array holding the whole fragment.
+     *
+     * @param node     node to write
+     * @param buffer   buffer to write to; its position is advanced past the fragment
+     * @param encoding encoding to write
+     * @throws java.nio.BufferOverflowException if the fragment does not fit in the remaining space; bytes already
+     *                                          written are left in the buffer
+     * @throws java.nio.ReadOnlyBufferException if the buffer is read-only
+     * @see #writeFragment(Node, Appendable)
+     */
+    public static void writeFragment(@Nonnull Node node, @Nonnull ByteBuffer buffer, @Nonnull Charset encoding) {
+        Preconditions.checkNotNull(buffer, "buffer");
+        Preconditions.checkNotNull(encoding, "encoding");
+        try {
+            XomBuilderFactoryImpl.writeFragment(node,
+                    new OutputStreamWriter(new ByteBufferOutputStream(buffer), encoding), encoding);
+        } catch (IOException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    /**
+     * Write each of the nodes as a markup fragment into a buffer, one after another.
+     *
+     * @see #writeFragment(Node, ByteBuffer, Charset)
+     */
+    public static void writeFragment(@Nonnull Nodes nodes, @Nonnull ByteBuffer buffer, @Nonnull Charset encoding) {
+        Preconditions.checkNotNull(buffer, "buffer");
+        Preconditions.checkNotNull(encoding, "encoding");
+        try {
+            XomBuilderFactoryImpl.writeFragment(nodes,
+                    new OutputStreamWriter(new ByteBufferOutputStream(buffer), encoding), encoding);
+        } catch (IOException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    /**
+     * Write the exclusive canonical form (without comments) of a node, as defined by
+     * <a href="http://www.w3.org/TR/xml-exc-c14n/">Exclusive XML Canonicalization</a>. The output is written to the
+     * stream as the node is walked, rather than being accumulated first.
+     *
+     * @param node node to canonicalize, which need not belong to a document
+     * @param out  stream to write the UTF-8 encoded canonical form to; flushed but not closed
+     * @throws IOException if the stream can not be written to
+     */
+    public static void canonicalize(@Nonnull Node node, @Nonnull OutputStream out) throws IOException {
+        Preconditions.checkNotNull(node, "node");
+        Preconditions.checkNotNull(out, "out");
+        new Canonicalizer(out, Canonicalizer.EXCLUSIVE_XML_CANONICALIZATION).write(node);
+        out.flush();
+    }
+
+    /**
+     * Compute a SHA-256 digest of a node, suitable as a cache key or entity tag.
+     * <p/>
+     * Nodes with the same exclusive canonical form (see {@link #canonicalize(Node, OutputStream)}) have the same
+     * digest, but the digest is computed from the node tree directly, without producing the canonical text.
+     *
+     * @param node document, element, text, comment or processing instruction
+     * @return digest of the node and its descendants
+     * @throws IllegalArgumentException if node is an attribute, namespace or document type declaration
+     */
+    @Nonnull
+    @CheckReturnValue
+    public static HashCode digest(@Nonnull Node node) {
+        return XomBuilderFactoryImpl.digest(node);
+    }
+
+    /**
+     * Compute the digest of the element that a builder would currently build, without building it. The digest is
+     * the same as that of the built element (see {@link #digest(Node)}). Digests of nested builders are retained
+     * while they are unchanged, so repeatedly digesting a builder only revisits the parts that have changed.
+     *
+     * @param builder builder created by the default implementation, which contains no template slots
+     * @return digest of the element
+     * @throws IllegalArgumentException if the builder is of another implementation
+     */
+    @Nonnull
+    @CheckReturnValue
+    public static HashCode digest(@Nonnull ElementBuilder builder) {
+        return XomBuilderFactoryImpl.digest(builder);
+    }
+
+    /**
+     * Compute the digest of the document that a builder would currently build, without building it.
+     *
+     * @param builder builder created by the default implementation
+     * @return digest of the document
+     * @see #digest(ElementBuilder)
+     */
+    @Nonnull
+    @CheckReturnValue
+    public static HashCode digest(@Nonnull DocumentBuilder builder) {
+        return XomBuilderFactoryImpl.digest(builder);
+    }
+
+    /**
+     * Compute the fingerprint of the document that a builder would currently build: a digest that also covers
+     * everything else that affects how the document is serialized, so documents with the same fingerprint are
+     * serialized to the same markup.
+     *
+     * @param builder builder created by the default implementation
+     * @return fingerprint of the document
+     * @see #digest(DocumentBuilder)
+     */
+    @Nonnull
+    @CheckReturnValue
+    static HashCode fingerprint(@Nonnull DocumentBuilder builder) {
+        return XomBuilderFactoryImpl.fingerprint(builder);
+    }
+
+    /**
+     * @param builder builder created by the default implementation
+     * @return whether the document contains deferred content, which is read again each time it is built, so its
+     *         fingerprint need not match the built document
+     */
+    @CheckReturnValue
+    static boolean isDeferred(@Nonnull DocumentBuilder builder) {
+        return XomBuilderFactoryImpl.isDeferred(builder);
+    }
+
+    @Nonnull
+    private static Writer asWriter(@Nonnull Appendable out) {
+        Preconditions.checkNotNull(out, "out");
+        return out instanceof Writer ? (Writer) out : CharStreams.asWriter(out);
     }
 
     @SafeVarargs
@@ -199,6 +512,11 @@ public class XomUtil {
             }
     }
 
+    /**
+     * @param node node from which to extract text
+     * @return the text of the node and its descendants
+     * @see #getPrintableText(Node, Appendable)
+     */
     @Nonnull
     @CheckReturnValue
     public static String getPrintableText(@Nonnull Node node) {
@@ -207,22 +525,263 @@ public class XomUtil {
         return builder.toString();
     }
 
+    /**
+     * @param node    node from which to extract text
+     * @param builder builder to append the text to
+     * @see #getPrintableText(Node, Appendable)
+     */
     public static void getPrintableText(@Nonnull Node node, @Nonnull StringBuilder builder) {
-        if (node instanceof Text) {
-            builder.append(node.getValue());
-        } else if (node instanceof Element) {
-            for (int i = 0; i < node.getChildCount(); i++)
-                getPrintableText(node.getChild(i), builder);
-        } else if (node instanceof Document) {
-            getPrintableText(((Document) node).getRootElement(), builder);
-        } else {
-            assert node.getClass().equals(Attribute.class)
-                    || node.getClass().equals(Comment.class)
-                    || node.getClass().equals(DocType.class)
-                    || node.getClass().equals(Namespace.class)
-                    || node.getClass().equals(ProcessingInstruction.class)
-                    || node.getClass().equals(Attribute.class)
-                    || node.getClass().equals(ParentNode.class);
+        try {
+            getPrintableText(node, (Appendable) builder);
+        } catch (IOException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    /**
+     * Append the text of a node to the destination as it is found. The text of an element is that of all its
+     * descendant text nodes, in document order; the text of a document is that of its root element, and the text
+     * of a text node is its value. Other nodes have no text.
+     * <p/>
+     * The tree is walked iteratively, so documents of any depth can be processed.
+     *
+     * @param node node from which to extract text
+     * @param out  destination of the text
+     * @throws IOException if the destination can not be appended to
+     */
+    public static void getPrintableText(@Nonnull Node node, @Nonnull Appendable out) throws IOException {
+        getPrintableText(node, out, Long.MAX_VALUE);
+    }
+
+    /**
+     * Append at most the given number of characters of the text of a node to the destination, such as to generate
+     * a snippet; the walk stops as soon as the limit is reached. A surrogate pair is never split, so slightly fewer
+     * characters may be appended.
+     *
+     * @param node      node from which to extract text
+     * @param out       destination of the text
+     * @param maxLength maximum number of characters to append
+     * @return whether all of the text was appended, rather than being cut short by the limit
+     * @throws IOException              if the destination can not be appended to
+     * @throws IllegalArgumentException if maxLength is negative
+     * @see #getPrintableText(Node, Appendable)
+     */
+    public static boolean getPrintableText(@Nonnull Node node, @Nonnull Appendable out, long maxLength)
+            throws IOException {
+        Preconditions.checkNotNull(node, "node");
+        Preconditions.checkNotNull(out, "out");
+        Preconditions.checkArgument(maxLength >= 0, "argument maxLength is negative");
+        return new TextExtractor(out, maxLength).extract(node);
+    }
+
+    /**
+     * Extract the text of a node, extracting the text of large subtrees concurrently on the given pool. The result
+     * is the same as {@link #getPrintableText(Node)}; the node must not be modified until this method returns.
+     *
+     * @param node node from which to extract text
+     * @param pool pool on which to extract the text of large subtrees
+     * @return the text of the node and its descendants
+     */
+    @Nonnull
+    @CheckReturnValue
+    public static String getPrintableText(@Nonnull Node node, @Nonnull ForkJoinPool pool) {
+        Preconditions.checkNotNull(node, "node");
+        Preconditions.checkNotNull(pool, "pool");
+        final Element element = node instanceof Document ? ((Document) node).getRootElement()
+                : node instanceof Element ? (Element) node : null;
+        if (element == null) {
+            return getPrintableText(node);
+        }
+        final List<String> parts = pool.invoke(new TextTask(element, 0, element.getChildCount()));
+        int length = 0;
+        for (final String part : parts) {
+            length += part.length();
+        }
+        final StringBuilder builder = new StringBuilder(length);
+        for (final String part : parts) {
+            builder.append(part);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Appends the text of nodes to a destination, walking each tree with an explicit stack.
+     */
+    private static final class TextExtractor {
+
+        @Nonnull
+        private final Appendable out;
+        private long remaining;
+        @Nonnull
+        private Element[] parents;
+        @Nonnull
+        private int[] indices;
+
+        TextExtractor(@Nonnull Appendable out, long maxLength) {
+            this.out = out;
+            this.remaining = maxLength;
+            this.parents = new Element[16];
+            this.indices = new int[16];
+        }
+
+        /**
+         * @return whether all of the text was appended
+         */
+        boolean extract(@Nonnull Node node) throws IOException {
+            if (node instanceof Text) {
+                return append(node.getValue());
+            } else if (node instanceof Document) {
+                return extract(((Document) node).getRootElement());
+            } else if (node instanceof Element) {
+                return extract((Element) node, 0, node.getChildCount());
+            }
+            return true;
+        }
+
+        /**
+         * @return whether all of the text of the children of the element, from index {@code from} to {@code to}
+         * (exclusive), was appended
+         */
+        boolean extract(@Nonnull Element element, int from, int to) throws IOException {
+            int depth = 0;
+            parents[0] = element;
+            indices[0] = from;
+            while (depth >= 0) {
+                final Element parent = parents[depth];
+                final int index = indices[depth];
+                if (index == (depth == 0 ? Math.min(to, parent.getChildCount()) : parent.getChildCount())) {
+                    parents[depth--] = null;
+                    continue;
+                }
+                indices[depth] = index + 1;
+                final Node child = parent.getChild(index);
+                if (child instanceof Text) {
+                    if (!append(child.getValue())) {
+                        Arrays.fill(parents, 0, depth + 1, null);
+                        return false;
+                    }
+                } else if (child instanceof Element && child.getChildCount() > 0) {
+                    if (++depth == parents.length) {
+                        parents = Arrays.copyOf(parents, depth * 2);
+                        indices = Arrays.copyOf(indices, depth * 2);
+                    }
+                    parents[depth] = (Element) child;
+                    indices[depth] = 0;
+                }
+            }
+            return true;
+        }
+
+        private boolean append(@Nonnull String text) throws IOException {
+            if (text.length() <= remaining) {
+                out.append(text);
+                remaining -= text.length();
+                return true;
+            }
+            int end = (int) remaining;
+            if (end > 0 && Character.isHighSurrogate(text.charAt(end - 1))) {
+                end--;
+            }
+            out.append(text, 0, end);
+            remaining = 0;
+            return false;
+        }
+    }
+
+    /**
+     * Extracts the text of a range of the children of an element, walking the subtrees with an explicit stack.
+     * <p/>
+     * Work is split on the number of nodes walked rather than on the shape of the tree, so a narrow element over a
+     * large subtree is split as well as a wide one. Every {@link #GRAIN} nodes, if the pool is short of queued
+     * tasks, half of the children not yet started at the shallowest level of the walk are forked as a new task.
+     * Those children come after everything else left to the task, so each task appends its own text first and
+     * then the text of its forks, the latest first.
+     */
+    private static final class TextTask extends RecursiveTask<List<String>> {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Number of nodes walked between checks on whether to split off some of the remaining work.
+         */
+        static final int GRAIN = 256;
+        /**
+         * Number of queued tasks beyond which no more are forked, since there is enough work to steal.
+         */
+        private static final int SURPLUS = 2;
+
+        @Nonnull
+        private final Element element;
+        private final int from;
+        private final int to;
+
+        TextTask(@Nonnull Element element, int from, int to) {
+            this.element = element;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<String> compute() {
+            final StringBuilder builder = new StringBuilder();
+            final List<TextTask> forks = new ArrayList<TextTask>();
+            Element[] parents = new Element[16];
+            int[] indices = new int[16];
+            int[] ends = new int[16];
+            int depth = 0;
+            parents[0] = element;
+            indices[0] = from;
+            ends[0] = to;
+            int walked = 0;
+            while (depth >= 0) {
+                if (indices[depth] == ends[depth]) {
+                    parents[depth--] = null;
+                    continue;
+                }
+                if (++walked == GRAIN) {
+                    walked = 0;
+                    if (getSurplusQueuedTaskCount() <= SURPLUS) {
+                        _split(parents, indices, ends, depth, forks);
+                    }
+                }
+                final Node child = parents[depth].getChild(indices[depth]++);
+                if (child instanceof Text) {
+                    builder.append(child.getValue());
+                } else if (child instanceof Element && child.getChildCount() > 0) {
+                    if (++depth == parents.length) {
+                        parents = Arrays.copyOf(parents, depth * 2);
+                        indices = Arrays.copyOf(indices, depth * 2);
+                        ends = Arrays.copyOf(ends, depth * 2);
+                    }
+                    parents[depth] = (Element) child;
+                    indices[depth] = 0;
+                    ends[depth] = child.getChildCount();
+                }
+            }
+            final List<String> parts = new ArrayList<String>();
+            parts.add(builder.toString());
+            for (int i = forks.size() - 1; i >= 0; i--) {
+                parts.addAll(forks.get(i).join());
+            }
+            return parts;
+        }
+
+        /**
+         * Fork the later half of the children not yet started at the shallowest level of the walk that has any,
+         * leaving at least the next child at the current level. All deeper levels come before them in document
+         * order, and no shallower level has any children left, so the forked children are the last of the task.
+         */
+        private static void _split(@Nonnull Element[] parents, @Nonnull int[] indices, @Nonnull int[] ends,
+                                   int depth, @Nonnull List<TextTask> forks) {
+            for (int level = 0; level <= depth; level++) {
+                final int left = ends[level] - indices[level];
+                if (left > 1 || (left == 1 && level < depth)) {
+                    final int middle = indices[level] + left / 2;
+                    forks.add((TextTask) new TextTask(parents[level], middle, ends[level]).fork());
+                    ends[level] = middle;
+                    return;
+                }
+            }
         }
     }
 }
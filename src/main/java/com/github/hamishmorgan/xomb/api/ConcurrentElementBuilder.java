@@ -0,0 +1,87 @@
+package com.github.hamishmorgan.xomb.api;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import nu.xom.Node;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * An {@link ElementBuilder} to which many threads may add children and attributes at the same time.
+ * <p/>
+ * Each child is added at an index, and the children of the built element are ordered by index, whatever order the
+ * threads adding them happen to run in. Children added at the same index are ordered by arrival: a single thread
+ * adding a sequence of children at one index keeps them in order, but the children of several threads adding at
+ * one index are interleaved as the threads are scheduled. Methods inherited from {@link ElementBuilder} that add
+ * children all use index 0, so only children added at distinct indices have an order independent of scheduling.
+ * <p/>
+ * Attributes are in the order they arrive, so the attributes of several threads are interleaved as the threads are
+ * scheduled. Since which of two attributes with the same namespace and local name arrived last would also depend
+ * on scheduling, adding an attribute with the same name as one already added fails with an
+ * {@link IllegalArgumentException}, as it does for a streaming builder.
+ * <p/>
+ * Building while other threads are still adding produces an element containing some subset of the concurrent
+ * additions. {@link #reset()} must not be called concurrently with any other method. The
+ * {@link nu.xom.NodeFactory} used by the builder must be thread safe.
+ */
+@ThreadSafe
+public interface ConcurrentElementBuilder extends ElementBuilder {
+
+    /**
+     * @param index position of the text among the children of the element
+     * @param data
+     * @return ConcurrentElementBuilder instance of method chaining
+     * @throws NullPointerException if data is null
+     */
+    @Nonnull
+    ConcurrentElementBuilder add(int index, @Nonnull String data);
+
+    /**
+     * @param index     position of the element among the children of the element
+     * @param elBuilder
+     * @return ConcurrentElementBuilder instance of method chaining
+     * @throws NullPointerException if elBuilder is null
+     */
+    @Nonnull
+    ConcurrentElementBuilder add(int index, @Nonnull ElementBuilder elBuilder);
+
+    /**
+     * @param index position of the node among the children of the element; ignored for attributes
+     * @param node
+     * @return ConcurrentElementBuilder instance of method chaining
+     * @throws NullPointerException     if node is null
+     * @throws IllegalArgumentException if node is a Namespace, DocType or
+     *                                  Document, or node already has a parent.
+     */
+    @Nonnull
+    ConcurrentElementBuilder add(int index, @Nonnull Node node);
+
+    /**
+     * @param index      position of the elements among the children of the element
+     * @param elBuilders
+     * @return ConcurrentElementBuilder instance of method chaining
+     * @throws NullPointerException if elBuilders is null, or contains null
+     */
+    @Nonnull
+    ConcurrentElementBuilder addAll(int index, @Nonnull Iterable<? extends ElementBuilder> elBuilders);
+}
@@ -29,6 +29,9 @@ import nu.xom.Nodes;
 import javax.annotation.CheckReturnValue;
 import javax.annotation.Nonnull;
 import java.net.URI;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 public interface ElementBuilder extends ParentNodeBuilder<Nodes, ElementBuilder> {
     /**
@@ -42,6 +45,16 @@ public interface ElementBuilder extends ParentNodeBuilder<Nodes, ElementBuilder>
     @CheckReturnValue
     String getLocalName();
 
+    /**
+     * Discard the namespace, base URI, attributes and children of this builder, so that it can be reused. The
+     * element name and prefix are retained.
+     *
+     * @return ElementBuilder instance of method chaining
+     */
+    @Nonnull
+    @Override
+    ElementBuilder reset();
+
     /**
      * @param localName
      * @return ElementBuilder instance of method chaining
@@ -78,12 +91,38 @@ public interface ElementBuilder extends ParentNodeBuilder<Nodes, ElementBuilder>
     ElementBuilder clearPrefix();
 
     /**
+     * Add text content. Text added by consecutive calls is coalesced, and becomes a single text node when the
+     * element is built.
+     *
      * @param data
      * @return ElementBuilder instance of method chaining
      */
     @Nonnull
     ElementBuilder add(@Nonnull String data);
 
+    /**
+     * Add text content that is only read when the element is built or written, so large text that is already held
+     * in a {@link StringBuilder} or buffer is not copied into a string first. The sequence is read each time the
+     * element is built, so it must not be modified until then unless the change is intended to appear.
+     *
+     * @param data
+     * @return ElementBuilder instance of method chaining
+     * @throws NullPointerException if data is null
+     */
+    @Nonnull
+    ElementBuilder add(@Nonnull CharSequence data);
+
+    /**
+     * Add text content that is only computed when the element is built or written. The supplier is invoked each
+     * time, so content of an element that is never built is never computed.
+     *
+     * @param data supplier of the text, which must not return null
+     * @return ElementBuilder instance of method chaining
+     * @throws NullPointerException if data is null
+     */
+    @Nonnull
+    ElementBuilder add(@Nonnull Supplier<String> data);
+
     /**
      * @param elBuilder
      * @return ElementBuilder instance of method chaining
@@ -91,6 +130,28 @@ public interface ElementBuilder extends ParentNodeBuilder<Nodes, ElementBuilder>
     @Nonnull
     ElementBuilder add(@Nonnull ElementBuilder elBuilder);
 
+    /**
+     * Add each of the given builders, in iteration order, as though by {@link #add(ElementBuilder)}. Storage for
+     * the children is reserved in advance when the number of builders is known.
+     *
+     * @param elBuilders
+     * @return ElementBuilder instance of method chaining
+     * @throws NullPointerException if elBuilders is null, or contains null
+     */
+    @Nonnull
+    ElementBuilder addAll(@Nonnull Iterable<? extends ElementBuilder> elBuilders);
+
+    /**
+     * Add each of the given builders, in encounter order, as though by {@link #add(ElementBuilder)}. Storage for
+     * the children is reserved in advance when the size of the stream is known.
+     *
+     * @param elBuilders
+     * @return ElementBuilder instance of method chaining
+     * @throws NullPointerException if elBuilders is null, or contains null
+     */
+    @Nonnull
+    ElementBuilder addAll(@Nonnull Stream<? extends ElementBuilder> elBuilders);
+
     /**
      * @param element
      * @return ElementBuilder instance of method chaining
@@ -113,6 +174,19 @@ public interface ElementBuilder extends ParentNodeBuilder<Nodes, ElementBuilder>
     @Nonnull
     ElementBuilder addAttribute(@Nonnull String name, @Nonnull String value);
 
+    /**
+     * Add an attribute whose value is only computed when the element is built or written. The name is verified
+     * immediately, and the value each time it is supplied.
+     *
+     * @param name  the qualified attribute name
+     * @param value supplier of the value, which must not return null
+     * @return ElementBuilder instance of method chaining
+     * @throws NullPointerException        if name or value is null
+     * @throws nu.xom.IllegalNameException if name is not a legal attribute name
+     */
+    @Nonnull
+    ElementBuilder addAttribute(@Nonnull String name, @Nonnull Supplier<String> value);
+
     /**
      * @param name
      * @param namespace
@@ -123,6 +197,58 @@ public interface ElementBuilder extends ParentNodeBuilder<Nodes, ElementBuilder>
     @Nonnull
     ElementBuilder addAttribute(@Nonnull String name, @Nonnull Optional<URI> namespace, @Nonnull String value, @Nonnull Attribute.Type type);
 
+    /**
+     * Add an attribute for each entry of the given map, in iteration order, as though by
+     * {@link #addAttribute(String, String)}.
+     *
+     * @param attributes map from attribute name to value
+     * @return ElementBuilder instance of method chaining
+     * @throws NullPointerException     if attributes is null, or contains a null name or value
+     * @throws IllegalArgumentException if any name is empty
+     */
+    @Nonnull
+    ElementBuilder addAttributes(@Nonnull Map<String, String> attributes);
+
+    /**
+     * Add an attribute for each pair of arguments, as though by {@link #addAttribute(String, String)}.
+     *
+     * @param namesAndValues alternating attribute names and values
+     * @return ElementBuilder instance of method chaining
+     * @throws NullPointerException     if namesAndValues is null, or contains null
+     * @throws IllegalArgumentException if there are an odd number of arguments, or any name is empty
+     */
+    @Nonnull
+    ElementBuilder addAttributes(@Nonnull String... namesAndValues);
+
+    /**
+     * Add a named placeholder for text content, the value of which is supplied when a template created from
+     * this builder is instantiated. A builder containing slots can only be used to create templates; calling
+     * {@link #build()} will fail.
+     *
+     * @param slotName
+     * @return ElementBuilder instance of method chaining
+     * @throws NullPointerException     if slotName is null
+     * @throws IllegalArgumentException if slotName is empty
+     * @see com.github.hamishmorgan.xomb.spi.XomBuilderFactory#createTemplate(ElementBuilder)
+     */
+    @Nonnull
+    ElementBuilder addSlot(@Nonnull String slotName);
+
+    /**
+     * Add an attribute with a named placeholder for its value, which is supplied when a template created from
+     * this builder is instantiated. A builder containing slots can only be used to create templates; calling
+     * {@link #build()} will fail.
+     *
+     * @param name
+     * @param slotName
+     * @return ElementBuilder instance of method chaining
+     * @throws NullPointerException     if name or slotName is null
+     * @throws IllegalArgumentException if name or slotName is empty
+     * @see com.github.hamishmorgan.xomb.spi.XomBuilderFactory#createTemplate(ElementBuilder)
+     */
+    @Nonnull
+    ElementBuilder addAttributeSlot(@Nonnull String name, @Nonnull String slotName);
+
     /**
      * @param node
      * @return ElementBuilder instance of method chaining
@@ -23,8 +23,15 @@ package com.github.hamishmorgan.xomb.api;
 import nu.xom.Comment;
 import nu.xom.ProcessingInstruction;
 
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+import javax.annotation.CheckReturnValue;
 import javax.annotation.Nonnull;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 import java.net.URI;
+import java.util.concurrent.ForkJoinPool;
 
 public interface ParentNodeBuilder<P, B extends ParentNodeBuilder<P, B>> extends NodeBuilder<P, B> {
     /**
@@ -76,4 +83,86 @@ public interface ParentNodeBuilder<P, B extends ParentNodeBuilder<P, B>> extends
      */
     @Nonnull
     B addComment(@Nonnull Comment comment);
+
+    /**
+     * Discard all state accumulated by this builder, returning it to the state it was in when it was created, so
+     * that it can be reused. Nodes previously constructed by the builder are unaffected. A builder that has been
+     * consumed by {@link #buildAndConsume()} can be used again after it has been reset.
+     *
+     * @return builder instance of method chaining
+     */
+    @Nonnull
+    B reset();
+
+    /**
+     * Construct an XOM node for the current state of the builder, moving the
+     * nodes accumulated by this builder into the result rather than copying
+     * them. The builder is invalidated by this call; any further use of it
+     * will fail, even if the build itself did not complete.
+     * Element builders that were added to this builder, and to no other,
+     * are consumed along with it, so their nodes are moved as well; they
+     * can only be used again after they have been reset.
+     * <p/>
+     * Use this in place of {@link #build()} when the builder is only needed
+     * once, so that each node is allocated exactly once.
+     *
+     * @return newly constructed XOM node
+     * @throws MissingRequiredPropertyException if the build cannot complete because a
+     *                                          require argument is un/miss-configured
+     * @throws IllegalStateException            if the builder has already been consumed
+     */
+    @CheckReturnValue
+    @Nonnull
+    P buildAndConsume();
+
+    /**
+     * Construct an XOM node for the current state of the builder, as {@link #build()} does, but constructing large
+     * independent subtrees concurrently on the given pool. The result is attached in document order, so it is
+     * identical to that of {@link #build()}. Small subtrees are always constructed sequentially, so this is only
+     * beneficial for large documents.
+     * <p/>
+     * The {@link nu.xom.NodeFactory} used by the builder must be thread safe, and the builder must not be modified
+     * until the build completes.
+     *
+     * @param pool pool on which to construct large subtrees
+     * @return newly constructed XOM node
+     * @throws NullPointerException             if pool is null
+     * @throws MissingRequiredPropertyException if the build cannot complete because a
+     *                                          require argument is un/miss-configured
+     * @throws IllegalStateException            if the builder has already been consumed
+     */
+    @CheckReturnValue
+    @Nonnull
+    P build(@Nonnull ForkJoinPool pool);
+
+    /**
+     * Report the current state of the builder to the given SAX handler, as though the built node had been
+     * parsed, without constructing any XOM nodes. Document builders report the start and end of the document;
+     * element builders report only their element, so they can be used to produce part of a larger document.
+     * Comments and doctypes are only reported if the handler also implements
+     * {@link org.xml.sax.ext.LexicalHandler}. The builder is unaffected.
+     *
+     * @param handler
+     * @throws NullPointerException             if handler is null
+     * @throws MissingRequiredPropertyException if the build cannot complete because a
+     *                                          require argument is un/miss-configured
+     * @throws IllegalStateException            if the builder has already been consumed
+     * @throws SAXException                     if the handler throws an exception
+     */
+    void writeTo(@Nonnull ContentHandler handler) throws SAXException;
+
+    /**
+     * Write the current state of the builder to the given StAX writer, without constructing any XOM nodes.
+     * Document builders write the start and end of the document; element builders write only their element, so
+     * they can be used to produce part of a larger document. The writer is not flushed or closed, and the builder
+     * is unaffected.
+     *
+     * @param writer
+     * @throws NullPointerException             if writer is null
+     * @throws MissingRequiredPropertyException if the build cannot complete because a
+     *                                          require argument is un/miss-configured
+     * @throws IllegalStateException            if the builder has already been consumed
+     * @throws XMLStreamException               if the writer throws an exception
+     */
+    void writeTo(@Nonnull XMLStreamWriter writer) throws XMLStreamException;
 }
@@ -0,0 +1,115 @@
+package com.github.hamishmorgan.xomb.api;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * Streaming counterpart of {@link DocumentBuilder}, which writes markup to an output stream as each method is
+ * called, rather than constructing XOM nodes. Memory use is proportional to the depth of the document rather than
+ * its size.
+ * <p/>
+ * Content must be supplied in document order: the doctype (if any), then any comments and processing instructions,
+ * then the root element, then any trailing comments and processing instructions. Only the most recently started
+ * element that has not been closed can be written to; calls on any other builder fail with an
+ * {@link IllegalStateException}. Instances are not thread safe.
+ */
+public interface StreamingDocumentBuilder extends Closeable {
+
+    /**
+     * @param rootElementName
+     * @param publicID
+     * @param systemID
+     * @return StreamingDocumentBuilder instance of method chaining
+     * @throws NullPointerException     if any argument is null
+     * @throws IllegalArgumentException if rootElementName or publicID is empty
+     * @throws IllegalStateException    if any other content has already been written
+     * @throws IOException              if the underlying stream cannot be written to
+     */
+    @Nonnull
+    StreamingDocumentBuilder withDocType(@Nonnull String rootElementName, @Nonnull String publicID,
+                                         @Nonnull URI systemID) throws IOException;
+
+    /**
+     * @param rootElementName
+     * @return StreamingDocumentBuilder instance of method chaining
+     * @throws NullPointerException     if rootElementName is null
+     * @throws IllegalArgumentException if rootElementName is empty
+     * @throws IllegalStateException    if any other content has already been written
+     * @throws IOException              if the underlying stream cannot be written to
+     */
+    @Nonnull
+    StreamingDocumentBuilder withDocType(@Nonnull String rootElementName) throws IOException;
+
+    /**
+     * @param target
+     * @param data
+     * @return StreamingDocumentBuilder instance of method chaining
+     * @throws NullPointerException        if target or data is null
+     * @throws IllegalArgumentException    if target is empty
+     * @throws nu.xom.IllegalDataException if data contains "?&gt;"
+     * @throws IllegalStateException       if the root element is open
+     * @throws IOException                 if the underlying stream cannot be written to
+     */
+    @Nonnull
+    StreamingDocumentBuilder addPI(@Nonnull String target, @Nonnull String data) throws IOException;
+
+    /**
+     * @param data
+     * @return StreamingDocumentBuilder instance of method chaining
+     * @throws NullPointerException        if data is null
+     * @throws nu.xom.IllegalDataException if data contains a double-hyphen (--), or data ends with a hyphen.
+     * @throws IllegalStateException       if the root element is open
+     * @throws IOException                 if the underlying stream cannot be written to
+     */
+    @Nonnull
+    StreamingDocumentBuilder addComment(@Nonnull String data) throws IOException;
+
+    /**
+     * Start writing the root element. The returned builder must be closed before any further content can be
+     * added to the document.
+     *
+     * @param name the qualified element name
+     * @return builder for the root element
+     * @throws NullPointerException     if name is null
+     * @throws IllegalArgumentException if name is empty
+     * @throws IllegalStateException    if the root element has already been started
+     * @throws IOException              if the underlying stream cannot be written to
+     */
+    @Nonnull
+    @CheckReturnValue
+    StreamingElementBuilder startRoot(@Nonnull String name) throws IOException;
+
+    /**
+     * Finish the document, closing any elements that are still open, and flush the underlying stream. The
+     * underlying stream is not closed.
+     *
+     * @throws MissingRequiredPropertyException if the root element was never started
+     * @throws IOException                      if the underlying stream cannot be written to
+     */
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,123 @@
+package com.github.hamishmorgan.xomb.api;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * Streaming counterpart of {@link ElementBuilder}, which writes the element to an output stream as each method is
+ * called.
+ * <p/>
+ * The start tag is written when the element is started, and remains open until content is added, so the namespace
+ * and attributes must be set before any content. The end tag is written when the builder is closed, which makes
+ * the builder suitable for use in a try-with-resources block.
+ *
+ * @see StreamingDocumentBuilder
+ */
+public interface StreamingElementBuilder extends Closeable {
+
+    /**
+     * Declare the namespace of the element, which is bound to the prefix of the element name if it has one.
+     * Unlike {@link ElementBuilder#withNamespace(URI)}, the declaration is in scope for all descendants, so
+     * child elements with the same prefix (or no prefix, for a default namespace) are in the same namespace.
+     *
+     * @param namespace
+     * @return StreamingElementBuilder instance of method chaining
+     * @throws NullPointerException  if namespace is null
+     * @throws IllegalStateException if content has already been added to the element
+     * @throws IOException           if the underlying stream cannot be written to
+     */
+    @Nonnull
+    StreamingElementBuilder withNamespace(@Nonnull URI namespace) throws IOException;
+
+    /**
+     * @param name
+     * @param value
+     * @return StreamingElementBuilder instance of method chaining
+     * @throws NullPointerException                 if name or value is null
+     * @throws IllegalArgumentException             if name is empty
+     * @throws nu.xom.IllegalCharacterDataException if value contains characters that are not allowed in XML
+     * @throws IllegalStateException                if content has already been added to the element
+     * @throws IOException                          if the underlying stream cannot be written to
+     */
+    @Nonnull
+    StreamingElementBuilder addAttribute(@Nonnull String name, @Nonnull String value) throws IOException;
+
+    /**
+     * @param data
+     * @return StreamingElementBuilder instance of method chaining
+     * @throws NullPointerException                 if data is null
+     * @throws nu.xom.IllegalCharacterDataException if data contains characters that are not allowed in XML
+     * @throws IOException                          if the underlying stream cannot be written to
+     */
+    @Nonnull
+    StreamingElementBuilder add(@Nonnull String data) throws IOException;
+
+    /**
+     * @param target
+     * @param data
+     * @return StreamingElementBuilder instance of method chaining
+     * @throws NullPointerException        if target or data is null
+     * @throws IllegalArgumentException    if target is empty
+     * @throws nu.xom.IllegalDataException if data contains "?&gt;"
+     * @throws IOException                 if the underlying stream cannot be written to
+     */
+    @Nonnull
+    StreamingElementBuilder addPI(@Nonnull String target, @Nonnull String data) throws IOException;
+
+    /**
+     * @param data
+     * @return StreamingElementBuilder instance of method chaining
+     * @throws NullPointerException        if data is null
+     * @throws nu.xom.IllegalDataException if data contains a double-hyphen (--), or data ends with a hyphen.
+     * @throws IOException                 if the underlying stream cannot be written to
+     */
+    @Nonnull
+    StreamingElementBuilder addComment(@Nonnull String data) throws IOException;
+
+    /**
+     * Start writing a child element. The returned builder must be closed before any further content can be added
+     * to this element.
+     *
+     * @param name the qualified element name
+     * @return builder for the child element
+     * @throws NullPointerException     if name is null
+     * @throws IllegalArgumentException if name is empty
+     * @throws IOException              if the underlying stream cannot be written to
+     */
+    @Nonnull
+    @CheckReturnValue
+    StreamingElementBuilder startElement(@Nonnull String name) throws IOException;
+
+    /**
+     * Write the end tag of the element, closing any child elements that are still open. Closing an element that
+     * has already been closed has no effect.
+     *
+     * @throws IOException if the underlying stream cannot be written to
+     */
+    @Override
+    void close() throws IOException;
+}
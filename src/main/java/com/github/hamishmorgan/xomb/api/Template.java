@@ -0,0 +1,66 @@
+package com.github.hamishmorgan.xomb.api;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable, pre-built plan for a builder, which can be instantiated repeatedly with different values for its
+ * named slots.
+ * <p/>
+ * Templates are created by
+ * {@link com.github.hamishmorgan.xomb.spi.XomBuilderFactory#createTemplate(ElementBuilder)} and
+ * {@link com.github.hamishmorgan.xomb.spi.XomBuilderFactory#createTemplate(DocumentBuilder)}. All of the work of
+ * building, including every call to the {@code NodeFactory}, is done once when the template is created; each
+ * instantiation only copies the pre-built nodes and fills in the slots. Slot values are therefore never passed to
+ * the {@code NodeFactory}.
+ *
+ * @param <P> product type (the object constructed by this template)
+ */
+@ThreadSafe
+public interface Template<P> {
+
+    /**
+     * @return names of all slots that must be given a value when the template is instantiated
+     */
+    @Nonnull
+    @CheckReturnValue
+    Set<String> getSlotNames();
+
+    /**
+     * Construct a new XOM node from the template, with each slot set to the value of the same name.
+     *
+     * @param slotValues values for the slots, keyed by slot name; entries for unknown slot names are ignored
+     * @return newly constructed XOM node
+     * @throws NullPointerException             if slotValues is null
+     * @throws MissingRequiredPropertyException if there is no value for one of the slots
+     * @throws nu.xom.IllegalDataException      if a value contains characters that are not allowed in XML
+     */
+    @Nonnull
+    @CheckReturnValue
+    P instantiate(@Nonnull Map<String, String> slotValues);
+
+}
@@ -21,21 +21,23 @@ package com.github.hamishmorgan.xomb.impl;
  */
 
 import com.github.hamishmorgan.xomb.api.ParentNodeBuilder;
-import com.google.common.base.Optional;
-import com.google.common.collect.ImmutableList;
 import nu.xom.Comment;
 import nu.xom.Node;
 import nu.xom.NodeFactory;
 import nu.xom.Nodes;
 import nu.xom.ProcessingInstruction;
+import nu.xom.Text;
 
 import javax.annotation.CheckReturnValue;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.net.URI;
-import java.util.List;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 /**
  * Abstract super class to the node build classes.
@@ -51,10 +53,35 @@ abstract class AbstractParentNodeBuilder<P, B extends ParentNodeBuilder<P, B>>
         implements ParentNodeBuilder<P, B> {
 
     /**
-     * Build an immutable list of childrenOf.
+     * Shared zero-length array, used until the first child is added so that childless builders allocate nothing.
+     */
+    static final Object[] NO_CHILDREN = new Object[0];
+    /**
+     * Minimum capacity allocated when the children array first has to grow.
+     */
+    static final int MIN_CAPACITY = 4;
+
+    /**
+     * Children of the node, in the first {@link #childCount} elements. Each child is either a {@link Node}, an
+     * {@link ElementSnapshot} of a nested builder, or {@link DeferredText}; the latter two are only resolved to nodes
+     * when this builder is built. The array is cleared rather than replaced when the builder is reset, so a reused
+     * builder keeps its capacity.
      */
     @Nonnull
-    private final ImmutableList.Builder<Node> children;
+    private Object[] children;
+    private int childCount;
+    /**
+     * Whether or not the children array has been handed out by {@link #_getChildren()}, in which case it must be
+     * copied before it is next changed.
+     */
+    private boolean childrenShared;
+    /**
+     * Text added since the last child, which becomes a single text node when the next child is added or the
+     * children are read; either a String for a single addition or a StringBuilder for several, or null if there is
+     * none.
+     */
+    @Nullable
+    private CharSequence pendingText;
     /**
      * Defines a names-space from which all URIs inside are considered to be
      * relative to.
@@ -66,23 +93,48 @@ abstract class AbstractParentNodeBuilder<P, B extends ParentNodeBuilder<P, B>>
      *      &lt;a xml:base="http://example.org/test" href="#foo"/&gt;
      * </pre>
      */
+    @Nullable
+    private URI baseURI;
+    /**
+     * Whether or not the builder has been consumed by {@link #buildAndConsume()}, after which the accumulated
+     * nodes belong to the constructed product and the builder can no longer be used.
+     */
+    private boolean consumed;
+    /**
+     * Whether or not the builder has been released to a {@link PooledXomBuilderFactory} and not handed out again
+     * since. The flag is claimed with a compare-and-set, so a second release fails whichever thread makes it.
+     */
     @Nonnull
-    private Optional<URI> baseURI;
+    private final AtomicBoolean released = new AtomicBoolean(false);
 
     /**
      * Constructor
      */
     AbstractParentNodeBuilder(@Nonnull NodeFactory nodeFactory) {
+        this(nodeFactory, 0);
+    }
+
+    /**
+     * @param nodeFactory      use to instantiate xomb nodes
+     * @param expectedChildren number of children to allocate space for up front
+     * @throws IllegalArgumentException if expectedChildren is negative
+     */
+    AbstractParentNodeBuilder(@Nonnull NodeFactory nodeFactory, final int expectedChildren) {
         super(nodeFactory);
-        baseURI = Optional.absent();
-        children = ImmutableList.builder();
+        checkArgument(expectedChildren >= 0, "argument expectedChildren is negative");
+        baseURI = null;
+        children = expectedChildren == 0 ? NO_CHILDREN : new Object[expectedChildren];
+        childCount = 0;
+        childrenShared = false;
+        consumed = false;
     }
 
     @Override
     @Nonnull
     @SuppressWarnings("unchecked")
     public B withBaseURI(@Nonnull final URI baseURI) {
-        this.baseURI = Optional.of(baseURI);
+        _modifying();
+        this.baseURI = checkNotNull(baseURI, "baseURI");
         return (B) this;
     }
 
@@ -90,7 +142,26 @@ abstract class AbstractParentNodeBuilder<P, B extends ParentNodeBuilder<P, B>>
     @Nonnull
     @SuppressWarnings("unchecked")
     public B clearBaseURI() {
-        this.baseURI = Optional.absent();
+        _modifying();
+        this.baseURI = null;
+        return (B) this;
+    }
+
+    @Override
+    @Nonnull
+    @SuppressWarnings("unchecked")
+    public B reset() {
+        consumed = false;
+        _modifying();
+        baseURI = null;
+        pendingText = null;
+        if (childrenShared) {
+            children = children.length == 0 ? NO_CHILDREN : new Object[children.length];
+            childrenShared = false;
+        } else {
+            Arrays.fill(children, 0, childCount, null);
+        }
+        childCount = 0;
         return (B) this;
     }
 
@@ -122,11 +193,11 @@ abstract class AbstractParentNodeBuilder<P, B extends ParentNodeBuilder<P, B>>
     }
 
     /**
-     * @return
+     * @return the base URI, or null if none has been set
      */
-    @Nonnull
+    @Nullable
     @CheckReturnValue
-    Optional<URI> _getBaseURI() {
+    URI _getBaseURI() {
         return baseURI;
     }
 
@@ -154,13 +225,237 @@ abstract class AbstractParentNodeBuilder<P, B extends ParentNodeBuilder<P, B>>
     @Nonnull
     @SuppressWarnings("unchecked")
     B _addChild(@Nonnull final Node node) {
-        checkArgument(node.getParent() == null, "node argument already has a parent");
-        children.add(node);
+        _modifying();
+        if (!_isTrusted()) {
+            checkArgument(node.getParent() == null, "node argument already has a parent");
+        }
+        _append(node);
         return (B) this;
     }
 
+    /**
+     * Add text, which is coalesced with any text added immediately before or after it.
+     *
+     * @param data
+     * @return
+     */
+    @Nonnull
+    @SuppressWarnings("unchecked")
+    B _addText(@Nonnull final String data) {
+        _modifying();
+        final CharSequence pending = pendingText;
+        if (pending == null) {
+            pendingText = data;
+        } else if (pending instanceof StringBuilder) {
+            ((StringBuilder) pending).append(data);
+        } else {
+            pendingText = new StringBuilder(pending.length() + data.length() + 16).append(pending).append(data);
+        }
+        return (B) this;
+    }
+
+    /**
+     * @param snapshot
+     * @return
+     * @throws NullPointerException if snapshot is null
+     */
+    @Nonnull
+    @SuppressWarnings("unchecked")
+    B _addSnapshot(@Nonnull final ElementSnapshot snapshot) {
+        _modifying();
+        _append(checkNotNull(snapshot, "snapshot"));
+        return (B) this;
+    }
+
+    /**
+     * @param text
+     * @return
+     * @throws NullPointerException if text is null
+     */
+    @Nonnull
+    @SuppressWarnings("unchecked")
+    B _addDeferred(@Nonnull final DeferredText text) {
+        _modifying();
+        _append(checkNotNull(text, "text"));
+        return (B) this;
+    }
+
+    /**
+     * Reserve space for the given number of additional children, before they are added in bulk.
+     *
+     * @param additional
+     */
+    void _ensureChildCapacity(final int additional) {
+        if (childrenShared || children.length - childCount < additional) {
+            _reallocate(Math.max(children.length, childCount + additional));
+        }
+    }
+
+    /**
+     * Add a snapshot without notifying the builder of the change; used when adding children in bulk, after a
+     * single call to {@link #_modifying()}.
+     *
+     * @param snapshot
+     * @throws NullPointerException if snapshot is null
+     */
+    void _appendSnapshot(@Nonnull final ElementSnapshot snapshot) {
+        _append(checkNotNull(snapshot, "snapshot"));
+    }
+
+    private void _append(@Nonnull final Object child) {
+        if (pendingText != null) {
+            _flushText();
+        }
+        _store(child);
+    }
+
+    /**
+     * Turn the pending text into a child node. This does not count as a modification, since the content of the
+     * builder is unchanged.
+     */
+    private void _flushText() {
+        final String data = pendingText.toString();
+        pendingText = null;
+        if (factory.getClass() == NodeFactory.class) {
+            // NodeFactory.makeText simply wraps a new text node, so skip the Nodes allocation
+            _store(new Text(data));
+            return;
+        }
+        final Nodes nodes = factory.makeText(data);
+        for (int i = 0; i < nodes.size(); i++) {
+            final Node node = nodes.get(i);
+            if (!_isTrusted()) {
+                checkArgument(node.getParent() == null, "node argument already has a parent");
+            }
+            _store(node);
+        }
+    }
+
+    private void _store(@Nonnull final Object child) {
+        if (childrenShared || childCount == children.length) {
+            _reallocate(Math.max(childCount + 1, Math.max(MIN_CAPACITY, childCount + (childCount >> 1))));
+        }
+        children[childCount++] = child;
+    }
+
+    private void _reallocate(final int capacity) {
+        children = Arrays.copyOf(children, capacity);
+        childrenShared = false;
+    }
+
+    /**
+     * Get the children without copying them. The array is trimmed to size if necessary, and is then shared with
+     * the caller until the builder is next changed, so the caller must not modify it.
+     *
+     * @return children, each of which is either a {@link Node}, an {@link ElementSnapshot} or {@link DeferredText}
+     */
+    @Nonnull
+    @CheckReturnValue
+    Object[] _getChildren() {
+        if (pendingText != null) {
+            _flushText();
+        }
+        if (childCount != children.length) {
+            children = childCount == 0 ? NO_CHILDREN : Arrays.copyOf(children, childCount);
+        }
+        childrenShared = true;
+        return children;
+    }
+
+    /**
+     * Get the children in place, without trimming the array or sharing it. Only for a builder that is being
+     * consumed, which hands the array to nothing that outlives the build, so that it can be reused once the builder
+     * is reset.
+     *
+     * @return children, of which the first {@link #_getChildCount()} are in use
+     */
+    @Nonnull
+    @CheckReturnValue
+    Object[] _getChildrenInPlace() {
+        if (pendingText != null) {
+            _flushText();
+        }
+        return children;
+    }
+
+    /**
+     * @return number of children in use in the array returned by {@link #_getChildrenInPlace()}
+     */
+    @CheckReturnValue
+    int _getChildCount() {
+        return childCount;
+    }
+
+    /**
+     * Take back the children array from the snapshots that share it, once none of them can be read again, so that
+     * it is changed in place rather than copied.
+     */
+    void _unshareChildren() {
+        childrenShared = false;
+    }
+
+    /**
+     * @return whether the arguments passed to this builder are trusted to be valid, so that the checks made on each
+     * call can be skipped
+     * @see com.github.hamishmorgan.xomb.spi.XomBuilderFeature#TRUSTED_INPUT
+     */
     @CheckReturnValue
-    List<Node> _getChildren() {
-        return children.build();
+    boolean _isTrusted() {
+        return false;
+    }
+
+    /**
+     * @throws IllegalStateException if the builder has already been consumed
+     */
+    void _checkNotConsumed() {
+        checkState(!consumed, "Builder has already been consumed.");
+    }
+
+    /**
+     * Called before every change to the builder state. Subclasses which cache anything derived from the state
+     * should override this to discard it.
+     *
+     * @throws IllegalStateException if the builder has already been consumed
+     */
+    void _modifying() {
+        _checkNotConsumed();
+    }
+
+    /**
+     * Mark the builder as released to a pool.
+     *
+     * @throws IllegalStateException if the builder has already been released, and not handed out again since
+     */
+    void _release() {
+        checkState(released.compareAndSet(false, true), "Builder has already been released.");
+    }
+
+    /**
+     * Mark the builder as handed out again by a pool.
+     */
+    void _reuse() {
+        released.set(false);
+    }
+
+    /**
+     * Mark the builder as consumed, so that the accumulated nodes can be moved into the product without copying.
+     *
+     * @throws IllegalStateException if the builder has already been consumed
+     */
+    void _consume() {
+        _checkNotConsumed();
+        consumed = true;
+    }
+
+    /**
+     * @param node    a node accumulated by this builder
+     * @param consume whether the builder is being consumed
+     * @return the node itself if the builder is being consumed, otherwise a copy of it
+     */
+    @Nonnull
+    @CheckReturnValue
+    @SuppressWarnings("unchecked")
+    static <N extends Node> N _take(@Nonnull final N node, final boolean consume) {
+        return consume ? node : (N) node.copy();
     }
 }
@@ -0,0 +1,207 @@
+package com.github.hamishmorgan.xomb.impl;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import com.github.hamishmorgan.xomb.api.MissingRequiredPropertyException;
+import com.github.hamishmorgan.xomb.api.Template;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.primitives.Ints;
+import nu.xom.Attribute;
+import nu.xom.Element;
+import nu.xom.Node;
+import nu.xom.Text;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Abstract super class to the template classes.
+ * <p/>
+ * Holds a prototype of the product, with every slot placeholder replaced by an empty node, along with the location
+ * of each slot in the prototype. Instantiation copies the prototype and sets the value of the node at each
+ * location, so the {@link nu.xom.NodeFactory} is never involved.
+ *
+ * @param <P> product type (the object constructed by this template)
+ */
+@ThreadSafe
+abstract class AbstractTemplate<P> implements Template<P> {
+
+    /**
+     * Product from which all instances are copied. It is never modified after construction.
+     */
+    @Nonnull
+    private final P prototype;
+
+    @Nonnull
+    private final ImmutableList<SlotBinding> bindings;
+
+    @Nonnull
+    private final ImmutableSet<String> slotNames;
+
+    /**
+     * @param prototype product containing {@link TextSlot} and {@link AttributeSlot} placeholders, which will be
+     *                  replaced. The prototype is owned by the template from then on.
+     */
+    AbstractTemplate(@Nonnull final P prototype) {
+        this.prototype = checkNotNull(prototype, "prototype");
+
+        final ImmutableList.Builder<SlotBinding> bindingsBuilder = ImmutableList.builder();
+        final ImmutableSet.Builder<String> slotNamesBuilder = ImmutableSet.builder();
+
+        // Iterative depth-first search, to avoid overflowing the stack on deep documents
+        final Deque<Node> nodes = new ArrayDeque<Node>();
+        final Deque<int[]> paths = new ArrayDeque<int[]>();
+        for (int i = _size(prototype) - 1; i >= 0; i--) {
+            nodes.push(_get(prototype, i));
+            paths.push(new int[]{i});
+        }
+
+        while (!nodes.isEmpty()) {
+            final Node node = nodes.pop();
+            final int[] path = paths.pop();
+
+            if (node instanceof TextSlot && node.getParent() != null) {
+                final String slotName = ((TextSlot) node).getSlotName();
+                node.getParent().replaceChild(node, new Text(""));
+                bindingsBuilder.add(new SlotBinding(slotName, path, null, null));
+                slotNamesBuilder.add(slotName);
+            } else if (node instanceof Element) {
+                final Element element = (Element) node;
+                for (int i = element.getAttributeCount() - 1; i >= 0; i--) {
+                    final Attribute attribute = element.getAttribute(i);
+                    if (attribute instanceof AttributeSlot) {
+                        final String slotName = ((AttributeSlot) attribute).getSlotName();
+                        element.addAttribute(new Attribute(attribute));
+                        bindingsBuilder.add(new SlotBinding(slotName, path,
+                                attribute.getLocalName(), attribute.getNamespaceURI()));
+                        slotNamesBuilder.add(slotName);
+                    }
+                }
+                for (int i = element.getChildCount() - 1; i >= 0; i--) {
+                    nodes.push(element.getChild(i));
+                    paths.push(Ints.concat(path, new int[]{i}));
+                }
+            }
+        }
+
+        this.bindings = bindingsBuilder.build();
+        this.slotNames = slotNamesBuilder.build();
+    }
+
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    public Set<String> getSlotNames() {
+        return slotNames;
+    }
+
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    public P instantiate(@Nonnull final Map<String, String> slotValues) {
+        checkNotNull(slotValues, "slotValues");
+
+        final String[] values = new String[bindings.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = slotValues.get(bindings.get(i).slotName);
+            if (values[i] == null) {
+                throw new MissingRequiredPropertyException(bindings.get(i).slotName);
+            }
+        }
+
+        final P product = _copy(prototype);
+        for (int i = 0; i < values.length; i++) {
+            bindings.get(i).bind(_get(product, bindings.get(i).path[0]), values[i]);
+        }
+        return product;
+    }
+
+    /**
+     * @return a deep copy of the given product
+     */
+    @Nonnull
+    @CheckReturnValue
+    abstract P _copy(@Nonnull P product);
+
+    /**
+     * @return the number of top level nodes in the given product
+     */
+    @CheckReturnValue
+    abstract int _size(@Nonnull P product);
+
+    /**
+     * @return the top level node of the given product at the given index
+     */
+    @Nonnull
+    @CheckReturnValue
+    abstract Node _get(@Nonnull P product, int index);
+
+    /**
+     * Location of a slot within the prototype.
+     */
+    private static final class SlotBinding {
+
+        @Nonnull
+        final String slotName;
+        /**
+         * Index of the top level node, followed by the child index at each level below it.
+         */
+        @Nonnull
+        final int[] path;
+        /**
+         * Local name of the attribute, or null if the slot is for text content.
+         */
+        @Nullable
+        final String attributeLocalName;
+        @Nullable
+        final String attributeNamespace;
+
+        SlotBinding(@Nonnull final String slotName, @Nonnull final int[] path,
+                    @Nullable final String attributeLocalName, @Nullable final String attributeNamespace) {
+            this.slotName = slotName;
+            this.path = path;
+            this.attributeLocalName = attributeLocalName;
+            this.attributeNamespace = attributeNamespace;
+        }
+
+        void bind(@Nonnull final Node topLevelNode, @Nonnull final String value) {
+            Node node = topLevelNode;
+            for (int i = 1; i < path.length; i++)
+                node = node.getChild(path[i]);
+
+            if (attributeLocalName == null) {
+                ((Text) node).setValue(value);
+            } else {
+                ((Element) node).getAttribute(attributeLocalName, attributeNamespace).setValue(value);
+            }
+        }
+    }
+}
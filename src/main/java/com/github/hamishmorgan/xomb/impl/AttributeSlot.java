@@ -0,0 +1,74 @@
+package com.github.hamishmorgan.xomb.impl;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import nu.xom.Attribute;
+import nu.xom.Node;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Placeholder for an attribute value that is supplied when a template is instantiated.
+ * <p/>
+ * The placeholder survives copying, so it can be located in the nodes produced from a builder when a template is
+ * compiled. It never appears in the product of a template.
+ */
+final class AttributeSlot extends Attribute {
+
+    @Nonnull
+    private final String slotName;
+
+    /**
+     * @param name
+     * @param slotName
+     * @throws NullPointerException     if name or slotName is null
+     * @throws IllegalArgumentException if slotName is empty
+     * @throws nu.xom.IllegalNameException if name is not a legal attribute name
+     */
+    AttributeSlot(@Nonnull final String name, @Nonnull final String slotName) {
+        super(name, "");
+        checkNotNull(slotName, "slotName");
+        checkArgument(!slotName.isEmpty(), "argument slotName is empty");
+        this.slotName = slotName;
+    }
+
+    private AttributeSlot(@Nonnull final AttributeSlot slot) {
+        super(slot);
+        this.slotName = slot.slotName;
+    }
+
+    @Nonnull
+    @CheckReturnValue
+    String getSlotName() {
+        return slotName;
+    }
+
+    @Override
+    @Nonnull
+    public Node copy() {
+        return new AttributeSlot(this);
+    }
+}
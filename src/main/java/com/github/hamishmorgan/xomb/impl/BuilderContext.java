@@ -0,0 +1,102 @@
+package com.github.hamishmorgan.xomb.impl;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import com.github.hamishmorgan.xomb.spi.XomBuilderFeature;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import nu.xom.NodeFactory;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Collections;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * State shared by every builder created by a single {@link XomBuilderFactoryImpl}.
+ */
+@ThreadSafe
+final class BuilderContext {
+
+    @Nonnull
+    private final NodeFactory nodeFactory;
+
+    @Nonnull
+    private final ImmutableSet<XomBuilderFeature> features;
+
+    @Nonnull
+    private final SymbolTable symbols;
+
+    /**
+     * Whether the node factory is exactly {@link NodeFactory}, rather than a subclass, in which case the nodes it
+     * makes are known and can be constructed directly.
+     */
+    private final boolean standardNodeFactory;
+
+    /**
+     * Whether {@link XomBuilderFeature#TRUSTED_INPUT} is enabled; read on every builder call, so kept in a field.
+     */
+    private final boolean trusted;
+
+    BuilderContext(@Nonnull final NodeFactory nodeFactory, @Nonnull final Set<XomBuilderFeature> features) {
+        this.nodeFactory = checkNotNull(nodeFactory, "nodeFactory");
+        this.features = Sets.immutableEnumSet(checkNotNull(features, "features"));
+        this.symbols = new SymbolTable();
+        this.standardNodeFactory = nodeFactory.getClass() == NodeFactory.class;
+        this.trusted = this.features.contains(XomBuilderFeature.TRUSTED_INPUT);
+    }
+
+    BuilderContext(@Nonnull final NodeFactory nodeFactory) {
+        this(nodeFactory, Collections.<XomBuilderFeature>emptySet());
+    }
+
+    @Nonnull
+    @CheckReturnValue
+    NodeFactory getNodeFactory() {
+        return nodeFactory;
+    }
+
+    @Nonnull
+    @CheckReturnValue
+    SymbolTable getSymbols() {
+        return symbols;
+    }
+
+    @CheckReturnValue
+    boolean isStandardNodeFactory() {
+        return standardNodeFactory;
+    }
+
+    @CheckReturnValue
+    boolean isTrusted() {
+        return trusted;
+    }
+
+    @CheckReturnValue
+    boolean isEnabled(@Nonnull final XomBuilderFeature feature) {
+        return features.contains(checkNotNull(feature, "feature"));
+    }
+
+}
@@ -0,0 +1,605 @@
+package com.github.hamishmorgan.xomb.impl;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import com.github.hamishmorgan.xomb.api.ConcurrentElementBuilder;
+import com.github.hamishmorgan.xomb.api.ElementBuilder;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSet;
+import nu.xom.Attribute;
+import nu.xom.Comment;
+import nu.xom.DocType;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.Namespace;
+import nu.xom.Node;
+import nu.xom.NodeFactory;
+import nu.xom.Nodes;
+import nu.xom.ProcessingInstruction;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Element builder that can be modified by many threads at once.
+ * <p/>
+ * Children are held in a lock-free queue per index, in a sorted concurrent map, so threads adding at different
+ * indices never contend, and building simply concatenates the queues in index order. Attributes are held in a
+ * lock-free queue in order of arrival, alongside a concurrent set of their namespaces and local names, which an
+ * attribute must be added to first so that duplicates are rejected. Changes to the element name, which are
+ * expected to be rare, are made under a lock.
+ */
+@ThreadSafe
+class ConcurrentElementBuilderImpl implements ConcurrentElementBuilder, ElementSnapshotSource {
+
+    /**
+     * Index used by methods that do not take one.
+     */
+    static final int DEFAULT_INDEX = 0;
+
+    @Nonnull
+    private final BuilderContext context;
+    @Nonnull
+    private final NodeFactory factory;
+    private final boolean isRootElement;
+    @Nonnull
+    private final Object nameLock;
+    /**
+     * Only replaced while holding {@link #nameLock}, so that concurrent changes to the prefix and local name are
+     * not lost.
+     */
+    @Nonnull
+    private volatile QualifiedName qualifiedName;
+    @Nullable
+    private volatile URI namespace;
+    @Nullable
+    private volatile URI baseURI;
+    /**
+     * Children by index. Each child is either a {@link Node}, or an {@link ElementSnapshot} of a nested builder.
+     */
+    @Nonnull
+    private final ConcurrentSkipListMap<Integer, Queue<Object>> children;
+    @Nonnull
+    private final Queue<Attribute> attributes;
+    /**
+     * Namespace and local name of each attribute, separated by a space.
+     */
+    @Nonnull
+    private final Set<String> attributeNames;
+    @Nonnull
+    private final Set<String> slotNames;
+    /**
+     * Whether or not the builder has been consumed. It is set with a compare-and-set, so that only one of any
+     * concurrent calls to {@link #buildAndConsume()} may take the accumulated nodes.
+     */
+    @Nonnull
+    private final AtomicBoolean consumed;
+    /**
+     * Ownership of the accumulated nodes, which records whether a snapshot has been captured by another builder, in
+     * which case the nodes are shared and must never be moved by {@link #buildAndConsume()}.
+     */
+    @Nonnull
+    private volatile Ownership ownership;
+
+    /**
+     * Constructor should not be called directly. Instead use
+     * {@link com.github.hamishmorgan.xomb.XomB#createConcurrentElement(String)}.
+     *
+     * @param context     state shared with the factory that created this builder
+     * @param name        the qualified element name
+     * @param rootElement whether or not this element is expected to be a
+     *                    createRoot element.
+     * @throws NullPointerException     if name is null
+     * @throws IllegalArgumentException if name is empty
+     */
+    ConcurrentElementBuilderImpl(@Nonnull final BuilderContext context, @Nonnull final String name,
+                                 final boolean rootElement) {
+        checkNotNull(name, "name");
+        checkArgument(!name.isEmpty(), "argument name is empty");
+        this.context = checkNotNull(context, "context");
+        this.factory = context.getNodeFactory();
+        this.isRootElement = rootElement;
+        this.nameLock = new Object();
+        this.qualifiedName = context.getSymbols().name(name);
+        checkArgument(!qualifiedName.getLocalName().isEmpty(), "argument localName is empty");
+        this.namespace = null;
+        this.baseURI = null;
+        this.children = new ConcurrentSkipListMap<Integer, Queue<Object>>();
+        this.attributes = new ConcurrentLinkedQueue<Attribute>();
+        this.attributeNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        this.slotNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        this.consumed = new AtomicBoolean(false);
+        this.ownership = new Ownership();
+    }
+
+    /*
+     * Name and namespace
+     */
+
+    @Override
+    @Nonnull
+    public String getLocalName() {
+        return qualifiedName.getLocalName();
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder withLocalName(@Nonnull final String localName) {
+        _checkNotConsumed();
+        checkArgument(!localName.isEmpty(), "argument localName is empty");
+        synchronized (nameLock) {
+            qualifiedName = context.getSymbols().name(qualifiedName.getPrefix(), localName);
+        }
+        return this;
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder withPrefix(@Nonnull final String prefix) {
+        _checkNotConsumed();
+        checkArgument(!prefix.isEmpty(), "prefix is empty");
+        synchronized (nameLock) {
+            qualifiedName = context.getSymbols().name(prefix, qualifiedName.getLocalName());
+        }
+        return this;
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder clearPrefix() {
+        _checkNotConsumed();
+        synchronized (nameLock) {
+            qualifiedName = context.getSymbols().name(null, qualifiedName.getLocalName());
+        }
+        return this;
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder withNamespace(@Nonnull final URI namespace) {
+        _checkNotConsumed();
+        this.namespace = checkNotNull(namespace, "namespace");
+        return this;
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder clearNamespace() {
+        _checkNotConsumed();
+        this.namespace = null;
+        return this;
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder withBaseURI(@Nonnull final URI baseURI) {
+        _checkNotConsumed();
+        this.baseURI = checkNotNull(baseURI, "baseURI");
+        return this;
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder clearBaseURI() {
+        _checkNotConsumed();
+        this.baseURI = null;
+        return this;
+    }
+
+    /*
+     * Children
+     */
+
+    @Override
+    @Nonnull
+    public ConcurrentElementBuilder add(final int index, @Nonnull final String data) {
+        checkNotNull(data, "data");
+        return _addChildren(index, factory.makeText(data));
+    }
+
+    @Override
+    @Nonnull
+    public ConcurrentElementBuilder add(final int index, @Nonnull final ElementBuilder elBuilder) {
+        checkNotNull(elBuilder, "elBuilder");
+        _checkNotConsumed();
+        _add(_getChildren(index), elBuilder);
+        return this;
+    }
+
+    @Override
+    @Nonnull
+    public ConcurrentElementBuilder add(final int index, @Nonnull final Node node) {
+        checkNotNull(node, "node");
+        if (node instanceof Namespace || node instanceof DocType
+                || node instanceof Document) {
+            throw new IllegalArgumentException(
+                    "element node can not have child notes of type "
+                            + node.getClass().getSimpleName());
+        } else if (node instanceof Attribute) {
+            _addAttribute((Attribute) node);
+        } else {
+            _checkNotConsumed();
+            checkArgument(node.getParent() == null, "node argument already has a parent");
+            _getChildren(index).add(node);
+        }
+        return this;
+    }
+
+    @Override
+    @Nonnull
+    public ConcurrentElementBuilder addAll(final int index,
+                                           @Nonnull final Iterable<? extends ElementBuilder> elBuilders) {
+        checkNotNull(elBuilders, "elBuilders");
+        _checkNotConsumed();
+        final Queue<Object> queue = _getChildren(index);
+        for (final ElementBuilder elBuilder : elBuilders) {
+            _add(queue, checkNotNull(elBuilder, "elBuilder"));
+        }
+        return this;
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder add(@Nonnull final String data) {
+        return add(DEFAULT_INDEX, data);
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder add(@Nonnull final CharSequence data) {
+        if (data instanceof String) {
+            return add(DEFAULT_INDEX, (String) data);
+        }
+        final DeferredText text = new DeferredText(data);
+        _checkNotConsumed();
+        _getChildren(DEFAULT_INDEX).add(text);
+        return this;
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder add(@Nonnull final Supplier<String> data) {
+        final DeferredText text = new DeferredText(data);
+        _checkNotConsumed();
+        _getChildren(DEFAULT_INDEX).add(text);
+        return this;
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder add(@Nonnull final ElementBuilder elBuilder) {
+        return add(DEFAULT_INDEX, elBuilder);
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder add(@Nonnull final Element element) {
+        return add(DEFAULT_INDEX, (Node) element);
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder add(@Nonnull final Node node) {
+        return add(DEFAULT_INDEX, node);
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder addAll(@Nonnull final Iterable<? extends ElementBuilder> elBuilders) {
+        return addAll(DEFAULT_INDEX, elBuilders);
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder addAll(@Nonnull final Stream<? extends ElementBuilder> elBuilders) {
+        checkNotNull(elBuilders, "elBuilders");
+        _checkNotConsumed();
+        final Queue<Object> queue = _getChildren(DEFAULT_INDEX);
+        final Iterator<? extends ElementBuilder> iterator = elBuilders.iterator();
+        while (iterator.hasNext()) {
+            _add(queue, checkNotNull(iterator.next(), "elBuilder"));
+        }
+        return this;
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder addPI(@Nonnull final String target, @Nonnull final String data) {
+        checkArgument(!target.isEmpty(), "argument target is empty");
+        return _addChildren(DEFAULT_INDEX, factory.makeProcessingInstruction(
+                checkNotNull(target, "target"),
+                checkNotNull(data, "data")));
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder addPI(@Nonnull final ProcessingInstruction pi) {
+        return add(DEFAULT_INDEX, (Node) checkNotNull(pi, "pi"));
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder addComment(@Nonnull final String data) {
+        return _addChildren(DEFAULT_INDEX, factory.makeComment(checkNotNull(data, "data")));
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder addComment(@Nonnull final Comment comment) {
+        return add(DEFAULT_INDEX, (Node) checkNotNull(comment, "comment"));
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder addSlot(@Nonnull final String slotName) {
+        final TextSlot slot = new TextSlot(slotName);
+        _checkNotConsumed();
+        _getChildren(DEFAULT_INDEX).add(slot);
+        slotNames.add(slotName);
+        return this;
+    }
+
+    /*
+     * Attributes
+     */
+
+    @Override
+    @Nonnull
+    public ElementBuilder addAttribute(@Nonnull final Attribute attribute) {
+        checkNotNull(attribute, "attribute");
+        checkArgument(attribute.getParent() == null,
+                "Argument attribute already has a parent node.");
+        _addAttribute(attribute);
+        return this;
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder addAttribute(@Nonnull final String name, @Nonnull final String value) {
+        return addAttribute(name, Optional.<URI>absent(), value, Attribute.Type.CDATA);
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder addAttribute(@Nonnull final String name, @Nonnull final Supplier<String> value) {
+        _addAttribute(new DeferredAttribute(name, value));
+        return this;
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder addAttribute(
+            @Nonnull final String name, @Nonnull final Optional<URI> namespace,
+            @Nonnull final String value, @Nonnull final Attribute.Type type) {
+        checkNotNull(name, "name");
+        checkArgument(!name.isEmpty(), "argument name is empty");
+        checkNotNull(namespace, "namespaceURI");
+        checkNotNull(value, "name");
+        checkNotNull(type, "type");
+
+        final String namespaceStr = namespace.isPresent() ? context.getSymbols().namespace(namespace.get()) : "";
+        if (context.isStandardNodeFactory()) {
+            _addAttribute(new Attribute(name, namespaceStr, value, type));
+        } else {
+            _addChildren(DEFAULT_INDEX, factory.makeAttribute(name, namespaceStr, value, type));
+        }
+        return this;
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder addAttributes(@Nonnull final Map<String, String> attributes) {
+        checkNotNull(attributes, "attributes");
+        for (final Map.Entry<String, String> entry : attributes.entrySet()) {
+            addAttribute(entry.getKey(), checkNotNull(entry.getValue(), "value"));
+        }
+        return this;
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder addAttributes(@Nonnull final String... namesAndValues) {
+        checkNotNull(namesAndValues, "namesAndValues");
+        checkArgument(namesAndValues.length % 2 == 0, "argument namesAndValues has an odd number of elements");
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            addAttribute(namesAndValues[i], checkNotNull(namesAndValues[i + 1], "value"));
+        }
+        return this;
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder addAttributeSlot(@Nonnull final String name, @Nonnull final String slotName) {
+        checkNotNull(name, "name");
+        checkArgument(!name.isEmpty(), "argument name is empty");
+        _addAttribute(new AttributeSlot(name, slotName));
+        slotNames.add(slotName);
+        return this;
+    }
+
+    /*
+     * Building
+     */
+
+    @Override
+    @Nonnull
+    public ElementBuilder reset() {
+        consumed.set(false);
+        if (ownership.isCaptured()) {
+            ownership = new Ownership();
+        }
+        namespace = null;
+        baseURI = null;
+        children.clear();
+        attributes.clear();
+        attributeNames.clear();
+        slotNames.clear();
+        return this;
+    }
+
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    public Nodes build() {
+        return snapshot().build(false);
+    }
+
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    public Nodes build(@Nonnull final ForkJoinPool pool) {
+        return snapshot().build(pool);
+    }
+
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    public Nodes buildAndConsume() {
+        checkState(consumed.compareAndSet(false, true), "Builder has already been consumed.");
+        return _snapshot().build(!ownership.isCaptured());
+    }
+
+    @Override
+    public void writeTo(@Nonnull final ContentHandler handler) throws SAXException {
+        new SaxEventWriter(handler).writeElement(snapshot());
+    }
+
+    @Override
+    public void writeTo(@Nonnull final XMLStreamWriter writer) throws XMLStreamException {
+        new StaxEventWriter(writer).writeElement(snapshot());
+    }
+
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    public Nodes buildTemplate() {
+        return snapshot().buildTemplate();
+    }
+
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    public ElementSnapshot capture() {
+        final ElementSnapshot result = snapshot();
+        ownership.capture();
+        return result;
+    }
+
+    /**
+     * Capture the state of the builder. Changes made concurrently may or may not be included.
+     *
+     * @return immutable snapshot of the builder state
+     * @throws IllegalStateException if the builder has already been consumed
+     */
+    @Nonnull
+    @CheckReturnValue
+    ElementSnapshot snapshot() {
+        _checkNotConsumed();
+        return _snapshot();
+    }
+
+    @Nonnull
+    private ElementSnapshot _snapshot() {
+        final List<Object> childList = new ArrayList<Object>();
+        for (final Queue<Object> queue : children.values()) {
+            childList.addAll(queue);
+        }
+        final URI currentNamespace = namespace;
+        final URI currentBaseURI = baseURI;
+        return new ElementSnapshot(context, isRootElement, qualifiedName,
+                currentNamespace != null ? context.getSymbols().namespace(currentNamespace) : "",
+                currentBaseURI != null ? currentBaseURI.toString() : null,
+                attributes.toArray(new Attribute[0]), childList.toArray(), ImmutableSet.copyOf(slotNames),
+                ownership);
+    }
+
+    @Nonnull
+    private Queue<Object> _getChildren(final int index) {
+        Queue<Object> queue = children.get(index);
+        if (queue == null) {
+            queue = new ConcurrentLinkedQueue<Object>();
+            final Queue<Object> existing = children.putIfAbsent(index, queue);
+            if (existing != null) {
+                queue = existing;
+            }
+        }
+        return queue;
+    }
+
+    @Nonnull
+    private ConcurrentElementBuilder _addChildren(final int index, @Nonnull final Nodes nodes) {
+        for (int i = 0; i < nodes.size(); i++) {
+            add(index, nodes.get(i));
+        }
+        return this;
+    }
+
+    private void _add(@Nonnull final Queue<Object> queue, @Nonnull final ElementBuilder elBuilder) {
+        if (elBuilder instanceof ElementSnapshotSource) {
+            final ElementSnapshot child = ((ElementSnapshotSource) elBuilder).capture();
+            queue.add(child);
+            slotNames.addAll(child.getSlotNames());
+        } else {
+            final Nodes nodes = elBuilder.build();
+            for (int i = 0; i < nodes.size(); i++) {
+                queue.add(nodes.get(i));
+            }
+        }
+    }
+
+    private void _addAttribute(@Nonnull final Attribute attribute) {
+        _checkNotConsumed();
+        checkArgument(attributeNames.add(attribute.getNamespaceURI() + ' ' + attribute.getLocalName()),
+                "attribute %s has already been added", attribute.getQualifiedName());
+        attributes.add(attribute);
+    }
+
+    private void _checkNotConsumed() {
+        checkState(!consumed.get(), "Builder has already been consumed.");
+        checkState(!ownership.isClaimed(), "Builder has been consumed by its parent.");
+    }
+}
@@ -0,0 +1,91 @@
+package com.github.hamishmorgan.xomb.impl;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import nu.xom.Attribute;
+import nu.xom.Node;
+import nu.xom.NodeFactory;
+import nu.xom.Nodes;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import java.util.function.Supplier;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Placeholder for an attribute whose value is only computed when the element containing it is built or written.
+ * <p/>
+ * The name is verified when the placeholder is constructed; the value is supplied, and verified, each time the
+ * attribute is resolved. The placeholder itself never appears in a product.
+ */
+final class DeferredAttribute extends Attribute {
+
+    @Nonnull
+    private final Supplier<String> supplier;
+
+    /**
+     * @param name
+     * @param supplier
+     * @throws NullPointerException        if name or supplier is null
+     * @throws nu.xom.IllegalNameException if name is not a legal attribute name
+     */
+    DeferredAttribute(@Nonnull final String name, @Nonnull final Supplier<String> supplier) {
+        super(name, "");
+        this.supplier = checkNotNull(supplier, "supplier");
+    }
+
+    private DeferredAttribute(@Nonnull final DeferredAttribute attribute) {
+        super(attribute);
+        this.supplier = attribute.supplier;
+    }
+
+    /**
+     * @return an attribute with the value currently supplied
+     * @throws NullPointerException        if the supplier returns null
+     * @throws nu.xom.IllegalDataException if the value contains characters that are not allowed in XML
+     */
+    @Nonnull
+    @CheckReturnValue
+    Attribute resolve() {
+        return new Attribute(getQualifiedName(), getNamespaceURI(), supplyValue(), getType());
+    }
+
+    /**
+     * @return the nodes made by the factory for the attribute, with the value currently supplied
+     */
+    @Nonnull
+    @CheckReturnValue
+    Nodes resolve(@Nonnull final NodeFactory factory) {
+        return factory.makeAttribute(getQualifiedName(), getNamespaceURI(), supplyValue(), getType());
+    }
+
+    @Nonnull
+    private String supplyValue() {
+        return checkNotNull(supplier.get(), "supplied value");
+    }
+
+    @Override
+    @Nonnull
+    public Node copy() {
+        return new DeferredAttribute(this);
+    }
+}
@@ -0,0 +1,88 @@
+package com.github.hamishmorgan.xomb.impl;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.CharBuffer;
+import java.util.function.Supplier;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Text content held by a builder in place of a text node, which is only read when the element containing it is
+ * built or written.
+ * <p/>
+ * A character sequence is read each time, so changes made to it in the meantime are reflected in the product, and it
+ * is copied directly to event handlers rather than being converted to a string first. A supplier is invoked each
+ * time, so content that is never built is never computed.
+ */
+final class DeferredText {
+
+    @Nullable
+    private final CharSequence sequence;
+    @Nullable
+    private final Supplier<String> supplier;
+
+    DeferredText(@Nonnull final CharSequence sequence) {
+        this.sequence = checkNotNull(sequence, "sequence");
+        this.supplier = null;
+    }
+
+    DeferredText(@Nonnull final Supplier<String> supplier) {
+        this.sequence = null;
+        this.supplier = checkNotNull(supplier, "supplier");
+    }
+
+    /**
+     * @return the current content
+     * @throws NullPointerException if the supplier returns null
+     */
+    @Nonnull
+    @CheckReturnValue
+    CharSequence get() {
+        return sequence != null ? sequence : checkNotNull(supplier.get(), "supplied value");
+    }
+
+    /**
+     * Copy the characters of a sequence into an array, without converting the sequence to a string.
+     *
+     * @param source      sequence to copy
+     * @param destination array of at least {@code source.length()} characters
+     */
+    static void getChars(@Nonnull final CharSequence source, @Nonnull final char[] destination) {
+        final int length = source.length();
+        if (source instanceof String) {
+            ((String) source).getChars(0, length, destination, 0);
+        } else if (source instanceof StringBuilder) {
+            ((StringBuilder) source).getChars(0, length, destination, 0);
+        } else if (source instanceof StringBuffer) {
+            ((StringBuffer) source).getChars(0, length, destination, 0);
+        } else if (source instanceof CharBuffer) {
+            ((CharBuffer) source).duplicate().get(destination, 0, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                destination[i] = source.charAt(i);
+            }
+        }
+    }
+}
@@ -0,0 +1,373 @@
+package com.github.hamishmorgan.xomb.impl;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.github.hamishmorgan.xomb.api.DocumentBuilder;
+import com.github.hamishmorgan.xomb.api.ElementBuilder;
+import com.github.hamishmorgan.xomb.api.MissingRequiredPropertyException;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import nu.xom.Attribute;
+import nu.xom.Comment;
+import nu.xom.DocType;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.Namespace;
+import nu.xom.Node;
+import nu.xom.ProcessingInstruction;
+import nu.xom.Text;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Computes SHA-256 digests of XML content, from XOM nodes or directly from the state of builders.
+ * <p/>
+ * The digest covers the same information as exclusive canonical XML without comments: element and attribute
+ * names and namespaces, attribute values irrespective of their order, text (with adjacent text nodes merged), and
+ * processing instructions. Comments, document type declarations, base URIs and namespace declarations that are
+ * not used by a name are ignored. Two trees with the same canonical form therefore have the same digest, whether
+ * they are XOM nodes or builders, so a digest is suitable as a cache key or entity tag.
+ * <p/>
+ * Rather than hashing the canonical text, each element is hashed from the digests of its child elements. The
+ * digest of a nested builder is retained with its captured state, so when a document is digested again only the
+ * subtrees that have changed since are visited. Subtrees containing deferred content are read afresh every time.
+ * <p/>
+ * A fingerprint is a digest that also covers everything else that affects how the document is serialized:
+ * comments, the document type declaration, base URIs, attribute order and namespace declarations. Documents with
+ * the same fingerprint are serialized to the same markup, so a fingerprint is suitable as the key of a cache of
+ * rendered documents.
+ * <p/>
+ * Outside this package, digests are reached through {@link XomBuilderFactoryImpl}, and in turn the digest methods
+ * of {@link com.github.hamishmorgan.xomb.XomUtil}.
+ */
+final class Digests {
+
+    private static final HashFunction FUNCTION = Hashing.sha256();
+
+    private static final byte DOCUMENT = 1;
+    private static final byte ELEMENT = 2;
+    private static final byte ATTRIBUTE = 3;
+    private static final byte CONTENT = 4;
+    private static final byte TEXT = 5;
+    private static final byte PROCESSING_INSTRUCTION = 6;
+    private static final byte CHILD_ELEMENT = 7;
+    private static final byte COMMENT = 8;
+    private static final byte DOCUMENT_TYPE = 9;
+    private static final byte NAMESPACE = 10;
+    /**
+     * Terminates every string; it is not a legal XML character, so can not occur within one.
+     */
+    private static final char TERMINATOR = '\uFFFF';
+
+    /**
+     * Canonical attribute order: by namespace URI, then local name.
+     */
+    private static final Comparator<Attribute> ATTRIBUTE_ORDER = new Comparator<Attribute>() {
+        @Override
+        public int compare(final Attribute a, final Attribute b) {
+            final int result = a.getNamespaceURI().compareTo(b.getNamespaceURI());
+            return result != 0 ? result : a.getLocalName().compareTo(b.getLocalName());
+        }
+    };
+
+    private Digests() {
+    }
+
+    /**
+     * @param node document, element, text, comment or processing instruction to digest
+     * @return digest of the node and its descendants
+     * @throws IllegalArgumentException if node is an attribute, namespace or document type declaration
+     */
+    @Nonnull
+    @CheckReturnValue
+    static HashCode digest(@Nonnull final Node node) {
+        checkNotNull(node, "node");
+        checkArgument(!(node instanceof Attribute) && !(node instanceof DocType)
+                && !(node instanceof Namespace), "node is not a document or child node");
+        if (node instanceof Element) {
+            return digest((Element) node, false);
+        }
+        final Content content = new Content(DOCUMENT, false);
+        if (node instanceof Document) {
+            for (int i = 0; i < node.getChildCount(); i++) {
+                content.add(node.getChild(i));
+            }
+        } else {
+            content.add(node);
+        }
+        return content.finish();
+    }
+
+    /**
+     * @param builder builder to digest
+     * @return digest of the element that the builder would currently build
+     * @throws IllegalArgumentException         if the builder was not created by this implementation
+     * @throws IllegalStateException            if the builder has already been consumed
+     * @throws MissingRequiredPropertyException if the builder contains template slots
+     */
+    @Nonnull
+    @CheckReturnValue
+    static HashCode digest(@Nonnull final ElementBuilder builder) {
+        checkNotNull(builder, "builder");
+        checkArgument(builder instanceof ElementSnapshotSource, "builder is not supported: %s", builder);
+        return ((ElementSnapshotSource) builder).capture().digest(false);
+    }
+
+    /**
+     * @param builder builder to digest
+     * @return digest of the document that the builder would currently build
+     * @throws IllegalArgumentException         if the builder was not created by this implementation
+     * @throws IllegalStateException            if the builder has already been consumed
+     * @throws MissingRequiredPropertyException if the document has no root element, or it contains template slots
+     */
+    @Nonnull
+    @CheckReturnValue
+    static HashCode digest(@Nonnull final DocumentBuilder builder) {
+        return digest(builder, false);
+    }
+
+    /**
+     * @param builder builder to fingerprint
+     * @return fingerprint of the document that the builder would currently build
+     * @throws IllegalArgumentException         if the builder was not created by this implementation
+     * @throws IllegalStateException            if the builder has already been consumed
+     * @throws MissingRequiredPropertyException if the document has no root element, or it contains template slots
+     */
+    @Nonnull
+    @CheckReturnValue
+    static HashCode fingerprint(@Nonnull final DocumentBuilder builder) {
+        return digest(builder, true);
+    }
+
+    /**
+     * @param builder builder to inspect
+     * @return whether the document that the builder would currently build contains deferred content, which is read
+     *         again each time the builder is digested or built, so that the digest need not match the built document
+     * @throws IllegalArgumentException if the builder was not created by this implementation
+     * @throws IllegalStateException    if the builder has already been consumed
+     */
+    @CheckReturnValue
+    static boolean isDeferred(@Nonnull final DocumentBuilder builder) {
+        checkNotNull(builder, "builder");
+        checkArgument(builder instanceof DocumentBuilderImpl, "builder is not supported: %s", builder);
+        final DocumentBuilderImpl document = (DocumentBuilderImpl) builder;
+        document._checkNotConsumed();
+        for (final Object child : document._getChildren()) {
+            if (child instanceof DeferredText
+                    || (child instanceof ElementSnapshot && ((ElementSnapshot) child).isDeferred())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Nonnull
+    private static HashCode digest(@Nonnull final DocumentBuilder builder, final boolean exact) {
+        checkNotNull(builder, "builder");
+        checkArgument(builder instanceof DocumentBuilderImpl, "builder is not supported: %s", builder);
+        final DocumentBuilderImpl document = (DocumentBuilderImpl) builder;
+        document._checkNotConsumed();
+        boolean hasRootElement = false;
+        final Content content = new Content(DOCUMENT, exact);
+        if (exact && document._getBaseURI() != null) {
+            content.string(document._getBaseURI().toString());
+        }
+        for (final Object child : document._getChildren()) {
+            hasRootElement |= child instanceof ElementSnapshot || child instanceof Element;
+            content.add(child);
+        }
+        if (!hasRootElement) {
+            throw new MissingRequiredPropertyException("rootElement");
+        }
+        return content.finish();
+    }
+
+    /**
+     * Compute the digest or fingerprint of a snapshot, using those retained by nested snapshots. Callers should use
+     * {@link ElementSnapshot#digest(boolean)}, which retains the result.
+     *
+     * @param exact whether to compute the fingerprint rather than the digest
+     */
+    @Nonnull
+    static HashCode _digest(@Nonnull final ElementSnapshot snapshot, final boolean exact) {
+        final Attribute[] attributes = snapshot.getAttributes().toArray(new Attribute[0]);
+        for (int i = 0; i < attributes.length; i++) {
+            if (attributes[i] instanceof DeferredAttribute) {
+                attributes[i] = ((DeferredAttribute) attributes[i]).resolve();
+            }
+        }
+        final Content content = startElement(snapshot.getNamespace(),
+                snapshot.getName().getQualifiedName(), attributes, exact);
+        if (exact && snapshot.getBaseURI() != null) {
+            content.string(snapshot.getBaseURI());
+        }
+        content.hasher.putByte(CONTENT);
+        for (final Object child : snapshot.getChildren()) {
+            content.add(child);
+        }
+        return content.finish();
+    }
+
+    @Nonnull
+    private static HashCode digest(@Nonnull final Element element, final boolean exact) {
+        final Attribute[] attributes = new Attribute[element.getAttributeCount()];
+        for (int i = 0; i < attributes.length; i++) {
+            attributes[i] = element.getAttribute(i);
+        }
+        final Content content = startElement(element.getNamespaceURI(), element.getQualifiedName(), attributes,
+                exact);
+        if (exact) {
+            content.string(element.getBaseURI());
+            for (int i = 0; i < element.getNamespaceDeclarationCount(); i++) {
+                final String prefix = element.getNamespacePrefix(i);
+                content.hasher.putByte(NAMESPACE);
+                content.string(prefix).string(element.getNamespaceURI(prefix));
+            }
+        }
+        content.hasher.putByte(CONTENT);
+        for (int i = 0; i < element.getChildCount(); i++) {
+            content.add(element.getChild(i));
+        }
+        return content.finish();
+    }
+
+    /**
+     * Start hashing an element with its name and attributes; the caller adds the content marker.
+     *
+     * @param exact whether to keep the attributes in the order given, rather than canonical order
+     */
+    @Nonnull
+    private static Content startElement(@Nonnull final String namespace, @Nonnull final String qualifiedName,
+                                        @Nonnull final Attribute[] attributes, final boolean exact) {
+        final Content content = new Content(ELEMENT, exact);
+        content.string(namespace).string(qualifiedName);
+        if (!exact) {
+            Arrays.sort(attributes, ATTRIBUTE_ORDER);
+        }
+        for (final Attribute attribute : attributes) {
+            content.hasher.putByte(ATTRIBUTE);
+            content.string(attribute.getNamespaceURI()).string(attribute.getQualifiedName())
+                    .string(attribute.getValue());
+        }
+        return content;
+    }
+
+    /**
+     * Hashes a sequence of children, merging adjacent text.
+     */
+    private static final class Content {
+
+        @Nonnull
+        final Hasher hasher;
+        /**
+         * Whether to hash comments and document type declarations, for a fingerprint.
+         */
+        private final boolean exact;
+        /**
+         * Whether a run of text has been started and not yet terminated.
+         */
+        private boolean inText;
+
+        Content(final byte kind, final boolean exact) {
+            this.hasher = FUNCTION.newHasher();
+            this.exact = exact;
+            this.inText = false;
+            hasher.putByte(kind);
+        }
+
+        /**
+         * @param child a {@link Node}, an {@link ElementSnapshot} or {@link DeferredText}
+         */
+        void add(@Nonnull final Object child) {
+            if (child instanceof ElementSnapshot) {
+                element(((ElementSnapshot) child).digest(exact));
+            } else if (child instanceof Element) {
+                element(digest((Element) child, exact));
+            } else if (child instanceof Text) {
+                text(((Text) child).getValue());
+            } else if (child instanceof DeferredText) {
+                text(((DeferredText) child).get());
+            } else if (child instanceof ProcessingInstruction) {
+                final ProcessingInstruction pi = (ProcessingInstruction) child;
+                endText();
+                hasher.putByte(PROCESSING_INSTRUCTION);
+                string(pi.getTarget()).string(pi.getValue());
+            } else if (child instanceof Comment) {
+                if (exact) {
+                    endText();
+                    hasher.putByte(COMMENT);
+                    string(((Comment) child).getValue());
+                }
+            } else if (child instanceof DocType) {
+                if (exact) {
+                    hasher.putByte(DOCUMENT_TYPE);
+                    string(((DocType) child).toXML());
+                }
+            } else {
+                throw new AssertionError("Unexpected child: " + child);
+            }
+        }
+
+        @Nonnull
+        HashCode finish() {
+            endText();
+            return hasher.hash();
+        }
+
+        @Nonnull
+        Content string(@Nonnull final CharSequence value) {
+            hasher.putUnencodedChars(value).putChar(TERMINATOR);
+            return this;
+        }
+
+        private void element(@Nonnull final HashCode digest) {
+            endText();
+            hasher.putByte(CHILD_ELEMENT).putBytes(digest.asBytes());
+        }
+
+        private void text(@Nonnull final CharSequence value) {
+            if (value.length() == 0) {
+                return;
+            }
+            if (!inText) {
+                hasher.putByte(TEXT);
+                inText = true;
+            }
+            hasher.putUnencodedChars(value);
+        }
+
+        private void endText() {
+            if (inText) {
+                hasher.putChar(TERMINATOR);
+                inText = false;
+            }
+        }
+    }
+
+}
@@ -31,11 +31,18 @@ import nu.xom.Node;
 import nu.xom.NodeFactory;
 import nu.xom.Nodes;
 import nu.xom.ProcessingInstruction;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
 
 import javax.annotation.CheckReturnValue;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
@@ -64,6 +71,15 @@ class DocumentBuilderImpl
         rootElementSet = false;
     }
 
+    @Override
+    @Nonnull
+    public DocumentBuilder reset() {
+        super.reset();
+        docTypeSet = false;
+        rootElementSet = false;
+        return this;
+    }
+
     @Override
     @Nonnull
     public DocumentBuilder withDocType(@Nonnull final String rootElementName,
@@ -84,6 +100,7 @@ class DocumentBuilderImpl
     @Override
     @Nonnull
     public DocumentBuilder withDocType(@Nonnull DocType docType) {
+        _checkNotConsumed();
         checkState(!docTypeSet, "DocType has already been set.");
         docTypeSet = true;
         return _addChild(docType);
@@ -92,6 +109,7 @@ class DocumentBuilderImpl
     @Override
     @Nonnull
     public DocumentBuilder withDocType(@Nonnull DocTypeBuilder docTypeBuilder) {
+        _checkNotConsumed();
         checkState(!docTypeSet, "DocType has already been set.");
         docTypeSet = true;
         return _addChildren(docTypeBuilder.build());
@@ -101,6 +119,15 @@ class DocumentBuilderImpl
     @Nonnull
     public DocumentBuilderImpl withRoot(@Nonnull ElementBuilder rootElement) {
         checkNotNull(rootElement, "rootElement");
+        _checkNotConsumed();
+
+        if (rootElement instanceof ElementSnapshotSource) {
+            // Resolved when the document is built, so the root is only constructed once.
+            checkState(!rootElementSet, "Root element has already been set.");
+            _addSnapshot(((ElementSnapshotSource) rootElement).capture());
+            rootElementSet = true;
+            return this;
+        }
 
         //   Can contain any number of PIs and comments, but exactly 1 createRoot node
         final Nodes nodes = rootElement.build();
@@ -137,10 +164,66 @@ class DocumentBuilderImpl
     @Nonnull
     @CheckReturnValue
     public Document build() {
+        _checkNotConsumed();
+        return build(false, false, null);
+    }
+
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    public Document build(@Nonnull final ForkJoinPool pool) {
+        checkNotNull(pool, "pool");
+        _checkNotConsumed();
+        return build(false, false, pool);
+    }
+
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    public Document buildAndConsume() {
+        _consume();
+        return build(true, false, null);
+    }
+
+    @Override
+    public void writeTo(@Nonnull final ContentHandler handler) throws SAXException {
+        _checkNotConsumed();
+        new SaxEventWriter(handler).writeDocument(_getChildren());
+    }
+
+    @Override
+    public void writeTo(@Nonnull final XMLStreamWriter writer) throws XMLStreamException {
+        _checkNotConsumed();
+        new StaxEventWriter(writer).writeDocument(_getChildren());
+    }
+
+    /**
+     * Construct the document for the current state of the builder, including placeholders for any template slots.
+     *
+     * @return the constructed document
+     * @throws IllegalStateException if the builder has already been consumed
+     */
+    @Nonnull
+    @CheckReturnValue
+    Document buildTemplate() {
+        _checkNotConsumed();
+        return build(false, true, null);
+    }
+
+    /**
+     * @param consume  whether to move the accumulated children into the document, rather than copying them
+     * @param template whether to include placeholders for template slots, rather than failing if there are any
+     * @param pool     pool on which to construct large subtrees of the root element, or null to construct
+     *                 them sequentially
+     * @return the constructed document
+     */
+    @Nonnull
+    private Document build(final boolean consume, final boolean template, @Nullable final ForkJoinPool pool) {
         final Document document = factory.startMakingDocument();
 
-        if (_getBaseURI().isPresent()) {
-            document.setBaseURI(_getBaseURI().get().toString());
+        final URI baseURI = _getBaseURI();
+        if (baseURI != null) {
+            document.setBaseURI(baseURI.toString());
         }
 
         /*
@@ -150,28 +233,44 @@ class DocumentBuilderImpl
          * the root createElement.
          */
 
-        final List<Node> children = _getChildren();
+        // Read in place, rather than sharing the array, as nothing here outlives the build; so a consumed builder
+        // reuses the array once reset
+        final Object[] builderChildren = _getChildrenInPlace();
+        final int builderChildCount = _getChildCount();
+        final List<Node> children = new ArrayList<Node>(builderChildCount);
+        for (int k = 0; k < builderChildCount; k++) {
+            final Object child = builderChildren[k];
+            if (child instanceof ElementSnapshot) {
+                final ElementSnapshot snapshot = (ElementSnapshot) child;
+                final Nodes nodes = template ? snapshot.buildTemplate()
+                        : pool != null ? snapshot.build(pool) : snapshot.build(consume && snapshot.claim());
+                for (int j = 0; j < nodes.size(); j++)
+                    children.add(nodes.get(j));
+            } else {
+                children.add(_take((Node) child, consume));
+            }
+        }
 
         int i = 0;
         while (i < children.size() && !(children.get(i) instanceof Element)) {
             if (children.get(i) instanceof DocType) {
-                document.setDocType((DocType) children.get(i).copy());
+                document.setDocType((DocType) children.get(i));
             } else {
-                document.insertChild(children.get(i).copy(), i);
+                document.insertChild(children.get(i), i);
             }
             ++i;
         }
 
         if (i < children.size() && (children.get(i) instanceof Element)) {
-            document.setRootElement((Element) children.get(i).copy());
+            document.setRootElement((Element) children.get(i));
             ++i;
         }
 
         while (i < children.size()) {
             if (children.get(i) instanceof DocType) {
-                document.setDocType((DocType) children.get(i).copy());
+                document.setDocType((DocType) children.get(i));
             } else {
-                document.insertChild(children.get(i).copy(), i);
+                document.insertChild(children.get(i), i);
             }
             ++i;
         }
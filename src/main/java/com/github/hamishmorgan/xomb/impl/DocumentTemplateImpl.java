@@ -0,0 +1,57 @@
+package com.github.hamishmorgan.xomb.impl;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import nu.xom.Document;
+import nu.xom.Node;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+@ThreadSafe
+final class DocumentTemplateImpl extends AbstractTemplate<Document> {
+
+    DocumentTemplateImpl(@Nonnull final Document prototype) {
+        super(prototype);
+    }
+
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    Document _copy(@Nonnull final Document product) {
+        return (Document) product.copy();
+    }
+
+    @Override
+    @CheckReturnValue
+    int _size(@Nonnull final Document product) {
+        return product.getChildCount();
+    }
+
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    Node _get(@Nonnull final Document product, final int index) {
+        return product.getChild(index);
+    }
+}
@@ -21,8 +21,9 @@ package com.github.hamishmorgan.xomb.impl;
  */
 
 import com.github.hamishmorgan.xomb.api.ElementBuilder;
+import com.github.hamishmorgan.xomb.api.MissingRequiredPropertyException;
 import com.google.common.base.Optional;
-import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import nu.xom.Attribute;
 import nu.xom.DocType;
 import nu.xom.Document;
@@ -31,15 +32,36 @@ import nu.xom.Namespace;
 import nu.xom.Node;
 import nu.xom.NodeFactory;
 import nu.xom.Nodes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
 
 import javax.annotation.CheckReturnValue;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 import java.net.URI;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
-class ElementBuilderImpl extends AbstractParentNodeBuilder<Nodes, ElementBuilder> implements ElementBuilder {
+class ElementBuilderImpl extends AbstractParentNodeBuilder<Nodes, ElementBuilder>
+        implements ElementBuilder, ElementSnapshotSource {
+
+    private static final Attribute[] NO_ATTRIBUTES = new Attribute[0];
 
     /**
      * Whether or not the element being built is expected to be root element.
@@ -48,27 +70,47 @@ class ElementBuilderImpl extends AbstractParentNodeBuilder<Nodes, ElementBuilder
      * elements, we need to insure the correct method is called. Most of the time this will make no difference,
      * but it still needs to happen.
      */
-    private final boolean isRootElement;
+    private boolean isRootElement;
     /**
-     * Construct a list of the attributes of this element.
+     * State shared with the factory that created this builder.
      */
     @Nonnull
-    private final ImmutableList.Builder<Attribute> attributes;
+    private final BuilderContext context;
     /**
-     * The elements unqualified name.
+     * Attributes of this element, in the first {@link #attributeCount} elements. Managed in the same way as the
+     * children: allocated lazily, presized on request, and shared with snapshots until the next change.
      */
     @Nonnull
-    private Optional<String> localName;
+    private Attribute[] attributes;
+    private int attributeCount;
+    private boolean attributesShared;
     /**
-     * The namespace prefix for the given name.
+     * The elements qualified name, holding both the namespace prefix (if any) and the unqualified name.
      */
     @Nonnull
-    private Optional<String> prefix = Optional.absent();
+    private QualifiedName qualifiedName;
+    /**
+     * The elements name-space, or null if it has none.
+     */
+    @Nullable
+    private URI namespace;
     /**
-     * The elements name-space.
+     * Snapshot of the current state, retained until the builder is next modified so that repeatedly building or
+     * adding an unchanged builder always produces the same snapshot.
+     */
+    @Nullable
+    private ElementSnapshot snapshot;
+    /**
+     * Ownership of the accumulated nodes, which records whether a snapshot has been captured by another builder, in
+     * which case the nodes are shared and must never be moved by {@link #buildAndConsume()}.
      */
     @Nonnull
-    private Optional<URI> namespace;
+    private Ownership ownership;
+    /**
+     * Names of the template slots in this element and all nested elements, or null if there are none.
+     */
+    @Nullable
+    private Set<String> slotNames;
 
     /**
      * Constructor should not be called directly. Instead use {@link com.github.hamishmorgan.xomb.XomB }
@@ -85,86 +127,234 @@ class ElementBuilderImpl extends AbstractParentNodeBuilder<Nodes, ElementBuilder
      * @throws IllegalArgumentException if name is empty
      */
     ElementBuilderImpl(@Nonnull NodeFactory nodeFactory, @Nonnull final String name, final boolean rootElement) {
-        super(nodeFactory);
+        this(new BuilderContext(nodeFactory), name, rootElement);
+    }
+
+    /**
+     * @param context     state shared with the factory that created this builder
+     * @param name        the qualified element name
+     * @param rootElement whether or not this element is expected to be a
+     *                    createRoot element.
+     * @throws NullPointerException     if name is null
+     * @throws IllegalArgumentException if name is empty
+     */
+    ElementBuilderImpl(@Nonnull BuilderContext context, @Nonnull final String name, final boolean rootElement) {
+        this(context, name, rootElement, 0, 0);
+    }
+
+    /**
+     * @param context            state shared with the factory that created this builder
+     * @param name               the qualified element name
+     * @param rootElement        whether or not this element is expected to be a
+     *                           createRoot element.
+     * @param expectedChildren   number of children to allocate space for up front
+     * @param expectedAttributes number of attributes to allocate space for up front
+     * @throws NullPointerException     if name is null
+     * @throws IllegalArgumentException if name is empty, or either expected size is negative
+     */
+    ElementBuilderImpl(@Nonnull BuilderContext context, @Nonnull final String name, final boolean rootElement,
+                       final int expectedChildren, final int expectedAttributes) {
+        super(context.getNodeFactory(), expectedChildren);
         checkNotNull(name, "name");
         checkArgument(!name.isEmpty(), "argument name is empty");
+        checkArgument(expectedAttributes >= 0, "argument expectedAttributes is negative");
 
-        final int colon = name.indexOf(':');
-        if (colon > 0) {
-            withPrefix(name.substring(0, colon));
-            withLocalName(name.substring(colon + 1));
-        } else {
-            withLocalName(name);
-        }
+        this.context = context;
+        this.isRootElement = rootElement;
+        this.attributes = expectedAttributes == 0 ? NO_ATTRIBUTES : new Attribute[expectedAttributes];
+        this.namespace = null;
+        this.ownership = new Ownership();
+        _setName(name);
+    }
 
+    /**
+     * Return the builder to the state it would have if it had just been constructed with the given arguments.
+     *
+     * @param name        the qualified element name
+     * @param rootElement whether or not this element is expected to be a
+     *                    createRoot element.
+     * @return this builder
+     * @throws NullPointerException     if name is null
+     * @throws IllegalArgumentException if name is empty
+     */
+    @Nonnull
+    ElementBuilderImpl reinitialize(@Nonnull final String name, final boolean rootElement) {
+        checkNotNull(name, "name");
+        checkArgument(!name.isEmpty(), "argument name is empty");
+
+        reset();
         this.isRootElement = rootElement;
-        this.attributes = ImmutableList.builder();
-        this.namespace = Optional.absent();
-        this.localName = Optional.absent();
+        _setName(name);
+        return this;
+    }
+
+    private void _setName(@Nonnull final String name) {
+        final QualifiedName symbol = context.getSymbols().name(name);
+        checkArgument(!symbol.getLocalName().isEmpty(), "argument localName is empty");
+        this.qualifiedName = symbol;
+    }
+
+    @Nonnull
+    @CheckReturnValue
+    BuilderContext getContext() {
+        return context;
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder reset() {
+        if (ownership.isClaimed()) {
+            // The only snapshot sharing the arrays was consumed by its parent, so it will never be read again
+            _unshareArrays();
+        }
+        if (ownership.isCaptured()) {
+            ownership = new Ownership();
+        }
+        super.reset();
+        if (attributesShared) {
+            attributes = attributes.length == 0 ? NO_ATTRIBUTES : new Attribute[attributes.length];
+            attributesShared = false;
+        } else {
+            Arrays.fill(attributes, 0, attributeCount, null);
+        }
+        attributeCount = 0;
+        namespace = null;
+        slotNames = null;
+        return this;
     }
 
     @Override
     public
     @Nonnull
     String getLocalName() {
-        return localName.get();
+        return qualifiedName.getLocalName();
     }
 
     @Override
     @Nonnull
     public ElementBuilder withNamespace(@Nonnull final URI namespace) {
-        this.namespace = Optional.of(namespace);
+        _modifying();
+        this.namespace = checkNotNull(namespace, "namespace");
         return this;
     }
 
     @Override
     @Nonnull
     public ElementBuilder clearNamespace() {
-        this.namespace = Optional.absent();
+        _modifying();
+        this.namespace = null;
         return this;
     }
 
     @Override
     @Nonnull
     public final ElementBuilder withPrefix(@Nonnull String prefix) {
+        _modifying();
         checkArgument(!prefix.isEmpty(), "prefix is empty");
 
-        this.prefix = Optional.of(prefix);
+        this.qualifiedName = context.getSymbols().name(prefix, qualifiedName.getLocalName());
         return this;
     }
 
     @Override
     @Nonnull
     public final ElementBuilder clearPrefix() {
-        this.prefix = Optional.absent();
+        _modifying();
+        this.qualifiedName = context.getSymbols().name(null, qualifiedName.getLocalName());
         return this;
     }
 
     @Override
     @Nonnull
     public final ElementBuilder withLocalName(@Nonnull String localName) {
+        _modifying();
         checkArgument(!localName.isEmpty(), "argument localName is empty");
 
-        this.localName = Optional.of(localName);
+        this.qualifiedName = context.getSymbols().name(qualifiedName.getPrefix(), localName);
         return this;
     }
 
     @Override
     @Nonnull
     public ElementBuilder add(@Nonnull final String data) {
-        checkNotNull(data, "data");
-//	    checkArgument(!data.isEmpty(), "argument data is empty");
+        if (!context.isTrusted()) {
+            checkNotNull(data, "data");
+        }
 
-        _addChildren(factory.makeText(data));
-        return this;
+        return _addText(data);
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder add(@Nonnull final CharSequence data) {
+        if (data instanceof String) {
+            return add((String) data);
+        }
+        return _addDeferred(new DeferredText(data));
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder add(@Nonnull final Supplier<String> data) {
+        return _addDeferred(new DeferredText(data));
     }
 
     @Override
     @Nonnull
     public ElementBuilder add(@Nonnull final ElementBuilder elBuilder) {
-        checkNotNull(elBuilder, "elBuilder");
+        if (!context.isTrusted()) {
+            checkNotNull(elBuilder, "elBuilder");
+        }
+
+        if (elBuilder instanceof ElementSnapshotSource) {
+            final ElementSnapshot child = ((ElementSnapshotSource) elBuilder).capture();
+            _addSnapshot(child);
+            _addSlotNames(child.getSlotNames());
+        } else {
+            _addChildren(elBuilder.build());
+        }
+        return this;
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder addAll(@Nonnull final Iterable<? extends ElementBuilder> elBuilders) {
+        checkNotNull(elBuilders, "elBuilders");
+        final int size = elBuilders instanceof Collection ? ((Collection<?>) elBuilders).size() : -1;
+        return _addAll(elBuilders.iterator(), size);
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder addAll(@Nonnull final Stream<? extends ElementBuilder> elBuilders) {
+        checkNotNull(elBuilders, "elBuilders");
+        final Spliterator<? extends ElementBuilder> spliterator = elBuilders.spliterator();
+        return _addAll(Spliterators.iterator(spliterator), (int) Math.min(
+                spliterator.getExactSizeIfKnown(), Integer.MAX_VALUE));
+    }
 
-        _addChildren(elBuilder.build());
+    /**
+     * @param elBuilders builders to add
+     * @param size       number of builders, or a negative number if unknown
+     */
+    @Nonnull
+    private ElementBuilder _addAll(@Nonnull final Iterator<? extends ElementBuilder> elBuilders, final int size) {
+        _modifying();
+        if (size > 0) {
+            _ensureChildCapacity(size);
+        }
+        while (elBuilders.hasNext()) {
+            final ElementBuilder elBuilder = context.isTrusted()
+                    ? elBuilders.next()
+                    : checkNotNull(elBuilders.next(), "elBuilder");
+            if (elBuilder instanceof ElementSnapshotSource) {
+                final ElementSnapshot child = ((ElementSnapshotSource) elBuilder).capture();
+                _appendSnapshot(child);
+                _addSlotNames(child.getSlotNames());
+            } else {
+                _addChildren(elBuilder.build());
+            }
+        }
         return this;
     }
 
@@ -180,11 +370,14 @@ class ElementBuilderImpl extends AbstractParentNodeBuilder<Nodes, ElementBuilder
     @Override
     @Nonnull
     public ElementBuilder addAttribute(@Nonnull Attribute attribute) {
-        checkNotNull(attribute, "attribute");
-        checkArgument(attribute.getParent() == null,
-                "Argument attribute already has a parent node.");
+        _modifying();
+        if (!context.isTrusted()) {
+            checkNotNull(attribute, "attribute");
+            checkArgument(attribute.getParent() == null,
+                    "Argument attribute already has a parent node.");
+        }
 
-        attributes.add(attribute);
+        _appendAttribute(attribute);
         return this;
     }
 
@@ -192,9 +385,23 @@ class ElementBuilderImpl extends AbstractParentNodeBuilder<Nodes, ElementBuilder
     @Nonnull
     public ElementBuilder addAttribute(@Nonnull final String name,
                                        @Nonnull final String value) {
+        if (context.isTrusted()) {
+            _modifying();
+            _makeAttribute(name, "", value, Attribute.Type.CDATA);
+            return this;
+        }
         return addAttribute(name, Optional.<URI>absent(), value, Attribute.Type.CDATA);
     }
 
+    @Override
+    @Nonnull
+    public ElementBuilder addAttribute(@Nonnull final String name, @Nonnull final Supplier<String> value) {
+        final DeferredAttribute attribute = new DeferredAttribute(name, value);
+        _modifying();
+        _appendAttribute(attribute);
+        return this;
+    }
+
     @Override
     @Nonnull
     public ElementBuilder addAttribute(
@@ -206,15 +413,137 @@ class ElementBuilderImpl extends AbstractParentNodeBuilder<Nodes, ElementBuilder
         checkNotNull(value, "name");
         checkNotNull(type, "type");
 
-        Nodes nodes = factory.makeAttribute(name,
-                namespace.isPresent() ? namespace.get().toString() : "",
+        _modifying();
+        _makeAttribute(name, namespace.isPresent() ? context.getSymbols().namespace(namespace.get()) : "",
                 value, type);
+        return this;
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder addAttributes(@Nonnull final Map<String, String> attributes) {
+        checkNotNull(attributes, "attributes");
+        _modifying();
+        _ensureAttributeCapacity(attributes.size());
+        final boolean trusted = context.isTrusted();
+        for (final Map.Entry<String, String> entry : attributes.entrySet()) {
+            _makeAttribute(trusted ? entry.getKey() : _checkAttributeName(entry.getKey()), "",
+                    trusted ? entry.getValue() : checkNotNull(entry.getValue(), "value"), Attribute.Type.CDATA);
+        }
+        return this;
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder addAttributes(@Nonnull final String... namesAndValues) {
+        checkNotNull(namesAndValues, "namesAndValues");
+        checkArgument(namesAndValues.length % 2 == 0, "argument namesAndValues has an odd number of elements");
+        _modifying();
+        _ensureAttributeCapacity(namesAndValues.length / 2);
+        final boolean trusted = context.isTrusted();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            _makeAttribute(trusted ? namesAndValues[i] : _checkAttributeName(namesAndValues[i]), "",
+                    trusted ? namesAndValues[i + 1] : checkNotNull(namesAndValues[i + 1], "value"),
+                    Attribute.Type.CDATA);
+        }
+        return this;
+    }
+
+    @Nonnull
+    private static String _checkAttributeName(@Nullable final String name) {
+        checkNotNull(name, "name");
+        checkArgument(!name.isEmpty(), "argument name is empty");
+        return name;
+    }
+
+    /**
+     * Make an attribute, or whatever nodes the factory replaces it with, and add the result to this builder. The
+     * caller must have already called {@link #_modifying()}.
+     */
+    private void _makeAttribute(@Nonnull final String name, @Nonnull final String namespace,
+                                @Nonnull final String value, @Nonnull final Attribute.Type type) {
+        if (context.isStandardNodeFactory()) {
+            // NodeFactory.makeAttribute simply wraps a new attribute, so skip the Nodes allocation
+            _appendAttribute(new Attribute(name, namespace, value, type));
+            return;
+        }
+        final Nodes nodes = factory.makeAttribute(name, namespace, value, type);
         for (int i = 0; i < nodes.size(); i++) {
             add(nodes.get(i));
         }
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder addSlot(@Nonnull final String slotName) {
+        final TextSlot slot = new TextSlot(slotName);
+        _addChild(slot);
+        _addSlotNames(Collections.singleton(slotName));
+        return this;
+    }
+
+    @Override
+    @Nonnull
+    public ElementBuilder addAttributeSlot(@Nonnull final String name, @Nonnull final String slotName) {
+        _modifying();
+        checkNotNull(name, "name");
+        checkArgument(!name.isEmpty(), "argument name is empty");
+
+        _appendAttribute(new AttributeSlot(name, slotName));
+        _addSlotNames(Collections.singleton(slotName));
         return this;
     }
 
+    /**
+     * Reserve space for the given number of additional attributes, before they are added in bulk.
+     *
+     * @param additional
+     */
+    void _ensureAttributeCapacity(final int additional) {
+        if (attributesShared || attributes.length - attributeCount < additional) {
+            _reallocateAttributes(Math.max(attributes.length, attributeCount + additional));
+        }
+    }
+
+    /**
+     * Add an attribute without notifying the builder of the change. The caller must have already called
+     * {@link #_modifying()}.
+     */
+    private void _appendAttribute(@Nonnull final Attribute attribute) {
+        if (attributesShared || attributeCount == attributes.length) {
+            _reallocateAttributes(Math.max(attributeCount + 1,
+                    Math.max(MIN_CAPACITY, attributeCount + (attributeCount >> 1))));
+        }
+        attributes[attributeCount++] = attribute;
+    }
+
+    private void _reallocateAttributes(final int capacity) {
+        attributes = Arrays.copyOf(attributes, capacity);
+        attributesShared = false;
+    }
+
+    /**
+     * @return the attributes, trimmed to size and shared with the caller until the builder is next changed
+     */
+    @Nonnull
+    private Attribute[] _getAttributes() {
+        if (attributeCount != attributes.length) {
+            attributes = attributeCount == 0 ? NO_ATTRIBUTES : Arrays.copyOf(attributes, attributeCount);
+        }
+        attributesShared = true;
+        return attributes;
+    }
+
+    private void _addSlotNames(@Nonnull final Set<String> names) {
+        if (names.isEmpty()) {
+            return;
+        }
+        if (slotNames == null) {
+            slotNames = new LinkedHashSet<String>();
+        }
+        slotNames.addAll(names);
+    }
+
     @Override
     @Nonnull
     public ElementBuilder add(@Nonnull final Node node) {
@@ -226,7 +555,8 @@ class ElementBuilderImpl extends AbstractParentNodeBuilder<Nodes, ElementBuilder
                             + node.getClass().getSimpleName());
 
         } else if (node instanceof Attribute) {
-            attributes.add((Attribute) node);
+            _modifying();
+            _appendAttribute((Attribute) node);
         } else { // Element, Comment, Text, ProcessingInstructiona
             _addChild(node);
         }
@@ -237,52 +567,115 @@ class ElementBuilderImpl extends AbstractParentNodeBuilder<Nodes, ElementBuilder
     @Nonnull
     @CheckReturnValue
     public Nodes build() {
+        return snapshot().build(false);
+    }
 
-        final String qualifiedName;
-        if(prefix.isPresent()) {
-            if(localName.isPresent()) {
-                qualifiedName = prefix.get() + ":" + localName.get();
-            } else {
-                qualifiedName = prefix.get() + ":";
-            }
-        } else {
-            if(localName.isPresent()) {
-                qualifiedName = localName.get();
-            } else {
-                qualifiedName = "";
-            }
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    public Nodes buildAndConsume() {
+        if (ownership.isCaptured()) {
+            final ElementSnapshot snapshot = snapshot();
+            _consume();
+            return snapshot.build(false);
+        }
+        // Nothing else holds the accumulated state, so build from it in place, without a snapshot, and keep the
+        // arrays for reuse once the builder is reset
+        _checkNotConsumed();
+        if (slotNames != null) {
+            throw new MissingRequiredPropertyException(slotNames.iterator().next());
         }
+        _consume();
+        snapshot = null;
+        _unshareArrays();
+        final URI baseURI = _getBaseURI();
+        return ElementSnapshot.make(context, isRootElement, qualifiedName,
+                namespace != null ? context.getSymbols().namespace(namespace) : "",
+                baseURI != null ? baseURI.toString() : null, attributes, attributeCount,
+                _getChildrenInPlace(), _getChildCount(), true, false);
+    }
 
-        final String namespaceStr = namespace.isPresent()
-                ? namespace.get().toString()
-                : "";
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    public Nodes build(@Nonnull final ForkJoinPool pool) {
+        return snapshot().build(pool);
+    }
 
-        final Element element;
-        if (isRootElement)
-            element = (Element) factory.makeRootElement(
-                    qualifiedName, namespaceStr).copy();
-        else
-            element = (Element) factory.startMakingElement(
-                    qualifiedName, namespaceStr).copy();
+    @Override
+    public void writeTo(@Nonnull final ContentHandler handler) throws SAXException {
+        new SaxEventWriter(handler).writeElement(snapshot());
+    }
 
-        if (_getBaseURI().isPresent()) {
-            element.setBaseURI(_getBaseURI().get().toString());
-        }
+    @Override
+    public void writeTo(@Nonnull final XMLStreamWriter writer) throws XMLStreamException {
+        new StaxEventWriter(writer).writeElement(snapshot());
+    }
 
-        for (final Attribute attribute : attributes.build()) {
-            element.addAttribute((Attribute) attribute.copy());
+    /**
+     * Capture the current state of the builder, so it can be built later.
+     *
+     * @return immutable snapshot of the builder state
+     * @throws IllegalStateException if the builder has already been consumed
+     */
+    @Nonnull
+    @CheckReturnValue
+    ElementSnapshot snapshot() {
+        _checkNotConsumed();
+        if (snapshot != null) {
+            return snapshot;
         }
 
-        for (final Node node : _getChildren()) {
-            element.appendChild(node.copy());
-        }
+        final String namespaceStr = namespace != null
+                ? context.getSymbols().namespace(namespace)
+                : "";
+        final URI baseURI = _getBaseURI();
+
+        snapshot = new ElementSnapshot(context, isRootElement, qualifiedName, namespaceStr,
+                baseURI != null ? baseURI.toString() : null,
+                _getAttributes(), _getChildren(),
+                slotNames == null ? ImmutableSet.<String>of() : ImmutableSet.copyOf(slotNames), ownership);
+        return snapshot;
+    }
 
-        /*
-         * XXX: Not sure if finishMarkingElement is supposed to be called on
-         * root elements or not. It seems reasonable that someone might want
-         * produce extract comments or processing instructions for a root
-         * element, in which case finish' MUST be called.
-         */
-        return factory.finishMakingElement(element);
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    public Nodes buildTemplate() {
+        return snapshot().buildTemplate();
+    }
+
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    public ElementSnapshot capture() {
+        final ElementSnapshot result = snapshot();
+        ownership.capture();
+        return result;
+    }
+
+    @Override
+    boolean _isTrusted() {
+        return context.isTrusted();
+    }
+
+    /**
+     * Take back the arrays from the snapshots that share them, once none of them can be read again.
+     */
+    private void _unshareArrays() {
+        _unshareChildren();
+        attributesShared = false;
+    }
+
+    @Override
+    void _checkNotConsumed() {
+        super._checkNotConsumed();
+        checkState(!ownership.isClaimed(), "Builder has been consumed by its parent.");
+    }
+
+    @Override
+    void _modifying() {
+        super._modifying();
+        snapshot = null;
     }
 }
@@ -0,0 +1,455 @@
+package com.github.hamishmorgan.xomb.impl;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.github.hamishmorgan.xomb.api.MissingRequiredPropertyException;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import nu.xom.Attribute;
+import nu.xom.Element;
+import nu.xom.Node;
+import nu.xom.NodeFactory;
+import nu.xom.Nodes;
+import nu.xom.Text;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Immutable capture of the state of an {@link ElementBuilderImpl}.
+ * <p/>
+ * When an element builder is added to a parent builder, a snapshot is taken rather than building the child
+ * immediately. Taking the snapshot only copies references to the child's own attributes and children (nested
+ * builders are themselves held as snapshots), and the XOM nodes are only produced once, top-down, when the
+ * outermost builder is built. A node at any depth is therefore created once per build, rather than once per
+ * ancestor.
+ * <p/>
+ * Builder state captured in the snapshot is never changed by subsequent modifications to the builder, so the
+ * product is the same as though the child had been built at the time it was added.
+ * <p/>
+ * When a consuming build reaches a nested snapshot whose builder was captured only by this parent, the nested
+ * nodes are moved rather than copied (see {@link Ownership}), so that each node is allocated once.
+ * <p/>
+ * A parallel build forks a task for each nested snapshot of at least {@link #PARALLEL_THRESHOLD} nodes, and
+ * appends the results in order once they complete. Since a subtree is never larger than its parent, nested
+ * snapshots that are too small to fork contain nothing large enough to fork either, and are built sequentially.
+ */
+@ThreadSafe
+final class ElementSnapshot {
+
+    /**
+     * Minimum number of nodes in a subtree for it to be built in a separate task by a parallel build.
+     */
+    static final int PARALLEL_THRESHOLD = 1024;
+
+    @Nonnull
+    private final BuilderContext context;
+    private final boolean isRootElement;
+    @Nonnull
+    private final QualifiedName qualifiedName;
+    @Nonnull
+    private final String namespace;
+    @Nullable
+    private final String baseURI;
+    /**
+     * Attributes, which are never modified; the array may be shared with the builder, which copies it before
+     * making any further changes.
+     */
+    @Nonnull
+    private final Attribute[] attributes;
+    /**
+     * Each child is either a {@link Node}, an {@link ElementSnapshot} of a nested builder, or {@link DeferredText}.
+     * Like the attributes, the array may be shared with the builder but is never modified.
+     */
+    @Nonnull
+    private final Object[] children;
+    /**
+     * Names of the template slots in this element and all nested elements.
+     */
+    @Nonnull
+    private final ImmutableSet<String> slotNames;
+    /**
+     * Ownership of the captured nodes, shared with the builder.
+     */
+    @Nonnull
+    private final Ownership ownership;
+    /**
+     * Number of nodes in the subtree, counting each directly added node as one, saturating at
+     * {@link Integer#MAX_VALUE}.
+     */
+    private final int size;
+    /**
+     * Whether the subtree contains deferred content, which may differ between builds.
+     */
+    private final boolean deferred;
+    /**
+     * Digest and fingerprint of the subtree, each retained once computed unless the subtree contains deferred
+     * content.
+     */
+    @Nullable
+    private volatile HashCode digest;
+    @Nullable
+    private volatile HashCode fingerprint;
+
+    ElementSnapshot(@Nonnull final BuilderContext context,
+                    final boolean isRootElement,
+                    @Nonnull final QualifiedName qualifiedName,
+                    @Nonnull final String namespace,
+                    @Nullable final String baseURI,
+                    @Nonnull final Attribute[] attributes,
+                    @Nonnull final Object[] children,
+                    @Nonnull final ImmutableSet<String> slotNames,
+                    @Nonnull final Ownership ownership) {
+        this.context = checkNotNull(context, "context");
+        this.isRootElement = isRootElement;
+        this.qualifiedName = checkNotNull(qualifiedName, "qualifiedName");
+        this.namespace = checkNotNull(namespace, "namespace");
+        this.baseURI = baseURI;
+        this.attributes = checkNotNull(attributes, "attributes");
+        this.children = checkNotNull(children, "children");
+        this.slotNames = checkNotNull(slotNames, "slotNames");
+        this.ownership = checkNotNull(ownership, "ownership");
+        long count = 1 + attributes.length;
+        boolean deferredContent = false;
+        for (final Attribute attribute : attributes) {
+            deferredContent |= attribute instanceof DeferredAttribute;
+        }
+        for (final Object child : children) {
+            if (child instanceof ElementSnapshot) {
+                count += ((ElementSnapshot) child).size;
+                deferredContent |= ((ElementSnapshot) child).deferred;
+            } else {
+                count++;
+                deferredContent |= child instanceof DeferredText;
+            }
+        }
+        this.size = (int) Math.min(count, Integer.MAX_VALUE);
+        this.deferred = deferredContent;
+        this.digest = null;
+        this.fingerprint = null;
+    }
+
+    /**
+     * Produce the XOM nodes for this snapshot. Nested snapshots are built directly into the element, so they are
+     * never copied.
+     *
+     * @param consume whether to move the captured attributes and child nodes into the element, rather than copying
+     *                them. Nodes of nested snapshots are also moved if they can be claimed (see {@link #claim()});
+     *                otherwise the nested builders may still be in use, and their nodes are copied.
+     * @return nodes produced by the factory for the element
+     * @throws MissingRequiredPropertyException if the snapshot contains template slots
+     */
+    @Nonnull
+    @CheckReturnValue
+    Nodes build(final boolean consume) {
+        return build(consume, false);
+    }
+
+    /**
+     * Produce the XOM nodes for this snapshot, building large subtrees concurrently on the given pool. The nodes
+     * produced are the same as for {@link #build(boolean)}; the node factory must be thread safe.
+     *
+     * @param pool pool on which to build large subtrees
+     * @return nodes produced by the factory for the element
+     * @throws NullPointerException             if pool is null
+     * @throws MissingRequiredPropertyException if the snapshot contains template slots
+     */
+    @Nonnull
+    @CheckReturnValue
+    Nodes build(@Nonnull final ForkJoinPool pool) {
+        checkNotNull(pool, "pool");
+        if (size < PARALLEL_THRESHOLD) {
+            return build(false);
+        }
+        return pool.invoke(new BuildTask(this, false));
+    }
+
+    @Nonnull
+    private Nodes build(final boolean consume, final boolean parallel) {
+        checkComplete();
+        return make(consume, parallel);
+    }
+
+    /**
+     * Claim the captured nodes for a consuming parent, which succeeds only if the builder was captured by that parent
+     * alone. The builder can no longer be used once its nodes have been claimed.
+     *
+     * @return whether the nodes may be moved rather than copied
+     */
+    @CheckReturnValue
+    boolean claim() {
+        return ownership.claim();
+    }
+
+    /**
+     * Produce the XOM nodes for this snapshot, including placeholders for any template slots.
+     *
+     * @return nodes produced by the factory for the element
+     */
+    @Nonnull
+    @CheckReturnValue
+    Nodes buildTemplate() {
+        return make(false, false);
+    }
+
+    /**
+     * @return names of the template slots in this element and all nested elements
+     */
+    @Nonnull
+    @CheckReturnValue
+    ImmutableSet<String> getSlotNames() {
+        return slotNames;
+    }
+
+    /**
+     * @throws MissingRequiredPropertyException if the snapshot contains template slots
+     */
+    void checkComplete() {
+        if (!slotNames.isEmpty()) {
+            throw new MissingRequiredPropertyException(slotNames.iterator().next());
+        }
+    }
+
+    /**
+     * @param exact whether to return the fingerprint rather than the digest
+     * @return digest or fingerprint of the subtree, as computed by {@link Digests}
+     * @throws MissingRequiredPropertyException if the snapshot contains template slots
+     */
+    @Nonnull
+    @CheckReturnValue
+    HashCode digest(final boolean exact) {
+        HashCode result = exact ? fingerprint : digest;
+        if (result == null) {
+            checkComplete();
+            result = Digests._digest(this, exact);
+            if (!deferred) {
+                if (exact) {
+                    fingerprint = result;
+                } else {
+                    digest = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return number of nodes in the subtree, saturating at {@link Integer#MAX_VALUE}
+     */
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * @return whether the subtree contains deferred content, which may differ each time it is read
+     */
+    boolean isDeferred() {
+        return deferred;
+    }
+
+    @Nullable
+    @CheckReturnValue
+    String getBaseURI() {
+        return baseURI;
+    }
+
+    @Nonnull
+    @CheckReturnValue
+    QualifiedName getName() {
+        return qualifiedName;
+    }
+
+    @Nonnull
+    @CheckReturnValue
+    String getNamespace() {
+        return namespace;
+    }
+
+    @Nonnull
+    @CheckReturnValue
+    List<Attribute> getAttributes() {
+        return Collections.unmodifiableList(Arrays.asList(attributes));
+    }
+
+    /**
+     * @return children, each of which is either a {@link Node}, an {@link ElementSnapshot} or {@link DeferredText}
+     */
+    @Nonnull
+    @CheckReturnValue
+    List<Object> getChildren() {
+        return Collections.unmodifiableList(Arrays.asList(children));
+    }
+
+    /**
+     * @param consume  whether to move the captured attributes and child nodes into the element
+     * @param parallel whether large nested snapshots should be built in forked tasks; only true when running in
+     *                 a fork-join pool
+     * @return nodes produced by the factory for the element
+     */
+    @Nonnull
+    private Nodes make(final boolean consume, final boolean parallel) {
+        return make(context, isRootElement, qualifiedName, namespace, baseURI, attributes, attributes.length,
+                children, children.length, consume, parallel);
+    }
+
+    /**
+     * Produce the XOM nodes for an element from the given state, which is either that of a snapshot or, when a
+     * builder that was never captured is consumed, the builder's own arrays, so that no snapshot is needed.
+     *
+     * @param attributes     attributes, of which the first attributeCount are used
+     * @param children       children, of which the first childCount are used, each of which is either a
+     *                       {@link Node}, an {@link ElementSnapshot} or {@link DeferredText}
+     * @param consume        whether to move the attributes and child nodes into the element
+     * @param parallel       whether large nested snapshots should be built in forked tasks; only true when running
+     *                       in a fork-join pool
+     * @return nodes produced by the factory for the element
+     */
+    @Nonnull
+    static Nodes make(@Nonnull final BuilderContext context, final boolean isRootElement,
+                      @Nonnull final QualifiedName qualifiedName, @Nonnull final String namespace,
+                      @Nullable final String baseURI, @Nonnull final Attribute[] attributes, final int attributeCount,
+                      @Nonnull final Object[] children, final int childCount,
+                      final boolean consume, final boolean parallel) {
+        final NodeFactory factory = context.getNodeFactory();
+        // The element is made afresh by the factory, so it is never copied
+        final Element element = isRootElement
+                ? factory.makeRootElement(qualifiedName.getQualifiedName(), namespace)
+                : factory.startMakingElement(qualifiedName.getQualifiedName(), namespace);
+
+        if (baseURI != null) {
+            element.setBaseURI(baseURI);
+        }
+
+        for (int a = 0; a < attributeCount; a++) {
+            final Attribute attribute = attributes[a];
+            if (attribute instanceof DeferredAttribute) {
+                addResolved(context, element, (DeferredAttribute) attribute);
+            } else {
+                element.addAttribute(AbstractParentNodeBuilder._take(attribute, consume));
+            }
+        }
+
+        final ForkJoinTask<?>[] tasks = parallel ? forkLargeChildren(children, childCount, consume) : null;
+        for (int c = 0; c < childCount; c++) {
+            final Object child = children[c];
+            if (child instanceof ElementSnapshot) {
+                final ElementSnapshot nested = (ElementSnapshot) child;
+                final Nodes nodes;
+                if (tasks != null && tasks[c] != null) {
+                    nodes = (Nodes) tasks[c].join();
+                } else {
+                    nodes = nested.make(consume && nested.claim(), false);
+                }
+                for (int i = 0; i < nodes.size(); i++)
+                    element.appendChild(nodes.get(i));
+            } else if (child instanceof DeferredText) {
+                final String data = ((DeferredText) child).get().toString();
+                if (context.isStandardNodeFactory()) {
+                    element.appendChild(new Text(data));
+                } else {
+                    final Nodes nodes = factory.makeText(data);
+                    for (int i = 0; i < nodes.size(); i++)
+                        element.appendChild(nodes.get(i));
+                }
+            } else {
+                element.appendChild(AbstractParentNodeBuilder._take((Node) child, consume));
+            }
+        }
+
+        /*
+         * XXX: Not sure if finishMarkingElement is supposed to be called on
+         * root elements or not. It seems reasonable that someone might want
+         * produce extract comments or processing instructions for a root
+         * element, in which case finish' MUST be called.
+         */
+        return factory.finishMakingElement(element);
+    }
+
+    /**
+     * @param consume whether the parent is being consumed, so that nested snapshots may be claimed
+     * @return a forked task for each nested snapshot that is large enough, indexed by child position, or null if
+     * there are none
+     */
+    @Nullable
+    private static ForkJoinTask<?>[] forkLargeChildren(@Nonnull final Object[] children, final int childCount,
+                                                       final boolean consume) {
+        ForkJoinTask<?>[] tasks = null;
+        for (int c = 0; c < childCount; c++) {
+            final Object child = children[c];
+            if (child instanceof ElementSnapshot && ((ElementSnapshot) child).size >= PARALLEL_THRESHOLD) {
+                if (tasks == null) {
+                    tasks = new ForkJoinTask<?>[childCount];
+                }
+                final ElementSnapshot nested = (ElementSnapshot) child;
+                tasks[c] = new BuildTask(nested, consume && nested.claim()).fork();
+            }
+        }
+        return tasks;
+    }
+
+    /**
+     * Add the attribute currently supplied, or whatever nodes the factory replaces it with, to the element.
+     */
+    private static void addResolved(@Nonnull final BuilderContext context, @Nonnull final Element element,
+                                    @Nonnull final DeferredAttribute attribute) {
+        if (context.isStandardNodeFactory()) {
+            element.addAttribute(attribute.resolve());
+            return;
+        }
+        final Nodes nodes = attribute.resolve(context.getNodeFactory());
+        for (int i = 0; i < nodes.size(); i++) {
+            if (nodes.get(i) instanceof Attribute) {
+                element.addAttribute((Attribute) nodes.get(i));
+            } else {
+                element.appendChild(nodes.get(i));
+            }
+        }
+    }
+
+    private static final class BuildTask extends RecursiveTask<Nodes> {
+
+        private static final long serialVersionUID = 1L;
+
+        @Nonnull
+        private final ElementSnapshot snapshot;
+        private final boolean consume;
+
+        BuildTask(@Nonnull final ElementSnapshot snapshot, final boolean consume) {
+            this.snapshot = snapshot;
+            this.consume = consume;
+        }
+
+        @Override
+        protected Nodes compute() {
+            return snapshot.make(consume, true);
+        }
+    }
+}
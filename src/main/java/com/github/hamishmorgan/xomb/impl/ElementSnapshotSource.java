@@ -0,0 +1,54 @@
+package com.github.hamishmorgan.xomb.impl;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import nu.xom.Nodes;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+
+/**
+ * An element builder whose state can be captured as an {@link ElementSnapshot}, so that parent builders can defer
+ * building it.
+ */
+interface ElementSnapshotSource {
+
+    /**
+     * Capture the current state of the builder, to be held by another builder.
+     *
+     * @return immutable snapshot of the builder state
+     * @throws IllegalStateException if the builder has already been consumed
+     */
+    @Nonnull
+    @CheckReturnValue
+    ElementSnapshot capture();
+
+    /**
+     * Produce the XOM nodes for the current state of the builder, including placeholders for any template slots.
+     *
+     * @return nodes produced by the factory for the element
+     * @throws IllegalStateException if the builder has already been consumed
+     */
+    @Nonnull
+    @CheckReturnValue
+    Nodes buildTemplate();
+}
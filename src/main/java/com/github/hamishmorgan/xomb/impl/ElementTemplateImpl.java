@@ -0,0 +1,60 @@
+package com.github.hamishmorgan.xomb.impl;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import nu.xom.Node;
+import nu.xom.Nodes;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+@ThreadSafe
+final class ElementTemplateImpl extends AbstractTemplate<Nodes> {
+
+    ElementTemplateImpl(@Nonnull final Nodes prototype) {
+        super(prototype);
+    }
+
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    Nodes _copy(@Nonnull final Nodes product) {
+        final Nodes copy = new Nodes();
+        for (int i = 0; i < product.size(); i++)
+            copy.append(product.get(i).copy());
+        return copy;
+    }
+
+    @Override
+    @CheckReturnValue
+    int _size(@Nonnull final Nodes product) {
+        return product.size();
+    }
+
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    Node _get(@Nonnull final Nodes product, final int index) {
+        return product.get(index);
+    }
+}
@@ -0,0 +1,282 @@
+package com.github.hamishmorgan.xomb.impl;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import com.github.hamishmorgan.xomb.api.MissingRequiredPropertyException;
+import nu.xom.Attribute;
+import nu.xom.Comment;
+import nu.xom.DocType;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.Node;
+import nu.xom.ProcessingInstruction;
+import nu.xom.Text;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Strings.nullToEmpty;
+
+/**
+ * Replays the state of a builder as a sequence of parser-style events, without constructing any XOM nodes.
+ * <p/>
+ * The builder state consists of {@link ElementSnapshot}s for nested builders, and XOM nodes that were added
+ * directly; both are walked in document order. Namespace declarations are tracked while walking, so each
+ * element reports only the declarations that are not already in scope.
+ * <p/>
+ * Note that, since no nodes are constructed, the {@link nu.xom.NodeFactory} of the builders is not consulted.
+ *
+ * @param <X> type of exception thrown by the event consumer
+ */
+abstract class EventWriter<X extends Exception> {
+
+    /**
+     * Prefixes and URIs of the namespace declarations in scope, outermost first.
+     */
+    @Nonnull
+    private final ArrayList<String> prefixes;
+    @Nonnull
+    private final ArrayList<String> uris;
+    /**
+     * Attributes of the element being started, reused between elements.
+     */
+    @Nonnull
+    private final ArrayList<Attribute> attributes;
+
+    EventWriter() {
+        prefixes = new ArrayList<String>();
+        uris = new ArrayList<String>();
+        attributes = new ArrayList<Attribute>();
+    }
+
+    /**
+     * @param children children of a document builder, each of which is either a {@link Node} or an
+     *                 {@link ElementSnapshot}
+     * @throws MissingRequiredPropertyException if there is no root element, or it contains template slots
+     */
+    final void writeDocument(@Nonnull final Object[] children) throws X {
+        boolean hasRootElement = false;
+        for (final Object child : children) {
+            if (child instanceof ElementSnapshot) {
+                ((ElementSnapshot) child).checkComplete();
+                hasRootElement = true;
+            } else if (child instanceof Element) {
+                hasRootElement = true;
+            }
+        }
+        if (!hasRootElement) {
+            throw new MissingRequiredPropertyException("rootElement");
+        }
+
+        startDocument();
+        for (final Object child : children) {
+            writeChild(child);
+        }
+        endDocument();
+    }
+
+    /**
+     * @throws MissingRequiredPropertyException if the snapshot contains template slots
+     */
+    final void writeElement(@Nonnull final ElementSnapshot snapshot) throws X {
+        snapshot.checkComplete();
+        final int firstDeclaration = prefixes.size();
+        final QualifiedName name = snapshot.getName();
+        final String prefix = nullToEmpty(name.getPrefix());
+        declare(prefix, snapshot.getNamespace());
+        attributes.clear();
+        for (final Attribute attribute : snapshot.getAttributes()) {
+            if (!attribute.getNamespaceURI().isEmpty()) {
+                declare(attribute.getNamespacePrefix(), attribute.getNamespaceURI());
+            }
+            attributes.add(attribute instanceof DeferredAttribute
+                    ? ((DeferredAttribute) attribute).resolve()
+                    : attribute);
+        }
+
+        startElement(snapshot.getNamespace(), name.getLocalName(), name.getQualifiedName(), prefix,
+                attributes, firstDeclaration);
+        for (final Object child : snapshot.getChildren()) {
+            writeChild(child);
+        }
+        endElement(snapshot.getNamespace(), name.getLocalName(), name.getQualifiedName(), firstDeclaration);
+        endScope(firstDeclaration);
+    }
+
+    /**
+     * Write the element of a nested builder. Subclasses may override this to write the element by other means, such
+     * as from previously written output; by default it is written with {@link #writeElement(ElementSnapshot)}.
+     *
+     * @throws MissingRequiredPropertyException if the snapshot contains template slots
+     */
+    void writeSnapshot(@Nonnull final ElementSnapshot snapshot) throws X {
+        writeElement(snapshot);
+    }
+
+    /**
+     * Write a single node and its descendants. A document is written as the sequence of its children, without the
+     * document events.
+     *
+     * @param node node to write, which must not be an attribute or namespace node
+     */
+    final void writeNode(@Nonnull final Node node) throws X {
+        if (node instanceof Document) {
+            for (int i = 0; i < node.getChildCount(); i++) {
+                writeChild(node.getChild(i));
+            }
+        } else {
+            writeChild(node);
+        }
+    }
+
+    private void writeElement(@Nonnull final Element element) throws X {
+        final int firstDeclaration = prefixes.size();
+        declare(element.getNamespacePrefix(), element.getNamespaceURI());
+        attributes.clear();
+        for (int i = 0; i < element.getAttributeCount(); i++) {
+            final Attribute attribute = element.getAttribute(i);
+            if (!attribute.getNamespaceURI().isEmpty()) {
+                declare(attribute.getNamespacePrefix(), attribute.getNamespaceURI());
+            }
+            attributes.add(attribute);
+        }
+        for (int i = 0; i < element.getNamespaceDeclarationCount(); i++) {
+            final String prefix = element.getNamespacePrefix(i);
+            declare(prefix, element.getNamespaceURI(prefix));
+        }
+
+        startElement(element.getNamespaceURI(), element.getLocalName(), element.getQualifiedName(),
+                element.getNamespacePrefix(), attributes, firstDeclaration);
+        for (int i = 0; i < element.getChildCount(); i++) {
+            writeChild(element.getChild(i));
+        }
+        endElement(element.getNamespaceURI(), element.getLocalName(), element.getQualifiedName(),
+                firstDeclaration);
+        endScope(firstDeclaration);
+    }
+
+    private void writeChild(@Nonnull final Object child) throws X {
+        if (child instanceof ElementSnapshot) {
+            writeSnapshot((ElementSnapshot) child);
+        } else if (child instanceof Element) {
+            writeElement((Element) child);
+        } else if (child instanceof Text) {
+            text(((Text) child).getValue());
+        } else if (child instanceof DeferredText) {
+            text(((DeferredText) child).get());
+        } else if (child instanceof Comment) {
+            comment(((Comment) child).getValue());
+        } else if (child instanceof ProcessingInstruction) {
+            final ProcessingInstruction pi = (ProcessingInstruction) child;
+            processingInstruction(pi.getTarget(), pi.getValue());
+        } else if (child instanceof DocType) {
+            docType((DocType) child);
+        } else {
+            throw new AssertionError("Unexpected child: " + child);
+        }
+    }
+
+    /**
+     * Add a namespace declaration to the current scope, unless the prefix is already bound to the URI.
+     */
+    private void declare(@Nonnull final String prefix, @Nonnull final String uri) {
+        if (prefix.equals("xml")) {
+            return;
+        }
+        final String bound = lookup(prefix);
+        // The default namespace is initially empty, so there is no need to declare it
+        if (bound == null ? prefix.isEmpty() && uri.isEmpty() : bound.equals(uri)) {
+            return;
+        }
+        prefixes.add(prefix);
+        uris.add(uri);
+    }
+
+    /**
+     * @return the URI the prefix is bound to in the current scope, or null if it is not bound
+     */
+    @Nullable
+    private String lookup(@Nonnull final String prefix) {
+        for (int i = prefixes.size() - 1; i >= 0; i--) {
+            if (prefixes.get(i).equals(prefix)) {
+                return uris.get(i);
+            }
+        }
+        return null;
+    }
+
+    private void endScope(final int firstDeclaration) {
+        for (int i = prefixes.size() - 1; i >= firstDeclaration; i--) {
+            prefixes.remove(i);
+            uris.remove(i);
+        }
+    }
+
+    /**
+     * @return number of namespace declarations in scope; declarations made by the current element are those from
+     * the index passed to {@link #startElement} up to this count.
+     */
+    final int getDeclarationCount() {
+        return prefixes.size();
+    }
+
+    @Nonnull
+    final String getDeclaredPrefix(final int index) {
+        return prefixes.get(index);
+    }
+
+    @Nonnull
+    final String getDeclaredURI(final int index) {
+        return uris.get(index);
+    }
+
+    /*
+     * Events
+     */
+
+    abstract void startDocument() throws X;
+
+    abstract void endDocument() throws X;
+
+    abstract void docType(@Nonnull DocType docType) throws X;
+
+    /**
+     * @param firstDeclaration index of the first namespace declaration made by this element
+     */
+    abstract void startElement(@Nonnull String namespace, @Nonnull String localName, @Nonnull String qualifiedName,
+                               @Nonnull String prefix, @Nonnull List<Attribute> attributes,
+                               int firstDeclaration) throws X;
+
+    /**
+     * @param firstDeclaration index of the first namespace declaration made by this element
+     */
+    abstract void endElement(@Nonnull String namespace, @Nonnull String localName, @Nonnull String qualifiedName,
+                             int firstDeclaration) throws X;
+
+    abstract void text(@Nonnull CharSequence data) throws X;
+
+    abstract void comment(@Nonnull String data) throws X;
+
+    abstract void processingInstruction(@Nonnull String target, @Nonnull String data) throws X;
+}
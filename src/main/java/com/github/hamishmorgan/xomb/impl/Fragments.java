@@ -0,0 +1,164 @@
+package com.github.hamishmorgan.xomb.impl;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.github.hamishmorgan.xomb.api.DocumentBuilder;
+import com.github.hamishmorgan.xomb.api.ElementBuilder;
+import com.github.hamishmorgan.xomb.api.MissingRequiredPropertyException;
+import com.github.hamishmorgan.xomb.spi.MarkupCache;
+import nu.xom.Attribute;
+import nu.xom.Namespace;
+import nu.xom.Node;
+import nu.xom.Nodes;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Serializes XOM nodes as markup fragments, directly from the node tree.
+ * <p/>
+ * Unlike {@link nu.xom.Serializer}, nodes need not be attached to a document, and are not detached from their
+ * parents. Each fragment is written as standalone markup: namespaces in scope from the ancestors of a node are
+ * declared on the node itself, and the output is that which {@code Serializer} would write for the node, without
+ * indentation or line separator conversion.
+ * <p/>
+ * The state of element and document builders can also be written directly, without building any nodes, optionally
+ * splicing in markup from a {@link MarkupCache} for nested builders that are unchanged since they were last
+ * written.
+ * <p/>
+ * Outside this package, fragments are written through {@link XomBuilderFactoryImpl}, and in turn the fragment
+ * methods of {@link com.github.hamishmorgan.xomb.XomUtil}.
+ */
+final class Fragments {
+
+    private Fragments() {
+    }
+
+    /**
+     * @param node    node to write
+     * @param out     stream to write to; it is flushed but not closed
+     * @param charset charset used by the stream, so characters it can not encode are written as character
+     *                references; or null if every character can be written
+     * @throws IOException if the stream can not be written to
+     */
+    static void write(@Nonnull final Node node, @Nonnull final Writer out, @Nullable final Charset charset)
+            throws IOException {
+        checkNotNull(node, "node");
+        final MarkupWriter markup = new MarkupWriter(out, charset, true);
+        _write(node, markup, new MarkupEventWriter(markup));
+        markup.flush();
+    }
+
+    /**
+     * @param nodes   nodes to write, one after another
+     * @param out     stream to write to; it is flushed but not closed
+     * @param charset charset used by the stream, so characters it can not encode are written as character
+     *                references; or null if every character can be written
+     * @throws IOException if the stream can not be written to
+     */
+    static void write(@Nonnull final Nodes nodes, @Nonnull final Writer out, @Nullable final Charset charset)
+            throws IOException {
+        checkNotNull(nodes, "nodes");
+        final MarkupWriter markup = new MarkupWriter(out, charset, true);
+        final MarkupEventWriter events = new MarkupEventWriter(markup);
+        for (int i = 0; i < nodes.size(); i++) {
+            _write(nodes.get(i), markup, events);
+        }
+        markup.flush();
+    }
+
+    /**
+     * Write the document that a builder would currently build, in the form written by {@link nu.xom.Serializer}
+     * without indentation, line separator conversion or base URIs.
+     *
+     * @param builder builder created by this implementation
+     * @param out     stream to write to; flushed but not closed
+     * @param charset charset to encode the document in
+     * @param cache   cache of the markup of nested builders, or null to write every element
+     * @throws IOException                      if the stream can not be written to
+     * @throws IllegalArgumentException         if the builder was not created by this implementation
+     * @throws IllegalStateException            if the builder has already been consumed
+     * @throws MissingRequiredPropertyException if the document has no root element, or it contains template slots
+     */
+    static void write(@Nonnull final DocumentBuilder builder, @Nonnull final OutputStream out,
+                      @Nonnull final Charset charset, @Nullable final MarkupCache cache) throws IOException {
+        checkNotNull(builder, "builder");
+        checkArgument(builder instanceof DocumentBuilderImpl, "builder is not supported: %s", builder);
+        final DocumentBuilderImpl document = (DocumentBuilderImpl) builder;
+        document._checkNotConsumed();
+        _events(out, charset, true, cache).writeDocument(document._getChildren());
+        out.flush();
+    }
+
+    /**
+     * Write the element that a builder would currently build, as a markup fragment.
+     *
+     * @param builder builder created by this implementation
+     * @param out     stream to write to; flushed but not closed
+     * @param charset charset to encode the element in
+     * @param cache   cache of the markup of the builder and nested builders, or null to write every element
+     * @throws IOException                      if the stream can not be written to
+     * @throws IllegalArgumentException         if the builder was not created by this implementation
+     * @throws IllegalStateException            if the builder has already been consumed
+     * @throws MissingRequiredPropertyException if the builder contains template slots
+     */
+    static void write(@Nonnull final ElementBuilder builder, @Nonnull final OutputStream out,
+                      @Nonnull final Charset charset, @Nullable final MarkupCache cache) throws IOException {
+        checkNotNull(builder, "builder");
+        checkArgument(builder instanceof ElementSnapshotSource, "builder is not supported: %s", builder);
+        final ElementSnapshot snapshot = ((ElementSnapshotSource) builder).capture();
+        final MarkupEventWriter events = _events(out, charset, false, cache);
+        events.writeSnapshot(snapshot);
+        events.endDocument();
+        out.flush();
+    }
+
+    @Nonnull
+    private static MarkupEventWriter _events(@Nonnull final OutputStream out, @Nonnull final Charset charset,
+                                             final boolean document, @Nullable final MarkupCache cache) {
+        checkNotNull(charset, "charset");
+        final RecordingWriter recorder = new RecordingWriter(out, charset);
+        final MarkupWriter markup = new MarkupWriter(recorder, charset);
+        return new MarkupEventWriter(markup, charset, document, cache, recorder);
+    }
+
+    private static void _write(@Nonnull final Node node, @Nonnull final MarkupWriter markup,
+                               @Nonnull final MarkupEventWriter events) throws IOException {
+        if (node instanceof Attribute) {
+            final Attribute attribute = (Attribute) node;
+            markup.write(attribute.getQualifiedName());
+            markup.write("=\"");
+            markup.writeAttributeValue(attribute.getValue());
+            markup.write('"');
+        } else if (node instanceof Namespace) {
+            markup.write(node.toXML());
+        } else {
+            events.writeNode(node);
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package com.github.hamishmorgan.xomb.impl;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.github.hamishmorgan.xomb.spi.MarkupCache;
+import nu.xom.Attribute;
+import nu.xom.DocType;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Replays builder state or XOM nodes as markup, in the form written by {@link nu.xom.Serializer} when it is not
+ * indenting, so nodes can be serialized without first attaching them to a document.
+ * <p/>
+ * When writing a whole document, the XML declaration and the line breaks between the children of the document are
+ * also written as by {@code Serializer}. When writing to a {@link RecordingWriter} with a {@link MarkupCache}, the
+ * markup of nested builders is cached as it is written, and spliced into the stream in place of writing the same
+ * builder again.
+ */
+final class MarkupEventWriter extends EventWriter<IOException> {
+
+    /**
+     * Minimum number of nodes in the subtree of a builder for its markup to be cached, since splicing in smaller
+     * elements costs more than writing them.
+     */
+    static final int MINIMUM_CACHED_SIZE = 8;
+
+    /**
+     * Line break written by {@link nu.xom.Serializer} after each child of a document, when no line separator is set.
+     */
+    private static final String LINE_BREAK = "\r\n";
+
+    @Nonnull
+    private final MarkupWriter out;
+    /**
+     * Whether the start tag of the current element is still open, in which case the element has no content yet.
+     */
+    private boolean startTagOpen;
+    /**
+     * Charset of the stream below the markup writer, or null if it is not known.
+     */
+    @Nullable
+    private final Charset charset;
+    /**
+     * Whether to write the XML declaration, and a line break after each child of the document.
+     */
+    private final boolean document;
+    @Nullable
+    private final MarkupCache cache;
+    /**
+     * Writer below the markup writer, which records markup and has cached markup spliced into it; null unless there
+     * is a cache.
+     */
+    @Nullable
+    private final RecordingWriter recorder;
+    /**
+     * Number of elements that have been started and not yet ended.
+     */
+    private int depth;
+    /**
+     * Whether a child of the document has ended, and the line break after it is yet to be written.
+     */
+    private boolean breakPending;
+
+    MarkupEventWriter(@Nonnull final MarkupWriter out) {
+        this(out, null, false, null, null);
+    }
+
+    /**
+     * @param out      writer of the markup
+     * @param charset  charset of the stream below the writer, which is required for a document or a cache
+     * @param document whether to write the XML declaration and line breaks of a document
+     * @param cache    cache of the markup of nested builders, or null to write every element
+     * @param recorder writer below the markup writer, which is required for a cache
+     */
+    MarkupEventWriter(@Nonnull final MarkupWriter out, @Nullable final Charset charset, final boolean document,
+                      @Nullable final MarkupCache cache, @Nullable final RecordingWriter recorder) {
+        this.out = checkNotNull(out, "out");
+        this.charset = charset;
+        this.document = document;
+        this.cache = cache;
+        this.recorder = recorder;
+        if (document || cache != null) {
+            checkNotNull(charset, "charset");
+        }
+        if (cache != null) {
+            checkNotNull(recorder, "recorder");
+        }
+    }
+
+    @Override
+    void startDocument() throws IOException {
+        if (document) {
+            out.write("<?xml version=\"1.0\" encoding=\"");
+            out.write(charset.name());
+            out.write("\"?>");
+            out.write(LINE_BREAK);
+        }
+    }
+
+    @Override
+    void endDocument() throws IOException {
+        _writePendingBreak();
+        out.flush();
+    }
+
+    @Override
+    void writeSnapshot(@Nonnull final ElementSnapshot snapshot) throws IOException {
+        if (cache == null || snapshot.isDeferred() || snapshot.getSize() < MINIMUM_CACHED_SIZE) {
+            writeElement(snapshot);
+            return;
+        }
+        snapshot.checkComplete();
+        _startContent();
+        _writePendingBreak();
+        // The markup writer passes everything straight through to the recorder, so its record is exact without
+        // flushing anything
+        final Key key = new Key(snapshot, charset, _scope());
+        final ByteBuffer markup = cache.get(key);
+        if (markup != null) {
+            recorder.writeEncoded(markup);
+            breakPending = document && depth == 0;
+        } else {
+            final int recording = recorder.startRecording();
+            writeElement(snapshot);
+            cache.put(key, recorder.getRecord(), recording, recorder.getRecordedLength(recording));
+            recorder.endRecording();
+        }
+    }
+
+    @Override
+    void docType(@Nonnull final DocType docType) throws IOException {
+        _startContent();
+        _writePendingBreak();
+        out.write(docType.toXML());
+        breakPending = document;
+    }
+
+    @Override
+    void startElement(@Nonnull final String namespace, @Nonnull final String localName,
+                      @Nonnull final String qualifiedName, @Nonnull final String prefix,
+                      @Nonnull final List<Attribute> attributes, final int firstDeclaration) throws IOException {
+        _startContent();
+        _writePendingBreak();
+        depth++;
+        out.write('<');
+        out.write(qualifiedName);
+        for (final Attribute attribute : attributes) {
+            _writeAttribute(attribute.getQualifiedName(), attribute.getValue());
+        }
+        for (int i = firstDeclaration; i < getDeclarationCount(); i++) {
+            final String declared = getDeclaredPrefix(i);
+            _writeAttribute(declared.isEmpty() ? "xmlns" : "xmlns:" + declared, getDeclaredURI(i));
+        }
+        startTagOpen = true;
+    }
+
+    @Override
+    void endElement(@Nonnull final String namespace, @Nonnull final String localName,
+                    @Nonnull final String qualifiedName, final int firstDeclaration) throws IOException {
+        depth--;
+        breakPending = document && depth == 0;
+        if (startTagOpen) {
+            startTagOpen = false;
+            out.write("/>");
+        } else {
+            out.write("</");
+            out.write(qualifiedName);
+            out.write('>');
+        }
+    }
+
+    @Override
+    void text(@Nonnull final CharSequence data) throws IOException {
+        if (data.length() == 0) {
+            // Empty text does not close the start tag, so the element is still written as <e/>, as XOM does.
+            return;
+        }
+        _startContent();
+        out.writeText(data.toString());
+    }
+
+    @Override
+    void comment(@Nonnull final String data) throws IOException {
+        _startContent();
+        _writePendingBreak();
+        out.write("<!--");
+        out.writeCommentData(data);
+        out.write("-->");
+        breakPending = document && depth == 0;
+    }
+
+    @Override
+    void processingInstruction(@Nonnull final String target, @Nonnull final String data) throws IOException {
+        _startContent();
+        _writePendingBreak();
+        out.write("<?");
+        out.write(target);
+        if (!data.isEmpty()) {
+            out.write(' ');
+            out.writeProcessingInstructionData(data);
+        }
+        out.write("?>");
+        breakPending = document && depth == 0;
+    }
+
+    /**
+     * Close the start tag, if it is still open, before writing content.
+     */
+    private void _startContent() throws IOException {
+        if (startTagOpen) {
+            startTagOpen = false;
+            out.write('>');
+        }
+    }
+
+    /**
+     * Write the line break after the last child of the document, if it has not been written yet. The break is
+     * written lazily so that it is not part of the markup cached for the root element.
+     */
+    private void _writePendingBreak() throws IOException {
+        if (breakPending) {
+            breakPending = false;
+            out.write(LINE_BREAK);
+        }
+    }
+
+    /**
+     * @return prefixes and URIs of the namespace declarations in scope, alternately
+     */
+    @Nonnull
+    private String[] _scope() {
+        final String[] scope = new String[2 * getDeclarationCount()];
+        for (int i = 0; i < getDeclarationCount(); i++) {
+            scope[2 * i] = getDeclaredPrefix(i);
+            scope[2 * i + 1] = getDeclaredURI(i);
+        }
+        return scope;
+    }
+
+    private void _writeAttribute(@Nonnull final String name, @Nonnull final String value) throws IOException {
+        out.write(' ');
+        out.write(name);
+        out.write("=\"");
+        out.writeAttributeValue(value);
+        out.write('"');
+    }
+
+    /**
+     * Key of the cached markup of a snapshot, which is the same only for the same snapshot, written in the same
+     * charset with the same namespace declarations in scope.
+     */
+    private static final class Key {
+        @Nonnull
+        private final ElementSnapshot snapshot;
+        @Nonnull
+        private final Charset charset;
+        @Nonnull
+        private final String[] scope;
+        private final int hashCode;
+
+        Key(@Nonnull final ElementSnapshot snapshot, @Nonnull final Charset charset, @Nonnull final String[] scope) {
+            this.snapshot = snapshot;
+            this.charset = charset;
+            this.scope = scope;
+            this.hashCode = 31 * (31 * System.identityHashCode(snapshot) + charset.hashCode())
+                    + Arrays.hashCode(scope);
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return snapshot == other.snapshot && charset.equals(other.charset) && Arrays.equals(scope, other.scope);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.github.hamishmorgan.xomb.impl;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import nu.xom.IllegalCharacterDataException;
+import nu.xom.IllegalDataException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Writes XML markup to a character stream, escaping character data in the same way as {@link nu.xom.Serializer}.
+ * <p/>
+ * Runs of characters that need no escaping are written to the stream in bulk. When the charset of the stream is
+ * known, characters it cannot encode are written as numeric character references.
+ */
+final class MarkupWriter {
+
+    @Nonnull
+    private final Writer out;
+    @Nullable
+    private final CharsetEncoder encoder;
+    /**
+     * Whether the data is trusted to contain only characters allowed in XML, in which case it is only escaped.
+     */
+    private final boolean trusted;
+
+    /**
+     * @param out     stream to write to
+     * @param charset charset used by the stream, or null if every character can be written
+     */
+    MarkupWriter(@Nonnull final Writer out, @Nullable final Charset charset) {
+        this(out, charset, false);
+    }
+
+    /**
+     * @param out     stream to write to
+     * @param charset charset used by the stream, or null if every character can be written
+     * @param trusted whether to skip checking the data for characters that are not allowed in XML
+     */
+    MarkupWriter(@Nonnull final Writer out, @Nullable final Charset charset, final boolean trusted) {
+        this.out = checkNotNull(out, "out");
+        this.encoder = charset == null || charset.name().startsWith("UTF") ? null : charset.newEncoder();
+        this.trusted = trusted;
+    }
+
+    /**
+     * Write markup without any escaping.
+     */
+    void write(@Nonnull final String markup) throws IOException {
+        out.write(markup);
+    }
+
+    void write(final char c) throws IOException {
+        out.write(c);
+    }
+
+    /**
+     * Write character data, escaping as required for element content.
+     *
+     * @throws IllegalCharacterDataException if data contains characters that are not allowed in XML
+     */
+    void writeText(@Nonnull final String data) throws IOException {
+        writeEscaped(data, false);
+    }
+
+    /**
+     * Write character data, escaping as required for a quoted attribute value.
+     *
+     * @throws IllegalCharacterDataException if data contains characters that are not allowed in XML
+     */
+    void writeAttributeValue(@Nonnull final String data) throws IOException {
+        writeEscaped(data, true);
+    }
+
+    /**
+     * Write the content of a comment, which can not be escaped.
+     *
+     * @throws IllegalDataException if data contains a double-hyphen (--), or data ends with a hyphen.
+     */
+    void writeCommentData(@Nonnull final String data) throws IOException {
+        if (!trusted) {
+            if (data.contains("--") || data.endsWith("-")) {
+                throw new IllegalDataException("Comment data contains a double hyphen or ends with a hyphen.");
+            }
+            checkCharacters(data);
+        }
+        out.write(data);
+    }
+
+    /**
+     * Write the content of a processing instruction, which can not be escaped.
+     *
+     * @throws IllegalDataException if data contains "?&gt;"
+     */
+    void writeProcessingInstructionData(@Nonnull final String data) throws IOException {
+        if (!trusted) {
+            if (data.contains("?>")) {
+                throw new IllegalDataException("Processing instruction data contains \"?>\".");
+            }
+            checkCharacters(data);
+        }
+        out.write(data);
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    private void writeEscaped(@Nonnull final String data, final boolean attribute) throws IOException {
+        if (trusted) {
+            writeEscapedTrusted(data, attribute);
+            return;
+        }
+        final int length = data.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = data.charAt(i);
+            final String replacement = escape(c, attribute);
+            if (replacement != null) {
+                out.write(data, start, i - start);
+                out.write(replacement);
+                start = i + 1;
+            } else if (c < 0x20 && c != '\t' && c != '\n' || c == 0xFFFE || c == 0xFFFF) {
+                throw illegalCharacter(data, i);
+            } else if (Character.isSurrogate(c)) {
+                if (!Character.isHighSurrogate(c) || i + 1 >= length
+                        || !Character.isLowSurrogate(data.charAt(i + 1))) {
+                    throw illegalCharacter(data, i);
+                }
+                if (encoder != null && !encoder.canEncode(data.subSequence(i, i + 2))) {
+                    out.write(data, start, i - start);
+                    writeCharacterReference(data.codePointAt(i));
+                    start = i + 2;
+                }
+                i++;
+            } else if (c >= 0x80 && encoder != null && !encoder.canEncode(c)) {
+                out.write(data, start, i - start);
+                writeCharacterReference(c);
+                start = i + 1;
+            }
+        }
+        out.write(data, start, length - start);
+    }
+
+    /**
+     * Escape without checking for illegal characters; only the characters that need escaping, and those the
+     * encoder can not encode, are examined.
+     */
+    private void writeEscapedTrusted(@Nonnull final String data, final boolean attribute) throws IOException {
+        final int length = data.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = data.charAt(i);
+            final String replacement = escape(c, attribute);
+            if (replacement != null) {
+                out.write(data, start, i - start);
+                out.write(replacement);
+                start = i + 1;
+            } else if (c >= 0x80 && encoder != null) {
+                final int width = Character.isHighSurrogate(c) && i + 1 < length
+                        && Character.isLowSurrogate(data.charAt(i + 1)) ? 2 : 1;
+                if (!encoder.canEncode(data.subSequence(i, i + width))) {
+                    out.write(data, start, i - start);
+                    writeCharacterReference(data.codePointAt(i));
+                    start = i + width;
+                }
+                i += width - 1;
+            }
+        }
+        out.write(data, start, length - start);
+    }
+
+    /**
+     * @return the escaped form of the given character, or null if it does not need escaping
+     */
+    @Nullable
+    private static String escape(final char c, final boolean attribute) {
+        switch (c) {
+            case '&':
+                return "&amp;";
+            case '<':
+                return "&lt;";
+            case '>':
+                return "&gt;";
+            case '"':
+                return attribute ? "&quot;" : null;
+            case '\t':
+                return attribute ? "&#x09;" : null;
+            case '\n':
+                return attribute ? "&#x0A;" : null;
+            case '\r':
+                return "&#x0D;";
+            default:
+                return null;
+        }
+    }
+
+    private void writeCharacterReference(final int codePoint) throws IOException {
+        out.write("&#x");
+        out.write(Integer.toHexString(codePoint).toUpperCase());
+        out.write(';');
+    }
+
+    private static void checkCharacters(@Nonnull final String data) {
+        final int length = data.length();
+        for (int i = 0; i < length; i++) {
+            final char c = data.charAt(i);
+            if (c < 0x20 && c != '\t' && c != '\n' && c != '\r' || c == 0xFFFE || c == 0xFFFF) {
+                throw illegalCharacter(data, i);
+            } else if (Character.isSurrogate(c)) {
+                if (!Character.isHighSurrogate(c) || i + 1 >= length
+                        || !Character.isLowSurrogate(data.charAt(i + 1))) {
+                    throw illegalCharacter(data, i);
+                }
+                i++;
+            }
+        }
+    }
+
+    @Nonnull
+    private static IllegalCharacterDataException illegalCharacter(@Nonnull final String data, final int index) {
+        final IllegalCharacterDataException exception = new IllegalCharacterDataException(
+                String.format("Character 0x%X at index %d is not allowed in XML.", (int) data.charAt(index), index));
+        exception.setData(data);
+        return exception;
+    }
+}
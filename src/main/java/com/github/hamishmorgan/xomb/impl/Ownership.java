@@ -0,0 +1,83 @@
+package com.github.hamishmorgan.xomb.impl;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Ownership of the nodes accumulated by an element builder, shared by the builder and every snapshot it produces
+ * until it is reset.
+ * <p/>
+ * Counts the number of times the builder has been captured by parent builders. A parent that holds the only
+ * capture owns the nodes exclusively, so when it is consumed it may claim them, and move them into its product
+ * rather than copying them. Once the nodes have been claimed the builder can no longer be used, as though it had
+ * been consumed itself.
+ */
+@ThreadSafe
+final class Ownership {
+
+    private static final int CLAIMED = -1;
+
+    private static final AtomicIntegerFieldUpdater<Ownership> CAPTURES =
+            AtomicIntegerFieldUpdater.newUpdater(Ownership.class, "captures");
+
+    /**
+     * Number of captures, or {@link #CLAIMED} once the nodes have been claimed.
+     */
+    private volatile int captures;
+
+    /**
+     * Record a capture of the builder by a parent.
+     */
+    void capture() {
+        CAPTURES.incrementAndGet(this);
+    }
+
+    /**
+     * @return whether the builder has been captured by a parent, in which case its nodes must never be moved by
+     * the builder itself
+     */
+    @CheckReturnValue
+    boolean isCaptured() {
+        return captures != 0;
+    }
+
+    /**
+     * @return whether the nodes have been claimed by a consuming parent
+     */
+    @CheckReturnValue
+    boolean isClaimed() {
+        return captures == CLAIMED;
+    }
+
+    /**
+     * Claim the nodes for a consuming parent, which succeeds only if that parent holds the only capture.
+     *
+     * @return whether the nodes may be moved rather than copied
+     */
+    @CheckReturnValue
+    boolean claim() {
+        return CAPTURES.compareAndSet(this, 1, CLAIMED);
+    }
+}
@@ -0,0 +1,205 @@
+package com.github.hamishmorgan.xomb.impl;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import com.github.hamishmorgan.xomb.api.DocumentBuilder;
+import com.github.hamishmorgan.xomb.api.ElementBuilder;
+import com.github.hamishmorgan.xomb.spi.XomBuilderFeature;
+import nu.xom.NodeFactory;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Builder factory that recycles element and document builders, so that steady state construction allocates
+ * little more than the nodes being built. That holds when builders are built with
+ * {@link com.github.hamishmorgan.xomb.api.ParentNodeBuilder#buildAndConsume()}, which builds from their arrays in
+ * place and lets them be reused; a builder that was otherwise built or captured gets new arrays when it is reused.
+ * <p/>
+ * Builders are returned to the factory by calling {@link #release(ElementBuilder)} or
+ * {@link #release(DocumentBuilder)} once they are no longer needed; typically straight after
+ * {@link com.github.hamishmorgan.xomb.api.ParentNodeBuilder#buildAndConsume()}. Released builders are held in a
+ * bounded pool per thread, and handed out again by subsequent calls to the create methods on the same thread. A
+ * builder must not be used after it has been released; attempting to do so will usually fail with an
+ * {@link IllegalStateException}, but once it has been handed out again it is indistinguishable from a new builder.
+ * <p/>
+ * Nodes that were built, and snapshots that were captured by other builders, before a builder was released are
+ * unaffected by its reuse.
+ */
+@ThreadSafe
+public class PooledXomBuilderFactory extends XomBuilderFactoryImpl {
+
+    /**
+     * Default maximum number of idle builders of each type retained per thread.
+     */
+    public static final int DEFAULT_MAX_IDLE_PER_THREAD = 64;
+
+    private final int maxIdlePerThread;
+
+    @Nonnull
+    private final ThreadLocal<Pool> pools;
+
+    /**
+     * @param nodeFactory      used to create nodes
+     * @param features         optional behaviours to enable for all builders
+     * @param maxIdlePerThread maximum number of idle builders of each type retained per thread
+     * @throws NullPointerException     if nodeFactory or features is null
+     * @throws IllegalArgumentException if maxIdlePerThread is negative
+     */
+    public PooledXomBuilderFactory(@Nonnull final NodeFactory nodeFactory,
+                                   @Nonnull final Set<XomBuilderFeature> features,
+                                   final int maxIdlePerThread) {
+        super(nodeFactory, features);
+        checkArgument(maxIdlePerThread >= 0, "argument maxIdlePerThread is negative");
+        this.maxIdlePerThread = maxIdlePerThread;
+        this.pools = new ThreadLocal<Pool>() {
+            @Override
+            protected Pool initialValue() {
+                return new Pool();
+            }
+        };
+    }
+
+    /**
+     * @param nodeFactory used to create nodes
+     * @throws NullPointerException if nodeFactory is null
+     */
+    public PooledXomBuilderFactory(@Nonnull final NodeFactory nodeFactory) {
+        this(nodeFactory, Collections.<XomBuilderFeature>emptySet(), DEFAULT_MAX_IDLE_PER_THREAD);
+    }
+
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    public DocumentBuilder createDocument() {
+        final Pool pool = pools.get();
+        final DocumentBuilderImpl builder = pool.take(pool.documents);
+        return builder != null ? builder.reset() : super.createDocument();
+    }
+
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    public ElementBuilder createRoot(@Nonnull final String name) {
+        final Pool pool = pools.get();
+        final ElementBuilderImpl builder = pool.take(pool.elements);
+        return builder != null ? builder.reinitialize(name, true) : super.createRoot(name);
+    }
+
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    public ElementBuilder createElement(@Nonnull final String name) {
+        final Pool pool = pools.get();
+        final ElementBuilderImpl builder = pool.take(pool.elements);
+        return builder != null ? builder.reinitialize(name, false) : super.createElement(name);
+    }
+
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    public ElementBuilder createElement(@Nonnull final String name, final int expectedChildren,
+                                        final int expectedAttributes) {
+        checkArgument(expectedChildren >= 0, "argument expectedChildren is negative");
+        checkArgument(expectedAttributes >= 0, "argument expectedAttributes is negative");
+        final Pool pool = pools.get();
+        final ElementBuilderImpl builder = pool.take(pool.elements);
+        if (builder == null) {
+            return super.createElement(name, expectedChildren, expectedAttributes);
+        }
+        builder.reinitialize(name, false);
+        builder._ensureChildCapacity(expectedChildren);
+        builder._ensureAttributeCapacity(expectedAttributes);
+        return builder;
+    }
+
+    /**
+     * Return a builder to the pool. The builder must not be used again by the caller.
+     *
+     * @param builder a builder created by this factory
+     * @throws NullPointerException     if builder is null
+     * @throws IllegalArgumentException if builder was not created by this factory
+     * @throws IllegalStateException    if builder has already been released
+     */
+    public void release(@Nonnull final ElementBuilder builder) {
+        checkNotNull(builder, "builder");
+        checkArgument(builder instanceof ElementBuilderImpl
+                        && ((ElementBuilderImpl) builder).getContext() == context,
+                "builder was not created by this factory");
+        final Pool pool = pools.get();
+        pool.give(pool.elements, (ElementBuilderImpl) builder);
+    }
+
+    /**
+     * Return a builder to the pool. The builder must not be used again by the caller.
+     *
+     * @param builder a builder created by this factory
+     * @throws NullPointerException     if builder is null
+     * @throws IllegalArgumentException if builder was not created by this factory
+     * @throws IllegalStateException    if builder has already been released
+     */
+    public void release(@Nonnull final DocumentBuilder builder) {
+        checkNotNull(builder, "builder");
+        checkArgument(builder instanceof DocumentBuilderImpl
+                        && ((DocumentBuilderImpl) builder).factory == context.getNodeFactory(),
+                "builder was not created by this factory");
+        final Pool pool = pools.get();
+        pool.give(pool.documents, (DocumentBuilderImpl) builder);
+    }
+
+    /**
+     * Idle builders of a single thread.
+     */
+    private final class Pool {
+
+        final ArrayDeque<ElementBuilderImpl> elements = new ArrayDeque<ElementBuilderImpl>();
+        final ArrayDeque<DocumentBuilderImpl> documents = new ArrayDeque<DocumentBuilderImpl>();
+
+        <T extends AbstractParentNodeBuilder<?, ?>> T take(@Nonnull final ArrayDeque<T> queue) {
+            final T builder = queue.pollFirst();
+            if (builder != null) {
+                builder._reuse();
+            }
+            return builder;
+        }
+
+        <T extends AbstractParentNodeBuilder<?, ?>> void give(@Nonnull final ArrayDeque<T> queue,
+                                                                @Nonnull final T builder) {
+            // The released flag is kept on the builder, rather than in this pool, so that a builder released by
+            // another thread is also detected
+            builder._release();
+            builder.reset();
+            // Consume the builder, so that any further use by the releaser fails, whether or not it is kept
+            builder._consume();
+            if (queue.size() < maxIdlePerThread) {
+                queue.addFirst(builder);
+            }
+        }
+    }
+}
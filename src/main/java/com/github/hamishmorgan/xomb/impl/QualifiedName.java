@@ -0,0 +1,110 @@
+package com.github.hamishmorgan.xomb.impl;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * An element name, split into its optional prefix and local name, along with the qualified name they form.
+ */
+@Immutable
+final class QualifiedName {
+
+    @Nullable
+    private final String prefix;
+    @Nullable
+    private final String localName;
+    @Nonnull
+    private final String qualifiedName;
+
+    private QualifiedName(@Nullable final String prefix, @Nullable final String localName,
+                          @Nonnull final String qualifiedName) {
+        this.prefix = prefix;
+        this.localName = localName;
+        this.qualifiedName = qualifiedName;
+    }
+
+    /**
+     * @param name qualified name, optionally including a prefix separated by a colon
+     * @return the name split into prefix and local name
+     * @throws NullPointerException if name is null
+     */
+    @Nonnull
+    @CheckReturnValue
+    static QualifiedName parse(@Nonnull final String name) {
+        checkNotNull(name, "name");
+        final int colon = name.indexOf(':');
+        if (colon > 0) {
+            return new QualifiedName(name.substring(0, colon), name.substring(colon + 1), name);
+        } else {
+            return new QualifiedName(null, name, name);
+        }
+    }
+
+    /**
+     * @param prefix    namespace prefix, or null if there isn't one
+     * @param localName local name, or null if there isn't one
+     * @return the name formed from the given parts
+     */
+    @Nonnull
+    @CheckReturnValue
+    static QualifiedName of(@Nullable final String prefix, @Nullable final String localName) {
+        final String qualifiedName;
+        if (prefix != null) {
+            if (localName != null) {
+                qualifiedName = prefix + ":" + localName;
+            } else {
+                qualifiedName = prefix + ":";
+            }
+        } else {
+            if (localName != null) {
+                qualifiedName = localName;
+            } else {
+                qualifiedName = "";
+            }
+        }
+        return new QualifiedName(prefix, localName, qualifiedName);
+    }
+
+    @Nullable
+    @CheckReturnValue
+    String getPrefix() {
+        return prefix;
+    }
+
+    @Nullable
+    @CheckReturnValue
+    String getLocalName() {
+        return localName;
+    }
+
+    @Nonnull
+    @CheckReturnValue
+    String getQualifiedName() {
+        return qualifiedName;
+    }
+}
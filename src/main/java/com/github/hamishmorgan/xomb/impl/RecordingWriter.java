@@ -0,0 +1,223 @@
+package com.github.hamishmorgan.xomb.impl;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Writer that encodes characters onto a byte stream, and also records the encoded bytes while any recordings are
+ * in progress, so that the markup of an element can be cached as it is written and later spliced into the stream.
+ * <p/>
+ * Characters are encoded into a buffer as they are written, and the buffer is passed on to the stream only when it
+ * is full or the writer is flushed, so recordings do not break up the writes to the stream. A byte order mark, if
+ * the charset writes one, is written when the writer is created, so it is never part of a recording.
+ * <p/>
+ * Recordings nest: each one is identified by the offset at which it started in a single shared record, which is
+ * discarded once the outermost recording ends. Neither flushing nor closing this writer flushes or closes the
+ * underlying stream.
+ */
+final class RecordingWriter extends Writer {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    @Nonnull
+    private final OutputStream out;
+    @Nonnull
+    private final CharsetEncoder encoder;
+    /**
+     * Encoded bytes not yet passed on to the stream.
+     */
+    @Nonnull
+    private final ByteBuffer buffer;
+    /**
+     * High surrogate at the end of the last write, which is encoded with the low surrogate at the start of the
+     * next; or 0 if there is none.
+     */
+    private char leftover;
+    @Nonnull
+    private byte[] record;
+    private int length;
+    private int recordings;
+
+    RecordingWriter(@Nonnull final OutputStream out, @Nonnull final Charset charset) {
+        this.out = checkNotNull(out, "out");
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        this.record = new byte[INITIAL_CAPACITY];
+        _writeByteOrderMark(charset);
+    }
+
+    @Override
+    public void write(@Nonnull final char[] chars, final int offset, final int count) throws IOException {
+        _encode(CharBuffer.wrap(chars, offset, count));
+    }
+
+    @Override
+    public void write(@Nonnull final String chars, final int offset, final int count) throws IOException {
+        _encode(CharBuffer.wrap(chars, offset, offset + count));
+    }
+
+    /**
+     * Write bytes that are already encoded in the charset of this writer, such as a previous recording, consuming
+     * the remaining bytes of the buffer.
+     */
+    void writeEncoded(@Nonnull final ByteBuffer bytes) throws IOException {
+        final ByteBuffer source = bytes.duplicate();
+        while (source.hasRemaining()) {
+            if (!buffer.hasRemaining()) {
+                _drain();
+            }
+            final int start = buffer.position();
+            source.limit(source.position() + Math.min(buffer.remaining(), source.remaining()));
+            buffer.put(source);
+            source.limit(bytes.limit());
+            _record(start);
+        }
+        bytes.position(bytes.limit());
+    }
+
+    /**
+     * Pass the encoded bytes on to the underlying stream, without flushing it.
+     */
+    @Override
+    public void flush() throws IOException {
+        _drain();
+    }
+
+    /**
+     * Pass the encoded bytes on to the underlying stream, without closing it.
+     */
+    @Override
+    public void close() throws IOException {
+        _drain();
+    }
+
+    /**
+     * @return the identifier of the new recording, to pass to the record methods once it is complete
+     */
+    int startRecording() {
+        recordings++;
+        return length;
+    }
+
+    /**
+     * @return the record, in which the bytes of the recording start at the offset of the recording
+     */
+    @Nonnull
+    byte[] getRecord() {
+        return record;
+    }
+
+    /**
+     * @return number of bytes written since the recording started
+     */
+    int getRecordedLength(final int recording) {
+        return length - recording;
+    }
+
+    /**
+     * End the most recently started recording that is still in progress.
+     */
+    void endRecording() {
+        checkState(recordings > 0, "no recording in progress");
+        if (--recordings == 0) {
+            length = 0;
+        }
+    }
+
+    /**
+     * Write the byte order mark of the charset, if it has one, leaving the encoder past the point of writing it.
+     * The length of the mark is found by comparing the encoding of one character with that of two.
+     */
+    private void _writeByteOrderMark(@Nonnull final Charset charset) {
+        final int mark = 2 * charset.encode("<").remaining() - charset.encode("<<").remaining();
+        if (mark > 0) {
+            encoder.encode(CharBuffer.wrap("<"), buffer, false);
+            buffer.position(mark);
+        }
+    }
+
+    private void _encode(@Nonnull final CharBuffer chars) throws IOException {
+        if (leftover != 0 && chars.hasRemaining()) {
+            final CharBuffer pair = CharBuffer.wrap(new char[]{leftover, chars.get()});
+            leftover = 0;
+            _encodeAvailable(pair);
+            // Had the pair ended in another high surrogate, it is put back ahead of the rest of the characters
+            chars.position(chars.position() - pair.remaining());
+        }
+        _encodeAvailable(chars);
+        if (chars.hasRemaining()) {
+            leftover = chars.get();
+        }
+    }
+
+    /**
+     * Encode the characters, leaving only a trailing high surrogate, since the encoder needs the character after it.
+     */
+    private void _encodeAvailable(@Nonnull final CharBuffer chars) throws IOException {
+        while (true) {
+            final int start = buffer.position();
+            final CoderResult result = encoder.encode(chars, buffer, false);
+            _record(start);
+            if (!result.isOverflow()) {
+                return;
+            }
+            _drain();
+        }
+    }
+
+    /**
+     * Append the bytes of the buffer from the given position to the record, if a recording is in progress.
+     */
+    private void _record(final int start) {
+        if (recordings > 0) {
+            final int count = buffer.position() - start;
+            if (length + count > record.length) {
+                record = Arrays.copyOf(record, Math.max(record.length * 2, length + count));
+            }
+            System.arraycopy(buffer.array(), start, record, length, count);
+            length += count;
+        }
+    }
+
+    private void _drain() throws IOException {
+        if (buffer.position() > 0) {
+            out.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+    }
+}
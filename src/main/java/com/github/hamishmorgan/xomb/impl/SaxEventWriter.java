@@ -0,0 +1,144 @@
+package com.github.hamishmorgan.xomb.impl;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import nu.xom.Attribute;
+import nu.xom.DocType;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Replays builder state to a SAX {@link ContentHandler}. Comments and the doctype are only reported if the handler
+ * also implements {@link LexicalHandler}.
+ */
+final class SaxEventWriter extends EventWriter<SAXException> {
+
+    @Nonnull
+    private final ContentHandler handler;
+    @Nullable
+    private final LexicalHandler lexicalHandler;
+    @Nonnull
+    private final AttributesImpl saxAttributes;
+    /**
+     * Character data is copied into this buffer, which is reused between events.
+     */
+    @Nonnull
+    private char[] buffer;
+
+    SaxEventWriter(@Nonnull final ContentHandler handler) {
+        this.handler = checkNotNull(handler, "handler");
+        this.lexicalHandler = handler instanceof LexicalHandler ? (LexicalHandler) handler : null;
+        this.saxAttributes = new AttributesImpl();
+        this.buffer = new char[64];
+    }
+
+    @Override
+    void startDocument() throws SAXException {
+        handler.startDocument();
+    }
+
+    @Override
+    void endDocument() throws SAXException {
+        handler.endDocument();
+    }
+
+    @Override
+    void docType(@Nonnull final DocType docType) throws SAXException {
+        if (lexicalHandler != null) {
+            lexicalHandler.startDTD(docType.getRootElementName(), docType.getPublicID(), docType.getSystemID());
+            lexicalHandler.endDTD();
+        }
+    }
+
+    @Override
+    void startElement(@Nonnull final String namespace, @Nonnull final String localName,
+                      @Nonnull final String qualifiedName, @Nonnull final String prefix,
+                      @Nonnull final List<Attribute> attributes, final int firstDeclaration) throws SAXException {
+        for (int i = firstDeclaration; i < getDeclarationCount(); i++) {
+            handler.startPrefixMapping(getDeclaredPrefix(i), getDeclaredURI(i));
+        }
+        saxAttributes.clear();
+        for (final Attribute attribute : attributes) {
+            saxAttributes.addAttribute(attribute.getNamespaceURI(), attribute.getLocalName(),
+                    attribute.getQualifiedName(), typeOf(attribute), attribute.getValue());
+        }
+        handler.startElement(namespace, localName, qualifiedName, saxAttributes);
+    }
+
+    @Override
+    void endElement(@Nonnull final String namespace, @Nonnull final String localName,
+                    @Nonnull final String qualifiedName, final int firstDeclaration) throws SAXException {
+        handler.endElement(namespace, localName, qualifiedName);
+        for (int i = firstDeclaration; i < getDeclarationCount(); i++) {
+            handler.endPrefixMapping(getDeclaredPrefix(i));
+        }
+    }
+
+    @Override
+    void text(@Nonnull final CharSequence data) throws SAXException {
+        handler.characters(toChars(data), 0, data.length());
+    }
+
+    @Override
+    void comment(@Nonnull final String data) throws SAXException {
+        if (lexicalHandler != null) {
+            lexicalHandler.comment(toChars(data), 0, data.length());
+        }
+    }
+
+    @Override
+    void processingInstruction(@Nonnull final String target, @Nonnull final String data) throws SAXException {
+        handler.processingInstruction(target, data);
+    }
+
+    @Nonnull
+    private char[] toChars(@Nonnull final CharSequence data) {
+        if (buffer.length < data.length()) {
+            buffer = new char[Math.max(data.length(), buffer.length * 2)];
+        }
+        DeferredText.getChars(data, buffer);
+        return buffer;
+    }
+
+    /**
+     * @return the SAX name of the attribute type, which has no equivalent for undeclared or enumerated types
+     */
+    @Nonnull
+    private static String typeOf(@Nonnull final Attribute attribute) {
+        final Attribute.Type type = attribute.getType();
+        if (type.equals(Attribute.Type.UNDECLARED)) {
+            return "CDATA";
+        } else if (type.equals(Attribute.Type.ENUMERATION)) {
+            return "NMTOKEN";
+        } else {
+            return type.getName();
+        }
+    }
+}
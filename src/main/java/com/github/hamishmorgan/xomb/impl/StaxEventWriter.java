@@ -0,0 +1,125 @@
+package com.github.hamishmorgan.xomb.impl;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import nu.xom.Attribute;
+import nu.xom.DocType;
+
+import javax.annotation.Nonnull;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Replays builder state to a StAX {@link XMLStreamWriter}. Namespace declarations are written explicitly, so the
+ * writer need not be namespace repairing.
+ */
+final class StaxEventWriter extends EventWriter<XMLStreamException> {
+
+    @Nonnull
+    private final XMLStreamWriter writer;
+    /**
+     * Character data that is not already a string is copied into this buffer, which is reused between events.
+     */
+    @Nonnull
+    private char[] buffer;
+
+    StaxEventWriter(@Nonnull final XMLStreamWriter writer) {
+        this.writer = checkNotNull(writer, "writer");
+        this.buffer = new char[0];
+    }
+
+    @Override
+    void startDocument() throws XMLStreamException {
+        writer.writeStartDocument();
+    }
+
+    @Override
+    void endDocument() throws XMLStreamException {
+        writer.writeEndDocument();
+    }
+
+    @Override
+    void docType(@Nonnull final DocType docType) throws XMLStreamException {
+        writer.writeDTD(docType.toXML());
+    }
+
+    @Override
+    void startElement(@Nonnull final String namespace, @Nonnull final String localName,
+                      @Nonnull final String qualifiedName, @Nonnull final String prefix,
+                      @Nonnull final List<Attribute> attributes, final int firstDeclaration)
+            throws XMLStreamException {
+        writer.writeStartElement(prefix, localName, namespace);
+        for (int i = firstDeclaration; i < getDeclarationCount(); i++) {
+            final String declaredPrefix = getDeclaredPrefix(i);
+            if (declaredPrefix.isEmpty()) {
+                writer.writeDefaultNamespace(getDeclaredURI(i));
+            } else {
+                writer.writeNamespace(declaredPrefix, getDeclaredURI(i));
+            }
+        }
+        for (final Attribute attribute : attributes) {
+            if (attribute.getNamespaceURI().isEmpty()) {
+                writer.writeAttribute(attribute.getLocalName(), attribute.getValue());
+            } else {
+                writer.writeAttribute(attribute.getNamespacePrefix(), attribute.getNamespaceURI(),
+                        attribute.getLocalName(), attribute.getValue());
+            }
+        }
+    }
+
+    @Override
+    void endElement(@Nonnull final String namespace, @Nonnull final String localName,
+                    @Nonnull final String qualifiedName, final int firstDeclaration) throws XMLStreamException {
+        writer.writeEndElement();
+    }
+
+    @Override
+    void text(@Nonnull final CharSequence data) throws XMLStreamException {
+        if (data instanceof String) {
+            writer.writeCharacters((String) data);
+            return;
+        }
+        if (buffer.length < data.length()) {
+            buffer = new char[Math.max(data.length(), buffer.length * 2)];
+        }
+        DeferredText.getChars(data, buffer);
+        writer.writeCharacters(buffer, 0, data.length());
+    }
+
+    @Override
+    void comment(@Nonnull final String data) throws XMLStreamException {
+        writer.writeComment(data);
+    }
+
+    @Override
+    void processingInstruction(@Nonnull final String target, @Nonnull final String data)
+            throws XMLStreamException {
+        if (data.isEmpty()) {
+            writer.writeProcessingInstruction(target);
+        } else {
+            writer.writeProcessingInstruction(target, data);
+        }
+    }
+}
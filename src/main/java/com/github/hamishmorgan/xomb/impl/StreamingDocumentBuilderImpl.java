@@ -0,0 +1,301 @@
+package com.github.hamishmorgan.xomb.impl;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import com.github.hamishmorgan.xomb.api.MissingRequiredPropertyException;
+import com.github.hamishmorgan.xomb.api.StreamingDocumentBuilder;
+import com.github.hamishmorgan.xomb.api.StreamingElementBuilder;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Writes a document to a character stream as the builder methods are called.
+ * <p/>
+ * The only state retained is the stack of open elements, so memory use does not grow with the size of the
+ * document. The XML declaration is written before the first piece of content, and each top-level node is followed
+ * by a line break.
+ */
+class StreamingDocumentBuilderImpl implements StreamingDocumentBuilder {
+
+    @Nonnull
+    private final BuilderContext context;
+    @Nonnull
+    private final MarkupWriter out;
+    @Nullable
+    private final Charset charset;
+    /**
+     * Elements that have been started but not yet closed, innermost first.
+     */
+    @Nonnull
+    private final Deque<StreamingElementBuilderImpl> openElements;
+    private boolean started;
+    private boolean rootElementStarted;
+    private boolean closed;
+
+    /**
+     * Constructor should not be called directly. Instead use
+     * {@link com.github.hamishmorgan.xomb.XomB#createStreamingDocument(java.io.Writer)} factory method.
+     *
+     * @param context context of the factory creating the builder
+     * @param writer  stream to write the document to
+     * @param charset charset of the stream, or null if unknown
+     */
+    StreamingDocumentBuilderImpl(@Nonnull final BuilderContext context, @Nonnull final Writer writer,
+                                 @Nullable final Charset charset) {
+        this.context = checkNotNull(context, "context");
+        this.out = new MarkupWriter(checkNotNull(writer, "writer"), charset, context.isTrusted());
+        this.charset = charset;
+        this.openElements = new ArrayDeque<StreamingElementBuilderImpl>();
+        this.started = false;
+        this.rootElementStarted = false;
+        this.closed = false;
+    }
+
+    @Override
+    @Nonnull
+    public StreamingDocumentBuilder withDocType(@Nonnull final String rootElementName,
+                                                @Nonnull final String publicID,
+                                                @Nonnull final URI systemID) throws IOException {
+        checkNotNull(publicID, "publicID");
+        checkNotNull(systemID, "systemID");
+        checkArgument(!publicID.isEmpty(), "argument publicID is empty");
+        if (!context.isTrusted()) {
+            _checkPublicID(publicID);
+        }
+        return _writeDocType(rootElementName, publicID, systemID.toString());
+    }
+
+    @Override
+    @Nonnull
+    public StreamingDocumentBuilder withDocType(@Nonnull final String rootElementName) throws IOException {
+        return _writeDocType(rootElementName, null, null);
+    }
+
+    @Override
+    @Nonnull
+    public StreamingDocumentBuilder addPI(@Nonnull final String target, @Nonnull final String data)
+            throws IOException {
+        _checkWritable();
+        _start();
+        _writePI(target, data);
+        out.write('\n');
+        return this;
+    }
+
+    @Override
+    @Nonnull
+    public StreamingDocumentBuilder addComment(@Nonnull final String data) throws IOException {
+        _checkWritable();
+        _start();
+        _writeComment(data);
+        out.write('\n');
+        return this;
+    }
+
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    public StreamingElementBuilder startRoot(@Nonnull final String name) throws IOException {
+        _checkWritable();
+        checkState(!rootElementStarted, "Root element has already been set.");
+        _start();
+        rootElementStarted = true;
+        return _startElement(name);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (!openElements.isEmpty()) {
+            openElements.getLast().close();
+        }
+        if (!rootElementStarted) {
+            throw new MissingRequiredPropertyException("rootElement");
+        }
+        closed = true;
+        out.flush();
+    }
+
+    @Nonnull
+    private StreamingDocumentBuilder _writeDocType(@Nonnull final String rootElementName,
+                                                   @Nullable final String publicID,
+                                                   @Nullable final String systemID) throws IOException {
+        final String name = _name(rootElementName).getQualifiedName();
+        checkState(!started, "DocType must be set before any other content.");
+        _start();
+        out.write("<!DOCTYPE ");
+        out.write(name);
+        if (publicID != null) {
+            out.write(" PUBLIC \"");
+            out.write(publicID);
+            out.write("\" \"");
+            out.write(systemID);
+            out.write('"');
+        }
+        out.write(">\n");
+        return this;
+    }
+
+    /**
+     * Check that every character of a public ID is a PubidChar, as {@link nu.xom.DocType} does, since the ID is
+     * written between double quotes without escaping.
+     */
+    private static void _checkPublicID(@Nonnull final String publicID) {
+        for (int i = 0; i < publicID.length(); i++) {
+            final char c = publicID.charAt(i);
+            checkArgument((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                            || " \r\n-'()+,./:=?;!*#@$_%".indexOf(c) >= 0,
+                    "argument publicID contains an illegal character: %s", publicID);
+        }
+    }
+
+    /**
+     * Write the XML declaration, if it has not been written yet.
+     */
+    private void _start() throws IOException {
+        if (!started) {
+            started = true;
+            out.write("<?xml version=\"1.0\"");
+            if (charset != null) {
+                out.write(" encoding=\"");
+                out.write(charset.name());
+                out.write('"');
+            }
+            out.write("?>\n");
+        }
+    }
+
+    private void _checkWritable() {
+        checkState(!closed, "Document has already been closed.");
+        checkState(openElements.isEmpty(), "Root element is still open.");
+    }
+
+    /*
+     * Methods used by the element builders.
+     */
+
+    @Nonnull
+    StreamingElementBuilderImpl _startElement(@Nonnull final String name) throws IOException {
+        final QualifiedName qualifiedName = _name(name);
+        out.write('<');
+        out.write(qualifiedName.getQualifiedName());
+        final StreamingElementBuilderImpl element = new StreamingElementBuilderImpl(this, qualifiedName);
+        openElements.push(element);
+        return element;
+    }
+
+    /**
+     * Check that the given element is the innermost open element, so it may be written to.
+     */
+    void _checkCurrent(@Nonnull final StreamingElementBuilderImpl element) {
+        if (openElements.peek() != element) {
+            checkState(openElements.contains(element), "Element has already been closed.");
+            throw new IllegalStateException("A child element is still open.");
+        }
+    }
+
+    /**
+     * Intern a name, verifying it unless the input is trusted. Verified names are cached, so each distinct name is
+     * verified at most once.
+     */
+    @Nonnull
+    QualifiedName _name(@Nonnull final String name) {
+        return context.isTrusted() ? context.getSymbols().name(name) : context.getSymbols().verifiedName(name);
+    }
+
+    /**
+     * Close every open element up to and including the given element.
+     */
+    void _endElements(@Nonnull final StreamingElementBuilderImpl element) throws IOException {
+        StreamingElementBuilderImpl current;
+        do {
+            current = openElements.pop();
+            current._writeEndTag();
+        } while (current != element);
+        if (openElements.isEmpty()) {
+            out.write('\n');
+        }
+    }
+
+    /**
+     * Whether a prefix is declared by one of the open elements.
+     */
+    boolean _isBound(@Nonnull final String prefix) {
+        for (final StreamingElementBuilderImpl element : openElements) {
+            if (element._declares(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean _isOpen(@Nonnull final StreamingElementBuilderImpl element) {
+        return openElements.contains(element);
+    }
+
+    @Nonnull
+    MarkupWriter _out() {
+        return out;
+    }
+
+    @Nonnull
+    BuilderContext _context() {
+        return context;
+    }
+
+    void _writePI(@Nonnull final String target, @Nonnull final String data) throws IOException {
+        checkNotNull(target, "target");
+        checkNotNull(data, "data");
+        checkArgument(!target.isEmpty(), "argument target is empty");
+        if (!context.isTrusted()) {
+            SymbolTable.checkTarget(target);
+        }
+        out.write("<?");
+        out.write(target);
+        if (!data.isEmpty()) {
+            out.write(' ');
+            out.writeProcessingInstructionData(data);
+        }
+        out.write("?>");
+    }
+
+    void _writeComment(@Nonnull final String data) throws IOException {
+        checkNotNull(data, "data");
+        out.write("<!--");
+        out.writeCommentData(data);
+        out.write("-->");
+    }
+}
@@ -0,0 +1,227 @@
+package com.github.hamishmorgan.xomb.impl;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import com.github.hamishmorgan.xomb.api.StreamingElementBuilder;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashSet;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Writes an element of a {@link StreamingDocumentBuilderImpl}. The start tag is left open until the first piece
+ * of content is written, so that attributes can still be added.
+ * <p/>
+ * Unless the input is trusted, the names of the attributes written to the open start tag are retained, so that
+ * duplicates are rejected, and the prefixes of the element and its attributes are checked to be bound when the start
+ * tag is closed.
+ */
+class StreamingElementBuilderImpl implements StreamingElementBuilder {
+
+    @Nonnull
+    private final StreamingDocumentBuilderImpl document;
+    @Nonnull
+    private final QualifiedName qualifiedName;
+    /**
+     * Whether the start tag is still open, in which case the element has no content yet.
+     */
+    private boolean startTagOpen;
+    /**
+     * Qualified names of the attributes, including namespace declarations, written to the open start tag; or null
+     * if there are none or the input is trusted.
+     */
+    @Nullable
+    private Set<String> attributeNames;
+    /**
+     * Prefixes declared by the start tag, with the empty string standing for the default namespace; or null if there
+     * are none or the input is trusted.
+     */
+    @Nullable
+    private Set<String> declaredPrefixes;
+
+    StreamingElementBuilderImpl(@Nonnull final StreamingDocumentBuilderImpl document,
+                                @Nonnull final QualifiedName name) {
+        this.document = checkNotNull(document, "document");
+        this.qualifiedName = checkNotNull(name, "name");
+        this.startTagOpen = true;
+    }
+
+    @Override
+    @Nonnull
+    public StreamingElementBuilder withNamespace(@Nonnull final URI namespace) throws IOException {
+        checkNotNull(namespace, "namespace");
+        _checkStartTagOpen();
+        final String prefix = qualifiedName.getPrefix();
+        return _writeAttribute(document._name(prefix != null ? "xmlns:" + prefix : "xmlns"),
+                document._context().getSymbols().namespace(namespace));
+    }
+
+    @Override
+    @Nonnull
+    public StreamingElementBuilder addAttribute(@Nonnull final String name, @Nonnull final String value)
+            throws IOException {
+        checkNotNull(value, "value");
+        _checkStartTagOpen();
+        return _writeAttribute(document._name(name), value);
+    }
+
+    @Override
+    @Nonnull
+    public StreamingElementBuilder add(@Nonnull final String data) throws IOException {
+        checkNotNull(data, "data");
+        _startContent();
+        document._out().writeText(data);
+        return this;
+    }
+
+    @Override
+    @Nonnull
+    public StreamingElementBuilder addPI(@Nonnull final String target, @Nonnull final String data)
+            throws IOException {
+        _startContent();
+        document._writePI(target, data);
+        return this;
+    }
+
+    @Override
+    @Nonnull
+    public StreamingElementBuilder addComment(@Nonnull final String data) throws IOException {
+        _startContent();
+        document._writeComment(data);
+        return this;
+    }
+
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    public StreamingElementBuilder startElement(@Nonnull final String name) throws IOException {
+        checkNotNull(name, "name");
+        _startContent();
+        return document._startElement(name);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (document._isOpen(this)) {
+            document._endElements(this);
+        }
+    }
+
+    void _writeEndTag() throws IOException {
+        final MarkupWriter out = document._out();
+        if (startTagOpen) {
+            _closeStartTag();
+            out.write("/>");
+        } else {
+            out.write("</");
+            out.write(qualifiedName.getQualifiedName());
+            out.write('>');
+        }
+    }
+
+    private void _checkStartTagOpen() {
+        document._checkCurrent(this);
+        checkState(startTagOpen, "Attributes must be added before any content.");
+    }
+
+    /**
+     * Close the start tag, if it is still open, before writing content.
+     */
+    private void _startContent() throws IOException {
+        document._checkCurrent(this);
+        if (startTagOpen) {
+            _closeStartTag();
+            document._out().write('>');
+        }
+    }
+
+    /**
+     * Whether the start tag declares the given prefix.
+     */
+    boolean _declares(@Nonnull final String prefix) {
+        return declaredPrefixes != null && declaredPrefixes.contains(prefix);
+    }
+
+    /**
+     * Check the prefixes used by the start tag, unless the input is trusted, and discard the attribute names.
+     */
+    private void _closeStartTag() {
+        if (attributeNames != null) {
+            for (final String attributeName : attributeNames) {
+                final QualifiedName name = document._name(attributeName);
+                if (!_isDeclaration(name)) {
+                    _checkBound(name.getPrefix());
+                }
+            }
+            attributeNames = null;
+        }
+        if (!document._context().isTrusted()) {
+            _checkBound(qualifiedName.getPrefix());
+        }
+        startTagOpen = false;
+    }
+
+    private void _checkBound(@Nullable final String prefix) {
+        checkArgument(prefix == null || "xml".equals(prefix) || document._isBound(prefix),
+                "prefix %s is not bound to a namespace", prefix);
+    }
+
+    private static boolean _isDeclaration(@Nonnull final QualifiedName name) {
+        return name.getPrefix() == null ? "xmlns".equals(name.getLocalName()) : "xmlns".equals(name.getPrefix());
+    }
+
+    @Nonnull
+    private StreamingElementBuilder _writeAttribute(@Nonnull final QualifiedName name,
+                                                    @Nonnull final String value) throws IOException {
+        final String attributeName = name.getQualifiedName();
+        if (!document._context().isTrusted()) {
+            if (attributeNames == null) {
+                attributeNames = new HashSet<String>();
+            }
+            checkArgument(attributeNames.add(attributeName), "attribute %s has already been added", attributeName);
+            if (_isDeclaration(name)) {
+                // Namespaces 1.0 has no undeclaration of a prefix, only of the default namespace
+                checkArgument(name.getPrefix() == null || !value.isEmpty(),
+                        "prefix %s can not be bound to the empty namespace", name.getLocalName());
+                if (declaredPrefixes == null) {
+                    declaredPrefixes = new HashSet<String>();
+                }
+                declaredPrefixes.add(name.getPrefix() == null ? "" : name.getLocalName());
+            }
+        }
+        final MarkupWriter out = document._out();
+        out.write(' ');
+        out.write(attributeName);
+        out.write("=\"");
+        out.writeAttributeValue(value);
+        out.write('"');
+        return this;
+    }
+}
@@ -0,0 +1,227 @@
+package com.github.hamishmorgan.xomb.impl;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import com.google.common.base.Objects;
+import nu.xom.IllegalNameException;
+import nu.xom.IllegalTargetException;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Strings.isNullOrEmpty;
+
+/**
+ * Interned element names and namespace strings, shared by all builders created by one factory.
+ * <p/>
+ * Documents tend to repeat a small number of element names and namespaces many times, so parsing each name into
+ * its prefix and local name, and converting each namespace URI to a string, is done once per distinct symbol
+ * rather than once per element. The table stops growing once it holds {@link #MAX_SYMBOLS} symbols of a kind, so
+ * a stream of distinct names cannot exhaust memory; symbols beyond the limit are simply not interned.
+ */
+@ThreadSafe
+final class SymbolTable {
+
+    /**
+     * Maximum number of symbols of each kind to intern.
+     */
+    static final int MAX_SYMBOLS = 4096;
+
+    @Nonnull
+    private final ConcurrentMap<String, QualifiedName> names;
+
+    @Nonnull
+    private final ConcurrentMap<String, QualifiedName> verifiedNames;
+
+    @Nonnull
+    private final ConcurrentMap<URI, String> namespaces;
+
+    SymbolTable() {
+        names = new ConcurrentHashMap<String, QualifiedName>();
+        verifiedNames = new ConcurrentHashMap<String, QualifiedName>();
+        namespaces = new ConcurrentHashMap<URI, String>();
+    }
+
+    /**
+     * @param name qualified name, optionally including a prefix separated by a colon
+     * @return the interned name
+     * @throws NullPointerException if name is null
+     */
+    @Nonnull
+    @CheckReturnValue
+    QualifiedName name(@Nonnull final String name) {
+        QualifiedName symbol = names.get(checkNotNull(name, "name"));
+        if (symbol == null) {
+            symbol = QualifiedName.parse(name);
+            if (names.size() < MAX_SYMBOLS) {
+                final QualifiedName existing = names.putIfAbsent(name, symbol);
+                if (existing != null) {
+                    symbol = existing;
+                }
+            }
+        }
+        return symbol;
+    }
+
+    /**
+     * @param prefix    namespace prefix, or null if there isn't one
+     * @param localName local name
+     * @return the interned name formed from the given parts
+     * @throws NullPointerException if localName is null
+     */
+    @Nonnull
+    @CheckReturnValue
+    QualifiedName name(@Nullable final String prefix, @Nonnull final String localName) {
+        checkNotNull(localName, "localName");
+        final QualifiedName symbol = name(prefix == null ? localName : prefix + ':' + localName);
+        // Parts containing a colon are split differently when the name is parsed, so they are not interned
+        return Objects.equal(symbol.getPrefix(), prefix) && localName.equals(symbol.getLocalName())
+                ? symbol : QualifiedName.of(prefix, localName);
+    }
+
+    /**
+     * As {@link #name(String)}, but also check that the prefix and local name are legal XML names, for callers
+     * that write names directly rather than through XOM.
+     *
+     * @param name qualified name, optionally including a prefix separated by a colon
+     * @return the interned name
+     * @throws NullPointerException     if name is null
+     * @throws IllegalArgumentException if the local name is empty
+     * @throws IllegalNameException     if the prefix or local name is not a legal XML name without colons
+     */
+    @Nonnull
+    @CheckReturnValue
+    QualifiedName verifiedName(@Nonnull final String name) {
+        QualifiedName symbol = verifiedNames.get(checkNotNull(name, "name"));
+        if (symbol == null) {
+            symbol = name(name);
+            checkArgument(!isNullOrEmpty(symbol.getLocalName()), "argument localName is empty");
+            checkNCName(symbol.getLocalName());
+            if (symbol.getPrefix() != null) {
+                checkNCName(symbol.getPrefix());
+            }
+            if (verifiedNames.size() < MAX_SYMBOLS) {
+                verifiedNames.putIfAbsent(name, symbol);
+            }
+        }
+        return symbol;
+    }
+
+    /**
+     * Check that a processing instruction target is a legal XML name, contains no colons (as required by the
+     * namespaces recommendation), and is not reserved.
+     *
+     * @param target processing instruction target
+     * @throws NullPointerException   if target is null
+     * @throws IllegalTargetException if target is not a legal name, contains a colon, or is "xml" in any case
+     */
+    static void checkTarget(@Nonnull final String target) {
+        checkNotNull(target, "target");
+        if (!isNCName(target)) {
+            throw new IllegalTargetException("Processing instruction target is not a legal name without colons: "
+                    + target);
+        }
+        if (target.equalsIgnoreCase("xml")) {
+            throw new IllegalTargetException("Processing instruction target is reserved: " + target);
+        }
+    }
+
+    /**
+     * @throws IllegalNameException if name is not a legal XML name without colons
+     */
+    static void checkNCName(@Nonnull final String name) {
+        if (!isNCName(name)) {
+            throw new IllegalNameException("Not a legal XML name without colons: " + name);
+        }
+    }
+
+    /**
+     * Whether a string is an NCName: a name as defined by XML 1.0 (fifth edition) that contains no colons. Names
+     * are checked character by character, without allocating.
+     */
+    static boolean isNCName(@Nonnull final String name) {
+        final int length = name.length();
+        if (length == 0) {
+            return false;
+        }
+        for (int i = 0; i < length; ) {
+            final int c = name.codePointAt(i);
+            if (i == 0 ? !isNameStartChar(c) : !isNameChar(c)) {
+                return false;
+            }
+            i += Character.charCount(c);
+        }
+        return true;
+    }
+
+    /**
+     * Whether a character may start an NCName.
+     */
+    private static boolean isNameStartChar(final int c) {
+        if (c < 0x80) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+        }
+        return (c >= 0xC0 && c <= 0xD6) || (c >= 0xD8 && c <= 0xF6) || (c >= 0xF8 && c <= 0x2FF)
+                || (c >= 0x370 && c <= 0x37D) || (c >= 0x37F && c <= 0x1FFF) || (c >= 0x200C && c <= 0x200D)
+                || (c >= 0x2070 && c <= 0x218F) || (c >= 0x2C00 && c <= 0x2FEF) || (c >= 0x3001 && c <= 0xD7FF)
+                || (c >= 0xF900 && c <= 0xFDCF) || (c >= 0xFDF0 && c <= 0xFFFD) || (c >= 0x10000 && c <= 0xEFFFF);
+    }
+
+    /**
+     * Whether a character may appear after the first in an NCName.
+     */
+    private static boolean isNameChar(final int c) {
+        if (c < 0x80) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '_' || c == '-' || c == '.';
+        }
+        return isNameStartChar(c) || c == 0xB7 || (c >= 0x300 && c <= 0x36F) || (c >= 0x203F && c <= 0x2040);
+    }
+
+    /**
+     * @param namespace
+     * @return the interned string form of the namespace
+     * @throws NullPointerException if namespace is null
+     */
+    @Nonnull
+    @CheckReturnValue
+    String namespace(@Nonnull final URI namespace) {
+        String symbol = namespaces.get(checkNotNull(namespace, "namespace"));
+        if (symbol == null) {
+            symbol = namespace.toString();
+            if (namespaces.size() < MAX_SYMBOLS) {
+                final String existing = namespaces.putIfAbsent(namespace, symbol);
+                if (existing != null) {
+                    symbol = existing;
+                }
+            }
+        }
+        return symbol;
+    }
+}
@@ -20,14 +20,31 @@ package com.github.hamishmorgan.xomb.impl;
  * #L%
  */
 
+import com.github.hamishmorgan.xomb.api.ConcurrentElementBuilder;
 import com.github.hamishmorgan.xomb.api.DocTypeBuilder;
 import com.github.hamishmorgan.xomb.api.DocumentBuilder;
 import com.github.hamishmorgan.xomb.api.ElementBuilder;
+import com.github.hamishmorgan.xomb.api.StreamingDocumentBuilder;
+import com.github.hamishmorgan.xomb.api.Template;
+import com.github.hamishmorgan.xomb.spi.MarkupCache;
 import com.github.hamishmorgan.xomb.spi.XomBuilderFactory;
+import com.github.hamishmorgan.xomb.spi.XomBuilderFeature;
+import com.google.common.hash.HashCode;
+import nu.xom.Document;
+import nu.xom.Node;
 import nu.xom.NodeFactory;
+import nu.xom.Nodes;
 
 import javax.annotation.CheckReturnValue;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Set;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -37,8 +54,23 @@ public class XomBuilderFactoryImpl implements XomBuilderFactory {
     @Nonnull
     private final NodeFactory nodeFactory;
 
+    @Nonnull
+    final BuilderContext context;
+
     public XomBuilderFactoryImpl(@Nonnull final NodeFactory nodeFactory) {
         this.nodeFactory = checkNotNull(nodeFactory, "nodeFactory");
+        this.context = new BuilderContext(nodeFactory);
+    }
+
+    /**
+     * @param nodeFactory used to create nodes
+     * @param features    optional behaviours to enable for all builders
+     * @throws NullPointerException if nodeFactory or features is null
+     */
+    public XomBuilderFactoryImpl(@Nonnull final NodeFactory nodeFactory,
+                                 @Nonnull final Set<XomBuilderFeature> features) {
+        this.nodeFactory = checkNotNull(nodeFactory, "nodeFactory");
+        this.context = new BuilderContext(nodeFactory, features);
     }
 
     @Nonnull
@@ -48,6 +80,12 @@ public class XomBuilderFactoryImpl implements XomBuilderFactory {
         return nodeFactory;
     }
 
+    @Override
+    @CheckReturnValue
+    public boolean isEnabled(@Nonnull final XomBuilderFeature feature) {
+        return context.isEnabled(feature);
+    }
+
     @Override
     @Nonnull
     @CheckReturnValue
@@ -66,14 +104,162 @@ public class XomBuilderFactoryImpl implements XomBuilderFactory {
     @Nonnull
     @CheckReturnValue
     public ElementBuilder createRoot(@Nonnull final String name) {
-        return new ElementBuilderImpl(nodeFactory, name, true);
+        return new ElementBuilderImpl(context, name, true);
     }
 
     @Override
     @Nonnull
     @CheckReturnValue
     public ElementBuilder createElement(@Nonnull final String name) {
-        return new ElementBuilderImpl(nodeFactory, name, false);
+        return new ElementBuilderImpl(context, name, false);
+    }
+
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    public ElementBuilder createElement(@Nonnull final String name, final int expectedChildren,
+                                        final int expectedAttributes) {
+        return new ElementBuilderImpl(context, name, false, expectedChildren, expectedAttributes);
+    }
+
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    public ConcurrentElementBuilder createConcurrentElement(@Nonnull final String name) {
+        return new ConcurrentElementBuilderImpl(context, name, false);
     }
 
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    public Template<Nodes> createTemplate(@Nonnull final ElementBuilder elementBuilder) {
+        checkNotNull(elementBuilder, "elementBuilder");
+        return new ElementTemplateImpl(elementBuilder instanceof ElementSnapshotSource
+                ? ((ElementSnapshotSource) elementBuilder).buildTemplate()
+                : elementBuilder.build());
+    }
+
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    public Template<Document> createTemplate(@Nonnull final DocumentBuilder documentBuilder) {
+        checkNotNull(documentBuilder, "documentBuilder");
+        return new DocumentTemplateImpl(documentBuilder instanceof DocumentBuilderImpl
+                ? ((DocumentBuilderImpl) documentBuilder).buildTemplate()
+                : documentBuilder.build());
+    }
+
+
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    public StreamingDocumentBuilder createStreamingDocument(@Nonnull final Writer writer) {
+        return new StreamingDocumentBuilderImpl(context, writer, null);
+    }
+
+    @Override
+    @Nonnull
+    @CheckReturnValue
+    public StreamingDocumentBuilder createStreamingDocument(@Nonnull final OutputStream out,
+                                                            @Nonnull final Charset charset) {
+        checkNotNull(out, "out");
+        checkNotNull(charset, "charset");
+        return new StreamingDocumentBuilderImpl(context,
+                new BufferedWriter(new OutputStreamWriter(out, charset.newEncoder())), charset);
+    }
+
+    /*
+     * Operations that need the internals of this implementation, on its builders or on nodes, which back the
+     * corresponding methods of com.github.hamishmorgan.xomb.XomUtil; those should be used in preference.
+     */
+
+    /**
+     * @see com.github.hamishmorgan.xomb.XomUtil#digest(Node)
+     */
+    @Nonnull
+    @CheckReturnValue
+    public static HashCode digest(@Nonnull final Node node) {
+        return Digests.digest(node);
+    }
+
+    /**
+     * @see com.github.hamishmorgan.xomb.XomUtil#digest(ElementBuilder)
+     */
+    @Nonnull
+    @CheckReturnValue
+    public static HashCode digest(@Nonnull final ElementBuilder builder) {
+        return Digests.digest(builder);
+    }
+
+    /**
+     * @see com.github.hamishmorgan.xomb.XomUtil#digest(DocumentBuilder)
+     */
+    @Nonnull
+    @CheckReturnValue
+    public static HashCode digest(@Nonnull final DocumentBuilder builder) {
+        return Digests.digest(builder);
+    }
+
+    /**
+     * @param builder builder to fingerprint
+     * @return digest of the document that the builder would currently build, which also covers everything else
+     *         that affects how it is serialized, so documents with the same fingerprint have the same markup
+     * @throws IllegalArgumentException if the builder was not created by this implementation
+     * @throws IllegalStateException    if the builder has already been consumed
+     */
+    @Nonnull
+    @CheckReturnValue
+    public static HashCode fingerprint(@Nonnull final DocumentBuilder builder) {
+        return Digests.fingerprint(builder);
+    }
+
+    /**
+     * @param builder builder to inspect
+     * @return whether the document that the builder would currently build contains deferred content, which is read
+     *         again each time the builder is digested or built
+     * @throws IllegalArgumentException if the builder was not created by this implementation
+     * @throws IllegalStateException    if the builder has already been consumed
+     */
+    @CheckReturnValue
+    public static boolean isDeferred(@Nonnull final DocumentBuilder builder) {
+        return Digests.isDeferred(builder);
+    }
+
+    /**
+     * @param charset charset used by the stream, or null if every character can be written
+     * @see com.github.hamishmorgan.xomb.XomUtil#writeFragment(Node, Appendable)
+     */
+    public static void writeFragment(@Nonnull final Node node, @Nonnull final Writer out,
+                                     @Nullable final Charset charset) throws IOException {
+        Fragments.write(node, out, charset);
+    }
+
+    /**
+     * @param charset charset used by the stream, or null if every character can be written
+     * @see com.github.hamishmorgan.xomb.XomUtil#writeFragment(Nodes, Appendable)
+     */
+    public static void writeFragment(@Nonnull final Nodes nodes, @Nonnull final Writer out,
+                                     @Nullable final Charset charset) throws IOException {
+        Fragments.write(nodes, out, charset);
+    }
+
+    /**
+     * @see com.github.hamishmorgan.xomb.XomUtil#writeDocument(DocumentBuilder, OutputStream, Charset,
+     * com.github.hamishmorgan.xomb.FragmentCache)
+     */
+    public static void writeDocument(@Nonnull final DocumentBuilder builder, @Nonnull final OutputStream out,
+                                     @Nonnull final Charset charset, @Nullable final MarkupCache cache)
+            throws IOException {
+        Fragments.write(builder, out, charset, cache);
+    }
+
+    /**
+     * @see com.github.hamishmorgan.xomb.XomUtil#writeFragment(ElementBuilder, OutputStream, Charset,
+     * com.github.hamishmorgan.xomb.FragmentCache)
+     */
+    public static void writeFragment(@Nonnull final ElementBuilder builder, @Nonnull final OutputStream out,
+                                     @Nonnull final Charset charset, @Nullable final MarkupCache cache)
+            throws IOException {
+        Fragments.write(builder, out, charset, cache);
+    }
 }
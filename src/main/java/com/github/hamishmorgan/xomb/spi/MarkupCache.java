@@ -0,0 +1,55 @@
+package com.github.hamishmorgan.xomb.spi;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+
+/**
+ * Store of encoded markup, which a builder implementation uses when writing builders to a stream, to splice in the
+ * markup of a nested builder that is unchanged since it was last written rather than writing it again.
+ * <p/>
+ * Keys are created by the implementation, and are equal only when the markup they identify is the same; the cache
+ * may discard an entry at any time.
+ */
+public interface MarkupCache {
+
+    /**
+     * @param key key created by the implementation
+     * @return the cached markup, as a buffer of its own which the caller may read, or null if there is none
+     */
+    @Nullable
+    @CheckReturnValue
+    ByteBuffer get(@Nonnull Object key);
+
+    /**
+     * Cache a copy of the given markup.
+     *
+     * @param key    key created by the implementation
+     * @param markup array holding the markup, which is not retained
+     * @param offset offset of the markup in the array
+     * @param length length of the markup in bytes
+     */
+    void put(@Nonnull Object key, @Nonnull byte[] markup, int offset, int length);
+
+}
@@ -20,13 +20,24 @@ package com.github.hamishmorgan.xomb.spi;
  * #L%
  */
 
+import com.github.hamishmorgan.xomb.api.ConcurrentElementBuilder;
 import com.github.hamishmorgan.xomb.api.DocTypeBuilder;
 import com.github.hamishmorgan.xomb.api.DocumentBuilder;
 import com.github.hamishmorgan.xomb.api.ElementBuilder;
+import com.github.hamishmorgan.xomb.api.StreamingDocumentBuilder;
+import com.github.hamishmorgan.xomb.api.Template;
+import nu.xom.Document;
 import nu.xom.NodeFactory;
+import nu.xom.Nodes;
 
 import javax.annotation.CheckReturnValue;
 import javax.annotation.Nonnull;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 
 public interface XomBuilderFactory {
 
@@ -34,6 +45,18 @@ public interface XomBuilderFactory {
     @CheckReturnValue
     NodeFactory getNodeFactory();
 
+    /**
+     * @param feature
+     * @return whether the given feature is enabled for builders created by this factory; by default no feature is
+     * enabled
+     * @throws NullPointerException if feature is null
+     */
+    @CheckReturnValue
+    default boolean isEnabled(@Nonnull XomBuilderFeature feature) {
+        checkNotNull(feature, "feature");
+        return false;
+    }
+
     @Nonnull
     @CheckReturnValue
     DocumentBuilder createDocument();
@@ -49,4 +72,108 @@ public interface XomBuilderFactory {
     @Nonnull
     @CheckReturnValue
     ElementBuilder createElement(@Nonnull String name);
+
+    /**
+     * Create an element builder with space reserved for the given number of children and attributes, so that
+     * builders of a known shape never have to grow their storage while being populated. The sizes are only hints;
+     * the builder accepts any number of children and attributes. By default the hints are checked and then ignored.
+     *
+     * @param name               the qualified element name
+     * @param expectedChildren   number of children expected to be added
+     * @param expectedAttributes number of attributes expected to be added
+     * @return new element builder
+     * @throws NullPointerException     if name is null
+     * @throws IllegalArgumentException if name is empty, or either expected size is negative
+     */
+    @Nonnull
+    @CheckReturnValue
+    default ElementBuilder createElement(@Nonnull String name, int expectedChildren, int expectedAttributes) {
+        checkArgument(expectedChildren >= 0, "argument expectedChildren is negative");
+        checkArgument(expectedAttributes >= 0, "argument expectedAttributes is negative");
+        return createElement(name);
+    }
+
+    /**
+     * Create an element builder to which many threads may add children and attributes at the same time.
+     *
+     * @param name the qualified element name
+     * @return thread safe element builder
+     * @throws NullPointerException     if name is null
+     * @throws IllegalArgumentException if name is empty
+     * @throws UnsupportedOperationException if the factory does not support this operation; the default
+     *                                       implementation always throws
+     */
+    @Nonnull
+    @CheckReturnValue
+    default ConcurrentElementBuilder createConcurrentElement(@Nonnull String name) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Compile the current state of the given builder into a template, which can be instantiated repeatedly with
+     * values for the slots added by {@link ElementBuilder#addSlot(String)} and
+     * {@link ElementBuilder#addAttributeSlot(String, String)}. Subsequent changes to the builder do not affect the
+     * template.
+     *
+     * @param elementBuilder
+     * @return immutable template
+     * @throws NullPointerException if elementBuilder is null
+     * @throws UnsupportedOperationException if the factory does not support this operation; the default
+     *                                       implementation always throws
+     */
+    @Nonnull
+    @CheckReturnValue
+    default Template<Nodes> createTemplate(@Nonnull ElementBuilder elementBuilder) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Compile the current state of the given builder into a template, which can be instantiated repeatedly with
+     * values for the slots added to its elements. Subsequent changes to the builder do not affect the template.
+     *
+     * @param documentBuilder
+     * @return immutable template
+     * @throws NullPointerException if documentBuilder is null
+     * @throws UnsupportedOperationException if the factory does not support this operation; the default
+     *                                       implementation always throws
+     */
+    @Nonnull
+    @CheckReturnValue
+    default Template<Document> createTemplate(@Nonnull DocumentBuilder documentBuilder) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Create a builder that writes a document directly to the given stream, without constructing XOM nodes. The
+     * caller is responsible for closing the stream, after closing the builder.
+     *
+     * @param writer
+     * @return streaming document builder
+     * @throws NullPointerException if writer is null
+     * @throws UnsupportedOperationException if the factory does not support this operation; the default
+     *                                       implementation always throws
+     */
+    @Nonnull
+    @CheckReturnValue
+    default StreamingDocumentBuilder createStreamingDocument(@Nonnull Writer writer) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Create a builder that writes a document directly to the given stream, without constructing XOM nodes.
+     * Output is buffered, and characters that can not be encoded in the given charset are written as character
+     * references. The caller is responsible for closing the stream, after closing the builder.
+     *
+     * @param out
+     * @param charset
+     * @return streaming document builder
+     * @throws NullPointerException if out or charset is null
+     * @throws UnsupportedOperationException if the factory does not support this operation; the default
+     *                                       implementation always throws
+     */
+    @Nonnull
+    @CheckReturnValue
+    default StreamingDocumentBuilder createStreamingDocument(@Nonnull OutputStream out, @Nonnull Charset charset) {
+        throw new UnsupportedOperationException();
+    }
 }
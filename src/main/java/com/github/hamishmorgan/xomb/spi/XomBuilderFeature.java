@@ -0,0 +1,44 @@
+package com.github.hamishmorgan.xomb.spi;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+/**
+ * Optional behaviours of a {@link XomBuilderFactory}, which apply to every builder it creates.
+ */
+public enum XomBuilderFeature {
+
+    /**
+     * Trust that every argument passed to the builders is valid, and skip the checks made on each call.
+     * <p/>
+     * Null and empty argument checks, the check that an added node does not already have a parent, and, in streaming
+     * builders, the scan of character data for characters that are not allowed in XML are all skipped; streaming
+     * builders also verify each distinct name only once. Checks on the order of calls, such as adding to a consumed
+     * or closed builder, are still made. XOM itself still verifies names and text as nodes are constructed, so a
+     * template built from trusted input is fully validated once, when it is created, and only the slot values are
+     * checked when it is instantiated.
+     * <p/>
+     * This should only be enabled when the content comes from a trusted source, such as the application's own
+     * templates; invalid input may produce malformed output, or fail later and less clearly than it would otherwise.
+     */
+    TRUSTED_INPUT
+
+}
@@ -0,0 +1,169 @@
+package com.github.hamishmorgan.xomb;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.github.hamishmorgan.xomb.api.DocumentBuilder;
+import com.google.common.base.Charsets;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class BatchRendererTest {
+
+    private static final SerializationProfile PROFILE = SerializationProfile.COMPACT;
+    private static final int WINDOW = 16;
+
+    private XomB x;
+    private ExecutorService executor;
+    private BatchRenderer instance;
+
+    @Before
+    public void createInstance() {
+        x = new XomB();
+        executor = Executors.newFixedThreadPool(4);
+        instance = new BatchRenderer(new RenderService(x, executor), WINDOW, Charsets.UTF_8, PROFILE);
+    }
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void givenRecordsRenderingAtDifferentSpeeds_whenRender_thenOutputIsInRecordOrder() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        long count = instance.render(new Records(500), new Function<Integer, DocumentBuilder>() {
+            @Override
+            public DocumentBuilder apply(Integer record) {
+                if (ThreadLocalRandom.current().nextInt(10) == 0) {
+                    try {
+                        Thread.sleep(2);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return record(record);
+            }
+        }, out);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 500; i++) {
+            XomUtil.writeDocument(record(i).build(), expected, Charsets.UTF_8, PROFILE);
+        }
+        assertThat(count, equalTo(500L));
+        assertThat(out.toString("UTF-8"), equalTo(expected.toString("UTF-8")));
+    }
+
+    @Test
+    public void givenManyRecords_whenRender_thenRecordsReadAheadAreBoundedByWindow() throws Exception {
+        final Records records = new Records(1000);
+        final int[] written = {0};
+
+        instance.render(records, new Function<Integer, DocumentBuilder>() {
+            @Override
+            public DocumentBuilder apply(Integer record) {
+                return record(record);
+            }
+        }, new BatchRenderer.Sink() {
+            @Override
+            public void write(ByteBuffer document) {
+                assertThat(records.read - written[0] <= WINDOW, equalTo(true));
+                written[0]++;
+            }
+        });
+
+        assertThat(written[0], equalTo(1000));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void givenFailingRecord_whenRender_thenExceptionIsThrown() throws Exception {
+        instance.render(new Records(100), new Function<Integer, DocumentBuilder>() {
+            @Override
+            public DocumentBuilder apply(Integer record) {
+                if (record == 50) {
+                    throw new IllegalStateException("record " + record);
+                }
+                return record(record);
+            }
+        }, new ByteArrayOutputStream());
+    }
+
+    @Test(expected = IOException.class)
+    public void givenFailingSink_whenRender_thenExceptionIsThrown() throws Exception {
+        instance.render(new Records(100), new Function<Integer, DocumentBuilder>() {
+            @Override
+            public DocumentBuilder apply(Integer record) {
+                return record(record);
+            }
+        }, new BatchRenderer.Sink() {
+            @Override
+            public void write(ByteBuffer document) throws IOException {
+                throw new IOException("sink");
+            }
+        });
+    }
+
+    private DocumentBuilder record(int n) {
+        return x.createDocument().withRoot(x.createRoot("record").addAttribute("id", "" + n).add("Record " + n));
+    }
+
+    private static final class Records implements Iterator<Integer> {
+        private final int size;
+        int read;
+
+        Records(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return read < size;
+        }
+
+        @Override
+        public Integer next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return read++;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+}
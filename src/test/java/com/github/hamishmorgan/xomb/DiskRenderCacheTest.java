@@ -0,0 +1,278 @@
+package com.github.hamishmorgan.xomb;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.github.hamishmorgan.xomb.api.DocumentBuilder;
+import com.google.common.base.Charsets;
+import nu.xom.Element;
+import nu.xom.NodeFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class DiskRenderCacheTest {
+
+    private static final SerializationProfile PROFILE = SerializationProfile.COMPACT;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void givenSameBuilder_whenRenderTwice_thenSecondRenderIsHit() throws Exception {
+        DiskRenderCache cache = new DiskRenderCache(folder.getRoot(), 1 << 20, 1 << 16);
+        try {
+            DocumentBuilder builder = page(new XomB(), "content", "comment");
+
+            assertThat(bytes(cache.render(builder, Charsets.UTF_8, PROFILE)), equalTo(serialize(builder)));
+            assertThat(bytes(cache.render(builder, Charsets.UTF_8, PROFILE)), equalTo(serialize(builder)));
+            assertThat(cache.stats().hitCount(), equalTo(1L));
+            assertThat(cache.stats().missCount(), equalTo(1L));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void givenReopenedCache_whenRender_thenDocumentIsNotBuilt() throws Exception {
+        DocumentBuilder builder = page(new XomB(), "content", "comment");
+        byte[] expected = serialize(builder);
+        DiskRenderCache cache = new DiskRenderCache(folder.getRoot(), 1 << 20, 1 << 16);
+        cache.render(builder, Charsets.UTF_8, PROFILE);
+        cache.close();
+
+        XomB failing = new XomB(new NodeFactory() {
+            @Override
+            public Element startMakingElement(String name, String namespace) {
+                throw new AssertionError("Element constructed");
+            }
+        });
+        DiskRenderCache reopened = new DiskRenderCache(folder.getRoot(), 1 << 20, 1 << 16);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            reopened.writeDocument(page(failing, "content", "comment"), out, Charsets.UTF_8, PROFILE);
+
+            assertThat(out.toByteArray(), equalTo(expected));
+            assertThat(reopened.stats().hitCount(), equalTo(1L));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void givenDifferentCommentOrProfile_whenRender_thenDocumentIsRenderedAgain() throws Exception {
+        DiskRenderCache cache = new DiskRenderCache(folder.getRoot(), 1 << 20, 1 << 16);
+        try {
+            XomB x = new XomB();
+            cache.render(page(x, "content", "comment"), Charsets.UTF_8, PROFILE);
+            DocumentBuilder builder = page(x, "content", "other");
+
+            assertThat(bytes(cache.render(builder, Charsets.UTF_8, PROFILE)), equalTo(serialize(builder)));
+            cache.render(builder, Charsets.UTF_8, SerializationProfile.PRETTY);
+            cache.render(builder, Charsets.UTF_16, PROFILE);
+            assertThat(cache.stats().missCount(), equalTo(4L));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void givenSmallCache_whenRenderMany_thenOldestSegmentsAreEvicted() throws Exception {
+        DiskRenderCache cache = new DiskRenderCache(folder.getRoot(), 8192, 4096);
+        try {
+            XomB x = new XomB();
+            for (int i = 0; i < 200; i++) {
+                DocumentBuilder builder = page(x, "content " + i, "comment");
+
+                assertThat(bytes(cache.render(builder, Charsets.UTF_8, PROFILE)), equalTo(serialize(builder)));
+            }
+
+            assertThat(cache.stats().evictionCount() > 0, equalTo(true));
+            assertThat(folder.getRoot().list().length <= 2, equalTo(true));
+            cache.render(page(x, "content 0", "comment"), Charsets.UTF_8, PROFILE);
+            assertThat(cache.stats().hitCount(), equalTo(0L));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void givenHitOnEvictedSegment_whenBufferIsUnreachable_thenSegmentFileIsDeleted() throws Exception {
+        DiskRenderCache cache = new DiskRenderCache(folder.getRoot(), 8192, 4096);
+        try {
+            XomB x = new XomB();
+            DocumentBuilder first = page(x, "first", "comment");
+            cache.render(first, Charsets.UTF_8, PROFILE);
+            ByteBuffer hit = cache.render(first, Charsets.UTF_8, PROFILE);
+            File segment = new File(folder.getRoot(), "0.segment");
+            int i = 0;
+            while (cache.stats().evictionCount() == 0) {
+                cache.render(page(x, "content " + i++, "comment"), Charsets.UTF_8, PROFILE);
+            }
+
+            assertThat(segment.exists(), equalTo(true));
+            assertThat(bytes(hit), equalTo(serialize(first)));
+
+            hit = null;
+            for (int attempt = 0; attempt < 100 && segment.exists(); attempt++) {
+                System.gc();
+                Thread.sleep(10);
+                cache.render(page(x, "content " + i++, "comment"), Charsets.UTF_8, PROFILE);
+            }
+            assertThat(segment.exists(), equalTo(false));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void givenConcurrentMisses_whenRenderSameDocument_thenDocumentIsBuiltOnce() throws Exception {
+        final CountDownLatch building = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger builds = new AtomicInteger();
+        XomB x = new XomB(new NodeFactory() {
+            @Override
+            public Element startMakingElement(String name, String namespace) {
+                if (name.equals("html")) {
+                    builds.incrementAndGet();
+                    building.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException ex) {
+                        throw new AssertionError(ex);
+                    }
+                }
+                return super.startMakingElement(name, namespace);
+            }
+        });
+        final DocumentBuilder builder = page(x, "content", "comment");
+        final DiskRenderCache cache = new DiskRenderCache(folder.getRoot(), 1 << 20, 1 << 16);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Callable<byte[]> render = new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    return bytes(cache.render(builder, Charsets.UTF_8, PROFILE));
+                }
+            };
+            Future<byte[]> first = executor.submit(render);
+            building.await();
+            Future<byte[]> second = executor.submit(render);
+            Thread.sleep(100);
+            release.countDown();
+
+            assertThat(second.get(10, TimeUnit.SECONDS), equalTo(first.get(10, TimeUnit.SECONDS)));
+            assertThat(builds.get(), equalTo(1));
+            assertThat(cache.size(), equalTo(1L));
+        } finally {
+            release.countDown();
+            executor.shutdown();
+            cache.close();
+        }
+    }
+
+    @Test
+    public void givenCorruptRecord_whenReopen_thenRecordAndFollowingAreDiscarded() throws Exception {
+        XomB x = new XomB();
+        DiskRenderCache cache = new DiskRenderCache(folder.getRoot(), 1 << 20, 1 << 16);
+        cache.render(page(x, "first", "comment"), Charsets.UTF_8, PROFILE);
+        cache.render(page(x, "second", "comment"), Charsets.UTF_8, PROFILE);
+        cache.close();
+
+        File segment = folder.getRoot().listFiles()[0];
+        int offset = new String(Files.readAllBytes(segment.toPath()), Charsets.ISO_8859_1).indexOf("second");
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            raf.seek(offset);
+            raf.write('S');
+        } finally {
+            raf.close();
+        }
+
+        DiskRenderCache reopened = new DiskRenderCache(folder.getRoot(), 1 << 20, 1 << 16);
+        try {
+            assertThat(reopened.size(), equalTo(1L));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void givenDeferredContent_whenRender_thenContentIsReadOnceAndNotCached() throws Exception {
+        DiskRenderCache cache = new DiskRenderCache(folder.getRoot(), 1 << 20, 1 << 16);
+        try {
+            final AtomicInteger reads = new AtomicInteger();
+            XomB x = new XomB();
+            DocumentBuilder builder = x.createDocument().withRoot(x.createRoot("html").addAttribute("id",
+                    new Supplier<String>() {
+                        @Override
+                        public String get() {
+                            return "read-" + reads.incrementAndGet();
+                        }
+                    }));
+
+            ByteBuffer rendered = cache.render(builder, Charsets.UTF_8, PROFILE);
+
+            assertThat(new String(bytes(rendered), Charsets.UTF_8), containsString("id=\"read-1\""));
+            assertThat(reads.get(), equalTo(1));
+            assertThat(cache.size(), equalTo(0L));
+        } finally {
+            cache.close();
+        }
+    }
+
+    private static DocumentBuilder page(XomB x, String content, String comment) {
+        return x.createDocument()
+                .addComment(comment)
+                .withRoot(x.createRoot("html")
+                        .add(x.createElement("body").add(x.createElement("p").add(content + " café"))));
+    }
+
+    private static byte[] serialize(DocumentBuilder builder) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XomUtil.writeDocument(builder.build(), out, Charsets.UTF_8, PROFILE);
+        return out.toByteArray();
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] result = new byte[buffer.remaining()];
+        buffer.duplicate().get(result);
+        return result;
+    }
+
+}
@@ -0,0 +1,218 @@
+package com.github.hamishmorgan.xomb;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.github.hamishmorgan.xomb.api.DocumentBuilder;
+import com.github.hamishmorgan.xomb.api.ElementBuilder;
+import com.github.hamishmorgan.xomb.impl.XomBuilderFactoryImpl;
+import com.google.common.base.Charsets;
+import nu.xom.Attribute;
+import nu.xom.Element;
+import nu.xom.NodeFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class FragmentCacheTest {
+
+    private static final URI NAMESPACE = URI.create("http://example.com/ns");
+    private static final SerializationProfile PROFILE = SerializationProfile.COMPACT.withPreserveBaseURI(false);
+
+    private XomBuilderFactoryImpl factory;
+    private ElementBuilder header;
+
+    @Before
+    public void createBuilders() {
+        factory = new XomBuilderFactoryImpl(new NodeFactory());
+        header = factory.createElement("header").addAttribute("class", "site");
+        for (int i = 0; i < 10; i++) {
+            header.add(factory.createElement("a").addAttribute("href", "/" + i).add("Link & café " + i));
+        }
+    }
+
+    @Test
+    public void givenDocumentBuilder_whenWriteWithoutCache_thenOutputMatchesSerializer() throws Exception {
+        for (Charset charset : Arrays.asList(Charsets.UTF_8, Charsets.US_ASCII, Charsets.UTF_16)) {
+            DocumentBuilder builder = page("body");
+
+            assertThat(write(builder, charset, null), equalTo(serialize(builder, charset)));
+        }
+    }
+
+    @Test
+    public void givenUnchangedBuilder_whenWriteAgain_thenCachedMarkupIsSpliced() throws Exception {
+        for (boolean direct : Arrays.asList(false, true)) {
+            FragmentCache cache = new FragmentCache(1 << 20, direct);
+            DocumentBuilder first = page("first");
+            DocumentBuilder second = page("second");
+
+            assertThat(write(first, Charsets.UTF_8, cache), equalTo(serialize(first, Charsets.UTF_8)));
+            long misses = cache.stats().missCount();
+            assertThat(write(second, Charsets.UTF_8, cache), equalTo(serialize(second, Charsets.UTF_8)));
+
+            assertThat(cache.stats().missCount() - misses, equalTo(1L));
+            assertThat(cache.stats().hitCount(), equalTo(1L));
+        }
+    }
+
+    @Test
+    public void givenModifiedBuilder_whenWriteAgain_thenMarkupIsWrittenAgain() throws Exception {
+        FragmentCache cache = new FragmentCache(1 << 20, false);
+        write(page("body"), Charsets.UTF_8, cache);
+
+        header.add("more");
+        DocumentBuilder builder = page("body");
+
+        assertThat(write(builder, Charsets.UTF_8, cache), equalTo(serialize(builder, Charsets.UTF_8)));
+        assertThat(cache.stats().hitCount(), equalTo(0L));
+    }
+
+    @Test
+    public void givenDifferentNamespaceScope_whenWrite_thenMarkupIsCachedSeparately() throws Exception {
+        FragmentCache cache = new FragmentCache(1 << 20, false);
+        DocumentBuilder plain = page("body");
+        DocumentBuilder namespaced = factory.createDocument()
+                .withRoot(factory.createRoot("x:html").withNamespace(NAMESPACE).add(header));
+
+        write(plain, Charsets.UTF_8, cache);
+
+        assertThat(write(namespaced, Charsets.UTF_8, cache), equalTo(serialize(namespaced, Charsets.UTF_8)));
+        assertThat(cache.stats().hitCount(), equalTo(0L));
+    }
+
+    @Test
+    public void givenDeferredContent_whenWrite_thenMarkupIsNotCached() throws Exception {
+        FragmentCache cache = new FragmentCache(1 << 20, false);
+        header.addAttribute("id", new Supplier<String>() {
+            @Override
+            public String get() {
+                return "id";
+            }
+        });
+
+        DocumentBuilder builder = page("body");
+
+        assertThat(write(builder, Charsets.UTF_8, cache), equalTo(serialize(builder, Charsets.UTF_8)));
+        assertThat(cache.size(), equalTo(0L));
+    }
+
+    @Test
+    public void givenEmptyText_whenWriteFragment_thenElementIsWrittenAsEmptyElement() throws Exception {
+        for (FragmentCache cache : Arrays.asList(null, new FragmentCache(1 << 20, false))) {
+            ElementBuilder builder = factory.createRoot("r").add("");
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            XomUtil.writeFragment(builder, out, Charsets.UTF_8, cache);
+
+            assertThat(out.toString("UTF-8"), equalTo("<r/>"));
+        }
+    }
+
+    @Test
+    public void givenSmallCache_whenWriteManyFragments_thenEntriesAreEvicted() throws Exception {
+        FragmentCache cache = new FragmentCache(1024, true);
+        for (int i = 0; i < 20; i++) {
+            ElementBuilder builder = factory.createElement("div");
+            for (int j = 0; j < 10; j++) {
+                builder.add(factory.createElement("p").add("Paragraph " + i + "." + j));
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            XomUtil.writeFragment(builder, out, Charsets.UTF_8, cache);
+
+            assertThat(out.toString("UTF-8"), equalTo(builder.build().get(0).toXML()));
+        }
+
+        assertThat(cache.stats().evictionCount() > 0, equalTo(true));
+    }
+
+    @Test
+    public void givenFragmentCachedInUtf16_whenSplicedIntoDocument_thenNoByteOrderMarkIsSpliced() throws Exception {
+        FragmentCache cache = new FragmentCache(1 << 20, false);
+        ByteArrayOutputStream fragment = new ByteArrayOutputStream();
+        XomUtil.writeFragment(header, fragment, Charsets.UTF_16, cache);
+        DocumentBuilder builder = page("body");
+
+        assertThat(write(builder, Charsets.UTF_16, cache), equalTo(serialize(builder, Charsets.UTF_16)));
+        assertThat(cache.stats().hitCount(), equalTo(1L));
+        assertThat(fragment.toString("UTF-16"), equalTo(header.build().get(0).toXML()));
+    }
+
+    @Test
+    public void givenCache_whenWriteDocument_thenStreamIsWrittenInOneChunk() throws Exception {
+        FragmentCache cache = new FragmentCache(1 << 20, false);
+        write(page("first"), Charsets.UTF_8, cache);
+        final int[] writes = new int[1];
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] bytes, int offset, int length) {
+                writes[0]++;
+                super.write(bytes, offset, length);
+            }
+
+            @Override
+            public synchronized void write(int b) {
+                writes[0]++;
+                super.write(b);
+            }
+        };
+
+        XomUtil.writeDocument(page("second"), out, Charsets.UTF_8, cache);
+
+        assertThat(cache.stats().hitCount(), equalTo(1L));
+        assertThat(writes[0], equalTo(1));
+    }
+
+    private DocumentBuilder page(String content) {
+        Element existing = new Element("y:existing", "http://example.com/other");
+        existing.addAttribute(new Attribute("y:attr", "http://example.com/other", "value"));
+
+        return factory.createDocument()
+                .withDocType("html")
+                .addPI("xml-stylesheet", "href=\"style.css\"")
+                .withRoot(factory.createRoot("html")
+                        .addAttribute("lang", "en")
+                        .add(header)
+                        .add(factory.createElement("main").add(content + "\r\né😀").add(existing))
+                        .addComment("footer"))
+                .addComment("after");
+    }
+
+    private static String write(DocumentBuilder builder, Charset charset, FragmentCache cache) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XomUtil.writeDocument(builder, out, charset, cache);
+        return out.toString(charset.name());
+    }
+
+    private static String serialize(DocumentBuilder builder, Charset charset) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XomUtil.writeDocument(builder.build(), out, charset, PROFILE);
+        return out.toString(charset.name());
+    }
+
+}
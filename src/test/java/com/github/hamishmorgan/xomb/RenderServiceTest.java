@@ -0,0 +1,156 @@
+package com.github.hamishmorgan.xomb;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.github.hamishmorgan.xomb.api.DocumentBuilder;
+import com.github.hamishmorgan.xomb.api.MissingRequiredPropertyException;
+import com.github.hamishmorgan.xomb.spi.XomBuilderFactory;
+import com.google.common.base.Charsets;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class RenderServiceTest {
+
+    private static final SerializationProfile PROFILE = SerializationProfile.COMPACT;
+
+    private XomB x;
+    private ExecutorService executor;
+    private RenderService instance;
+
+    @Before
+    public void createInstance() {
+        x = new XomB();
+        executor = Executors.newFixedThreadPool(4);
+        instance = new RenderService(x, executor);
+    }
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void givenBuilder_whenRender_thenBufferHoldsSerializedDocument() throws Exception {
+        DocumentBuilder builder = page(x, 1);
+
+        ByteBuffer result = instance.render(builder, Charsets.UTF_8, PROFILE).get();
+
+        assertThat(bytes(result), equalTo(serialize(builder)));
+    }
+
+    @Test
+    public void givenManyFunctions_whenRender_thenEachResultMatches() throws Exception {
+        List<CompletableFuture<ByteBuffer>> futures = new ArrayList<CompletableFuture<ByteBuffer>>();
+        for (int i = 0; i < 1000; i++) {
+            final int n = i;
+            futures.add(instance.render(new Function<XomBuilderFactory, DocumentBuilder>() {
+                @Override
+                public DocumentBuilder apply(XomBuilderFactory factory) {
+                    return page(factory, n);
+                }
+            }, Charsets.UTF_8, PROFILE));
+        }
+
+        for (int i = 0; i < futures.size(); i++) {
+            assertThat(bytes(futures.get(i).get()), equalTo(serialize(page(x, i))));
+        }
+    }
+
+    @Test
+    public void givenStream_whenRender_thenDocumentIsWrittenOnExecutor() throws Exception {
+        final Thread caller = Thread.currentThread();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        instance.render(new Function<XomBuilderFactory, DocumentBuilder>() {
+            @Override
+            public DocumentBuilder apply(XomBuilderFactory factory) {
+                assertThat(Thread.currentThread() == caller, equalTo(false));
+                return page(factory, 1);
+            }
+        }, out, Charsets.UTF_8, PROFILE).get();
+
+        assertThat(out.toByteArray(), equalTo(serialize(page(x, 1))));
+    }
+
+    @Test
+    public void givenIncompleteBuilder_whenRender_thenFutureFailsWithCause() throws Exception {
+        CompletableFuture<ByteBuffer> future = instance.render(
+                x.createDocument().withRoot(x.createRoot("p").addSlot("text")), Charsets.UTF_8, PROFILE);
+
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException ex) {
+            assertThat(ex.getCause(), instanceOf(MissingRequiredPropertyException.class));
+        }
+    }
+
+    @Test
+    public void givenShutdownExecutor_whenRender_thenFutureFails() throws Exception {
+        executor.shutdown();
+
+        CompletableFuture<ByteBuffer> future = instance.render(page(x, 1), Charsets.UTF_8, PROFILE);
+
+        assertThat(future.isCompletedExceptionally(), equalTo(true));
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException ex) {
+            assertThat(ex.getCause(), instanceOf(RejectedExecutionException.class));
+        }
+    }
+
+    private static DocumentBuilder page(XomBuilderFactory factory, int n) {
+        return factory.createDocument()
+                .withRoot(factory.createRoot("html")
+                        .add(factory.createElement("body").add(factory.createElement("p").add("Page " + n))));
+    }
+
+    private static byte[] serialize(DocumentBuilder builder) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XomUtil.writeDocument(builder.build(), out, Charsets.UTF_8, PROFILE);
+        return out.toByteArray();
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] result = new byte[buffer.remaining()];
+        buffer.duplicate().get(result);
+        return result;
+    }
+
+}
@@ -0,0 +1,145 @@
+package com.github.hamishmorgan.xomb;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.base.Charsets;
+import nu.xom.Builder;
+import nu.xom.Document;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class SerializationProfileTest {
+
+    @Test
+    public void givenDefaultWriteDocument_whenCompareWithPretty_thenOutputIsIdentical() throws Exception {
+        Document document = sampleDocument();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        XomUtil.writeDocument(document, expected, Charsets.UTF_8);
+
+        String result = XomUtil.toString(document, Charsets.UTF_8, SerializationProfile.PRETTY);
+
+        assertThat(result, equalTo(expected.toString("UTF-8")));
+    }
+
+    @Test
+    public void givenCompactProfile_whenWrite_thenOutputIsSmallerAndEquivalent() throws Exception {
+        Document document = sampleDocument();
+
+        byte[] pretty = write(document, SerializationProfile.PRETTY);
+        byte[] compact = write(document, SerializationProfile.COMPACT);
+
+        assertThat(compact.length < pretty.length, equalTo(true));
+        assertThat(parse(compact).getRootElement().getValue(), equalTo(document.getRootElement().getValue()));
+        assertThat(parse(compact).getRootElement().getChildCount(), equalTo(2));
+    }
+
+    @Test
+    public void givenDeclarationDisabled_whenWrite_thenDeclarationIsOmitted() throws Exception {
+        String result = XomUtil.toString(sampleDocument(), Charsets.UTF_8,
+                SerializationProfile.COMPACT.withDeclaration(false));
+
+        assertThat(result.startsWith("<root"), equalTo(true));
+        assertThat(XomUtil.toString(sampleDocument(), Charsets.UTF_8, SerializationProfile.COMPACT),
+                containsString("<?xml"));
+    }
+
+    @Test
+    public void givenBufferSize_whenWrite_thenOutputIsUnchanged() throws Exception {
+        Document document = sampleDocument();
+
+        assertThat(write(document, SerializationProfile.PRETTY.withBufferSize(16)),
+                equalTo(write(document, SerializationProfile.PRETTY)));
+    }
+
+    @Test
+    public void givenProfile_whenWith_thenOriginalIsUnchanged() {
+        SerializationProfile result = SerializationProfile.PRETTY.withIndent(4);
+
+        assertThat(result, not(sameInstance(SerializationProfile.PRETTY)));
+        assertThat(result.getIndent(), equalTo(4));
+        assertThat(SerializationProfile.PRETTY.getIndent(), equalTo(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void givenInvalidLineSeparator_whenWithLineSeparator_thenThrowsIAE() {
+        SerializationProfile.PRETTY.withLineSeparator("\t");
+    }
+
+    @Test
+    public void givenSharedProfile_whenWriteFromManyThreads_thenOutputIsIdentical() throws Exception {
+        final Document document = sampleDocument();
+        final SerializationProfile profile = SerializationProfile.COMPACT.withBufferSize(64);
+        final String expected = new String(write(document, profile), "UTF-8");
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> futures = new ArrayList<Future<String>>();
+            for (int i = 0; i < 16; i++) {
+                futures.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return new String(write(document, profile), "UTF-8");
+                    }
+                }));
+            }
+            for (Future<String> future : futures) {
+                assertThat(future.get(), equalTo(expected));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static Document sampleDocument() {
+        XomB x = new XomB();
+        return x.createDocument()
+                .withRoot(x.createRoot("root")
+                        .addAttribute("id", "a&b")
+                        .add(x.createElement("child").add(x.createElement("leaf").add("text")))
+                        .add(x.createElement("child").add("caf\u00e9")))
+                .build();
+    }
+
+    private static byte[] write(Document document, SerializationProfile profile) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XomUtil.writeDocument(document, out, Charsets.UTF_8, profile);
+        return out.toByteArray();
+    }
+
+    private static Document parse(byte[] xml) throws Exception {
+        return new Builder().build(new ByteArrayInputStream(xml));
+    }
+
+}
@@ -0,0 +1,207 @@
+package com.github.hamishmorgan.xomb;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.base.Charsets;
+import nu.xom.Attribute;
+import nu.xom.Builder;
+import nu.xom.Comment;
+import nu.xom.DocType;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.ProcessingInstruction;
+import nu.xom.Serializer;
+import nu.xom.Text;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class Utf8SerializerTest {
+
+    private static final String[] FRAGMENTS = {
+            "a", "text", " ", "  ", "\t", "\n", "\r", "\r\n", "&", "<", ">", "\"", "'", "]]>", "café",
+            "€", "😀", "ࠀ", "߿"};
+
+    @Test
+    public void givenPrettyProfile_whenSupports_thenFalse() {
+        assertThat(Utf8Serializer.supports(SerializationProfile.PRETTY, Charsets.UTF_8), equalTo(false));
+        assertThat(Utf8Serializer.supports(SerializationProfile.COMPACT, Charsets.UTF_8), equalTo(true));
+        assertThat(Utf8Serializer.supports(SerializationProfile.COMPACT, Charsets.ISO_8859_1), equalTo(false));
+    }
+
+    @Test
+    public void givenParsedDocument_whenWrite_thenBytesMatchSerializer() throws Exception {
+        Document document = new Builder().build(new StringReader("<?xml version=\"1.0\"?>\n"
+                + "<!DOCTYPE root [\n<!ELEMENT root ANY>\n<!ATTLIST root id CDATA #IMPLIED>\n]>\n"
+                + "<?before data?><!-- before\r\n -->"
+                + "<root xmlns='http://example.com/default' xmlns:a='http://example.com/a' a:x='1'>"
+                + "<![CDATA[cdata <&> section]]><![CDATA[with ]]]]><![CDATA[> end]]>"
+                + "<child xml:space='preserve'>line\none\r\ntwo</child><a:plain xmlns=''/></root>"
+                + "<!--after-->"), "http://example.com/base/doc.xml");
+
+        for (SerializationProfile profile : profiles()) {
+            assertMatchesSerializer(document, profile);
+        }
+    }
+
+    @Test
+    public void givenDocTypes_whenWrite_thenBytesMatchSerializer() throws Exception {
+        for (DocType docType : new DocType[]{new DocType("root", "root.dtd"),
+                new DocType("root", "-//Example//DTD Root//EN", "http://example.com/root.dtd")}) {
+            docType.setInternalDTDSubset("<!ELEMENT root ANY>\n<!ENTITY e 'entity'>");
+            Document document = new Document(new Element("root"));
+            document.insertChild(docType, 0);
+
+            for (SerializationProfile profile : profiles()) {
+                assertMatchesSerializer(document, profile);
+            }
+        }
+    }
+
+    @Test
+    public void givenRandomDocuments_whenWrite_thenBytesMatchSerializer() throws Exception {
+        Random random = new Random(19);
+        for (int i = 0; i < 200; i++) {
+            Document document = new Document(randomElement(random, 0));
+            if (random.nextBoolean()) {
+                document.insertChild(new Comment(markupText(random)), 0);
+            }
+            if (random.nextBoolean()) {
+                document.setBaseURI("http://example.com/" + i + "/");
+            }
+            for (SerializationProfile profile : profiles()) {
+                assertMatchesSerializer(document, profile);
+            }
+        }
+    }
+
+    @Test
+    public void givenLargeText_whenWrite_thenBytesMatchSerializer() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            text.append(i % 7 == 0 ? "café & " : "plain ascii ");
+        }
+        Element root = new Element("root");
+        root.appendChild(text.toString());
+        root.addAttribute(new Attribute("value", text.toString()));
+
+        assertMatchesSerializer(new Document(root), SerializationProfile.COMPACT);
+    }
+
+    private static List<SerializationProfile> profiles() {
+        List<SerializationProfile> profiles = new ArrayList<SerializationProfile>();
+        for (String separator : new String[]{null, "\n", "\r", "\r\n"}) {
+            for (boolean flag : new boolean[]{true, false}) {
+                profiles.add(SerializationProfile.COMPACT.withLineSeparator(separator)
+                        .withDeclaration(flag).withPreserveBaseURI(!flag));
+                profiles.add(SerializationProfile.COMPACT.withLineSeparator(separator)
+                        .withDeclaration(flag).withPreserveBaseURI(flag));
+            }
+        }
+        return profiles;
+    }
+
+    private static void assertMatchesSerializer(Document document, SerializationProfile profile) throws Exception {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        Serializer serializer = profile.newSerializer(expected, Charsets.UTF_8);
+        serializer.write(document);
+        serializer.flush();
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        new Utf8Serializer(result, profile).write(document);
+
+        assertThat(profile.toString(), result.toString("UTF-8"), equalTo(expected.toString("UTF-8")));
+        assertThat(result.toByteArray(), equalTo(expected.toByteArray()));
+    }
+
+    private static Element randomElement(Random random, int depth) {
+        Element element;
+        switch (random.nextInt(4)) {
+            case 0:
+                element = new Element("p:e" + depth, "http://example.com/p" + random.nextInt(2));
+                break;
+            case 1:
+                element = new Element("e" + depth, "http://example.com/default" + random.nextInt(2));
+                break;
+            default:
+                element = new Element("e" + depth);
+                break;
+        }
+        if (random.nextInt(4) == 0) {
+            element.addNamespaceDeclaration("n" + random.nextInt(3), "http://example.com/n");
+        }
+        if (random.nextInt(5) == 0) {
+            element.setBaseURI("http://example.com/" + random.nextInt(3) + "/");
+        }
+        if (random.nextInt(6) == 0) {
+            element.addAttribute(new Attribute("xml:space", "http://www.w3.org/XML/1998/namespace",
+                    random.nextBoolean() ? "preserve" : "default"));
+        }
+        int attributes = random.nextInt(3);
+        for (int i = 0; i < attributes; i++) {
+            if (random.nextInt(3) == 0) {
+                element.addAttribute(new Attribute("q:a" + i, "http://example.com/q", randomText(random)));
+            } else {
+                element.addAttribute(new Attribute("a" + i, randomText(random)));
+            }
+        }
+        int children = depth > 3 ? 0 : random.nextInt(5);
+        for (int i = 0; i < children; i++) {
+            switch (random.nextInt(6)) {
+                case 0:
+                case 1:
+                    element.appendChild(randomElement(random, depth + 1));
+                    break;
+                case 2:
+                    element.appendChild(new Comment(markupText(random)));
+                    break;
+                case 3:
+                    element.appendChild(new ProcessingInstruction("pi", markupText(random).trim()));
+                    break;
+                default:
+                    element.appendChild(new Text(random.nextInt(8) == 0 ? "" : randomText(random)));
+                    break;
+            }
+        }
+        return element;
+    }
+
+    private static String markupText(Random random) {
+        return randomText(random).replace("-", "").replace("?", "").replace("\r", "");
+    }
+
+    private static String randomText(Random random) {
+        StringBuilder builder = new StringBuilder();
+        int length = random.nextInt(6);
+        for (int i = 0; i < length; i++) {
+            builder.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+        }
+        return builder.toString();
+    }
+
+}
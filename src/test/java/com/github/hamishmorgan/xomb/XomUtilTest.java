@@ -0,0 +1,314 @@
+package com.github.hamishmorgan.xomb;
+
+/*
+ * #%L
+ * XomB XML Object Model Builder
+ * %%
+ * Copyright (C) 2012 - 2014 Hamish Morgan
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.github.hamishmorgan.xomb.api.ElementBuilder;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import nu.xom.Builder;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.Node;
+import nu.xom.Nodes;
+import nu.xom.Text;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class XomUtilTest {
+
+    private static final SerializationProfile PROFILE = SerializationProfile.PRETTY;
+
+    private File file;
+
+    @Before
+    public void createFile() throws Exception {
+        file = File.createTempFile("xomb", ".xml");
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @Test
+    public void givenByteBuffers_whenWriteDocument_thenBytesMatchStream() throws Exception {
+        Document document = sampleDocument(10);
+        byte[] expected = write(document);
+
+        for (ByteBuffer buffer : Arrays.asList(ByteBuffer.allocate(expected.length + 8),
+                ByteBuffer.allocateDirect(expected.length + 8))) {
+            buffer.position(8);
+            XomUtil.writeDocument(document, buffer, Charsets.UTF_8, PROFILE);
+
+            assertThat(buffer.position(), equalTo(expected.length + 8));
+            assertThat(bytes(buffer, 8, expected.length), equalTo(expected));
+        }
+    }
+
+    @Test
+    public void givenByteBuffers_whenWriteFragment_thenBytesMatchFragmentString() throws Exception {
+        Document document = sampleDocument(10);
+        Nodes nodes = new Nodes(document.getRootElement());
+        nodes.append(new Text(" café"));
+        byte[] expected = (XomUtil.toFragmentString(document.getRootElement()) + " café").getBytes(Charsets.UTF_8);
+
+        for (ByteBuffer buffer : Arrays.asList(ByteBuffer.allocate(expected.length + 8),
+                ByteBuffer.allocateDirect(expected.length + 8))) {
+            buffer.position(8);
+            XomUtil.writeFragment(nodes, buffer, Charsets.UTF_8);
+
+            assertThat(buffer.position(), equalTo(expected.length + 8));
+            assertThat(bytes(buffer, 8, expected.length), equalTo(expected));
+        }
+    }
+
+    @Test(expected = BufferOverflowException.class)
+    public void givenSmallBuffer_whenWriteFragment_thenThrowsOverflow() throws Exception {
+        XomUtil.writeFragment(sampleDocument(10).getRootElement(), ByteBuffer.allocate(16), Charsets.UTF_8);
+    }
+
+    @Test(expected = BufferOverflowException.class)
+    public void givenSmallBuffer_whenWriteDocument_thenThrowsOverflow() throws Exception {
+        XomUtil.writeDocument(sampleDocument(10), ByteBuffer.allocate(16), Charsets.UTF_8, PROFILE);
+    }
+
+    @Test
+    public void givenDocumentLargerThanPooledBuffer_whenWriteDocumentToFileChannel_thenFileMatchesStream()
+            throws Exception {
+        Document document = sampleDocument(5000);
+        byte[] expected = write(document);
+        assertThat(expected.length > DirectBuffers.BUFFER_SIZE, equalTo(true));
+
+        for (int i = 0; i < 2; i++) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(0);
+                XomUtil.writeDocument(document, raf.getChannel(), Charsets.UTF_8, PROFILE);
+            } finally {
+                raf.close();
+            }
+
+            assertThat(Files.readAllBytes(file.toPath()), equalTo(expected));
+        }
+    }
+
+    @Test
+    public void givenFailingDocumentAndChannel_whenWriteDocument_thenDocumentFailureIsThrown() throws Exception {
+        Element root = new Element("root") {
+            @Override
+            public Node getChild(int position) {
+                if (position == 300) {
+                    throw new IllegalStateException("child");
+                }
+                return super.getChild(position);
+            }
+        };
+        // Enough is written before the failure to pass through the serializer's buffer but not the stream's
+        for (int i = 0; i < 400; i++) {
+            Element item = new Element("item");
+            item.appendChild(Strings.repeat("x", 90));
+            root.appendChild(item);
+        }
+        WritableByteChannel channel = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                throw new IOException("channel");
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        try {
+            XomUtil.writeDocument(new Document(root), channel, Charsets.UTF_8, PROFILE);
+            throw new AssertionError("IllegalStateException expected");
+        } catch (IllegalStateException ex) {
+            assertThat(ex.getMessage(), equalTo("child"));
+            assertThat(ex.getSuppressed()[0].getMessage(), equalTo("channel"));
+        }
+    }
+
+    @Test
+    public void givenMappedBuffer_whenWriteDocument_thenFileMatchesStream() throws Exception {
+        Document document = sampleDocument(100);
+        byte[] expected = write(document);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, expected.length);
+            XomUtil.writeDocument(document, buffer, Charsets.UTF_8, PROFILE);
+            buffer.force();
+        } finally {
+            raf.close();
+        }
+
+        assertThat(Files.readAllBytes(file.toPath()), equalTo(expected));
+    }
+
+    @Test
+    public void givenDocument_whenCanonicalize_thenCanonicalFormHasSameDigest() throws Exception {
+        Document document = sampleDocument(10);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        XomUtil.canonicalize(document, out);
+        Document canonical = new Builder().build(new ByteArrayInputStream(out.toByteArray()));
+
+        assertThat(out.toString("UTF-8").startsWith("<export id=\"a&amp;b\"><item n=\"0\">"), equalTo(true));
+        assertThat(XomUtil.digest(canonical), equalTo(XomUtil.digest(document)));
+    }
+
+    @Test
+    public void givenVeryDeepDocument_whenGetPrintableText_thenTextIsExtracted() throws Exception {
+        Element element = new Element("leaf");
+        element.appendChild("leaf");
+        for (int i = 0; i < 100000; i++) {
+            Element parent = new Element("e");
+            parent.appendChild("" + (i % 10));
+            parent.appendChild(element);
+            element = parent;
+        }
+        StringWriter out = new StringWriter();
+
+        XomUtil.getPrintableText(new Document(element), out);
+
+        assertThat(out.toString().length(), equalTo(100004));
+        assertThat(out.toString().endsWith("10leaf"), equalTo(true));
+    }
+
+    @Test
+    public void givenLengthLimit_whenGetPrintableText_thenTextIsCutShortWithoutSplittingSurrogates()
+            throws Exception {
+        Document document = new Builder().build(new StringReader(
+                "<p>ab<!-- comment --><b>cd<?pi data?></b>\ud83d\ude00ef</p>"));
+        StringBuilder snippet = new StringBuilder();
+        StringBuilder complete = new StringBuilder();
+
+        assertThat(XomUtil.getPrintableText(document, snippet, 5), equalTo(false));
+        assertThat(XomUtil.getPrintableText(document, complete, 8), equalTo(true));
+
+        assertThat(snippet.toString(), equalTo("abcd"));
+        assertThat(complete.toString(), equalTo("abcd\ud83d\ude00ef"));
+    }
+
+    @Test
+    public void givenWideDocument_whenGetPrintableTextInParallel_thenTextMatchesSequential() throws Exception {
+        XomB x = new XomB();
+        ElementBuilder root = x.createRoot("root").add("start ");
+        for (int i = 0; i < 3; i++) {
+            ElementBuilder section = x.createElement("section");
+            for (int j = 0; j < 1000; j++) {
+                section.add(x.createElement("p").add("Paragraph " + i + "." + j + " ").add(x.createElement("br")));
+            }
+            root.add(section).add(" between ");
+        }
+        for (int i = 0; i < 2000; i++) {
+            root.add(x.createElement("item").add("" + i));
+        }
+        Document document = x.createDocument().withRoot(root).build();
+
+        String result = XomUtil.getPrintableText(document, ForkJoinPool.commonPool());
+
+        assertThat(result, equalTo(XomUtil.getPrintableText(document)));
+        assertThat(result, equalTo(document.getValue()));
+    }
+
+    @Test
+    public void givenNarrowRootOverLargeSubtree_whenGetPrintableTextInParallel_thenSubtreeIsSplit() throws Exception {
+        final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        Element section = new Element("section") {
+            @Override
+            public Node getChild(int position) {
+                threads.add(Thread.currentThread());
+                return super.getChild(position);
+            }
+        };
+        for (int i = 0; i < 20000; i++) {
+            Element p = new Element("p");
+            p.appendChild("Paragraph " + i + " ");
+            section.appendChild(p);
+        }
+        Element root = new Element("root");
+        root.appendChild(section);
+        Document document = new Document(root);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            String result = XomUtil.getPrintableText(document, pool);
+
+            assertThat(result, equalTo(document.getValue()));
+            assertThat(threads.size() > 1, is(true));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static Document sampleDocument(int items) {
+        XomB x = new XomB();
+        ElementBuilder root = x.createRoot("export").addAttribute("id", "a&b");
+        for (int i = 0; i < items; i++) {
+            root.add(x.createElement("item").addAttribute("n", "" + i).add("caf\u00e9 " + i));
+        }
+        return x.createDocument().withRoot(root).build();
+    }
+
+    private static byte[] write(Document document) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XomUtil.writeDocument(document, out, Charsets.UTF_8, PROFILE);
+        return out.toByteArray();
+    }
+
+    private static byte[] bytes(ByteBuffer buffer, int offset, int length) {
+        byte[] result = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.get(result);
+        return result;
+    }
+
+}
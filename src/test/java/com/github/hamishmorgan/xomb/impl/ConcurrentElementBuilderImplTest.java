@@ -0,0 +1,211 @@
+package com.github.hamishmorgan.xomb.impl;
+
+import com.github.hamishmorgan.xomb.api.ConcurrentElementBuilder;
+import com.github.hamishmorgan.xomb.api.ElementBuilder;
+import com.google.common.collect.ImmutableMap;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.NodeFactory;
+import nu.xom.Nodes;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class ConcurrentElementBuilderImplTest {
+
+    private static final int THREADS = 8;
+    private static final int CHILDREN_PER_THREAD = 200;
+
+    private XomBuilderFactoryImpl factory;
+    private ConcurrentElementBuilder instance;
+
+    @Before
+    public void createInstance() {
+        factory = new XomBuilderFactoryImpl(new NodeFactory());
+        instance = factory.createConcurrentElement("response");
+    }
+
+    @Test
+    public void givenManyThreadsAddingAtDistinctIndices_whenBuild_thenChildrenAreInIndexOrder() throws Exception {
+        runConcurrently(new Producer() {
+            @Override
+            public void produce(int thread) {
+                for (int i = 0; i < CHILDREN_PER_THREAD; i++) {
+                    instance.add(thread, factory.createElement("item").add(thread + "." + i));
+                }
+            }
+        });
+
+        ElementBuilder expected = factory.createElement("response");
+        for (int thread = 0; thread < THREADS; thread++) {
+            for (int i = 0; i < CHILDREN_PER_THREAD; i++) {
+                expected.add(factory.createElement("item").add(thread + "." + i));
+            }
+        }
+
+        assertThat(instance.build().get(0).toXML(), equalTo(expected.build().get(0).toXML()));
+    }
+
+    @Test
+    public void givenManyThreadsAddingAttributes_whenBuild_thenEveryAttributeIsPresent() throws Exception {
+        runConcurrently(new Producer() {
+            @Override
+            public void produce(int thread) {
+                instance.addAttribute("a" + thread, "" + thread);
+            }
+        });
+
+        Element result = (Element) instance.build().get(0);
+
+        assertThat(result.getAttributeCount(), equalTo(THREADS));
+        for (int thread = 0; thread < THREADS; thread++) {
+            assertThat(result.getAttributeValue("a" + thread), equalTo("" + thread));
+        }
+    }
+
+    @Test
+    public void givenAttributesAddedOutOfNameOrder_whenBuild_thenAttributesAreInOrderAdded() {
+        instance.addAttribute("z", "1").addAttribute("a", "2").addAttribute("m", "3");
+
+        assertThat(instance.build().get(0).toXML(), equalTo("<response z=\"1\" a=\"2\" m=\"3\" />"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void givenAttribute_whenAddAttributeWithSameName_thenThrowsIAE() {
+        instance.addAttribute("a", "1").addAttribute("a", "2");
+    }
+
+    @Test
+    public void givenManyThreadsAddingSameAttribute_whenBuild_thenOnlyOneIsAdded() throws Exception {
+        final AtomicInteger rejected = new AtomicInteger();
+        runConcurrently(new Producer() {
+            @Override
+            public void produce(int thread) {
+                try {
+                    instance.addAttribute("a", "" + thread);
+                } catch (IllegalArgumentException ex) {
+                    rejected.incrementAndGet();
+                }
+            }
+        });
+
+        assertThat(((Element) instance.build().get(0)).getAttributeCount(), equalTo(1));
+        assertThat(rejected.get(), equalTo(THREADS - 1));
+    }
+
+    @Test
+    public void givenChildrenAddedOutOfIndexOrder_whenBuild_thenChildrenAreInIndexOrder() {
+        instance.add(2, "c").add(0, "a").add(1, "b1").add(1, "b2");
+
+        assertThat(instance.build().get(0).getValue(), equalTo("ab1b2c"));
+    }
+
+    @Test
+    public void givenConcurrentBuilderAddedToParent_whenModified_thenParentProductIsUnchanged() {
+        instance.add(0, "before");
+        ElementBuilder parent = factory.createElement("parent").add(instance);
+
+        instance.add(1, "after");
+
+        assertThat(parent.build().get(0).getValue(), equalTo("before"));
+    }
+
+    @Test
+    public void givenConcurrentBuilderAsRoot_whenBuildDocument_thenRootIsBuilt() {
+        instance.add(0, factory.createElement("child"));
+
+        Document result = factory.createDocument().withRoot(instance).build();
+
+        assertThat(result.getRootElement().toXML(), equalTo("<response><child /></response>"));
+    }
+
+    @Test
+    public void givenConcurrentBuilderWithSlots_whenCreateTemplate_thenSlotsAreFilled() {
+        instance.addAttributeSlot("id", "id").addSlot("text");
+
+        Nodes result = factory.createTemplate(instance).instantiate(ImmutableMap.of("id", "1", "text", "value"));
+
+        assertThat(result.get(0).toXML(), equalTo("<response id=\"1\">value</response>"));
+    }
+
+    @Test
+    public void givenDeferredContent_whenBuild_thenContentIsSupplied() {
+        instance.addAttribute("id", new Supplier<String>() {
+            @Override
+            public String get() {
+                return "1";
+            }
+        }).add(new StringBuilder("deferred"));
+
+        assertThat(instance.build().get(0).toXML(), equalTo("<response id=\"1\">deferred</response>"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void givenConsumedBuilder_whenAdd_thenThrowsISE() {
+        instance.buildAndConsume();
+        instance.add(0, "text");
+    }
+
+    @Test
+    public void givenThreadsRacingToConsume_whenBuildAndConsume_thenOnlyOneSucceeds() throws Exception {
+        for (int round = 0; round < 100; round++) {
+            final ConcurrentElementBuilder builder = factory.createConcurrentElement("response").add(0, "text");
+            final AtomicInteger successes = new AtomicInteger();
+            runConcurrently(new Producer() {
+                @Override
+                public void produce(int thread) {
+                    try {
+                        builder.buildAndConsume();
+                        successes.incrementAndGet();
+                    } catch (IllegalStateException expected) {
+                        // another thread consumed the builder first
+                    }
+                }
+            });
+
+            assertThat(successes.get(), equalTo(1));
+        }
+    }
+
+    private static void runConcurrently(final Producer producer) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int thread = 0; thread < THREADS; thread++) {
+                final int index = thread;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        producer.produce(index);
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private interface Producer {
+        void produce(int thread);
+    }
+
+}
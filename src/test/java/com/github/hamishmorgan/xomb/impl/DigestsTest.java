@@ -0,0 +1,147 @@
+package com.github.hamishmorgan.xomb.impl;
+
+import com.github.hamishmorgan.xomb.api.DocumentBuilder;
+import com.github.hamishmorgan.xomb.api.ElementBuilder;
+import com.github.hamishmorgan.xomb.api.MissingRequiredPropertyException;
+import nu.xom.Attribute;
+import nu.xom.Builder;
+import nu.xom.Element;
+import nu.xom.NodeFactory;
+import nu.xom.Text;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class DigestsTest {
+
+    private static final URI NAMESPACE = URI.create("http://example.com/ns");
+
+    private XomBuilderFactoryImpl factory;
+
+    @Before
+    public void createFactory() {
+        factory = new XomBuilderFactoryImpl(new NodeFactory());
+    }
+
+    @Test
+    public void givenElementBuilder_whenDigest_thenDigestMatchesBuiltElement() {
+        ElementBuilder builder = complexElement();
+
+        assertThat(Digests.digest(builder), equalTo(Digests.digest(builder.build().get(0))));
+    }
+
+    @Test
+    public void givenDocumentBuilder_whenDigest_thenDigestMatchesBuiltDocument() {
+        DocumentBuilder builder = factory.createDocument()
+                .withDocType("root")
+                .addPI("before", "data")
+                .withRoot(complexElement())
+                .addComment("after");
+
+        assertThat(Digests.digest(builder), equalTo(Digests.digest(builder.build())));
+    }
+
+    @Test
+    public void givenEquivalentMarkup_whenDigest_thenDigestsAreEqual() throws Exception {
+        Element parsed = parse("<x:p xmlns:x='" + NAMESPACE + "' xmlns:unused='urn:u' b='2' a='1'>"
+                + "one <!-- comment -->two<x:br/></x:p>");
+        Element built = new Element("x:p", NAMESPACE.toString());
+        built.addAttribute(new Attribute("a", "1"));
+        built.addAttribute(new Attribute("b", "2"));
+        built.appendChild(new Text("one "));
+        built.appendChild(new Text("two"));
+        built.appendChild(new Element("x:br", NAMESPACE.toString()));
+
+        assertThat(Digests.digest(parsed), equalTo(Digests.digest(built)));
+    }
+
+    @Test
+    public void givenDifferentContent_whenDigest_thenDigestsDiffer() throws Exception {
+        assertThat(Digests.digest(parse("<p>ab</p>")), not(equalTo(Digests.digest(parse("<p>a<b/></p>")))));
+        assertThat(Digests.digest(parse("<p a='1'/>")), not(equalTo(Digests.digest(parse("<p><a>1</a></p>")))));
+        assertThat(Digests.digest(parse("<p>a<?b?></p>")), not(equalTo(Digests.digest(parse("<p>ab</p>")))));
+    }
+
+    @Test
+    public void givenUnchangedChild_whenParentChanges_thenChildDigestIsRetained() {
+        ElementBuilder child = factory.createElement("child").add("text");
+        ElementBuilder parent = factory.createElement("parent").add(child);
+        ElementSnapshot snapshot = ((ElementBuilderImpl) child).capture();
+        Object before = Digests.digest(parent);
+
+        parent.add("more");
+
+        assertThat(snapshot.digest(false), sameInstance(snapshot.digest(false)));
+        assertThat(Digests.digest(parent), not(equalTo(before)));
+        assertThat(Digests.digest(parent), equalTo(Digests.digest(parent.build().get(0))));
+    }
+
+    @Test
+    public void givenDeferredContent_whenSupplierChanges_thenDigestChanges() {
+        final AtomicReference<String> value = new AtomicReference<String>("first");
+        ElementBuilder builder = factory.createElement("parent").add(factory.createElement("child")
+                .addAttribute("id", new Supplier<String>() {
+                    @Override
+                    public String get() {
+                        return value.get();
+                    }
+                }));
+        Object before = Digests.digest(builder);
+
+        value.set("second");
+
+        assertThat(Digests.digest(builder), not(equalTo(before)));
+        assertThat(Digests.digest(builder), equalTo(Digests.digest(builder.build().get(0))));
+    }
+
+    @Test
+    public void givenDifferentComments_whenFingerprint_thenOnlyFingerprintsDiffer() {
+        DocumentBuilder first = factory.createDocument().addComment("one").withRoot(complexElement());
+        DocumentBuilder second = factory.createDocument().addComment("two").withRoot(complexElement());
+
+        assertThat(Digests.digest(first), equalTo(Digests.digest(second)));
+        assertThat(Digests.fingerprint(first), not(equalTo(Digests.fingerprint(second))));
+        assertThat(Digests.fingerprint(first), equalTo(Digests.fingerprint(first)));
+    }
+
+    @Test(expected = MissingRequiredPropertyException.class)
+    public void givenElementWithSlot_whenDigest_thenThrowsException() {
+        Digests.digest(factory.createElement("p").add(factory.createElement("span").addSlot("text")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void givenAttribute_whenDigest_thenThrowsIAE() {
+        Digests.digest(new Attribute("a", "1"));
+    }
+
+    private ElementBuilder complexElement() {
+        Element existing = new Element("y:existing", "http://example.com/other");
+        existing.addAttribute(new Attribute("y:attr", "http://example.com/other", "value"));
+        existing.appendChild("existing text");
+
+        return factory.createRoot("x:root").withNamespace(NAMESPACE)
+                .addAttribute("id", "a&b\"c")
+                .addAttribute(new Attribute("x:attr", NAMESPACE.toString(), "namespaced"))
+                .add("Text with <markup> & entities")
+                .add(new StringBuilder(" and more"))
+                .addComment("comment")
+                .addPI("target", "data")
+                .add(factory.createElement("x:child").withNamespace(NAMESPACE)
+                        .add(factory.createElement("plain").add("plain text")))
+                .add(existing);
+    }
+
+    private static Element parse(String xml) throws Exception {
+        return new Builder().build(new StringReader(xml)).getRootElement();
+    }
+
+}
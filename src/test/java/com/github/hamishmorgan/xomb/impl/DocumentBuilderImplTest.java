@@ -21,6 +21,7 @@ import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
@@ -138,4 +139,27 @@ public class DocumentBuilderImplTest {
         verify(document).setRootElement(root);
     }
 
+    @Test
+    public void givenValidRootElement_whenBuildAndConsume_thenElementIsNotCopied() {
+        Element root = mock(Element.class);
+        instance.withRoot(root);
+
+        instance.buildAndConsume();
+
+        verify(document).setRootElement(root);
+        verify(root, never()).copy();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void givenConsumedBuilder_whenBuild_thenThrowsISE() {
+        instance.buildAndConsume();
+        instance.build();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void givenConsumedBuilder_whenWithRoot_thenThrowsISE() {
+        instance.buildAndConsume();
+        instance.withRoot(mock(Element.class));
+    }
+
 }
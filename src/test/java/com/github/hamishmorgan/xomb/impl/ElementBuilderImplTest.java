@@ -0,0 +1,575 @@
+package com.github.hamishmorgan.xomb.impl;
+
+import com.github.hamishmorgan.xomb.api.ElementBuilder;
+import com.google.common.collect.ImmutableMap;
+import nu.xom.Attribute;
+import nu.xom.Element;
+import nu.xom.Node;
+import nu.xom.NodeFactory;
+import nu.xom.Nodes;
+import nu.xom.Text;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class ElementBuilderImplTest {
+
+    private static final String VALID_NAME = "stuff";
+    private static final String VALID_PREFIXED_NAME = "x:stuff";
+
+    private ElementBuilderImpl instance;
+
+    @Before
+    public void createInstance() {
+        instance = new ElementBuilderImpl(new NodeFactory(), VALID_NAME, false);
+    }
+
+    @Test
+    public void givenValidName_whenBuild_thenElementHasName() {
+        Element result = (Element) instance.build().get(0);
+        assertThat(result.getLocalName(), equalTo(VALID_NAME));
+    }
+
+    @Test
+    public void givenPrefixedName_whenConstruct_thenLocalNameExcludesPrefix() {
+        ElementBuilder builder = new ElementBuilderImpl(new NodeFactory(), VALID_PREFIXED_NAME, false);
+        assertThat(builder.getLocalName(), equalTo(VALID_NAME));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void givenNameWithEmptyLocalName_whenConstruct_thenThrowsIAE() {
+        new ElementBuilderImpl(new NodeFactory(), "x:", false);
+    }
+
+    @Test
+    public void givenPrefixChanged_whenBuild_thenElementHasNewQualifiedName() {
+        Element result = (Element) new ElementBuilderImpl(new NodeFactory(), VALID_PREFIXED_NAME, false)
+                .withNamespace(URI.create("http://example.com/"))
+                .withPrefix("y")
+                .build().get(0);
+        assertThat(result.getQualifiedName(), equalTo("y:" + VALID_NAME));
+    }
+
+    @Test
+    public void givenChildNode_whenBuild_thenChildIsCopied() {
+        Element child = new Element("child");
+        instance.add(child);
+
+        Element result = (Element) instance.build().get(0);
+
+        assertThat(result.getChild(0), not(sameInstance((Object) child)));
+    }
+
+    @Test
+    public void givenChildNode_whenBuildAndConsume_thenChildIsMoved() {
+        Element child = new Element("child");
+        instance.add(child);
+
+        Element result = (Element) instance.buildAndConsume().get(0);
+
+        assertThat(result.getChild(0), sameInstance((Object) child));
+    }
+
+    @Test
+    public void givenAttribute_whenBuildAndConsume_thenAttributeIsMoved() {
+        Attribute attribute = new Attribute("id", "value");
+        instance.addAttribute(attribute);
+
+        Element result = (Element) instance.buildAndConsume().get(0);
+
+        assertThat(result.getAttribute(0), sameInstance(attribute));
+    }
+
+    @Test
+    public void givenRepeatedBuild_whenBuildAndConsume_thenEarlierProductsAreUnchanged() {
+        instance.add("text");
+        Nodes first = instance.build();
+
+        Nodes second = instance.buildAndConsume();
+
+        assertThat(first.get(0).getChild(0), not(sameInstance(second.get(0).getChild(0))));
+        assertThat(first.get(0).getValue(), equalTo("text"));
+        assertThat(((Text) second.get(0).getChild(0)).getValue(), equalTo("text"));
+    }
+
+    @Test
+    public void givenBuilderAddedToParent_whenBuildAndConsume_thenParentProductIsUnaffected() {
+        instance.add("text");
+        ElementBuilder parent = new ElementBuilderImpl(new NodeFactory(), "parent", false).add(instance);
+
+        Element consumed = (Element) instance.buildAndConsume().get(0);
+        ((Text) consumed.getChild(0)).setValue("changed");
+
+        assertThat(parent.build().get(0).getValue(), equalTo("text"));
+    }
+
+    @Test
+    public void givenNestedBuilders_whenBuildAndConsume_thenEachNodeIsAllocatedOnce() {
+        CopyCountingNodeFactory factory = new CopyCountingNodeFactory();
+        ElementBuilder root = nestedTree(factory);
+
+        Element result = (Element) root.buildAndConsume().get(0);
+
+        assertThat(result.toXML(), equalTo(nestedTree(new NodeFactory()).build().get(0).toXML()));
+        assertThat(factory.elementsMade, equalTo(7));
+        assertThat(factory.textsMade, equalTo(4));
+        assertThat(factory.copies, equalTo(0));
+    }
+
+    @Test
+    public void givenNestedBuilders_whenBuild_thenMadeElementsAreNotCopied() {
+        CopyCountingNodeFactory factory = new CopyCountingNodeFactory();
+        ElementBuilder root = nestedTree(factory);
+        int textsMade = factory.textsMade;
+
+        root.build();
+
+        assertThat(factory.elementsMade, equalTo(7));
+        assertThat(factory.textsMade, equalTo(textsMade));
+        assertThat(factory.copies, equalTo(4));
+    }
+
+    @Test
+    public void givenChildAddedToTwoParents_whenParentBuildAndConsume_thenChildNodesAreCopied() {
+        instance.add("text");
+        ElementBuilder first = new ElementBuilderImpl(new NodeFactory(), "first", false).add(instance);
+        ElementBuilder second = new ElementBuilderImpl(new NodeFactory(), "second", false).add(instance);
+
+        Element consumed = (Element) first.buildAndConsume().get(0);
+        ((Text) consumed.getChildElements().get(0).getChild(0)).setValue("changed");
+
+        assertThat(second.build().get(0).getValue(), equalTo("text"));
+        assertThat(instance.build().get(0).getValue(), equalTo("text"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void givenChildMovedByParent_whenBuild_thenThrowsISE() {
+        instance.add("text");
+        new ElementBuilderImpl(new NodeFactory(), "parent", false).add(instance).buildAndConsume();
+
+        instance.build();
+    }
+
+    @Test
+    public void givenChildMovedByParent_whenReset_thenBuilderCanBeReused() {
+        instance.add("text");
+        new ElementBuilderImpl(new NodeFactory(), "parent", false).add(instance).buildAndConsume();
+
+        instance.reset().add("again");
+
+        assertThat(instance.buildAndConsume().get(0).getValue(), equalTo("again"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void givenConsumedBuilder_whenBuild_thenThrowsISE() {
+        instance.buildAndConsume();
+        instance.build();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void givenConsumedBuilder_whenBuildAndConsume_thenThrowsISE() {
+        instance.buildAndConsume();
+        instance.buildAndConsume();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void givenConsumedBuilder_whenAdd_thenThrowsISE() {
+        instance.buildAndConsume();
+        instance.add("text");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void givenConsumedBuilder_whenAddAttribute_thenThrowsISE() {
+        instance.buildAndConsume();
+        instance.addAttribute("id", "value");
+    }
+
+    @Test
+    public void givenConsumedBuilder_whenReset_thenBuilderIsUsableAndEmpty() {
+        instance.addAttribute("id", "value").add("text").buildAndConsume();
+
+        Element result = (Element) instance.reset().build().get(0);
+
+        assertThat(result.toXML(), equalTo("<" + VALID_NAME + " />"));
+    }
+
+    @Test
+    public void givenNestedBuilderModifiedAfterAdd_whenBuild_thenProductReflectsStateWhenAdded() {
+        ElementBuilder child = new ElementBuilderImpl(new NodeFactory(), "child", false).add("A");
+        instance.add(child);
+        child.add("B");
+
+        Element result = (Element) instance.build().get(0);
+
+        assertThat(result.getValue(), equalTo("A"));
+    }
+
+    @Test
+    public void givenDeeplyNestedBuilders_whenBuild_thenEachElementIsMadeOnce() {
+        CountingNodeFactory factory = new CountingNodeFactory();
+        ElementBuilder builder = new ElementBuilderImpl(factory, "leaf", false);
+        for (int depth = 0; depth < 10; depth++) {
+            builder = new ElementBuilderImpl(factory, "level", false).add(builder);
+        }
+        assertThat(factory.elementsMade, equalTo(0));
+
+        builder.build();
+
+        assertThat(factory.elementsMade, equalTo(11));
+    }
+
+    @Test
+    public void givenBuilders_whenAddAll_thenProductMatchesIndividualAdds() {
+        ElementBuilder expected = new ElementBuilderImpl(new NodeFactory(), VALID_NAME, false);
+        List<ElementBuilder> children = new ArrayList<ElementBuilder>();
+        for (int i = 0; i < 10; i++) {
+            ElementBuilder child = new ElementBuilderImpl(new NodeFactory(), "child", false).add("" + i);
+            children.add(child);
+            expected.add(child);
+        }
+
+        instance.addAll(children);
+
+        assertThat(instance.build().get(0).toXML(), equalTo(expected.build().get(0).toXML()));
+    }
+
+    @Test
+    public void givenStream_whenAddAll_thenChildrenAreInEncounterOrder() {
+        instance.addAll(Stream.of("a", "b", "c").map(new Function<String, ElementBuilder>() {
+            @Override
+            public ElementBuilder apply(String name) {
+                return new ElementBuilderImpl(new NodeFactory(), name, false);
+            }
+        }));
+
+        assertThat(instance.build().get(0).toXML(),
+                equalTo("<" + VALID_NAME + "><a /><b /><c /></" + VALID_NAME + ">"));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void givenNullBuilder_whenAddAll_thenThrowsNPE() {
+        instance.addAll(Arrays.asList(new ElementBuilderImpl(new NodeFactory(), "child", false), null));
+    }
+
+    @Test
+    public void givenMap_whenAddAttributes_thenAttributesAreInIterationOrder() {
+        Element result = (Element) instance.addAttributes(ImmutableMap.of("b", "1", "a", "2")).build().get(0);
+
+        assertThat(result.toXML(), equalTo("<" + VALID_NAME + " b=\"1\" a=\"2\" />"));
+    }
+
+    @Test
+    public void givenPairs_whenAddAttributes_thenAttributesAreAdded() {
+        Element result = (Element) instance.addAttributes("b", "1", "a", "2").build().get(0);
+
+        assertThat(result.toXML(), equalTo("<" + VALID_NAME + " b=\"1\" a=\"2\" />"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void givenOddNumberOfPairs_whenAddAttributes_thenThrowsIAE() {
+        instance.addAttributes("a", "1", "b");
+    }
+
+    @Test
+    public void givenCustomNodeFactory_whenAddAttributes_thenFactoryMakesAttributes() {
+        CountingNodeFactory factory = new CountingNodeFactory();
+        new ElementBuilderImpl(factory, VALID_NAME, false).addAttributes("a", "1", "b", "2");
+
+        assertThat(factory.attributesMade, equalTo(2));
+    }
+
+    @Test
+    public void givenLargeTree_whenBuildInParallel_thenProductMatchesBuild() {
+        ElementBuilder builder = largeTree(new NodeFactory());
+
+        Nodes result = builder.build(ForkJoinPool.commonPool());
+
+        assertThat(result.get(0).toXML(), equalTo(builder.build().get(0).toXML()));
+    }
+
+    @Test
+    public void givenLargeTree_whenBuildInParallel_thenElementsAreMadeInPool() {
+        ThreadRecordingNodeFactory factory = new ThreadRecordingNodeFactory();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            largeTree(factory).build(pool);
+        } finally {
+            pool.shutdown();
+        }
+
+        assertThat(factory.threads.contains(Thread.currentThread()), equalTo(false));
+    }
+
+    @Test
+    public void givenSmallTree_whenBuildInParallel_thenElementsAreMadeOnCallingThread() {
+        ThreadRecordingNodeFactory factory = new ThreadRecordingNodeFactory();
+        new ElementBuilderImpl(factory, VALID_NAME, false)
+                .add(new ElementBuilderImpl(factory, "child", false))
+                .build(ForkJoinPool.commonPool());
+
+        assertThat(factory.threads, equalTo(Collections.singleton(Thread.currentThread())));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void givenConsumedBuilder_whenBuildInParallel_thenThrowsISE() {
+        instance.buildAndConsume();
+        instance.build(ForkJoinPool.commonPool());
+    }
+
+    @Test
+    public void givenPresizedBuilder_whenAddMoreThanExpected_thenAllAreBuilt() {
+        ElementBuilder builder = new ElementBuilderImpl(new BuilderContext(new NodeFactory()), VALID_NAME, false, 1, 1);
+        for (int i = 0; i < 10; i++) {
+            builder.add("" + i).addAttribute("a" + i, "" + i);
+        }
+
+        Element result = (Element) builder.build().get(0);
+
+        assertThat(result.getValue(), equalTo("0123456789"));
+        assertThat(result.getAttributeCount(), equalTo(10));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void givenNegativeExpectedChildren_whenConstruct_thenThrowsIAE() {
+        new ElementBuilderImpl(new BuilderContext(new NodeFactory()), VALID_NAME, false, -1, 0);
+    }
+
+    @Test
+    public void givenBuilderAddedToParent_whenModified_thenParentProductIsUnchanged() {
+        instance.addAttribute("id", "1").add("A");
+        ElementBuilder parent = new ElementBuilderImpl(new NodeFactory(), "parent", false).add(instance);
+
+        instance.addAttribute("other", "2").add("B");
+        instance.reset().add("C");
+
+        assertThat(parent.build().get(0).toXML(), equalTo("<parent><" + VALID_NAME + " id=\"1\">A</"
+                + VALID_NAME + "></parent>"));
+    }
+
+    @Test
+    public void givenPrefixedName_whenWithLocalName_thenPrefixIsKept() {
+        Element result = (Element) new ElementBuilderImpl(new NodeFactory(), VALID_PREFIXED_NAME, false)
+                .withNamespace(URI.create("http://example.com/"))
+                .withLocalName("other")
+                .build().get(0);
+
+        assertThat(result.getQualifiedName(), equalTo("x:other"));
+    }
+
+    @Test
+    public void givenConsecutiveText_whenBuild_thenTextIsCoalesced() {
+        Element result = (Element) instance.add("a").add("b").add("c").build().get(0);
+
+        assertThat(result.getChildCount(), equalTo(1));
+        assertThat(result.getValue(), equalTo("abc"));
+    }
+
+    @Test
+    public void givenTextSeparatedByChildren_whenBuild_thenTextIsNotCoalesced() {
+        instance.add("a").add("b")
+                .add(new ElementBuilderImpl(new NodeFactory(), "child", false))
+                .add("c").addComment("comment").add("d");
+
+        assertThat(instance.build().get(0).toXML(),
+                equalTo("<" + VALID_NAME + ">ab<child />c<!--comment-->d</" + VALID_NAME + ">"));
+    }
+
+    @Test
+    public void givenTextAddedAfterBuild_whenBuild_thenEarlierProductIsUnchanged() {
+        instance.add("a");
+        Nodes first = instance.build();
+
+        instance.add("b").add("c");
+
+        assertThat(first.get(0).getValue(), equalTo("a"));
+        assertThat(instance.build().get(0).getValue(), equalTo("abc"));
+    }
+
+    @Test
+    public void givenCustomNodeFactory_whenAddTextRepeatedly_thenFactoryMakesOneText() {
+        CountingNodeFactory factory = new CountingNodeFactory();
+        ElementBuilder builder = new ElementBuilderImpl(factory, VALID_NAME, false);
+        for (int i = 0; i < 10; i++) {
+            builder.add("" + i);
+        }
+
+        assertThat(builder.build().get(0).getValue(), equalTo("0123456789"));
+        assertThat(factory.textsMade, equalTo(1));
+    }
+
+    @Test
+    public void givenSupplier_whenNotBuilt_thenSupplierIsNotInvoked() {
+        CountingSupplier supplier = new CountingSupplier();
+
+        instance.add(supplier).addAttribute("id", supplier);
+
+        assertThat(supplier.calls.get(), equalTo(0));
+    }
+
+    @Test
+    public void givenSupplier_whenBuildRepeatedly_thenValueIsSuppliedEachTime() {
+        CountingSupplier supplier = new CountingSupplier();
+        instance.add("text ").add(supplier).addAttribute("id", supplier);
+
+        Element first = (Element) instance.build().get(0);
+        Element second = (Element) instance.build().get(0);
+
+        assertThat(first.toXML(), equalTo("<" + VALID_NAME + " id=\"1\">text 2</" + VALID_NAME + ">"));
+        assertThat(second.toXML(), equalTo("<" + VALID_NAME + " id=\"3\">text 4</" + VALID_NAME + ">"));
+    }
+
+    @Test
+    public void givenCharSequence_whenModifiedBeforeBuild_thenProductReflectsModification() {
+        StringBuilder text = new StringBuilder("Hello");
+        instance.add(text);
+
+        text.append(", world");
+
+        assertThat(instance.build().get(0).getValue(), equalTo("Hello, world"));
+    }
+
+    @Test
+    public void givenCustomNodeFactory_whenBuildDeferredContent_thenFactoryMakesNodes() {
+        CountingNodeFactory factory = new CountingNodeFactory();
+        ElementBuilder builder = new ElementBuilderImpl(factory, VALID_NAME, false)
+                .add(new StringBuilder("text"))
+                .addAttribute("id", new CountingSupplier());
+
+        Element result = (Element) builder.build().get(0);
+
+        assertThat(result.toXML(), equalTo("<" + VALID_NAME + " id=\"1\">text</" + VALID_NAME + ">"));
+        assertThat(factory.textsMade, equalTo(1));
+        assertThat(factory.attributesMade, equalTo(1));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void givenSupplierReturningNull_whenBuild_thenThrowsNPE() {
+        instance.add(new Supplier<String>() {
+            @Override
+            public String get() {
+                return null;
+            }
+        }).build();
+    }
+
+    private static ElementBuilder largeTree(NodeFactory factory) {
+        ElementBuilder root = new ElementBuilderImpl(factory, "root", false);
+        for (int i = 0; i < 8; i++) {
+            ElementBuilder child = new ElementBuilderImpl(factory, "child", false).addAttribute("n", "" + i);
+            for (int j = 0; j < ElementSnapshot.PARALLEL_THRESHOLD; j++) {
+                child.add(new ElementBuilderImpl(factory, "item", false).add("" + j));
+            }
+            root.add(child);
+        }
+        return root;
+    }
+
+    /**
+     * @return a tree of seven elements, three levels deep, with a text node in each leaf
+     */
+    private static ElementBuilder nestedTree(NodeFactory factory) {
+        ElementBuilder root = new ElementBuilderImpl(factory, "root", false);
+        for (int i = 0; i < 2; i++) {
+            ElementBuilder child = new ElementBuilderImpl(factory, "child", false);
+            for (int j = 0; j < 2; j++) {
+                child.add(new ElementBuilderImpl(factory, "leaf", false).add(i + "." + j));
+            }
+            root.add(child);
+        }
+        return root;
+    }
+
+    private static final class ThreadRecordingNodeFactory extends NodeFactory {
+        final Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+
+        @Override
+        public Element startMakingElement(String name, String namespace) {
+            threads.add(Thread.currentThread());
+            return super.startMakingElement(name, namespace);
+        }
+    }
+
+    private static final class CountingSupplier implements Supplier<String> {
+        final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public String get() {
+            return "" + calls.incrementAndGet();
+        }
+    }
+
+    private static final class CountingNodeFactory extends NodeFactory {
+        int elementsMade = 0;
+        int attributesMade = 0;
+        int textsMade = 0;
+
+        @Override
+        public Element startMakingElement(String name, String namespace) {
+            elementsMade++;
+            return super.startMakingElement(name, namespace);
+        }
+
+        @Override
+        public Nodes makeAttribute(String name, String URI, String value, Attribute.Type type) {
+            attributesMade++;
+            return super.makeAttribute(name, URI, value, type);
+        }
+
+        @Override
+        public Nodes makeText(String data) {
+            textsMade++;
+            return super.makeText(data);
+        }
+    }
+
+    /**
+     * Counts the elements and text nodes it makes, and every copy made of them.
+     */
+    private static final class CopyCountingNodeFactory extends NodeFactory {
+        int elementsMade = 0;
+        int textsMade = 0;
+        int copies = 0;
+
+        @Override
+        public Element startMakingElement(String name, String namespace) {
+            elementsMade++;
+            return new Element(name, namespace) {
+                @Override
+                protected Element shallowCopy() {
+                    copies++;
+                    return super.shallowCopy();
+                }
+            };
+        }
+
+        @Override
+        public Nodes makeText(String data) {
+            textsMade++;
+            return new Nodes(new Text(data) {
+                @Override
+                public Node copy() {
+                    copies++;
+                    return super.copy();
+                }
+            });
+        }
+    }
+
+}
@@ -0,0 +1,270 @@
+package com.github.hamishmorgan.xomb.impl;
+
+import com.github.hamishmorgan.xomb.api.DocumentBuilder;
+import com.github.hamishmorgan.xomb.api.ElementBuilder;
+import com.github.hamishmorgan.xomb.api.MissingRequiredPropertyException;
+import nu.xom.Attribute;
+import nu.xom.Builder;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.NodeFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamResult;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.URI;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class EventWriterTest {
+
+    private static final URI NAMESPACE = URI.create("http://example.com/ns");
+
+    private XomBuilderFactoryImpl factory;
+
+    @Before
+    public void createFactory() {
+        factory = new XomBuilderFactoryImpl(new NodeFactory());
+    }
+
+    @Test
+    public void givenElementBuilder_whenWriteToXMLStreamWriter_thenOutputMatchesBuild() throws Exception {
+        ElementBuilder builder = complexElement();
+
+        StringWriter out = new StringWriter();
+        XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out);
+        builder.writeTo(writer);
+        writer.flush();
+
+        assertThat(parse(out.toString()).getRootElement().toXML(),
+                equalTo(builder.build().get(0).toXML()));
+    }
+
+    @Test
+    public void givenElementBuilder_whenWriteToContentHandler_thenOutputMatchesBuild() throws Exception {
+        ElementBuilder builder = complexElement();
+
+        StringWriter out = new StringWriter();
+        TransformerHandler handler = identityHandler(out);
+        handler.startDocument();
+        builder.writeTo(handler);
+        handler.endDocument();
+
+        assertThat(parse(out.toString()).getRootElement().toXML(),
+                equalTo(builder.build().get(0).toXML()));
+    }
+
+    @Test
+    public void givenDocumentBuilder_whenWriteToXMLStreamWriter_thenOutputMatchesBuild() throws Exception {
+        DocumentBuilder builder = factory.createDocument()
+                .withDocType("root")
+                .addComment("before")
+                .withRoot(complexElement())
+                .addPI("after", "data");
+
+        StringWriter out = new StringWriter();
+        XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out);
+        builder.writeTo(writer);
+        writer.flush();
+
+        assertThat(parse(out.toString()).toXML(), equalTo(builder.build().toXML()));
+    }
+
+    @Test
+    public void givenDocumentBuilder_whenWriteToLexicalHandler_thenAllEventsAreReported() throws Exception {
+        RecordingHandler handler = new RecordingHandler();
+
+        factory.createDocument()
+                .withDocType("root")
+                .addComment("comment")
+                .withRoot(factory.createRoot("root").add("text"))
+                .writeTo(handler);
+
+        assertThat(handler.events.toString(), equalTo(
+                "[startDocument, startDTD root, endDTD, comment comment, startElement root, characters text, "
+                        + "endElement root, endDocument]"));
+    }
+
+    @Test
+    public void givenNestedElementsInSameNamespace_whenWriteToContentHandler_thenNamespaceIsDeclaredOnce()
+            throws Exception {
+        RecordingHandler handler = new RecordingHandler();
+
+        factory.createElement("x:parent").withNamespace(NAMESPACE)
+                .add(factory.createElement("x:child").withNamespace(NAMESPACE))
+                .add(factory.createElement("other"))
+                .writeTo(handler);
+
+        assertThat(handler.events.toString(), equalTo(
+                "[startPrefixMapping x, startElement x:parent, startElement x:child, endElement x:child, "
+                        + "startElement other, endElement other, endElement x:parent, endPrefixMapping x]"));
+    }
+
+    @Test
+    public void givenBuilders_whenWriteTo_thenNodeFactoryIsNotUsed() throws Exception {
+        XomBuilderFactoryImpl failingFactory = new XomBuilderFactoryImpl(new NodeFactory() {
+            @Override
+            public Element startMakingElement(String name, String namespace) {
+                throw new AssertionError("Element constructed");
+            }
+        });
+
+        failingFactory.createElement("parent")
+                .add(failingFactory.createElement("child").add("text"))
+                .writeTo(new DefaultHandler());
+    }
+
+    @Test
+    public void givenDeferredContent_whenWriteToXMLStreamWriter_thenOutputMatchesBuild() throws Exception {
+        ElementBuilder builder = factory.createElement("p")
+                .addAttribute("id", new Supplier<String>() {
+                    @Override
+                    public String get() {
+                        return "a&b";
+                    }
+                })
+                .add(new StringBuilder("Text with <markup>"))
+                .add(CharBuffer.wrap(" & a buffer"));
+
+        StringWriter out = new StringWriter();
+        XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out);
+        builder.writeTo(writer);
+        writer.flush();
+
+        assertThat(parse(out.toString()).getRootElement().toXML(), equalTo(builder.build().get(0).toXML()));
+    }
+
+    @Test
+    public void givenDeferredText_whenWriteToContentHandler_thenCharactersAreReported() throws Exception {
+        RecordingHandler handler = new RecordingHandler();
+
+        factory.createElement("p").add(new StringBuilder("deferred")).writeTo(handler);
+
+        assertThat(handler.events.toString(), equalTo("[startElement p, characters deferred, endElement p]"));
+    }
+
+    @Test(expected = MissingRequiredPropertyException.class)
+    public void givenElementWithSlot_whenWriteTo_thenThrowsException() throws Exception {
+        factory.createElement("p").addSlot("text").writeTo(new DefaultHandler());
+    }
+
+    @Test(expected = MissingRequiredPropertyException.class)
+    public void givenDocumentWithoutRoot_whenWriteTo_thenThrowsException() throws Exception {
+        factory.createDocument().addComment("comment").writeTo(new DefaultHandler());
+    }
+
+    private ElementBuilder complexElement() {
+        Element existing = new Element("y:existing", "http://example.com/other");
+        existing.addAttribute(new Attribute("y:attr", "http://example.com/other", "value"));
+        existing.appendChild("existing text");
+
+        return factory.createRoot("x:root").withNamespace(NAMESPACE)
+                .addAttribute("id", "a&b\"c")
+                .addAttribute(new Attribute("x:attr", NAMESPACE.toString(), "namespaced"))
+                .add("Text with <markup> & entities")
+                .addComment("comment")
+                .addPI("target", "data")
+                .add(factory.createElement("x:child").withNamespace(NAMESPACE)
+                        .add(factory.createElement("plain").add("plain text")))
+                .add(existing);
+    }
+
+    private static TransformerHandler identityHandler(StringWriter out) throws Exception {
+        TransformerHandler handler = ((SAXTransformerFactory) SAXTransformerFactory.newInstance())
+                .newTransformerHandler();
+        handler.getTransformer().setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        handler.setResult(new StreamResult(out));
+        return handler;
+    }
+
+    private static Document parse(String xml) throws Exception {
+        return new Builder().build(new StringReader(xml));
+    }
+
+    private static final class RecordingHandler extends DefaultHandler implements LexicalHandler {
+        final List<String> events = new ArrayList<String>();
+
+        @Override
+        public void startDocument() {
+            events.add("startDocument");
+        }
+
+        @Override
+        public void endDocument() {
+            events.add("endDocument");
+        }
+
+        @Override
+        public void startPrefixMapping(String prefix, String uri) {
+            events.add("startPrefixMapping " + prefix);
+        }
+
+        @Override
+        public void endPrefixMapping(String prefix) {
+            events.add("endPrefixMapping " + prefix);
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            events.add("startElement " + qName);
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            events.add("endElement " + qName);
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            events.add("characters " + new String(ch, start, length));
+        }
+
+        @Override
+        public void startDTD(String name, String publicId, String systemId) {
+            events.add("startDTD " + name);
+        }
+
+        @Override
+        public void endDTD() {
+            events.add("endDTD");
+        }
+
+        @Override
+        public void startEntity(String name) {
+        }
+
+        @Override
+        public void endEntity(String name) {
+        }
+
+        @Override
+        public void startCDATA() {
+        }
+
+        @Override
+        public void endCDATA() {
+        }
+
+        @Override
+        public void comment(char[] ch, int start, int length) throws SAXException {
+            events.add("comment " + new String(ch, start, length));
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+package com.github.hamishmorgan.xomb.impl;
+
+import com.github.hamishmorgan.xomb.SerializationProfile;
+import com.github.hamishmorgan.xomb.XomUtil;
+import com.google.common.base.Charsets;
+import nu.xom.Attribute;
+import nu.xom.Comment;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.Nodes;
+import nu.xom.ProcessingInstruction;
+import nu.xom.Text;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class FragmentsTest {
+
+    private static final String NAMESPACE = "http://example.com/ns";
+
+    @Test
+    public void givenElement_whenWriteFragment_thenOutputMatchesSerializer() throws Exception {
+        Element element = complexElement();
+
+        String result = XomUtil.toFragmentString(element);
+
+        assertThat(result, equalTo(serialize(element)));
+    }
+
+    @Test
+    public void givenAttachedElement_whenWriteFragment_thenElementIsNotDetached() throws Exception {
+        Element parent = new Element("x:parent", NAMESPACE);
+        parent.addNamespaceDeclaration("y", "http://example.com/other");
+        Element child = new Element("x:child", NAMESPACE);
+        child.appendChild(new Element("plain"));
+        parent.appendChild(child);
+
+        String result = XomUtil.toFragmentString(child);
+
+        assertThat(child.getParent(), sameInstance((Object) parent));
+        assertThat(result, equalTo("<x:child xmlns:x=\"" + NAMESPACE + "\"><plain/></x:child>"));
+    }
+
+    @Test
+    public void givenNodes_whenWriteFragment_thenNodesAreWrittenInOrder() throws Exception {
+        Nodes nodes = new Nodes();
+        nodes.append(new Text("a < b"));
+        nodes.append(new Element("br"));
+        nodes.append(new Comment("note"));
+        StringBuilder result = new StringBuilder();
+
+        XomUtil.writeFragment(nodes, result);
+
+        assertThat(result.toString(), equalTo("a &lt; b<br/><!--note-->"));
+    }
+
+    @Test
+    public void givenEmptyText_whenWriteFragment_thenElementIsWrittenAsEmptyElement() throws Exception {
+        Element element = new Element("r");
+        element.appendChild(new Text(""));
+
+        String result = XomUtil.toFragmentString(element);
+
+        assertThat(result, equalTo("<r/>"));
+        assertThat(result, equalTo(serialize(element)));
+    }
+
+    @Test
+    public void givenUnencodableCharacter_whenWriteFragmentToStream_thenCharacterReferenceIsWritten()
+            throws Exception {
+        Element element = new Element("p");
+        element.appendChild("café 😀");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        XomUtil.writeFragment(element, out, Charsets.US_ASCII);
+
+        assertThat(out.toString("US-ASCII"), equalTo("<p>caf&#xE9; &#x1F600;</p>"));
+    }
+
+    private static Element complexElement() {
+        Element root = new Element("x:root", NAMESPACE);
+        root.addAttribute(new Attribute("id", "a&b\"c\td\ne\rf<g>"));
+        root.addAttribute(new Attribute("y:attr", "http://example.com/other", "namespaced"));
+        root.addNamespaceDeclaration("a", "http://example.com/unused");
+        root.appendChild("Text with <markup> & ]]> entities\r\n");
+        root.appendChild(new Comment("comment"));
+        root.appendChild(new ProcessingInstruction("target", "data"));
+        root.appendChild(new ProcessingInstruction("empty", ""));
+        Element child = new Element("x:child", NAMESPACE);
+        child.appendChild(new Element("unqualified"));
+        Element defaulted = new Element("default", "http://example.com/default");
+        defaulted.appendChild(new Element("undeclared"));
+        child.appendChild(defaulted);
+        root.appendChild(child);
+        root.appendChild(new Element("empty"));
+        return root;
+    }
+
+    private static String serialize(Element element) throws Exception {
+        String document = XomUtil.toString(new Document((Element) element.copy()), Charsets.UTF_8,
+                SerializationProfile.COMPACT.withDeclaration(false).withPreserveBaseURI(false));
+        return document.substring(0, document.length() - "\r\n".length());
+    }
+
+}
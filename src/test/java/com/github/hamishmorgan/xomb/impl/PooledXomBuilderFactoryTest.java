@@ -0,0 +1,180 @@
+package com.github.hamishmorgan.xomb.impl;
+
+import com.github.hamishmorgan.xomb.api.DocumentBuilder;
+import com.github.hamishmorgan.xomb.api.ElementBuilder;
+import com.github.hamishmorgan.xomb.spi.XomBuilderFeature;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.NodeFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class PooledXomBuilderFactoryTest {
+
+    private PooledXomBuilderFactory instance;
+
+    @Before
+    public void createInstance() {
+        instance = new PooledXomBuilderFactory(new NodeFactory());
+    }
+
+    @Test
+    public void givenReleasedElementBuilder_whenCreateElement_thenReturnsSameInstance() {
+        ElementBuilder builder = instance.createElement("a");
+        instance.release(builder);
+
+        assertThat(instance.createElement("b"), sameInstance(builder));
+    }
+
+    @Test
+    public void givenReleasedElementBuilder_whenCreateElement_thenBuilderIsReset() {
+        ElementBuilder builder = instance.createElement("a").addAttribute("id", "1").add("text");
+        Element before = (Element) builder.buildAndConsume().get(0);
+        instance.release(builder);
+
+        Element after = (Element) instance.createRoot("b").build().get(0);
+
+        assertThat(after.toXML(), equalTo("<b />"));
+        assertThat(before.toXML(), equalTo("<a id=\"1\">text</a>"));
+    }
+
+    @Test
+    public void givenReleasedBuilderCapturedByParent_whenReused_thenParentIsUnaffected() {
+        ElementBuilder child = instance.createElement("child").add("text");
+        ElementBuilder parent = instance.createElement("parent").add(child);
+        instance.release(child);
+
+        instance.createElement("other").add("changed");
+
+        assertThat(parent.build().get(0).toXML(), equalTo("<parent><child>text</child></parent>"));
+    }
+
+    @Test
+    public void givenReleasedElementBuilder_whenCreatePresizedElement_thenReturnsResetInstance() {
+        ElementBuilder builder = instance.createElement("a").add("text");
+        instance.release(builder);
+
+        ElementBuilder result = instance.createElement("b", 4, 2);
+
+        assertThat(result, sameInstance(builder));
+        assertThat(result.addAttribute("id", "1").build().get(0).toXML(), equalTo("<b id=\"1\" />"));
+    }
+
+    @Test
+    public void givenReleasedDocumentBuilder_whenCreateDocument_thenReturnsResetInstance() {
+        DocumentBuilder builder = instance.createDocument().withRoot(instance.createRoot("a"));
+        instance.release(builder);
+
+        DocumentBuilder reused = instance.createDocument();
+        Document result = reused.withRoot(instance.createRoot("b")).build();
+
+        assertThat(reused, sameInstance(builder));
+        assertThat(result.getRootElement().getLocalName(), equalTo("b"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void givenReleasedBuilder_whenUsed_thenThrowsISE() {
+        ElementBuilder builder = instance.createElement("a");
+        instance.release(builder);
+        builder.add("text");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void givenReleasedBuilder_whenReleasedAgain_thenThrowsISE() {
+        ElementBuilder builder = instance.createElement("a");
+        instance.release(builder);
+        instance.release(builder);
+    }
+
+    @Test
+    public void givenReleasedBuilder_whenReleasedAgainByOtherThread_thenThrowsISE() throws Exception {
+        final ElementBuilder builder = instance.createElement("a");
+        instance.release(builder);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    instance.release(builder);
+                }
+            }).get();
+            fail("Expected IllegalStateException");
+        } catch (ExecutionException ex) {
+            assertThat(ex.getCause(), instanceOf(IllegalStateException.class));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void givenBuilderFromOtherFactory_whenRelease_thenThrowsIAE() {
+        instance.release(new XomBuilderFactoryImpl(new NodeFactory()).createElement("a"));
+    }
+
+    @Test
+    public void givenZeroMaxIdle_whenCreateElement_thenReturnsNewInstance() {
+        instance = new PooledXomBuilderFactory(new NodeFactory(), Collections.<XomBuilderFeature>emptySet(), 0);
+        ElementBuilder builder = instance.createElement("a");
+        instance.release(builder);
+
+        assertThat(instance.createElement("b"), not(sameInstance(builder)));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void givenZeroMaxIdle_whenReleasedBuilderUsed_thenThrowsISE() {
+        instance = new PooledXomBuilderFactory(new NodeFactory(), Collections.<XomBuilderFeature>emptySet(), 0);
+        ElementBuilder builder = instance.createElement("a");
+        instance.release(builder);
+        builder.add("text");
+    }
+
+    @Test
+    public void givenConsumedNestedBuilders_whenReleasedAndReused_thenArraysAreReused() {
+        ElementBuilderImpl child = (ElementBuilderImpl) instance.createElement("child").addAttribute("id", "1")
+                .add("text");
+        ElementBuilderImpl parent = (ElementBuilderImpl) instance.createElement("parent").add(child);
+        Object[] parentChildren = parent._getChildrenInPlace();
+        Object[] childChildren = child._getChildrenInPlace();
+        Element before = (Element) parent.buildAndConsume().get(0);
+        instance.release(child);
+        instance.release(parent);
+
+        ElementBuilderImpl reusedParent = (ElementBuilderImpl) instance.createElement("b");
+        ElementBuilderImpl reusedChild = (ElementBuilderImpl) instance.createElement("c");
+        Element after = (Element) reusedParent.add(reusedChild.add("changed")).buildAndConsume().get(0);
+
+        assertThat(reusedParent._getChildrenInPlace(), sameInstance(parentChildren));
+        assertThat(reusedChild._getChildrenInPlace(), sameInstance(childChildren));
+        assertThat(before.toXML(), equalTo("<parent><child id=\"1\">text</child></parent>"));
+        assertThat(after.toXML(), equalTo("<b><c>changed</c></b>"));
+    }
+
+    @Test
+    public void givenConsumedDocumentBuilder_whenReleasedAndReused_thenArrayIsReused() {
+        DocumentBuilderImpl builder = (DocumentBuilderImpl) instance.createDocument()
+                .withRoot(instance.createRoot("a"));
+        Object[] children = builder._getChildrenInPlace();
+        Document before = builder.buildAndConsume();
+        instance.release(builder);
+
+        DocumentBuilderImpl reused = (DocumentBuilderImpl) instance.createDocument();
+        Document after = reused.withRoot(instance.createRoot("b")).buildAndConsume();
+
+        assertThat(reused._getChildrenInPlace(), sameInstance(children));
+        assertThat(before.getRootElement().getLocalName(), equalTo("a"));
+        assertThat(after.getRootElement().getLocalName(), equalTo("b"));
+    }
+
+}
@@ -0,0 +1,243 @@
+package com.github.hamishmorgan.xomb.impl;
+
+import com.github.hamishmorgan.xomb.api.StreamingDocumentBuilder;
+import com.github.hamishmorgan.xomb.api.StreamingElementBuilder;
+import com.google.common.base.Charsets;
+import nu.xom.Builder;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.IllegalCharacterDataException;
+import nu.xom.IllegalDataException;
+import nu.xom.IllegalNameException;
+import nu.xom.IllegalTargetException;
+import nu.xom.NodeFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.URI;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class StreamingDocumentBuilderImplTest {
+
+    private XomBuilderFactoryImpl factory;
+    private StringWriter writer;
+    private StreamingDocumentBuilder instance;
+
+    @Before
+    public void createInstance() {
+        factory = new XomBuilderFactoryImpl(new NodeFactory());
+        writer = new StringWriter();
+        instance = factory.createStreamingDocument(writer);
+    }
+
+    @Test
+    public void givenDocument_whenClose_thenOutputMatchesBuiltDocument() throws Exception {
+        instance.withDocType("html").addComment("header");
+        StreamingElementBuilder html = instance.startRoot("html");
+        html.addAttribute("lang", "en");
+        StreamingElementBuilder body = html.startElement("body");
+        body.startElement("p").add("Hello & <goodbye>").addPI("target", "data").close();
+        body.startElement("br").close();
+        body.close();
+        html.close();
+        instance.addComment("footer").close();
+
+        Document expected = factory.createDocument()
+                .withDocType("html")
+                .addComment("header")
+                .withRoot(factory.createRoot("html")
+                        .addAttribute("lang", "en")
+                        .add(factory.createElement("body")
+                                .add(factory.createElement("p").add("Hello & <goodbye>").addPI("target", "data"))
+                                .add(factory.createElement("br"))))
+                .addComment("footer")
+                .build();
+
+        assertThat(parse(writer.toString()).toXML(), equalTo(expected.toXML()));
+    }
+
+    @Test
+    public void givenNamespace_whenStartElement_thenChildInheritsNamespace() throws Exception {
+        StreamingElementBuilder root = instance.startRoot("x:root").withNamespace(URI.create("http://example.com/"));
+        root.startElement("x:child").close();
+        root.startElement("plain").close();
+        instance.close();
+
+        Element result = parse(writer.toString()).getRootElement();
+
+        assertThat(result.getNamespaceURI(), equalTo("http://example.com/"));
+        assertThat(result.getChildElements().get(0).getNamespaceURI(), equalTo("http://example.com/"));
+        assertThat(result.getChildElements().get(1).getNamespaceURI(), equalTo(""));
+    }
+
+    @Test
+    public void givenEmptyElement_whenClose_thenElementIsSelfClosing() throws Exception {
+        instance.startRoot("root").close();
+        instance.close();
+
+        assertThat(writer.toString(), equalTo("<?xml version=\"1.0\"?>\n<root/>\n"));
+    }
+
+    @Test
+    public void givenSpecialCharacters_whenClose_thenValuesRoundTrip() throws Exception {
+        String value = "a&b<c>d\"e\tf\ng\rh";
+        instance.startRoot("root").addAttribute("value", value).add(value);
+        instance.close();
+
+        Element root = parse(writer.toString()).getRootElement();
+
+        assertThat(root.getAttributeValue("value"), equalTo(value));
+        assertThat(root.getValue(), equalTo(value));
+    }
+
+    @Test
+    public void givenUnencodableCharacter_whenClose_thenCharacterReferenceIsWritten() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StreamingDocumentBuilder document = factory.createStreamingDocument(out, Charsets.US_ASCII);
+        document.startRoot("root").add("café 😀");
+        document.close();
+
+        assertThat(out.toString("US-ASCII"), containsString("caf&#xE9; &#x1F600;"));
+        assertThat(new Builder().build(new ByteArrayInputStream(out.toByteArray())).getValue(),
+                equalTo("café 😀"));
+    }
+
+    @Test
+    public void givenOpenElements_whenCloseDocument_thenElementsAreClosed() throws Exception {
+        StreamingElementBuilder root = instance.startRoot("root");
+        root.startElement("child").add("text");
+        instance.close();
+
+        assertThat(parse(writer.toString()).getRootElement().toXML(), equalTo("<root><child>text</child></root>"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void givenContent_whenAddAttribute_thenThrowsISE() throws Exception {
+        instance.startRoot("root").add("text").addAttribute("id", "value");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void givenOpenChild_whenAddToParent_thenThrowsISE() throws Exception {
+        StreamingElementBuilder root = instance.startRoot("root");
+        root.startElement("child");
+        root.add("text");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void givenClosedElement_whenAdd_thenThrowsISE() throws Exception {
+        StreamingElementBuilder root = instance.startRoot("root");
+        StreamingElementBuilder child = root.startElement("child");
+        child.close();
+        child.add("text");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void givenRootStarted_whenStartRoot_thenThrowsISE() throws Exception {
+        instance.startRoot("root").close();
+        instance.startRoot("root");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void givenComment_whenWithDocType_thenThrowsISE() throws Exception {
+        instance.addComment("comment").withDocType("root");
+    }
+
+    @Test(expected = IllegalNameException.class)
+    public void givenIllegalName_whenStartElement_thenThrowsException() throws Exception {
+        instance.startRoot("not a name");
+    }
+
+    @Test(expected = IllegalNameException.class)
+    public void givenNameWithTwoColons_whenStartElement_thenThrowsException() throws Exception {
+        instance.startRoot("a:b:c");
+    }
+
+    @Test(expected = IllegalTargetException.class)
+    public void givenColonizedTarget_whenAddPI_thenThrowsException() throws Exception {
+        instance.addPI("a:b", "data");
+    }
+
+    @Test(expected = IllegalTargetException.class)
+    public void givenReservedTarget_whenAddPI_thenThrowsException() throws Exception {
+        instance.startRoot("root").addPI("xml", "version=\"1.0\"");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void givenEmptyPrefixedDeclaration_whenAddAttribute_thenThrowsIAE() throws Exception {
+        instance.startRoot("root").addAttribute("xmlns:p", "");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void givenPrefixedElement_whenWithEmptyNamespace_thenThrowsIAE() throws Exception {
+        instance.startRoot("p:root").withNamespace(URI.create(""));
+    }
+
+    @Test
+    public void givenEmptyDefaultDeclaration_whenClose_thenOutputIsWellFormed() throws Exception {
+        instance.startRoot("root").addAttribute("xmlns", "").close();
+        instance.close();
+
+        assertThat(parse(writer.toString()).getRootElement().getNamespaceURI(), equalTo(""));
+    }
+
+    @Test(expected = IllegalDataException.class)
+    public void givenIllegalComment_whenAddComment_thenThrowsException() throws Exception {
+        instance.startRoot("root").addComment("a--b");
+    }
+
+    @Test(expected = IllegalCharacterDataException.class)
+    public void givenIllegalCharacter_whenAdd_thenThrowsException() throws Exception {
+        instance.startRoot("root").add("\u0001");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void givenAttribute_whenAddAttributeWithSameName_thenThrowsIAE() throws Exception {
+        instance.startRoot("root").addAttribute("a", "1").addAttribute("a", "2");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void givenNamespace_whenWithNamespaceAgain_thenThrowsIAE() throws Exception {
+        instance.startRoot("p:root").withNamespace(URI.create("http://example.com/a"))
+                .withNamespace(URI.create("http://example.com/b"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void givenUnboundAttributePrefix_whenAdd_thenThrowsIAE() throws Exception {
+        instance.startRoot("a").addAttribute("p:b", "value").add("text");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void givenUnboundElementPrefix_whenClose_thenThrowsIAE() throws Exception {
+        instance.startRoot("p:root").close();
+    }
+
+    @Test
+    public void givenPrefixBoundByAncestor_whenClose_thenOutputIsWellFormed() throws Exception {
+        StreamingElementBuilder root = instance.startRoot("p:root").withNamespace(URI.create("http://example.com/"));
+        root.startElement("p:child").addAttribute("p:a", "1").addAttribute("xml:lang", "en").close();
+        root.close();
+        instance.close();
+
+        Element child = parse(writer.toString()).getRootElement().getChildElements().get(0);
+
+        assertThat(child.getNamespaceURI(), equalTo("http://example.com/"));
+        assertThat(child.getAttributeValue("a", "http://example.com/"), equalTo("1"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void givenIllegalPublicID_whenWithDocType_thenThrowsIAE() throws Exception {
+        instance.withDocType("html", "x\"y", URI.create("http://example.com/html.dtd"));
+    }
+
+    private static Document parse(String xml) throws Exception {
+        return new Builder().build(new StringReader(xml));
+    }
+
+}
@@ -0,0 +1,121 @@
+package com.github.hamishmorgan.xomb.impl;
+
+import nu.xom.IllegalNameException;
+import nu.xom.IllegalTargetException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URI;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class SymbolTableTest {
+
+    private SymbolTable instance;
+
+    @Before
+    public void createInstance() {
+        instance = new SymbolTable();
+    }
+
+    @Test
+    public void givenPrefixedName_whenName_thenSplitsPrefixAndLocalName() {
+        QualifiedName result = instance.name("h:table");
+        assertThat(result.getPrefix(), equalTo("h"));
+        assertThat(result.getLocalName(), equalTo("table"));
+        assertThat(result.getQualifiedName(), equalTo("h:table"));
+    }
+
+    @Test
+    public void givenUnprefixedName_whenName_thenPrefixIsNull() {
+        QualifiedName result = instance.name("table");
+        assertThat(result.getPrefix(), nullValue());
+        assertThat(result.getLocalName(), equalTo("table"));
+    }
+
+    @Test
+    public void givenRepeatedName_whenName_thenReturnsSameSymbol() {
+        assertThat(instance.name("table"), sameInstance(instance.name(new String("table"))));
+    }
+
+    @Test
+    public void givenPrefixAndLocalName_whenName_thenReturnsSymbolOfQualifiedName() {
+        assertThat(instance.name("h", "table"), sameInstance(instance.name("h:table")));
+        assertThat(instance.name(null, "table"), sameInstance(instance.name("table")));
+    }
+
+    @Test
+    public void givenLocalNameContainingColon_whenName_thenPartsAreKept() {
+        QualifiedName result = instance.name(null, "h:table");
+        assertThat(result.getPrefix(), nullValue());
+        assertThat(result.getLocalName(), equalTo("h:table"));
+    }
+
+    @Test
+    public void givenRepeatedNamespace_whenNamespace_thenReturnsSameString() {
+        String first = instance.namespace(URI.create("http://www.w3.org/TR/html4/"));
+        String second = instance.namespace(URI.create("http://www.w3.org/TR/html4/"));
+        assertThat(first, sameInstance(second));
+        assertThat(first, equalTo("http://www.w3.org/TR/html4/"));
+    }
+
+    @Test
+    public void givenFullTable_whenName_thenStillReturnsParsedName() {
+        for (int i = 0; i < SymbolTable.MAX_SYMBOLS; i++) {
+            instance.name("n" + i);
+        }
+        QualifiedName first = instance.name("x:overflow");
+        QualifiedName second = instance.name("x:overflow");
+
+        assertThat(first.getLocalName(), equalTo("overflow"));
+        assertThat(first, not(sameInstance(second)));
+    }
+
+    @Test
+    public void givenLegalNames_whenVerifiedName_thenReturnsName() {
+        assertThat(instance.verifiedName("h:table").getLocalName(), equalTo("table"));
+        assertThat(instance.verifiedName("_a-b.c1").getLocalName(), equalTo("_a-b.c1"));
+        assertThat(instance.verifiedName("caf\u00e9:\u00e9l\u00e9ment").getPrefix(), equalTo("caf\u00e9"));
+    }
+
+    @Test(expected = IllegalNameException.class)
+    public void givenNameWithTwoColons_whenVerifiedName_thenThrowsException() {
+        instance.verifiedName("a:b:c");
+    }
+
+    @Test(expected = IllegalNameException.class)
+    public void givenNameStartingWithDigit_whenVerifiedName_thenThrowsException() {
+        instance.verifiedName("p:1a");
+    }
+
+    @Test(expected = IllegalNameException.class)
+    public void givenIllegalPrefix_whenVerifiedName_thenThrowsException() {
+        instance.verifiedName("-p:a");
+    }
+
+    @Test
+    public void givenNames_whenIsNCName_thenOnlyNamesWithoutColonsAreAccepted() {
+        assertThat(SymbolTable.isNCName("a\u00b7b"), is(true));
+        assertThat(SymbolTable.isNCName("\ud800\udc00"), is(true));
+        assertThat(SymbolTable.isNCName(""), is(false));
+        assertThat(SymbolTable.isNCName("a:b"), is(false));
+        assertThat(SymbolTable.isNCName("a b"), is(false));
+        assertThat(SymbolTable.isNCName("\u00b7a"), is(false));
+    }
+
+    @Test(expected = IllegalTargetException.class)
+    public void givenColonizedTarget_whenCheckTarget_thenThrowsException() {
+        SymbolTable.checkTarget("a:b");
+    }
+
+    @Test(expected = IllegalTargetException.class)
+    public void givenReservedTarget_whenCheckTarget_thenThrowsException() {
+        SymbolTable.checkTarget("XmL");
+    }
+
+}
@@ -0,0 +1,215 @@
+package com.github.hamishmorgan.xomb.impl;
+
+import com.github.hamishmorgan.xomb.api.DocumentBuilder;
+import com.github.hamishmorgan.xomb.api.ElementBuilder;
+import com.github.hamishmorgan.xomb.api.MissingRequiredPropertyException;
+import com.github.hamishmorgan.xomb.api.StreamingDocumentBuilder;
+import com.github.hamishmorgan.xomb.api.StreamingElementBuilder;
+import com.github.hamishmorgan.xomb.api.Template;
+import com.github.hamishmorgan.xomb.spi.XomBuilderFactory;
+import com.github.hamishmorgan.xomb.spi.XomBuilderFeature;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import nu.xom.Attribute;
+import nu.xom.Comment;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.NodeFactory;
+import nu.xom.Nodes;
+import nu.xom.Text;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class XomBuilderFactoryImplTest {
+
+    private XomBuilderFactoryImpl instance;
+
+    @Before
+    public void createInstance() {
+        instance = new XomBuilderFactoryImpl(new NodeFactory());
+    }
+
+    @Test
+    public void givenElementWithSlots_whenCreateTemplate_thenTemplateHasSlotNames() {
+        Template<Nodes> template = instance.createTemplate(instance.createElement("p")
+                .addAttributeSlot("id", "id")
+                .add(instance.createElement("span").addSlot("text")));
+
+        assertThat(template.getSlotNames(), equalTo((Object) ImmutableSet.of("id", "text")));
+    }
+
+    @Test
+    public void givenElementTemplate_whenInstantiate_thenSlotsAreFilled() {
+        Template<Nodes> template = instance.createTemplate(instance.createElement("p")
+                .addAttributeSlot("id", "id")
+                .add("Hello, ")
+                .addSlot("name")
+                .add(instance.createElement("em").addSlot("name")));
+
+        Element result = (Element) template.instantiate(ImmutableMap.of("id", "x1", "name", "Bob")).get(0);
+
+        assertThat(result.toXML(), equalTo("<p id=\"x1\">Hello, Bob<em>Bob</em></p>"));
+    }
+
+    @Test
+    public void givenElementTemplate_whenInstantiateRepeatedly_thenInstancesAreIndependent() {
+        Template<Nodes> template = instance.createTemplate(instance.createElement("p").addSlot("text"));
+
+        Nodes first = template.instantiate(ImmutableMap.of("text", "A"));
+        Nodes second = template.instantiate(ImmutableMap.of("text", "B"));
+
+        assertThat(first.get(0), not(sameInstance(second.get(0))));
+        assertThat(first.get(0).getValue(), equalTo("A"));
+        assertThat(second.get(0).getValue(), equalTo("B"));
+    }
+
+    @Test
+    public void givenElementTemplate_whenInstantiate_thenProductContainsNoPlaceholders() {
+        Template<Nodes> template = instance.createTemplate(instance.createElement("p")
+                .addAttributeSlot("id", "id")
+                .addSlot("text"));
+
+        Element result = (Element) template.instantiate(ImmutableMap.of("id", "x", "text", "y")).get(0);
+
+        assertThat(result.getChild(0).getClass(), equalTo((Object) Text.class));
+        assertThat(result.getAttribute(0).getClass(), equalTo((Object) nu.xom.Attribute.class));
+    }
+
+    @Test(expected = MissingRequiredPropertyException.class)
+    public void givenMissingSlotValue_whenInstantiate_thenThrowsException() {
+        Template<Nodes> template = instance.createTemplate(instance.createElement("p").addSlot("text"));
+        template.instantiate(Collections.<String, String>emptyMap());
+    }
+
+    @Test(expected = MissingRequiredPropertyException.class)
+    public void givenElementWithSlots_whenBuild_thenThrowsException() {
+        instance.createElement("p").addSlot("text").build();
+    }
+
+    @Test
+    public void givenBuilderModifiedAfterCreateTemplate_whenInstantiate_thenTemplateIsUnchanged() {
+        ElementBuilder builder = instance.createElement("p").addSlot("text");
+        Template<Nodes> template = instance.createTemplate(builder);
+        builder.add("more");
+
+        Nodes result = template.instantiate(ImmutableMap.of("text", "A"));
+
+        assertThat(result.get(0).getValue(), equalTo("A"));
+    }
+
+    @Test
+    public void givenLargeDocument_whenBuildInParallel_thenProductMatchesBuild() {
+        ElementBuilder root = instance.createRoot("root");
+        for (int i = 0; i < 4; i++) {
+            ElementBuilder child = instance.createElement("child");
+            for (int j = 0; j < ElementSnapshot.PARALLEL_THRESHOLD; j++) {
+                child.add(instance.createElement("item").add("" + j));
+            }
+            root.add(child);
+        }
+        DocumentBuilder builder = instance.createDocument().addComment("comment").withRoot(root);
+
+        Document result = builder.build(ForkJoinPool.commonPool());
+
+        assertThat(result.toXML(), equalTo(builder.build().toXML()));
+    }
+
+    @Test
+    public void givenDocumentTemplate_whenInstantiate_thenSlotsAreFilled() {
+        Template<Document> template = instance.createTemplate(instance.createDocument()
+                .withDocType("html")
+                .withRoot(instance.createRoot("html")
+                        .add(instance.createElement("title").addSlot("title"))));
+
+        Document result = template.instantiate(ImmutableMap.of("title", "Hi"));
+
+        assertThat(result.getRootElement().toXML(), equalTo("<html><title>Hi</title></html>"));
+        assertThat(result.getDocType().getRootElementName(), equalTo("html"));
+    }
+
+    @Test
+    public void givenTrustedInput_whenBuildDocument_thenProductMatchesCheckedMode() {
+        XomBuilderFactoryImpl trusted = trustedFactory();
+
+        assertThat(sampleDocument(trusted, false).build().toXML(),
+                equalTo(sampleDocument(instance, false).build().toXML()));
+        assertThat(sampleDocument(trusted, false).buildAndConsume().toXML(),
+                equalTo(sampleDocument(instance, false).buildAndConsume().toXML()));
+    }
+
+    @Test
+    public void givenTrustedInput_whenInstantiateTemplate_thenProductMatchesCheckedMode() {
+        ImmutableMap<String, String> values = ImmutableMap.of("id", "a<b", "text", "x & y");
+
+        Document expected = instance.createTemplate(sampleDocument(instance, true)).instantiate(values);
+        Document result = trustedFactory().createTemplate(sampleDocument(trustedFactory(), true)).instantiate(values);
+
+        assertThat(result.toXML(), equalTo(expected.toXML()));
+    }
+
+    @Test
+    public void givenTrustedInput_whenStreamDocument_thenOutputMatchesCheckedMode() throws IOException {
+        for (Charset charset : Arrays.asList(Charsets.UTF_8, Charsets.US_ASCII)) {
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            streamSampleDocument(instance.createStreamingDocument(expected, charset));
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            streamSampleDocument(trustedFactory().createStreamingDocument(result, charset));
+
+            assertThat(result.toString(charset.name()), equalTo(expected.toString(charset.name())));
+        }
+    }
+
+    private static XomBuilderFactoryImpl trustedFactory() {
+        return new XomBuilderFactoryImpl(new NodeFactory(), EnumSet.of(XomBuilderFeature.TRUSTED_INPUT));
+    }
+
+    private static DocumentBuilder sampleDocument(XomBuilderFactory factory, boolean slots) {
+        URI namespace = URI.create("http://example.com/ns");
+        ElementBuilder body = factory.createElement("x:body", 4, 2).withNamespace(namespace)
+                .addAttributes("class", "main", "title", "quote \" tab \t")
+                .add("Text with <markup> & caf\u00e9 \ud83d\ude00")
+                .add(new Comment("comment"))
+                .addAll(Arrays.asList(factory.createElement("item").add("1"), factory.createElement("item").add("2")));
+        if (slots) {
+            body.addAttributeSlot("id", "id").addSlot("text");
+        }
+        return factory.createDocument()
+                .withDocType("html")
+                .addPI("xml-stylesheet", "href=\"style.css\"")
+                .withRoot(factory.createRoot("html")
+                        .withBaseURI(URI.create("http://example.com/"))
+                        .addAttribute("lang", "en")
+                        .addAttribute(new Attribute("xml:space", "http://www.w3.org/XML/1998/namespace", "preserve"))
+                        .addAttributes(ImmutableMap.of("a", "1", "b", "2"))
+                        .add(body)
+                        .add(new Element("existing")))
+                .addComment("footer");
+    }
+
+    private static void streamSampleDocument(StreamingDocumentBuilder document) throws IOException {
+        document.withDocType("html").addComment("header");
+        StreamingElementBuilder html = document.startRoot("x:html").withNamespace(URI.create("http://example.com/"));
+        html.addAttribute("title", "a&b\"c\td\ne\rf");
+        StreamingElementBuilder body = html.startElement("body");
+        body.add("Text with <markup> & caf\u00e9 \ud83d\ude00\r\n").addPI("target", "data").addComment("comment");
+        body.startElement("br").close();
+        html.close();
+        document.addPI("end", "").close();
+    }
+
+}